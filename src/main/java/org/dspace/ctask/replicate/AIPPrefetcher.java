@@ -0,0 +1,39 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * AIPPrefetcher fetches AIPs from the replica store ahead of a recursive
+ * restore, so that fetching the next packages overlaps ingesting the
+ * current one. The restore tells the prefetcher which packages it will need
+ * next (children are needed before the remaining siblings of their parent),
+ * and the prefetcher keeps up to 'replicate.restore.prefetch' of the next
+ * needed packages fetched or being fetched, using
+ * 'replicate.restore.prefetch.threads' threads. Packages are still taken -
+ * and ingested - one at a time, in the order the restore needs them.
+ *
+ * @see METSRestoreFromAIP
+ * @see BagItRestoreFromAIP
+ */
+public class AIPPrefetcher extends ObjectPrefetcher
+{
+    AIPPrefetcher(ReplicaManager repMan, String group)
+    {
+        super(repMan, group, restoreSetting("replicate.restore.prefetch", 4),
+              restoreSetting("replicate.restore.prefetch.threads", 2));
+    }
+
+    private static int restoreSetting(String name, int defaultValue)
+    {
+        ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+        return configurationService.getIntProperty(name, defaultValue);
+    }
+}
@@ -0,0 +1,527 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.Context;
+import org.dspace.core.factory.CoreServiceFactory;
+import org.dspace.curate.Curator;
+import org.dspace.curate.TaskQueue;
+import org.dspace.curate.TaskQueueEntry;
+import org.dspace.eperson.EPerson;
+import org.dspace.eperson.factory.EPersonServiceFactory;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * AsyncPerformer performs the replicate consumers' perform-immediately
+ * ('+p') tasks in background threads, so that the request which changed an
+ * object (e.g. a submitter's item install) need not wait while its AIP is
+ * packed and uploaded. It is used when 'replicate.consumer.async' is true.
+ * <P>
+ * Each task is first recorded in a handoff file of this process (under
+ * 'async-handoff' in the replicate base directory), and marked off when
+ * done. The process holds a lock on its handoff file while it runs; a file
+ * found unlocked belongs to a process which has died, and its unfinished
+ * tasks are taken over by the next process to start, or by any running
+ * process, which look for such files every
+ * 'replicate.consumer.async.takeover' seconds. File locks are held per JVM,
+ * so a file locked by another web application in the same JVM is likewise
+ * treated as belonging to a running process. When the JVM shuts down,
+ * running tasks are given 'replicate.consumer.async.shutdown' seconds to
+ * finish; those waiting are left to be taken over. At most
+ * 'replicate.consumer.async.capacity' tasks may be waiting: beyond that,
+ * submissions are refused and the consumers queue the task instead.
+ * <P>
+ * Tasks for the same object are performed in the order submitted, one at
+ * a time. Each task is performed with its own Context, as the submitting
+ * EPerson.
+ *
+ * @see METSReplicateConsumer
+ * @see BagItReplicateConsumer
+ */
+public class AsyncPerformer
+{
+    private static Logger log = Logger.getLogger(AsyncPerformer.class);
+
+    private static AsyncPerformer instance = null;
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    private static final String HANDOFF_DIR = "async-handoff";
+    private static final String HANDOFF_PREFIX = "handoff-";
+    private static final String ENTRY = "entry";
+    private static final String DONE = "done";
+    private static final String SEP = "\t";
+    // stands for no EPerson
+    private static final String NOBODY = "-";
+
+    private final File dir;
+    private final int capacity;
+    // whether each handoff is forced to disk
+    private final boolean sync;
+    private final ExecutorService executor;
+    // looks for handoffs of processes which have died (null if none)
+    private Timer takeOverTimer = null;
+    // set once the JVM is shutting down
+    private volatile boolean stopping = false;
+    // this process's handoff file, locked while it runs
+    private final File handoffFile;
+    private RandomAccessFile handoff = null;
+    private FileLock lock = null;
+    // next handoff sequence number
+    private long seq = 0L;
+    // submitted tasks not yet done
+    private int pending = 0;
+    // tasks waiting or running, by object - the head of each is running
+    private final Map<String, LinkedList<Job>> chains = new HashMap<String, LinkedList<Job>>();
+
+    private AsyncPerformer(String repDir) throws IOException
+    {
+        dir = new File(repDir, HANDOFF_DIR);
+        dir.mkdirs();
+        capacity = configurationService.getIntProperty("replicate.consumer.async.capacity", 1000);
+        sync = configurationService.getBooleanProperty("replicate.consumer.async.sync", true);
+        // daemon threads, so the JVM may exit - the shutdown hook lets them finish
+        executor = Executors.newFixedThreadPool(configurationService.getIntProperty("replicate.consumer.async.threads", 2),
+                                                new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "replicate-async");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // takeOver never fails, so once locked the handoff file stays in use
+        handoffFile = File.createTempFile(HANDOFF_PREFIX, "", dir);
+        handoff = new RandomAccessFile(handoffFile, "rw");
+        try
+        {
+            lock = handoff.getChannel().tryLock();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            handoff.close();
+            handoffFile.delete();
+            throw e;
+        }
+        takeOver();
+        final long wait = configurationService.getLongProperty("replicate.consumer.async.shutdown", 60L) * 1000L;
+        Runtime.getRuntime().addShutdownHook(new Thread("replicate-async-shutdown")
+        {
+            @Override
+            public void run()
+            {
+                shutdown(wait);
+            }
+        });
+        long interval = configurationService.getLongProperty("replicate.consumer.async.takeover", 300L) * 1000L;
+        if (interval > 0L)
+        {
+            takeOverTimer = new Timer("replicate-async-takeover", true);
+            takeOverTimer.schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        takeOver();
+                    }
+                    catch (RuntimeException rE)
+                    {
+                        // keep the timer alive for the next attempt
+                        log.error("Unable to take over handoff files", rE);
+                    }
+                }
+            }, interval, interval);
+        }
+    }
+
+    /*
+     * Lets running tasks finish (for at most 'wait' ms), leaving waiting
+     * ones in the handoff file, which is then unlocked for another process
+     * to take over
+     */
+    private void shutdown(long wait)
+    {
+        stopping = true;
+        if (takeOverTimer != null)
+        {
+            takeOverTimer.cancel();
+        }
+        executor.shutdown();
+        try
+        {
+            if (! executor.awaitTermination(wait, TimeUnit.MILLISECONDS))
+            {
+                log.warn("Background tasks still running at shutdown - they will be performed again");
+            }
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this)
+        {
+            try
+            {
+                if (lock != null)
+                {
+                    lock.release();
+                }
+                handoff.close();
+            }
+            catch (IOException ioE)
+            {
+                log.error("Unable to release handoff file '" + handoffFile + "'", ioE);
+            }
+        }
+    }
+
+    /**
+     * Returns the performer of this process.
+     *
+     * @return the performer
+     * @throws IOException if the handoff file cannot be created
+     */
+    public static synchronized AsyncPerformer instance() throws IOException
+    {
+        if (instance == null)
+        {
+            instance = new AsyncPerformer(DSpaceServicesFactory.getInstance().getConfigurationService()
+                                          .getProperty("replicate.base.dir"));
+        }
+        return instance;
+    }
+
+    /**
+     * Submits a task to be performed on an object. Returns once the task has
+     * been recorded, or false if too many tasks are waiting.
+     *
+     * @param ep EPerson to perform the task as (may be null)
+     * @param task task name
+     * @param id object id (handle)
+     * @return true if accepted
+     * @throws IOException if the task cannot be recorded
+     */
+    public boolean submit(EPerson ep, String task, String id) throws IOException
+    {
+        List<String> tasks = new ArrayList<String>();
+        tasks.add(task);
+        String epId = (ep != null) ? ep.getID().toString() : NOBODY;
+        return submit(new TaskQueueEntry(epId, System.currentTimeMillis(), tasks, id));
+    }
+
+    private boolean submit(TaskQueueEntry entry) throws IOException
+    {
+        Job job;
+        synchronized (this)
+        {
+            if (pending >= capacity || stopping)
+            {
+                return false;
+            }
+            job = new Job(seq++, entry);
+            record(ENTRY + SEP + job.seq + SEP + entry.toString());
+            pending++;
+        }
+        dispatch(job);
+        return true;
+    }
+
+    private void dispatch(Job job)
+    {
+        final String id = job.entry.getObjectId();
+        synchronized (chains)
+        {
+            LinkedList<Job> chain = chains.get(id);
+            if (chain != null)
+            {
+                // runs after the object's earlier tasks
+                chain.add(job);
+                return;
+            }
+            chain = new LinkedList<Job>();
+            chain.add(job);
+            chains.put(id, chain);
+        }
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runChain(id);
+            }
+        });
+    }
+
+    private void runChain(String id)
+    {
+        while (true)
+        {
+            Job job;
+            synchronized (chains)
+            {
+                job = chains.get(id).peek();
+            }
+            if (stopping)
+            {
+                // left in the handoff file for another process
+                return;
+            }
+            perform(job.entry);
+            done(job);
+            synchronized (chains)
+            {
+                LinkedList<Job> chain = chains.get(id);
+                chain.poll();
+                if (chain.isEmpty())
+                {
+                    chains.remove(id);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void perform(TaskQueueEntry entry)
+    {
+        Context ctx = null;
+        try
+        {
+            ctx = new Context();
+            String epId = entry.getEpersonId();
+            if (! NOBODY.equals(epId))
+            {
+                ctx.setCurrentUser(EPersonServiceFactory.getInstance().getEPersonService()
+                                   .find(ctx, UUID.fromString(epId)));
+            }
+            Curator curator = new Curator();
+            for (String task : entry.getTaskNames())
+            {
+                curator.addTask(task);
+            }
+            curator.curate(ctx, entry.getObjectId());
+            for (String task : entry.getTaskNames())
+            {
+                if (curator.getStatus(task) == Curator.CURATE_ERROR)
+                {
+                    log.error("Task '" + task + "' failed on '" + entry.getObjectId() + "': " + curator.getResult(task));
+                }
+            }
+            ctx.complete();
+        }
+        catch (Exception e)
+        {
+            log.error("Unable to perform '" + entry + "'", e);
+        }
+        finally
+        {
+            if (ctx != null && ctx.isValid())
+            {
+                ctx.abort();
+            }
+        }
+    }
+
+    private synchronized void done(Job job)
+    {
+        if (stopping && ! handoff.getChannel().isOpen())
+        {
+            // finished too late to record - will be performed again
+            return;
+        }
+        try
+        {
+            if (--pending == 0)
+            {
+                // nothing outstanding - start the file afresh
+                handoff.setLength(0L);
+                if (sync)
+                {
+                    handoff.getFD().sync();
+                }
+            }
+            else
+            {
+                record(DONE + SEP + job.seq);
+            }
+        }
+        catch (IOException ioE)
+        {
+            // the task may be performed again after a crash
+            log.error("Unable to record completion of '" + job.entry + "'", ioE);
+        }
+    }
+
+    // caller holds the monitor
+    private void record(String line) throws IOException
+    {
+        handoff.seek(handoff.length());
+        handoff.write((line + "\n").getBytes("UTF-8"));
+        if (sync)
+        {
+            handoff.getFD().sync();
+        }
+    }
+
+    /*
+     * Resubmits the unfinished tasks of processes which have died
+     */
+    private void takeOver()
+    {
+        File own = handoffFile;
+        File[] files = dir.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        List<TaskQueueEntry> overflow = new ArrayList<TaskQueueEntry>();
+        for (File file : files)
+        {
+            if (! file.getName().startsWith(HANDOFF_PREFIX) || file.equals(own))
+            {
+                continue;
+            }
+            try
+            {
+                int taken = takeOver(file, overflow);
+                if (taken >= 0)
+                {
+                    file.delete();
+                }
+                if (taken > 0)
+                {
+                    log.info("Took over " + taken + " unfinished tasks from '" + file.getName() + "'");
+                }
+            }
+            catch (Exception e)
+            {
+                log.error("Unable to take over handoff file '" + file + "'", e);
+            }
+        }
+        if (! overflow.isEmpty())
+        {
+            // queue what there is no room for
+            try
+            {
+                TaskQueue taskQueue = (TaskQueue) CoreServiceFactory.getInstance().getPluginService()
+                                                  .getSinglePlugin(TaskQueue.class);
+                Set<TaskQueueEntry> entrySet = new LinkedHashSet<TaskQueueEntry>(overflow);
+                taskQueue.enqueue(configurationService.getProperty("replicate.consumer.queue"), entrySet);
+            }
+            catch (Exception e)
+            {
+                log.error("Unable to queue " + overflow.size() + " unfinished tasks", e);
+            }
+        }
+    }
+
+    /*
+     * Resubmits the unfinished tasks in another process's handoff file,
+     * adding those there is no room for to overflow; returns how many there
+     * were, or -1 if the file is still in use
+     */
+    private int takeOver(File file, List<TaskQueueEntry> overflow) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            FileLock fileLock;
+            try
+            {
+                fileLock = raf.getChannel().tryLock();
+            }
+            catch (OverlappingFileLockException olE)
+            {
+                // locked by another web application in this JVM
+                fileLock = null;
+            }
+            if (fileLock == null)
+            {
+                // its process is still running
+                return -1;
+            }
+            Map<Long, TaskQueueEntry> unfinished = new LinkedHashMap<Long, TaskQueueEntry>();
+            String line;
+            while ((line = raf.readLine()) != null)
+            {
+                String[] parts = line.split(SEP);
+                try
+                {
+                    if (ENTRY.equals(parts[0]) && parts.length == 3)
+                    {
+                        // readLine reads bytes as Latin-1
+                        unfinished.put(Long.valueOf(parts[1]),
+                                new TaskQueueEntry(new String(parts[2].getBytes("ISO-8859-1"), "UTF-8")));
+                    }
+                    else if (DONE.equals(parts[0]) && parts.length == 2)
+                    {
+                        unfinished.remove(Long.valueOf(parts[1]));
+                    }
+                }
+                catch (RuntimeException rE)
+                {
+                    // a torn final line (crash mid-write) is ignored
+                }
+            }
+            for (TaskQueueEntry entry : unfinished.values())
+            {
+                if (! submit(entry))
+                {
+                    overflow.add(entry);
+                }
+            }
+            return unfinished.size();
+        }
+        finally
+        {
+            // also releases the lock
+            raf.close();
+        }
+    }
+
+    /*
+     * A submitted task
+     */
+    private static class Job
+    {
+        private final long seq;
+        private final TaskQueueEntry entry;
+
+        private Job(long seq, TaskQueueEntry entry)
+        {
+            this.seq = seq;
+            this.entry = entry;
+        }
+    }
+}
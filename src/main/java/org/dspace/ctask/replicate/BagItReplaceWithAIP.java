@@ -10,6 +10,7 @@ package org.dspace.ctask.replicate;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.Bundle;
@@ -27,10 +28,17 @@ import org.dspace.curate.Curator;
 import org.dspace.curate.Mutative;
 import org.dspace.pack.Packer;
 import org.dspace.pack.PackerFactory;
+import org.dspace.pack.RestoreScope;
+import org.dspace.pack.bagit.ItemPacker;
 
 /**
  * BagItReplaceWithAIP task will instate the replica representation of the object in
  * place of the current (repository) one.
+ * <P>
+ * The replacement of items may be limited to their metadata, or to named
+ * bundles, with the task options 'replicate.bagit.[taskname].metadataOnly'
+ * and 'replicate.bagit.[taskname].restoreBundles' (see RestoreScope). Only
+ * the parts of the AIP needed are then inflated.
  * 
  * @author richardrodgers
  * @see TransmitAIP
@@ -47,11 +55,16 @@ public class BagItReplaceWithAIP extends AbstractCurationTask {
     private CollectionService collectionService = ContentServiceFactory.getInstance().getCollectionService();
     private ItemService itemService = ContentServiceFactory.getInstance().getItemService();
 
+    // parts of objects replaced
+    private RestoreScope scope;
+
     @Override
     public void init(Curator curator, String taskId) throws IOException {
         super.init(curator, taskId);
         archFmt = configurationService.getProperty("replicate.packer.archfmt");
         storeGroupName = configurationService.getProperty("replicate.group.aip.name");
+        scope = RestoreScope.of(configurationService.getBooleanProperty("replicate.bagit." + taskId + ".metadataOnly", false),
+                                configurationService.getProperty("replicate.bagit." + taskId + ".restoreBundles"));
     }
     
     /**
@@ -76,15 +89,30 @@ public class BagItReplaceWithAIP extends AbstractCurationTask {
             String result = null;
             String objId = repMan.storageId(dso.getHandle(), archFmt);
             File archive = repMan.fetchObject(storeGroupName, objId);
-            if (archive != null) 
+            if (archive != null && dso.getType() != Constants.ITEM && ! scope.includesMetadata())
+            {
+                // containers have no bundles
+                archive.delete();
+                status = Curator.CURATE_SKIP;
+                result = "Object: " + dso.getHandle() + " has nothing to replace (" + scope + ")";
+            }
+            else if (archive != null) 
             {
                 // clear object where necessary
                 if (dso.getType() == Constants.ITEM) {
                     Item item = (Item)dso;
-                    itemService.clearMetadata(Curator.curationContext(), item, Item.ANY, Item.ANY, Item.ANY, Item.ANY);
-                    for (Bundle bundle : item.getBundles()) {
-                        itemService.removeBundle(Curator.curationContext(), item, bundle);
+                    if (scope.includesMetadata()) {
+                        itemService.clearMetadata(Curator.curationContext(), item, Item.ANY, Item.ANY, Item.ANY, Item.ANY);
+                    }
+                    for (Bundle bundle : new ArrayList<Bundle>(item.getBundles())) {
+                        if (scope.includesBundle(bundle.getName())) {
+                            itemService.removeBundle(Curator.curationContext(), item, bundle);
+                        }
                     }   
+                    if (packer instanceof ItemPacker) {
+                        ((ItemPacker) packer).setRestoreScope(scope);
+                        ((ItemPacker) packer).setBlobSource(repMan);
+                    }
                 }
                 packer.unpack(archive);
                 // now update the dso
@@ -97,7 +125,8 @@ public class BagItReplaceWithAIP extends AbstractCurationTask {
                     communityService.update(Curator.curationContext(), (Community) dso);
                 }
                 status = Curator.CURATE_SUCCESS;
-                result = "Object: " + dso.getHandle() + " replaced from AIP";
+                result = "Object: " + dso.getHandle() + " replaced from AIP" +
+                         (scope.isComplete() ? "" : " (" + scope + ")");
             }
             else
             {
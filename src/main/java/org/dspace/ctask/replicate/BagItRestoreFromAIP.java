@@ -11,7 +11,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
@@ -36,6 +42,7 @@ import org.dspace.pack.Packer;
 import org.dspace.pack.PackerFactory;
 import org.dspace.pack.bagit.Bag;
 import org.dspace.pack.bagit.CatalogPacker;
+import org.dspace.pack.bagit.ItemPacker;
 
 import static org.dspace.pack.PackerFactory.*;
 
@@ -43,6 +50,8 @@ import static org.dspace.pack.PackerFactory.*;
  * BagItRestoreFromAIP task performs essentially an 'undelete' on an object that
  * has been deleted from the repository, using the replica copy.
  * If the object is a container, it recovers all its children/members.
+ * Member packages are fetched and inflated ahead of need, in parallel with
+ * the recovery of earlier members.
  *
  * @author richardrodgers
  * @see TransmitAIP
@@ -111,10 +120,10 @@ public class BagItRestoreFromAIP extends AbstractCurationTask {
             // RLR TODO - remove filename collision next delete requires
             catArchive.delete();
             // recover root object itself, then any members
-            recover(ctx, repMan, id);
-            for (String mem : cpack.getMembers()) {
-                recover(ctx, repMan, mem);
-            }
+            List<String> ids = new ArrayList<String>();
+            ids.add(id);
+            ids.addAll(cpack.getMembers());
+            recoverAll(ctx, repMan, ids);
             // remove the deletion catalog (as the object is now restored)
             repMan.removeObject(deleteGroupName, catId);
             result = "Successfully restored Object '" + id + "' (and any child objects) from AIP.";
@@ -131,40 +140,232 @@ public class BagItRestoreFromAIP extends AbstractCurationTask {
     }
 
     /**
-     * Recover an object from an ObjectStore based on its identifier
+     * Recover objects from an ObjectStore based on their identifiers.
+     * Packages are fetched and inflated ahead (see AIPPrefetcher), while
+     * earlier objects are recovered. Objects are recovered in the order
+     * passed, except that an object whose owner (or other collection) is
+     * among those passed is held back until that owner has been recovered.
+     * The bags of held back objects are removed, and fetched again once
+     * released, so that they do not pile up beyond the look-ahead.
      * @param ctx current DSpace Context
      * @param repMan ReplicaManager (used to access ObjectStore)
-     * @param id Identifier of object in ObjectStore
+     * @param ids Identifiers of objects in ObjectStore
+     * @throws IOException if IO error
+     */
+    private void recoverAll(Context ctx, ReplicaManager repMan, List<String> ids) throws IOException
+    {
+        AIPPrefetcher prefetcher = new AIPPrefetcher(repMan, storeGroupName) {
+            @Override
+            protected File prepare(String objId, File archive) throws IOException {
+                // inflate in the fetching thread, and keep only the bag
+                Bag bag = new Bag(archive);
+                archive.delete();
+                return new File(archive.getParentFile(), bag.getName());
+            }
+
+            @Override
+            protected void discard(File bagDir) {
+                emptyBag(bagDir);
+            }
+        };
+        try {
+            List<String> objIds = new ArrayList<String>();
+            for (String id : ids) {
+                objIds.add(repMan.storageId(id, archFmt));
+            }
+            prefetcher.schedule(objIds);
+            // objects not yet recovered, and those held back for each
+            Set<String> pending = new HashSet<String>(ids);
+            Map<String, List<Recovery>> waiting = new HashMap<String, List<Recovery>>();
+            for (int i = 0; i < ids.size(); i++) {
+                File bagDir = prefetcher.take(objIds.get(i));
+                if (bagDir == null) {
+                    // nothing to recover - release any waiting on it
+                    pending.remove(ids.get(i));
+                    recoverWaiting(ctx, prefetcher, ids.get(i), pending, waiting);
+                    continue;
+                }
+                Recovery rec = new Recovery(ids.get(i), objIds.get(i), bagDir);
+                if (! holdBack(rec, pending, waiting)) {
+                    recover(ctx, prefetcher, rec, pending, waiting);
+                }
+            }
+            // any still held back have owners which could not be recovered
+            List<Recovery> left = new ArrayList<Recovery>();
+            for (List<Recovery> list : waiting.values()) {
+                left.addAll(list);
+            }
+            prefetcher.schedule(objIdsOf(left));
+            for (Recovery rec : left) {
+                if (refetch(prefetcher, rec)) {
+                    recoverObject(ctx, rec);
+                }
+            }
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    private void recover(Context ctx, AIPPrefetcher prefetcher, Recovery rec, Set<String> pending,
+                         Map<String, List<Recovery>> waiting) throws IOException
+    {
+        recoverObject(ctx, rec);
+        pending.remove(rec.id);
+        recoverWaiting(ctx, prefetcher, rec.id, pending, waiting);
+    }
+
+    /*
+     * Recovers objects held back for an owner, unless they await another,
+     * fetching their bags again
+     */
+    private void recoverWaiting(Context ctx, AIPPrefetcher prefetcher, String ownerId,
+                                Set<String> pending, Map<String, List<Recovery>> waiting) throws IOException
+    {
+        List<Recovery> list = waiting.remove(ownerId);
+        if (list == null) {
+            return;
+        }
+        List<Recovery> ready = new ArrayList<Recovery>();
+        for (Recovery rec : list) {
+            if (! holdBack(rec, pending, waiting)) {
+                ready.add(rec);
+            }
+        }
+        prefetcher.schedule(objIdsOf(ready));
+        for (Recovery rec : ready) {
+            if (refetch(prefetcher, rec)) {
+                recover(ctx, prefetcher, rec, pending, waiting);
+            } else {
+                pending.remove(rec.id);
+                recoverWaiting(ctx, prefetcher, rec.id, pending, waiting);
+            }
+        }
+    }
+
+    /*
+     * Fetches the bag of a released object again
+     */
+    private boolean refetch(AIPPrefetcher prefetcher, Recovery rec) throws IOException
+    {
+        rec.bagDir = prefetcher.take(rec.objId);
+        if (rec.bagDir == null) {
+            log.warn("Package '" + rec.objId + "' no longer in replica store - skipping '" + rec.id + "'");
+            return false;
+        }
+        return true;
+    }
+
+    private static List<String> objIdsOf(List<Recovery> recs)
+    {
+        List<String> objIds = new ArrayList<String>();
+        for (Recovery rec : recs) {
+            objIds.add(rec.objId);
+        }
+        return objIds;
+    }
+
+    /*
+     * Holds back an object if an object it depends on is still to be recovered
+     */
+    private boolean holdBack(Recovery rec, Set<String> pending, Map<String, List<Recovery>> waiting)
+    {
+        for (String dep : rec.dependencies()) {
+            if (pending.contains(dep) && ! dep.equals(rec.id)) {
+                List<Recovery> list = waiting.get(dep);
+                if (list == null) {
+                    list = new ArrayList<Recovery>();
+                    waiting.put(dep, list);
+                }
+                list.add(rec);
+                // only its properties are needed until released
+                if (rec.bagDir != null) {
+                    emptyBag(rec.bagDir);
+                    rec.bagDir = null;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Recover an object from its inflated AIP bag
+     * @param ctx current DSpace Context
+     * @param rec object to recover
      * @throws IOException if IO error
      */
-    private void recover(Context ctx, ReplicaManager repMan, String id) throws IOException 
+    private void recoverObject(Context ctx, Recovery rec) throws IOException
+    {
+        String type = rec.props.getProperty(OBJECT_TYPE);
+        String ownerId = rec.props.getProperty(OWNER_ID);
+        if ("item".equals(type)) {
+            recoverItem(ctx, rec.bagDir, rec.id, rec.props);
+        } else if ("collection".equals(type)) {
+            recoverCollection(ctx, rec.bagDir, rec.id, ownerId);
+        } else if ("community".equals(type)) {
+            recoverCommunity(ctx, rec.bagDir, rec.id, ownerId);
+        }
+        // discard bag when done
+        emptyBag(rec.bagDir);
+    }
+
+    private static void emptyBag(File bagDir)
+    {
+        // unpacking may already have emptied it
+        if (bagDir.exists()) {
+            try {
+                new Bag(bagDir).empty();
+            } catch (IOException ioE) {
+                log.warn("Unable to remove bag '" + bagDir + "'", ioE);
+            }
+        }
+    }
+
+    /*
+     * An object to recover, with its inflated bag (null while held back)
+     * and object properties
+     */
+    private static class Recovery
     {
-        String objId = repMan.storageId(id, archFmt);
-        File archive = repMan.fetchObject(storeGroupName, objId);
-        if (archive != null) {
-            Bag bag = new Bag(archive);
-            InputStream bagIn = bag.dataStream(OBJFILE);
-            Properties props = new Properties();
+        private final String id;
+        private final String objId;
+        private File bagDir;
+        private final Properties props = new Properties();
+
+        private Recovery(String id, String objId, File bagDir) throws IOException
+        {
+            this.id = id;
+            this.objId = objId;
+            this.bagDir = bagDir;
+            InputStream bagIn = new Bag(bagDir).dataStream(OBJFILE);
             props.load(bagIn);
             bagIn.close();
-            String type = props.getProperty(OBJECT_TYPE);
+        }
+
+        /*
+         * Objects which must exist before this one can be recovered
+         */
+        private List<String> dependencies()
+        {
+            List<String> deps = new ArrayList<String>();
             String ownerId = props.getProperty(OWNER_ID);
-            if ("item".equals(type)) {
-                recoverItem(ctx, archive, id, props);
-            } else if ("collection".equals(type)) {
-                recoverCollection(ctx, archive, id, ownerId);
-            } else if ("community".equals(type)) {
-                recoverCommunity(ctx, archive, id, ownerId);
+            if (ownerId != null) {
+                deps.add(ownerId);
+            }
+            String others = props.getProperty(OTHER_IDS);
+            if (others != null) {
+                for (String other : others.split(",")) {
+                    deps.add(other);
+                }
             }
-            // discard bag when done
-            bag.empty();
+            return deps;
         }
     }
 
     /**
      * Recover a DSpace Item from a particular AIP package file
      * @param ctx current DSpace context
-     * @param archive AIP package file 
+     * @param archive AIP package file (or inflated bag)
      * @param objId identifier of object we are restoring
      * @param props properties which control how item is restored
      * @throws IOException if IO error
@@ -176,6 +377,9 @@ public class BagItRestoreFromAIP extends AbstractCurationTask {
             Collection coll = (Collection) handleService.resolveToObject(ctx, collId);
             WorkspaceItem wi = workspaceItemService.create(ctx, coll, false);
             Packer packer = PackerFactory.instance(wi.getItem());
+            if (packer instanceof ItemPacker) {
+                ((ItemPacker) packer).setBlobSource(ReplicaManager.instance());
+            }
             // stuff bag contents into item
             packer.unpack(archive);
             // Install item
@@ -203,7 +407,7 @@ public class BagItRestoreFromAIP extends AbstractCurationTask {
     /**
      * Recover a DSpace Collection from a particular AIP package file
      * @param ctx current DSpace context
-     * @param archive AIP package file 
+     * @param archive AIP package file (or inflated bag)
      * @param collId identifier of collection we are restoring
      * @param commId identifier of parent community for this collection
      * @throws IOException if IO error
@@ -231,7 +435,7 @@ public class BagItRestoreFromAIP extends AbstractCurationTask {
     /**
      * Recover a DSpace Community from a particular AIP package file
      * @param ctx current DSpace context
-     * @param archive AIP package file 
+     * @param archive AIP package file (or inflated bag)
      * @param commId identifier of community we are restoring
      * @param parentId identifier of parent community (if any) for community
      * @throws IOException if IO error
@@ -0,0 +1,362 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * BandwidthThrottle is a token bucket limiting the rate (in bytes/second) at
+ * which content is moved to or from a replica store. Callers acquire the
+ * bytes they are about to move (or have just moved), and are held until the
+ * bucket has refilled enough to cover them; waiting callers are released in
+ * the order they arrived.
+ * <P>
+ * The rate may follow a daily schedule of time windows, e.g.:
+ * <PRE>
+ * [prefix].rate = 10485760
+ * [prefix].schedule = 20:00-06:00 0
+ * </PRE>
+ * allows 10MB/s, except from 8pm to 6am when transfers are unlimited (a rate
+ * of 0). The configuration is re-read every minute, so both the schedule and
+ * the rates may be changed while a curation run is in progress. The burst
+ * ('[prefix].burst', in seconds of transfer at the current rate) bounds how
+ * much unused capacity may be saved up while idle.
+ * <P>
+ * Content is best throttled as it moves, by reading or writing it through a
+ * stream from <code>limit</code>, which pays for each chunk as it passes, so
+ * the rate holds within a transfer (see ThrottledObjectStore). Content moved
+ * by other means can only be paid for in whole once it has moved, so the
+ * rate then holds on average over successive transfers.
+ */
+public class BandwidthThrottle
+{
+    private static Logger log = Logger.getLogger(BandwidthThrottle.class);
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // interval between configuration reloads (ms)
+    private static final long RELOAD_INTERVAL = 60000L;
+    // longest single sleep, so rate changes are noticed promptly (ms)
+    private static final long MAX_SLEEP = 1000L;
+    // most bytes paid for at once by throttled streams
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // configuration property prefix
+    private final String prefix;
+    // default rate (bytes/second, 0 = unlimited)
+    private long defaultRate = 0L;
+    // burst allowance (seconds)
+    private double burst = 1.0;
+    // scheduled rates
+    private List<Window> windows = new ArrayList<Window>();
+    // time of last configuration load
+    private long loadedAt = 0L;
+    // bytes acquired, in total
+    private double issued = 0.0;
+    // bytes the bucket has released, in total
+    private double granted = 0.0;
+    // time of last refill
+    private long refilledAt = System.currentTimeMillis();
+    // total time callers have been held (ms)
+    private long waited = 0L;
+
+    /**
+     * Creates a throttle configured by properties with the passed prefix
+     * (e.g. 'replicate.throttle.upload').
+     *
+     * @param prefix configuration property prefix
+     */
+    public BandwidthThrottle(String prefix)
+    {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Acquires the passed number of bytes, waiting as long as the current
+     * rate requires.
+     *
+     * @param bytes number of bytes to be (or just) transferred
+     * @return time spent waiting (ms)
+     * @throws IOException if interrupted while waiting
+     */
+    public long acquire(long bytes) throws IOException
+    {
+        if (bytes <= 0L)
+        {
+            return 0L;
+        }
+        long start = System.currentTimeMillis();
+        double ticket;
+        synchronized (this)
+        {
+            if (refill(start) <= 0L)
+            {
+                return 0L;
+            }
+            issued += bytes;
+            ticket = issued;
+        }
+        while (true)
+        {
+            long sleep;
+            synchronized (this)
+            {
+                long rate = refill(System.currentTimeMillis());
+                if (granted >= ticket)
+                {
+                    break;
+                }
+                sleep = Math.min(MAX_SLEEP, (long) Math.ceil((ticket - granted) * 1000.0 / rate));
+            }
+            try
+            {
+                Thread.sleep(Math.max(1L, sleep));
+            }
+            catch (InterruptedException intE)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for bandwidth", intE);
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        synchronized (this)
+        {
+            waited += elapsed;
+        }
+        return elapsed;
+    }
+
+    /**
+     * Wraps a stream so that bytes read through it are paid for as they
+     * are read.
+     *
+     * @param in the stream
+     * @param throttle the throttle (if null, the stream is returned as is)
+     * @return the throttled stream
+     */
+    public static InputStream limit(InputStream in, final BandwidthThrottle throttle)
+    {
+        if (throttle == null)
+        {
+            return in;
+        }
+        return new FilterInputStream(in)
+        {
+            @Override
+            public int read() throws IOException
+            {
+                int b = super.read();
+                if (b >= 0)
+                {
+                    throttle.acquire(1L);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                // small chunks keep the flow smooth
+                int n = super.read(b, off, Math.min(len, CHUNK_SIZE));
+                throttle.acquire(n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wraps a stream so that bytes written through it are paid for before
+     * they are written.
+     *
+     * @param out the stream
+     * @param throttle the throttle (if null, the stream is returned as is)
+     * @return the throttled stream
+     */
+    public static OutputStream limit(OutputStream out, final BandwidthThrottle throttle)
+    {
+        if (throttle == null)
+        {
+            return out;
+        }
+        return new FilterOutputStream(out)
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                throttle.acquire(1L);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                while (len > 0)
+                {
+                    int n = Math.min(len, CHUNK_SIZE);
+                    throttle.acquire(n);
+                    out.write(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the total time callers have been held, and resets it.
+     *
+     * @return wait time (ms) since last call
+     */
+    public synchronized long drainWaited()
+    {
+        long total = waited;
+        waited = 0L;
+        return total;
+    }
+
+    /**
+     * Returns the rate now in effect.
+     *
+     * @return bytes/second (0 = unlimited)
+     */
+    public synchronized long currentRate()
+    {
+        reload(System.currentTimeMillis());
+        return rateAt(Calendar.getInstance());
+    }
+
+    /*
+     * Refills the bucket for the time elapsed at the current rate, and
+     * returns that rate. Caller must hold the lock.
+     */
+    private long refill(long now)
+    {
+        reload(now);
+        long rate = rateAt(Calendar.getInstance());
+        if (rate <= 0L)
+        {
+            // unlimited - release everyone
+            granted = issued;
+        }
+        else
+        {
+            double capacity = rate * burst;
+            granted = Math.min(granted + (now - refilledAt) * rate / 1000.0, Math.max(granted, issued + capacity));
+        }
+        refilledAt = now;
+        return rate;
+    }
+
+    private long rateAt(Calendar now)
+    {
+        int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        for (Window window : windows)
+        {
+            if (window.contains(minute))
+            {
+                return window.rate;
+            }
+        }
+        return defaultRate;
+    }
+
+    /*
+     * (Re)reads the configuration, if due. Caller must hold the lock.
+     */
+    private void reload(long now)
+    {
+        if (now - loadedAt < RELOAD_INTERVAL)
+        {
+            return;
+        }
+        loadedAt = now;
+        defaultRate = configurationService.getLongProperty(prefix + ".rate", 0L);
+        String burstProp = configurationService.getProperty(prefix + ".burst");
+        burst = (burstProp != null) ? Double.parseDouble(burstProp) : 1.0;
+        List<Window> newWindows = new ArrayList<Window>();
+        String[] entries = configurationService.getArrayProperty(prefix + ".schedule");
+        if (entries != null)
+        {
+            for (String entry : entries)
+            {
+                try
+                {
+                    newWindows.add(Window.parse(entry.trim()));
+                }
+                catch (IllegalArgumentException iaE)
+                {
+                    log.error("Ignoring invalid schedule entry '" + entry + "' in '" + prefix + ".schedule'");
+                }
+            }
+        }
+        windows = newWindows;
+    }
+
+    /*
+     * A daily time window with its own rate, e.g. '20:00-06:00 0'
+     */
+    private static class Window
+    {
+        // minutes after midnight
+        private final int from;
+        private final int to;
+        private final long rate;
+
+        private Window(int from, int to, long rate)
+        {
+            this.from = from;
+            this.to = to;
+            this.rate = rate;
+        }
+
+        private boolean contains(int minute)
+        {
+            // a window may wrap past midnight
+            return (from <= to) ? (minute >= from && minute < to) : (minute >= from || minute < to);
+        }
+
+        private static Window parse(String entry)
+        {
+            String[] parts = entry.split("\\s+");
+            String[] times = (parts.length == 2) ? parts[0].split("-") : new String[0];
+            if (times.length != 2)
+            {
+                throw new IllegalArgumentException(entry);
+            }
+            try
+            {
+                return new Window(minutes(times[0]), minutes(times[1]), Long.parseLong(parts[1]));
+            }
+            catch (NumberFormatException nfE)
+            {
+                throw new IllegalArgumentException(entry);
+            }
+        }
+
+        private static int minutes(String time)
+        {
+            String[] hm = time.split(":");
+            if (hm.length != 2)
+            {
+                throw new IllegalArgumentException(time);
+            }
+            return Integer.parseInt(hm[0]) * 60 + Integer.parseInt(hm[1]);
+        }
+    }
+}
@@ -86,11 +86,20 @@ public class CompareWithAIP extends AbstractCurationTask
             if(checkReplica(repMan, dso))
             {    
                 // generate an archive and calculate it's checksum
-                File packDir = repMan.stage(storeGroupName, id);
-                File archive = packer.pack(packDir);
-                String chkSum = Utils.checksum(archive, "MD5");
-                // remove local archive file -- it's no longer needed
-                archive.delete();
+                String chkSum = null;
+                StagingManager.Reservation reservation = repMan.reserve(packer);
+                try
+                {
+                    File packDir = repMan.stage(reservation, storeGroupName, id);
+                    File archive = packer.pack(packDir);
+                    chkSum = Utils.checksum(archive, "MD5");
+                    // remove local archive file -- it's no longer needed
+                    archive.delete();
+                }
+                finally
+                {
+                    reservation.release();
+                }
 
                 // compare with replica
                 String repChkSum = repMan.objectAttribute(storeGroupName, objId, "checksum");
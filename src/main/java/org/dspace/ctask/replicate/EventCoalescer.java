@@ -0,0 +1,413 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.factory.CoreServiceFactory;
+import org.dspace.curate.TaskQueue;
+import org.dspace.curate.TaskQueueEntry;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * EventCoalescer sits between the replicate consumers and the curation task
+ * queue. Rather than enqueueing the tasks for every object modified in every
+ * committed Context, consumers hand entries to the coalescer, which holds
+ * each task/object pair until it has been quiet (no new events) for
+ * 'replicate.consumer.coalesce.window' seconds. Bursts of events on the same
+ * object - e.g. a batch import touching an item in many transactions - thus
+ * reach the queue as a single entry. An object which never goes quiet is
+ * released anyway after 'replicate.consumer.coalesce.maxdelay' seconds.
+ * Entries reach the queue in the order they were first added.
+ * <P>
+ * Pending entries are kept in a file in the replicate base directory, so
+ * none are lost when the process stops. The file is locked while it is
+ * changed, so any number of processes (web applications, command-line
+ * tools, the queue reader) may share it. File locks are held per JVM, so
+ * web applications sharing one wait their turn for it. Entries which have become due are
+ * moved to the queue whenever events arrive, periodically by a background
+ * timer, and whenever the queue is read (see FilteredFileTaskQueue).
+ * <P>
+ * A window of 0 disables coalescing: entries are then queued at once.
+ *
+ * @see METSReplicateConsumer
+ * @see BagItReplicateConsumer
+ */
+public class EventCoalescer
+{
+    private static Logger log = Logger.getLogger(EventCoalescer.class);
+
+    private static EventCoalescer instance = null;
+
+    // name of the pending entries file (in the replicate base directory)
+    private static final String PENDING_NAME = "consumer-pending";
+    private static final String SEP = "\t";
+    // pause before retrying a lock held elsewhere in this JVM (ms)
+    private static final long LOCK_RETRY = 50L;
+
+    private final File pendingFile;
+    private final File lockPath;
+    // quiet period before an entry is queued (ms)
+    private final long window;
+    // longest an entry may be held (ms)
+    private final long maxDelay;
+    // earliest time any known entry may become due
+    private long nextDue = 0L;
+    // periodically releases due entries
+    private Timer timer = null;
+
+    /*
+     * Creates a coalescer keeping its pending entries in the passed
+     * directory, with the quiet period and maximum delay in ms
+     */
+    EventCoalescer(String dirPath, long window, long maxDelay)
+    {
+        new File(dirPath).mkdirs();
+        pendingFile = new File(dirPath, PENDING_NAME);
+        lockPath = new File(dirPath, PENDING_NAME + ".lock");
+        this.window = window;
+        this.maxDelay = maxDelay;
+    }
+
+    /*
+     * Starts releasing due entries periodically to the configured queue
+     */
+    private void startTimer()
+    {
+        if (window > 0L)
+        {
+            timer = new Timer("replicate-coalescer", true);
+            timer.schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        release(null);
+                    }
+                    catch (IOException ioE)
+                    {
+                        log.error("Unable to release coalesced queue entries", ioE);
+                    }
+                }
+            }, window, window);
+        }
+    }
+
+    /**
+     * Returns the coalescer of this process.
+     *
+     * @return the coalescer
+     */
+    public static synchronized EventCoalescer instance()
+    {
+        if (instance == null)
+        {
+            ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+            instance = new EventCoalescer(configurationService.getProperty("replicate.base.dir"),
+                    configurationService.getLongProperty("replicate.consumer.coalesce.window", 60L) * 1000L,
+                    configurationService.getLongProperty("replicate.consumer.coalesce.maxdelay", 3600L) * 1000L);
+            instance.startTimer();
+        }
+        return instance;
+    }
+
+    /**
+     * Adds entries bound for the named queue. Each entry replaces any
+     * pending entry for the same tasks and object, and restarts its
+     * quiet period.
+     *
+     * @param taskQueue the queue entries are released to
+     * @param queueName name of the queue
+     * @param entries entries to add
+     * @throws IOException if I/O error
+     */
+    public void add(TaskQueue taskQueue, String queueName, Set<TaskQueueEntry> entries) throws IOException
+    {
+        if (window <= 0L)
+        {
+            taskQueue.enqueue(queueName, entries);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this)
+        {
+            FileLock lock = null;
+            RandomAccessFile lockFile = new RandomAccessFile(lockPath, "rw");
+            try
+            {
+                lock = lock(lockFile);
+                Writer writer = new OutputStreamWriter(new FileOutputStream(pendingFile, true), "UTF-8");
+                try
+                {
+                    for (TaskQueueEntry entry : entries)
+                    {
+                        writer.write(new Pending(queueName, now, now, entry).toLine());
+                        writer.write("\n");
+                    }
+                }
+                finally
+                {
+                    writer.close();
+                }
+            }
+            finally
+            {
+                if (lock != null)
+                {
+                    lock.release();
+                }
+                lockFile.close();
+            }
+            if (nextDue == 0L || now + window < nextDue)
+            {
+                nextDue = now + window;
+            }
+        }
+        // release whatever has gone quiet meanwhile
+        if (now >= nextDue)
+        {
+            release(taskQueue);
+        }
+    }
+
+    /**
+     * Moves all entries which have been quiet for the window (or held for
+     * the maximum delay) to their queues.
+     *
+     * @param taskQueue the queue to release to (null for the configured one)
+     * @throws IOException if I/O error
+     */
+    public synchronized void release(TaskQueue taskQueue) throws IOException
+    {
+        if (! pendingFile.exists())
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        FileLock lock = null;
+        RandomAccessFile lockFile = new RandomAccessFile(lockPath, "rw");
+        try
+        {
+            lock = lock(lockFile);
+            Map<String, Pending> pending = load();
+            // due entries, in the order first added
+            Map<String, Set<TaskQueueEntry>> due = new LinkedHashMap<String, Set<TaskQueueEntry>>();
+            long earliest = 0L;
+            for (Pending p : pending.values().toArray(new Pending[0]))
+            {
+                long dueAt = Math.min(p.lastSeen + window, p.firstSeen + maxDelay);
+                if (dueAt <= now)
+                {
+                    Set<TaskQueueEntry> entries = due.get(p.queueName);
+                    if (entries == null)
+                    {
+                        entries = new LinkedHashSet<TaskQueueEntry>();
+                        due.put(p.queueName, entries);
+                    }
+                    entries.add(p.entry);
+                    pending.remove(p.key());
+                }
+                else if (earliest == 0L || dueAt < earliest)
+                {
+                    earliest = dueAt;
+                }
+            }
+            if (! due.isEmpty())
+            {
+                TaskQueue queue = (taskQueue != null) ? taskQueue : configuredQueue();
+                // queue before forgetting: a crash in between only duplicates
+                // entries, which the queue filters out
+                for (String queueName : due.keySet())
+                {
+                    queue.enqueue(queueName, due.get(queueName));
+                }
+            }
+            save(pending);
+            nextDue = earliest;
+        }
+        finally
+        {
+            if (lock != null)
+            {
+                lock.release();
+            }
+            lockFile.close();
+        }
+    }
+
+    /*
+     * Locks the passed file, waiting while another web application in this
+     * JVM holds it (which the channel reports rather than blocking on)
+     */
+    private static FileLock lock(RandomAccessFile lockFile) throws IOException
+    {
+        while (true)
+        {
+            try
+            {
+                return lockFile.getChannel().lock();
+            }
+            catch (OverlappingFileLockException olE)
+            {
+                try
+                {
+                    Thread.sleep(LOCK_RETRY);
+                }
+                catch (InterruptedException iE)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for lock on '" + PENDING_NAME + "'");
+                }
+            }
+        }
+    }
+
+    private TaskQueue configuredQueue()
+    {
+        return (TaskQueue) CoreServiceFactory.getInstance().getPluginService().getSinglePlugin(TaskQueue.class);
+    }
+
+    /*
+     * Reads the pending file, merging repeated entries. Caller holds the lock.
+     */
+    private Map<String, Pending> load() throws IOException
+    {
+        Map<String, Pending> pending = new LinkedHashMap<String, Pending>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(pendingFile), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                Pending p = Pending.parse(line);
+                // a torn final line (crash mid-write) is ignored
+                if (p == null)
+                {
+                    continue;
+                }
+                Pending prev = pending.get(p.key());
+                if (prev != null)
+                {
+                    p = new Pending(p.queueName, Math.min(prev.firstSeen, p.firstSeen),
+                                    Math.max(prev.lastSeen, p.lastSeen), p.entry);
+                }
+                pending.put(p.key(), p);
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return pending;
+    }
+
+    /*
+     * Rewrites the pending file with the passed entries. Caller holds the lock.
+     */
+    private void save(Map<String, Pending> pending) throws IOException
+    {
+        if (pending.isEmpty())
+        {
+            pendingFile.delete();
+            return;
+        }
+        File tmpFile = new File(pendingFile.getParentFile(), PENDING_NAME + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+        try
+        {
+            for (Pending p : pending.values())
+            {
+                writer.write(p.toLine());
+                writer.write("\n");
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+        if (! tmpFile.renameTo(pendingFile))
+        {
+            throw new IOException("Unable to replace pending entries file '" + pendingFile + "'");
+        }
+    }
+
+    /*
+     * A pending entry - one tab-separated line:
+     * queue name, first seen, last seen, queue entry
+     */
+    private static class Pending
+    {
+        private final String queueName;
+        private final long firstSeen;
+        private final long lastSeen;
+        private final TaskQueueEntry entry;
+
+        private Pending(String queueName, long firstSeen, long lastSeen, TaskQueueEntry entry)
+        {
+            this.queueName = queueName;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+            this.entry = entry;
+        }
+
+        // entries are coalesced by queue, tasks and object
+        private String key()
+        {
+            StringBuilder sb = new StringBuilder(queueName).append(SEP);
+            for (String task : entry.getTaskNames())
+            {
+                sb.append(task).append(",");
+            }
+            return sb.append(SEP).append(entry.getObjectId()).toString();
+        }
+
+        private String toLine()
+        {
+            return queueName + SEP + firstSeen + SEP + lastSeen + SEP + entry.toString();
+        }
+
+        private static Pending parse(String line)
+        {
+            String[] parts = line.split(SEP);
+            if (parts.length != 4)
+            {
+                return null;
+            }
+            try
+            {
+                return new Pending(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                                   new TaskQueueEntry(parts[3]));
+            }
+            catch (RuntimeException rE)
+            {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Bitstream;
+import org.dspace.content.Bundle;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.content.factory.ContentServiceFactory;
+import org.dspace.content.service.BitstreamService;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.curate.AbstractCurationTask;
+import org.dspace.curate.Curator;
+import org.dspace.curate.Mutative;
+import org.dspace.curate.Utils;
+import org.dspace.pack.mets.AIPManifest;
+import org.dspace.storage.bitstore.factory.StorageServiceFactory;
+
+/**
+ * FetchBitstream task repairs single bitstreams of an item from the item's
+ * AIP in the replica store, without fetching or restoring the whole AIP.
+ * Run on an item, it checks each of the item's bitstreams against its
+ * recorded checksum, and fetches only those which are damaged or missing;
+ * run on '[handle]:[sequence ID]', it fetches that one bitstream. Only the
+ * AIP's manifest and the bitstream's own entry are read from the store,
+ * if the store can read byte ranges (see ReplicaArchive).
+ * <P>
+ * Each fetched bitstream is verified against the AIP's manifest (or, for
+ * BagIt AIPs holding it as a shared blob, against the blob's digest), and
+ * against the bitstream's recorded checksum. If 'replicate.fetchbitstream.swap'
+ * is true, it then replaces the local copy in the assetstore; otherwise it
+ * is left in the staging area, and its location reported. Only 'zip' AIPs
+ * are supported.
+ *
+ * @see ReplicaArchive
+ */
+@Mutative
+public class FetchBitstream extends AbstractCurationTask
+{
+    // separates handle and sequence ID in a single bitstream ID
+    private static final String SEQ_SEPARATOR = ":";
+    private static final String BAG_MANIFEST = "manifest-md5.txt";
+    private static final String BAG_REFS = "fetch.txt";
+    private static final String BLOB_SCHEME = "blob:";
+
+    private BitstreamService bitstreamService = ContentServiceFactory.getInstance().getBitstreamService();
+
+    private String archFmt;
+    private String pkgType;
+    // Group where all AIPs are stored
+    private String storeGroupName;
+    // replace local copies with fetched bitstreams?
+    private boolean swap;
+
+    private int status = Curator.CURATE_UNSET;
+    private StringBuilder results = null;
+
+    @Override
+    public void init(Curator curator, String taskId) throws IOException
+    {
+        super.init(curator, taskId);
+        archFmt = configurationService.getProperty("replicate.packer.archfmt");
+        pkgType = configurationService.getProperty("replicate.packer.pkgtype");
+        storeGroupName = configurationService.getProperty("replicate.group.aip.name");
+        swap = configurationService.getBooleanProperty("replicate.fetchbitstream.swap", false);
+    }
+
+    /**
+     * Perform the 'Fetch Bitstream' task on an item: fetch each of its
+     * bitstreams which fails its checksum check
+     * @param dso DSpace Object to perform on
+     * @return integer which represents Curator return status
+     * @throws IOException if I/O error
+     */
+    @Override
+    public int perform(DSpaceObject dso) throws IOException
+    {
+        if (dso == null || dso.getType() != Constants.ITEM)
+        {
+            return Curator.CURATE_SKIP;
+        }
+        Item item = (Item) dso;
+        Context ctx = Curator.curationContext();
+        status = Curator.CURATE_SUCCESS;
+        results = new StringBuilder();
+        int damaged = 0;
+        // the AIP is opened only once damage is found
+        ReplicaArchive archive = null;
+        try
+        {
+            for (Bundle bundle : item.getBundles())
+            {
+                for (Bitstream bs : bundle.getBitstreams())
+                {
+                    if (! intact(ctx, bs))
+                    {
+                        damaged++;
+                        if (archive == null)
+                        {
+                            archive = openArchive(item);
+                        }
+                        repair(ctx, archive, item, bundle, bs);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if (archive != null)
+            {
+                archive.close();
+            }
+        }
+        if (damaged == 0)
+        {
+            results.append("All bitstreams of item: ").append(item.getHandle()).append(" intact");
+        }
+        return finish();
+    }
+
+    /**
+     * Perform the 'Fetch Bitstream' task on '[handle]:[sequence ID]' (a
+     * single bitstream, which is fetched unconditionally), or on a handle
+     * @param ctx DSpace Context
+     * @param id ID of the bitstream or object
+     * @return integer which represents Curator return status
+     * @throws IOException if I/O error
+     */
+    @Override
+    public int perform(Context ctx, String id) throws IOException
+    {
+        int sep = id.lastIndexOf(SEQ_SEPARATOR);
+        if (sep < 0)
+        {
+            return super.perform(ctx, id);
+        }
+        String handle = id.substring(0, sep);
+        int seqId;
+        try
+        {
+            seqId = Integer.parseInt(id.substring(sep + 1));
+        }
+        catch (NumberFormatException nfE)
+        {
+            return fail("Invalid bitstream ID: " + id + " - expected [handle]:[sequence ID]");
+        }
+        DSpaceObject dso = dereference(ctx, handle);
+        if (dso == null || dso.getType() != Constants.ITEM)
+        {
+            return fail("Item not found: " + handle);
+        }
+        Item item = (Item) dso;
+        status = Curator.CURATE_SUCCESS;
+        results = new StringBuilder();
+        for (Bundle bundle : item.getBundles())
+        {
+            for (Bitstream bs : bundle.getBitstreams())
+            {
+                if (bs.getSequenceID() == seqId)
+                {
+                    ReplicaArchive archive = openArchive(item);
+                    try
+                    {
+                        repair(ctx, archive, item, bundle, bs);
+                    }
+                    finally
+                    {
+                        archive.close();
+                    }
+                    return finish();
+                }
+            }
+        }
+        return fail("No bitstream with sequence ID " + seqId + " in item: " + handle);
+    }
+
+    /*
+     * Does the local copy of a bitstream match its recorded checksum?
+     */
+    private boolean intact(Context ctx, Bitstream bs)
+    {
+        try
+        {
+            InputStream in = bitstreamService.retrieve(ctx, bs);
+            try
+            {
+                return bs.getChecksum().equalsIgnoreCase(Utils.checksum(in, bs.getChecksumAlgorithm()));
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (Exception e)
+        {
+            // missing or unreadable
+            return false;
+        }
+    }
+
+    /*
+     * Fetches a bitstream from the AIP, verifies it, and swaps it in if
+     * configured to
+     */
+    private void repair(Context ctx, ReplicaArchive archive, Item item, Bundle bundle, Bitstream bs)
+            throws IOException
+    {
+        String bsId = item.getHandle() + SEQ_SEPARATOR + bs.getSequenceID();
+        if (! "zip".equals(archFmt))
+        {
+            failure("Unable to fetch bitstream " + bsId + ": only 'zip' AIPs are supported");
+            return;
+        }
+        File fetched;
+        try
+        {
+            fetched = fetch(archive, bundle.getName(), bs.getSequenceID());
+        }
+        catch (IOException ioE)
+        {
+            failure("Unable to fetch bitstream " + bsId + ": " + ioE.getMessage());
+            return;
+        }
+        if (! bs.getChecksum().equalsIgnoreCase(Utils.checksum(fetched, bs.getChecksumAlgorithm())))
+        {
+            fetched.delete();
+            failure("Replica of bitstream " + bsId + " does not match its recorded checksum");
+            return;
+        }
+        if (! swap)
+        {
+            results.append("Bitstream ").append(bsId).append(" fetched to '").append(fetched.getPath()).append("'. ");
+            return;
+        }
+        InputStream in = new FileInputStream(fetched);
+        try
+        {
+            StorageServiceFactory.getInstance().getBitstreamStorageService().store(ctx, bs, in);
+            bitstreamService.update(ctx, bs);
+        }
+        catch (SQLException sqlE)
+        {
+            throw new IOException(sqlE);
+        }
+        catch (AuthorizeException authE)
+        {
+            throw new IOException(authE);
+        }
+        finally
+        {
+            in.close();
+            fetched.delete();
+        }
+        results.append("Bitstream ").append(bsId).append(" restored from replica. ");
+    }
+
+    /*
+     * Opens an item's AIP, from which its bitstreams are fetched
+     */
+    private ReplicaArchive openArchive(Item item) throws IOException
+    {
+        ReplicaManager repMan = ReplicaManager.instance();
+        return repMan.openArchive(storeGroupName, repMan.storageId(item.getHandle(), archFmt));
+    }
+
+    /*
+     * Fetches a bitstream's entry from the item's AIP, verified against the
+     * AIP's manifest
+     */
+    private File fetch(ReplicaArchive archive, String bundleName, int seqId) throws IOException
+    {
+        if ("mets".equals(pkgType))
+        {
+            return fetchFromMETS(archive, bundleName, seqId);
+        }
+        return fetchFromBag(archive, bundleName, seqId);
+    }
+
+    private File fetchFromMETS(ReplicaArchive archive, String bundleName, int seqId) throws IOException
+    {
+        File metsFile = archive.fetchEntry(AIPManifest.METS_FILE);
+        if (metsFile == null)
+        {
+            throw new IOException("No AIP found");
+        }
+        AIPManifest manifest;
+        InputStream in = new FileInputStream(metsFile);
+        try
+        {
+            manifest = AIPManifest.read(in);
+        }
+        finally
+        {
+            in.close();
+            metsFile.delete();
+        }
+        List<AIPManifest.FileRef> files = manifest.getBundles().get(bundleName);
+        if (files != null)
+        {
+            for (AIPManifest.FileRef file : files)
+            {
+                if (file.sequence == seqId && file.href != null)
+                {
+                    File entry = archive.fetchEntry(file.href);
+                    if (entry == null)
+                    {
+                        throw new IOException("AIP lacks entry '" + file.href + "'");
+                    }
+                    String algorithm = (file.checksumType != null) ? file.checksumType : "MD5";
+                    verify(entry, algorithm, file.checksum);
+                    return entry;
+                }
+            }
+        }
+        throw new IOException("Not in AIP");
+    }
+
+    private File fetchFromBag(ReplicaArchive archive, String bundleName, int seqId) throws IOException
+    {
+        // zip entries are under the bag's directory
+        String objId = archive.getObjectId();
+        String bagName = objId.substring(0, objId.length() - archFmt.length() - 1);
+        String path = "data/" + bundleName + "/" + seqId;
+        String digest = lookup(archive, bagName + "/" + BAG_MANIFEST, path, 0);
+        if (digest != null)
+        {
+            File entry = archive.fetchEntry(bagName + "/" + path);
+            if (entry == null)
+            {
+                throw new IOException("AIP lacks entry '" + path + "'");
+            }
+            verify(entry, "MD5", digest);
+            return entry;
+        }
+        // fetch.txt line: url length data/path
+        String url = lookup(archive, bagName + "/" + BAG_REFS, path, 2);
+        if (url == null)
+        {
+            throw new IOException("Not in AIP");
+        }
+        if (! url.startsWith(BLOB_SCHEME))
+        {
+            throw new IOException("AIP holds it only by reference: " + url);
+        }
+        // blobs are referred to by content address: [algorithm]-[digest]
+        String address = url.substring(BLOB_SCHEME.length());
+        File blob = ReplicaManager.instance().fetchBlob(address);
+        if (blob == null)
+        {
+            throw new IOException("Missing blob '" + address + "'");
+        }
+        verify(blob, address.substring(0, address.indexOf("-")).toUpperCase(),
+               address.substring(address.indexOf("-") + 1));
+        return blob;
+    }
+
+    /*
+     * Returns the first field of the line of a bag tag file whose field at
+     * 'pathField' is the path, or null if there is no such line (or file)
+     */
+    private String lookup(ReplicaArchive archive, String entryName, String path, int pathField)
+            throws IOException
+    {
+        File tagFile = archive.fetchEntry(entryName);
+        if (tagFile == null)
+        {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(tagFile), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.split(" ", pathField + 1);
+                if (parts.length == pathField + 1 && path.equals(parts[pathField]))
+                {
+                    return parts[0];
+                }
+            }
+            return null;
+        }
+        finally
+        {
+            reader.close();
+            tagFile.delete();
+        }
+    }
+
+    private void verify(File file, String algorithm, String expected) throws IOException
+    {
+        if (expected == null || ! expected.equalsIgnoreCase(Utils.checksum(file, algorithm)))
+        {
+            file.delete();
+            throw new IOException("Fetched copy fails the AIP's checksum");
+        }
+    }
+
+    private void failure(String message)
+    {
+        results.append(message).append(". ");
+        status = Curator.CURATE_FAIL;
+    }
+
+    private int fail(String message)
+    {
+        report(message);
+        setResult(message);
+        return Curator.CURATE_FAIL;
+    }
+
+    private int finish()
+    {
+        String result = results.toString().trim();
+        report(result);
+        setResult(result);
+        return status;
+    }
+}
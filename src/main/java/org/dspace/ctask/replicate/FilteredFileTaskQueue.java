@@ -35,6 +35,9 @@ import org.dspace.curate.TaskQueueEntry;
  * ensures that AIPs are not (re-)generated multiple times when the queue
  * is actually processed. (NOTE however that some of the Replication store plugins
  * avoid duplicate transfers by ensuring Checksums differ before transferring)
+ * <P>
+ * Entries held by the replicate consumers' EventCoalescer which are due are
+ * added to the queue before it is read.
  *
  * @author Tim Donohue
  */
@@ -59,7 +62,17 @@ public class FilteredFileTaskQueue extends FileTaskQueue
      * @throws IOException if I/O error
      */
     @Override
-    public synchronized Set<TaskQueueEntry> dequeue(String queueName, long ticket)
+    public Set<TaskQueueEntry> dequeue(String queueName, long ticket)
+           throws IOException
+    {
+        //First move any coalesced consumer entries which are due into the queue
+        //(outside this queue's lock, as the coalescer takes its own lock first)
+        EventCoalescer.instance().release(this);
+
+        return filteredDequeue(queueName, ticket);
+    }
+
+    private synchronized Set<TaskQueueEntry> filteredDequeue(String queueName, long ticket)
            throws IOException
     {
         //Dequeue our list of tasks (which may include duplicates)
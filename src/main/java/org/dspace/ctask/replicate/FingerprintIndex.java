@@ -0,0 +1,264 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FingerprintIndex is an on-disk hash set of 64-bit fingerprints, used by
+ * IndexedTaskQueue to recognise entries already in a queue. It is an open
+ * addressing table (linear probing) in a memory-mapped file, so lookups
+ * cost a few memory reads whatever the size of the set, and the set takes
+ * no heap space. The table is rebuilt at twice the size when it becomes
+ * half full (counting the tombstones left by removals).
+ * <P>
+ * The file holds a header (capacity, live and removed slot counts) followed
+ * by the slots; being a single mapping, it is limited to 2GB (some 268
+ * million slots). It is not thread-safe: callers serialise access, and
+ * (since a rebuild replaces the file) open the index afresh while holding
+ * any lock shared with other processes.
+ */
+class FingerprintIndex
+{
+    // slot values with special meaning
+    private static final long EMPTY = 0L;
+    private static final long REMOVED = 1L;
+    // header: capacity, live, removed
+    private static final int HEADER = 24;
+    private static final long INITIAL_CAPACITY = 1024L;
+
+    private final File file;
+    private RandomAccessFile raf = null;
+    private MappedByteBuffer map = null;
+    private long capacity = 0L;
+    private long live = 0L;
+    private long removed = 0L;
+
+    FingerprintIndex(File file) throws IOException
+    {
+        this.file = file;
+        boolean exists = file.exists() && file.length() >= HEADER;
+        open(file, exists ? 0L : INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns true if the set holds the fingerprint.
+     */
+    boolean contains(long fp)
+    {
+        fp = normalize(fp);
+        long slot = home(fp);
+        for (long probes = 0; probes < capacity; probes++)
+        {
+            long value = get(slot);
+            if (value == EMPTY)
+            {
+                return false;
+            }
+            if (value == fp)
+            {
+                return true;
+            }
+            slot = (slot + 1) % capacity;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the fingerprint, returning false if already present.
+     */
+    boolean add(long fp) throws IOException
+    {
+        if ((live + removed + 1) * 2 > capacity)
+        {
+            // grow only if mostly live, otherwise just sweep the tombstones
+            rebuild(live * 4 > capacity ? capacity * 2 : capacity);
+        }
+        fp = normalize(fp);
+        long slot = home(fp);
+        long free = -1L;
+        for (long probes = 0; probes < capacity; probes++)
+        {
+            long value = get(slot);
+            if (value == EMPTY)
+            {
+                break;
+            }
+            if (value == fp)
+            {
+                return false;
+            }
+            if (value == REMOVED && free < 0L)
+            {
+                free = slot;
+            }
+            slot = (slot + 1) % capacity;
+        }
+        if (free >= 0L)
+        {
+            slot = free;
+            removed--;
+        }
+        put(slot, fp);
+        live++;
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * Removes the fingerprint, returning false if absent.
+     */
+    boolean remove(long fp)
+    {
+        fp = normalize(fp);
+        long slot = home(fp);
+        for (long probes = 0; probes < capacity; probes++)
+        {
+            long value = get(slot);
+            if (value == EMPTY)
+            {
+                return false;
+            }
+            if (value == fp)
+            {
+                put(slot, REMOVED);
+                live--;
+                removed++;
+                writeHeader();
+                return true;
+            }
+            slot = (slot + 1) % capacity;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of fingerprints held.
+     */
+    long size()
+    {
+        return live;
+    }
+
+    /**
+     * Empties the set.
+     */
+    void clear() throws IOException
+    {
+        close();
+        file.delete();
+        open(file, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Forces changes to disk.
+     */
+    void force()
+    {
+        map.force();
+    }
+
+    void close() throws IOException
+    {
+        if (raf != null)
+        {
+            raf.close();
+            raf = null;
+            map = null;
+        }
+    }
+
+    private void open(File target, long newCapacity) throws IOException
+    {
+        raf = new RandomAccessFile(target, "rw");
+        if (newCapacity > 0L)
+        {
+            capacity = newCapacity;
+            live = 0L;
+            removed = 0L;
+            raf.setLength(0L);
+            raf.setLength(HEADER + capacity * 8L);
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, HEADER + capacity * 8L);
+            writeHeader();
+        }
+        else
+        {
+            capacity = raf.readLong();
+            live = raf.readLong();
+            removed = raf.readLong();
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, HEADER + capacity * 8L);
+        }
+    }
+
+    /*
+     * Re-inserts the live fingerprints into a new table of the passed capacity
+     */
+    private void rebuild(long newCapacity) throws IOException
+    {
+        MappedByteBuffer oldMap = map;
+        long oldCapacity = capacity;
+        RandomAccessFile oldRaf = raf;
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        open(tmpFile, newCapacity);
+        for (long slot = 0; slot < oldCapacity; slot++)
+        {
+            long value = oldMap.getLong((int) (HEADER + slot * 8L));
+            if (value != EMPTY && value != REMOVED)
+            {
+                long target = home(value);
+                while (get(target) != EMPTY)
+                {
+                    target = (target + 1) % capacity;
+                }
+                put(target, value);
+                live++;
+            }
+        }
+        writeHeader();
+        map.force();
+        oldRaf.close();
+        raf.close();
+        if (! tmpFile.renameTo(file))
+        {
+            throw new IOException("Unable to replace index '" + file + "'");
+        }
+        open(file, 0L);
+    }
+
+    private long home(long fp)
+    {
+        return (fp & Long.MAX_VALUE) % capacity;
+    }
+
+    private long normalize(long fp)
+    {
+        // keep clear of the special slot values
+        return (fp == EMPTY || fp == REMOVED) ? 2L : fp;
+    }
+
+    private long get(long slot)
+    {
+        return map.getLong((int) (HEADER + slot * 8L));
+    }
+
+    private void put(long slot, long value)
+    {
+        map.putLong((int) (HEADER + slot * 8L), value);
+    }
+
+    private void writeHeader()
+    {
+        map.putLong(0, capacity);
+        map.putLong(8, live);
+        map.putLong(16, removed);
+    }
+}
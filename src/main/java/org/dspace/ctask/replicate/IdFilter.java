@@ -0,0 +1,290 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+import org.dspace.content.Collection;
+import org.dspace.content.Community;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.content.factory.ContentServiceFactory;
+import org.dspace.content.service.ItemService;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.event.Event;
+import org.dspace.handle.factory.HandleServiceFactory;
+import org.dspace.handle.service.HandleService;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * IdFilter decides which objects the replicate consumers act upon, from a
+ * list of handles in a file named 'exclude' (or, failing that, 'include') in
+ * the replicate base directory. Objects are matched by their own handle or,
+ * for items, by their owning collection's handle. A listed community stands
+ * for its whole subtree: when the list is loaded, it is compiled into a hash
+ * set of the listed handles together with the handles of all communities and
+ * collections beneath them, so each check is a constant-time lookup.
+ * <P>
+ * The filter file is checked for changes (or removal) at most every
+ * 'replicate.consumer.filter.interval' seconds, and recompiled when changed -
+ * the consumers need not be restarted. Subtrees are compiled again when
+ * the consumers observe a community or collection being created, added,
+ * removed or deleted, so objects created within a listed community are
+ * matched at once. Owning collections of items are
+ * remembered, and looked up again when an item is modified (which is when it
+ * may have moved). The filter measures its own cost, which is logged (at
+ * debug level) every 10000 checks.
+ *
+ * @see METSReplicateConsumer
+ * @see BagItReplicateConsumer
+ */
+public class IdFilter
+{
+    private static Logger log = Logger.getLogger(IdFilter.class);
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+    private HandleService handleService = HandleServiceFactory.getInstance().getHandleService();
+    private ItemService itemService = ContentServiceFactory.getInstance().getItemService();
+
+    private static final String[] FILTER_NAMES = { "exclude", "include" };
+    // most item owning collections remembered
+    private static final int MAX_OWNERS = 10000;
+    // checks between cost reports
+    private static final long REPORT_INTERVAL = 10000L;
+
+    private final File dir;
+    // interval between checks of the filter file (ms)
+    private final long interval;
+    // the filter file in use (null if none)
+    private File filterFile = null;
+    private long filterModified = 0L;
+    private long checkedAt = 0L;
+    // true if communities or collections changed since the filter was compiled
+    private boolean structureChanged = false;
+    // compiled handles, and their sense (null if not filtering)
+    private Set<String> handles = null;
+    private boolean exclude = true;
+    // owning collection handles of items, least recently used first
+    private final Map<UUID, String> owners = new LinkedHashMap<UUID, String>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, String> eldest)
+        {
+            return size() > MAX_OWNERS;
+        }
+    };
+    // cost measurement
+    private long checks = 0L;
+    private long nanos = 0L;
+
+    public IdFilter()
+    {
+        dir = new File(configurationService.getProperty("replicate.base.dir"));
+        interval = configurationService.getLongProperty("replicate.consumer.filter.interval", 30L) * 1000L;
+    }
+
+    /**
+     * Determines whether the consumers should act upon an object.
+     *
+     * @param id object handle
+     * @param event event on the object
+     * @param ctx current DSpace Context
+     * @return true if the object passes the filter
+     * @throws SQLException if database error
+     */
+    public synchronized boolean accept(String id, Event event, Context ctx) throws SQLException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            reloadIfChanged(ctx, System.currentTimeMillis());
+            // always accept if not filtering
+            if (handles == null)
+            {
+                return true;
+            }
+            boolean onList = handles.contains(id);
+            if (! onList && event.getSubjectType() == Constants.ITEM)
+            {
+                String owner = ownerOf(event, ctx);
+                onList = owner != null && handles.contains(owner);
+            }
+            return exclude ? ! onList : onList;
+        }
+        finally
+        {
+            nanos += System.nanoTime() - start;
+            if (++checks % REPORT_INTERVAL == 0L && log.isDebugEnabled())
+            {
+                log.debug("ID filter: " + checks + " checks, mean cost " + (nanos / checks) + "ns");
+            }
+        }
+    }
+
+    /**
+     * Notes an event seen by a consumer, so that a change to the structure
+     * of communities and collections is reflected in the compiled subtrees
+     * before the next check.
+     *
+     * @param event the event
+     */
+    public synchronized void observe(Event event)
+    {
+        int subjType = event.getSubjectType();
+        if (subjType != Constants.COMMUNITY && subjType != Constants.COLLECTION)
+        {
+            return;
+        }
+        int evType = event.getEventType();
+        if (evType == Event.CREATE || evType == Event.ADD || evType == Event.REMOVE || evType == Event.DELETE)
+        {
+            structureChanged = true;
+        }
+    }
+
+    /**
+     * Returns the mean cost of a check so far.
+     *
+     * @return nanoseconds per check
+     */
+    public synchronized long getMeanCost()
+    {
+        return (checks > 0L) ? nanos / checks : 0L;
+    }
+
+    /*
+     * Returns the handle of an item's owning collection (if any)
+     */
+    private String ownerOf(Event event, Context ctx) throws SQLException
+    {
+        UUID itemId = event.getSubjectID();
+        // a modified item may have been moved
+        if (event.getEventType() == Event.MODIFY || ! owners.containsKey(itemId))
+        {
+            Item item = itemService.find(ctx, itemId);
+            Collection coll = (item != null) ? item.getOwningCollection() : null;
+            owners.put(itemId, (coll != null) ? coll.getHandle() : null);
+        }
+        return owners.get(itemId);
+    }
+
+    private void reloadIfChanged(Context ctx, long now) throws SQLException
+    {
+        if (! structureChanged && checkedAt > 0L && now - checkedAt < interval)
+        {
+            return;
+        }
+        checkedAt = now;
+        File current = null;
+        for (String name : FILTER_NAMES)
+        {
+            File file = new File(dir, name);
+            if (file.exists())
+            {
+                current = file;
+                break;
+            }
+        }
+        if (current == null)
+        {
+            if (filterFile != null)
+            {
+                log.info("ID filter '" + filterFile.getName() + "' removed - no longer filtering");
+            }
+            filterFile = null;
+            handles = null;
+            structureChanged = false;
+            return;
+        }
+        if (! structureChanged && current.equals(filterFile) && current.lastModified() == filterModified)
+        {
+            return;
+        }
+        try
+        {
+            compile(ctx, current);
+        }
+        catch (IOException ioE)
+        {
+            log.error("Unable to read ID filter '" + current + "'", ioE);
+        }
+    }
+
+    /*
+     * Reads the listed handles, and adds the subtrees of listed communities
+     */
+    private void compile(Context ctx, File file) throws IOException, SQLException
+    {
+        long modified = file.lastModified();
+        Set<String> listed = new HashSet<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try
+        {
+            String id;
+            while ((id = reader.readLine()) != null)
+            {
+                id = id.trim();
+                if (id.length() > 0)
+                {
+                    listed.add(id);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        Set<String> compiled = new HashSet<String>(listed);
+        Set<String> visited = new HashSet<String>();
+        for (String id : listed)
+        {
+            DSpaceObject dso = handleService.resolveToObject(ctx, id);
+            if (dso != null && dso.getType() == Constants.COMMUNITY)
+            {
+                addSubtree((Community) dso, compiled, visited);
+            }
+        }
+        handles = compiled;
+        structureChanged = false;
+        exclude = "exclude".equals(file.getName());
+        filterFile = file;
+        filterModified = modified;
+        log.info("Compiled ID filter '" + file.getName() + "': " + listed.size() + " handles listed, " +
+                 compiled.size() + " with subtrees");
+    }
+
+    private void addSubtree(Community comm, Set<String> compiled, Set<String> visited) throws SQLException
+    {
+        // each subtree only once, however often reached
+        if (! visited.add(comm.getHandle()))
+        {
+            return;
+        }
+        for (Collection coll : comm.getCollections())
+        {
+            compiled.add(coll.getHandle());
+        }
+        for (Community sub : comm.getSubcommunities())
+        {
+            compiled.add(sub.getHandle());
+            addSubtree(sub, compiled, visited);
+        }
+    }
+}
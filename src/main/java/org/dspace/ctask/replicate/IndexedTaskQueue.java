@@ -0,0 +1,731 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.dspace.curate.TaskQueue;
+import org.dspace.curate.TaskQueueEntry;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * IndexedTaskQueue is a TaskQueue for very large queues, such as those filled
+ * by the replicate consumers during bulk imports. Unlike FilteredFileTaskQueue,
+ * which reads the whole queue and discards duplicates each time it is read,
+ * duplicates are rejected as they are enqueued: an entry is ignored if an
+ * entry with the same tasks and object is already waiting in the queue. An
+ * on-disk hash index of waiting entries (see FingerprintIndex) makes this
+ * check cheap however long the queue is.
+ * <P>
+ * Each queue is a directory ('[queue name].queue' under curate.cfg's
+ * 'taskqueue.dir') of append-only segment files, with a cursor recording
+ * how far the queue has been read. A dequeue streams at most
+ * 'replicate.queue.batch' entries from the cursor, so memory use depends on
+ * the batch size, not on the queue length; each run of the queue (e.g.
+ * 'dspace curate -q') therefore processes one batch. The cursor advances,
+ * and fully read segments are deleted, only when the batch is released as
+ * done - after a crash, the batch is read again.
+ * <P>
+ * Once an entry has been dequeued, a new entry for the same object may be
+ * queued again (the object may have changed while being processed).
+ * <P>
+ * To use, configure it in curate.cfg:
+ * <PRE>
+ * plugin.single.org.dspace.curate.TaskQueue = org.dspace.ctask.replicate.IndexedTaskQueue
+ * </PRE>
+ *
+ * @see FilteredFileTaskQueue
+ */
+public class IndexedTaskQueue implements TaskQueue
+{
+    private static Logger log = Logger.getLogger(IndexedTaskQueue.class);
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    private static final String QUEUE_SUFFIX = ".queue";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String CURSOR_NAME = "cursor";
+    private static final String INDEX_NAME = "index";
+    private static final String LOCK_NAME = "queue.lock";
+    private static final String READ_LOCK_NAME = "read.lock";
+    // pause before retrying a lock held elsewhere in this JVM (ms)
+    private static final long LOCK_RETRY = 50L;
+
+    // base directory of all queues
+    private final File baseDir;
+    // largest number of entries returned by a dequeue
+    private final int batchSize;
+    // segment size beyond which a new segment is begun
+    private final long segmentSize;
+    // batches read but not yet released, by queue name. Queue files are
+    // locked per process, so all instances share these (and their monitor).
+    // Other web applications in the JVM have their own, so there the locks
+    // report overlapping rather than block (see lock)
+    private static final Map<String, Lease> leases = new HashMap<String, Lease>();
+
+    public IndexedTaskQueue()
+    {
+        baseDir = new File(configurationService.getProperty("curate.taskqueue.dir"));
+        batchSize = configurationService.getIntProperty("replicate.queue.batch", 10000);
+        segmentSize = configurationService.getLongProperty("replicate.queue.segment.size", 64L * 1024L * 1024L);
+    }
+
+    /**
+     * Returns the names of all queues.
+     *
+     * @return queue names
+     */
+    @Override
+    public String[] queueNames()
+    {
+        List<String> names = new ArrayList<String>();
+        File[] dirs = baseDir.listFiles();
+        if (dirs != null)
+        {
+            for (File dir : dirs)
+            {
+                if (dir.isDirectory() && dir.getName().endsWith(QUEUE_SUFFIX))
+                {
+                    names.add(dir.getName().substring(0, dir.getName().length() - QUEUE_SUFFIX.length()));
+                }
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Queues an entry, unless the same tasks are already queued for the object.
+     *
+     * @param queueName the name of the queue
+     * @param entry the entry
+     * @throws IOException if I/O error
+     */
+    @Override
+    public void enqueue(String queueName, TaskQueueEntry entry) throws IOException
+    {
+        Set<TaskQueueEntry> entrySet = new LinkedHashSet<TaskQueueEntry>();
+        entrySet.add(entry);
+        enqueue(queueName, entrySet);
+    }
+
+    /**
+     * Queues a set of entries, ignoring any whose tasks are already queued
+     * for their object.
+     *
+     * @param queueName the name of the queue
+     * @param entrySet the entries
+     * @throws IOException if I/O error
+     */
+    @Override
+    public void enqueue(String queueName, Set<TaskQueueEntry> entrySet) throws IOException
+    {
+        synchronized (leases)
+        {
+            append(queueName, entrySet);
+        }
+    }
+
+    private void append(String queueName, Set<TaskQueueEntry> entrySet) throws IOException
+    {
+        File dir = queueDir(queueName);
+        FileLock lock = null;
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_NAME), "rw");
+        try
+        {
+            lock = lock(lockFile);
+            FingerprintIndex index = openIndex(dir);
+            try
+            {
+                // first write what is new, then index it: a crash in between
+                // can then only let a duplicate in, never lose an entry
+                Set<Long> added = new LinkedHashSet<Long>();
+                StringBuilder lines = new StringBuilder();
+                for (TaskQueueEntry entry : entrySet)
+                {
+                    long fp = fingerprint(entry);
+                    if (! index.contains(fp) && ! added.contains(fp))
+                    {
+                        added.add(fp);
+                        lines.append(entry.toString()).append("\n");
+                    }
+                }
+                if (added.isEmpty())
+                {
+                    return;
+                }
+                FileOutputStream out = new FileOutputStream(tailSegment(dir), true);
+                try
+                {
+                    Writer writer = new OutputStreamWriter(out, "UTF-8");
+                    writer.write(lines.toString());
+                    writer.flush();
+                    out.getFD().sync();
+                }
+                finally
+                {
+                    out.close();
+                }
+                for (long fp : added)
+                {
+                    index.add(fp);
+                }
+                if (entrySet.size() > added.size())
+                {
+                    log.debug("Ignored " + (entrySet.size() - added.size()) + " duplicate entries for queue '" + queueName + "'");
+                }
+            }
+            finally
+            {
+                index.close();
+            }
+        }
+        finally
+        {
+            if (lock != null)
+            {
+                lock.release();
+            }
+            lockFile.close();
+        }
+    }
+
+    /**
+     * Returns the next batch of entries from the named queue (in the order
+     * queued). The queue is locked against other readers until
+     * <code>release</code> is called with the same ticket; while locked, or
+     * if the queue is empty, an empty set is returned.
+     *
+     * @param queueName the name of the queue
+     * @param ticket a token which must be presented to release the queue
+     * @return the entries
+     * @throws IOException if I/O error
+     */
+    @Override
+    public Set<TaskQueueEntry> dequeue(String queueName, long ticket) throws IOException
+    {
+        return dequeue(queueName, ticket, batchSize);
+    }
+
+    /**
+     * Returns at most the passed number of entries from the named queue.
+     *
+     * @param queueName the name of the queue
+     * @param ticket a token which must be presented to release the queue
+     * @param max largest number of entries to return
+     * @return the entries
+     * @throws IOException if I/O error
+     * @see #dequeue(String, long)
+     */
+    public Set<TaskQueueEntry> dequeue(String queueName, long ticket, int max) throws IOException
+    {
+        // move any coalesced consumer entries which are due into the queue
+        // (outside this queue's lock, as the coalescer takes its own lock first)
+        EventCoalescer.instance().release(this);
+
+        synchronized (leases)
+        {
+            return readBatch(queueName, ticket, max);
+        }
+    }
+
+    /**
+     * Releases the lock taken by <code>dequeue</code>. If the entries are
+     * removed, the queue moves past them; otherwise they will be returned
+     * again by the next dequeue.
+     *
+     * @param queueName the name of the queue
+     * @param ticket the token presented to dequeue
+     * @param removeEntries true if the dequeued entries are done
+     */
+    @Override
+    public void release(String queueName, long ticket, boolean removeEntries)
+    {
+        synchronized (leases)
+        {
+            releaseLease(queueName, ticket, removeEntries);
+        }
+    }
+
+    private void releaseLease(String queueName, long ticket, boolean removeEntries)
+    {
+        Lease lease = leases.get(queueName);
+        if (lease == null || lease.ticket != ticket)
+        {
+            return;
+        }
+        leases.remove(queueName);
+        File dir = queueDir(queueName);
+        try
+        {
+            if (removeEntries)
+            {
+                writeCursor(dir, lease.endSegment, lease.endOffset);
+                // segments read to the end are no longer needed
+                for (File segment : segments(dir))
+                {
+                    if (segmentNumber(segment) < lease.endSegment)
+                    {
+                        segment.delete();
+                    }
+                }
+            }
+            else
+            {
+                restoreIndex(dir, lease.fingerprints);
+            }
+        }
+        catch (IOException ioE)
+        {
+            log.error("Unable to release queue '" + queueName + "'", ioE);
+        }
+        finally
+        {
+            try
+            {
+                lease.readLock.release();
+                lease.readLockFile.close();
+            }
+            catch (IOException ioE)
+            {
+                log.error("Unable to unlock queue '" + queueName + "'", ioE);
+            }
+        }
+    }
+
+    private Set<TaskQueueEntry> readBatch(String queueName, long ticket, int max) throws IOException
+    {
+        Set<TaskQueueEntry> entrySet = new LinkedHashSet<TaskQueueEntry>();
+        if (leases.containsKey(queueName))
+        {
+            return entrySet;
+        }
+        File dir = queueDir(queueName);
+        // held until release, so only one reader (in any process) has the batch
+        RandomAccessFile readLockFile = new RandomAccessFile(new File(dir, READ_LOCK_NAME), "rw");
+        FileLock readLock;
+        try
+        {
+            readLock = readLockFile.getChannel().tryLock();
+        }
+        catch (OverlappingFileLockException olE)
+        {
+            // another web application in this JVM has the batch
+            readLock = null;
+        }
+        if (readLock == null)
+        {
+            readLockFile.close();
+            return entrySet;
+        }
+        FileLock lock = null;
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_NAME), "rw");
+        try
+        {
+            lock = lock(lockFile);
+            long[] cursor = readCursor(dir);
+            long segNum = cursor[0];
+            long offset = cursor[1];
+            List<Long> fingerprints = new ArrayList<Long>();
+            for (File segment : segments(dir))
+            {
+                if (entrySet.size() >= max)
+                {
+                    break;
+                }
+                long num = segmentNumber(segment);
+                if (num < segNum)
+                {
+                    continue;
+                }
+                if (num > segNum)
+                {
+                    segNum = num;
+                    offset = 0L;
+                }
+                InputStream in = new BufferedInputStream(new FileInputStream(segment));
+                try
+                {
+                    skipFully(in, offset);
+                    byte[] line;
+                    while (entrySet.size() < max && (line = readLine(in)) != null)
+                    {
+                        offset += line.length + 1;
+                        try
+                        {
+                            TaskQueueEntry entry = new TaskQueueEntry(new String(line, "UTF-8"));
+                            entrySet.add(entry);
+                            fingerprints.add(fingerprint(entry));
+                        }
+                        catch (RuntimeException rE)
+                        {
+                            log.warn("Skipping malformed entry in queue '" + queueName + "'");
+                        }
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            if (entrySet.isEmpty())
+            {
+                readLock.release();
+                readLockFile.close();
+                return entrySet;
+            }
+            // dequeued entries no longer block new ones for their objects
+            FingerprintIndex index = openIndex(dir);
+            try
+            {
+                for (long fp : fingerprints)
+                {
+                    index.remove(fp);
+                }
+            }
+            finally
+            {
+                index.close();
+            }
+            leases.put(queueName, new Lease(ticket, segNum, offset, fingerprints, readLockFile, readLock));
+            return entrySet;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            readLock.release();
+            readLockFile.close();
+            throw e;
+        }
+        finally
+        {
+            if (lock != null)
+            {
+                lock.release();
+            }
+            lockFile.close();
+        }
+    }
+
+    /*
+     * Puts the fingerprints of a batch not done back in the index
+     */
+    private void restoreIndex(File dir, List<Long> fingerprints) throws IOException
+    {
+        FileLock lock = null;
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_NAME), "rw");
+        try
+        {
+            lock = lock(lockFile);
+            FingerprintIndex index = openIndex(dir);
+            try
+            {
+                for (long fp : fingerprints)
+                {
+                    index.add(fp);
+                }
+            }
+            finally
+            {
+                index.close();
+            }
+        }
+        finally
+        {
+            if (lock != null)
+            {
+                lock.release();
+            }
+            lockFile.close();
+        }
+    }
+
+    /*
+     * Locks the passed queue lock file, waiting while another web application
+     * in this JVM holds it (which the channel reports rather than blocking on)
+     */
+    private static FileLock lock(RandomAccessFile lockFile) throws IOException
+    {
+        while (true)
+        {
+            try
+            {
+                return lockFile.getChannel().lock();
+            }
+            catch (OverlappingFileLockException olE)
+            {
+                try
+                {
+                    Thread.sleep(LOCK_RETRY);
+                }
+                catch (InterruptedException iE)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for queue lock");
+                }
+            }
+        }
+    }
+
+    /*
+     * Opens the index, rebuilding it from the unread entries if missing.
+     * Caller holds the queue lock.
+     */
+    private FingerprintIndex openIndex(File dir) throws IOException
+    {
+        File indexFile = new File(dir, INDEX_NAME);
+        if (indexFile.exists())
+        {
+            return new FingerprintIndex(indexFile);
+        }
+        FingerprintIndex index = new FingerprintIndex(indexFile);
+        long[] cursor = readCursor(dir);
+        for (File segment : segments(dir))
+        {
+            long num = segmentNumber(segment);
+            if (num < cursor[0])
+            {
+                continue;
+            }
+            InputStream in = new BufferedInputStream(new FileInputStream(segment));
+            try
+            {
+                skipFully(in, (num == cursor[0]) ? cursor[1] : 0L);
+                byte[] line;
+                while ((line = readLine(in)) != null)
+                {
+                    try
+                    {
+                        index.add(fingerprint(new TaskQueueEntry(new String(line, "UTF-8"))));
+                    }
+                    catch (RuntimeException rE)
+                    {
+                        // malformed entries are skipped when read
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        return index;
+    }
+
+    private File queueDir(String queueName)
+    {
+        File dir = new File(baseDir, queueName + QUEUE_SUFFIX);
+        if (! dir.isDirectory())
+        {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
+    /*
+     * Returns the segment to append to, beginning a new one when full.
+     */
+    private File tailSegment(File dir)
+    {
+        File[] segments = segments(dir);
+        if (segments.length == 0)
+        {
+            return segmentFile(dir, readCursor(dir)[0]);
+        }
+        File tail = segments[segments.length - 1];
+        if (tail.length() >= segmentSize)
+        {
+            return segmentFile(dir, segmentNumber(tail) + 1);
+        }
+        return tail;
+    }
+
+    // returns the segments in order
+    private File[] segments(File dir)
+    {
+        File[] files = dir.listFiles();
+        List<File> segments = new ArrayList<File>();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                if (file.getName().startsWith(SEGMENT_PREFIX))
+                {
+                    segments.add(file);
+                }
+            }
+        }
+        File[] sorted = segments.toArray(new File[segments.size()]);
+        // names are zero-padded, so sort in numeric order
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private File segmentFile(File dir, long num)
+    {
+        return new File(dir, SEGMENT_PREFIX + String.format("%012d", num));
+    }
+
+    private long segmentNumber(File segment)
+    {
+        return Long.parseLong(segment.getName().substring(SEGMENT_PREFIX.length()));
+    }
+
+    // cursor: segment number and byte offset of the next unread entry
+    private long[] readCursor(File dir)
+    {
+        File cursorFile = new File(dir, CURSOR_NAME);
+        if (cursorFile.exists())
+        {
+            try
+            {
+                RandomAccessFile raf = new RandomAccessFile(cursorFile, "r");
+                try
+                {
+                    return new long[] { raf.readLong(), raf.readLong() };
+                }
+                finally
+                {
+                    raf.close();
+                }
+            }
+            catch (IOException ioE)
+            {
+                log.error("Unreadable cursor in '" + dir + "' - reading from the first segment", ioE);
+            }
+        }
+        return new long[] { 0L, 0L };
+    }
+
+    private void writeCursor(File dir, long segNum, long offset) throws IOException
+    {
+        File tmpFile = new File(dir, CURSOR_NAME + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        try
+        {
+            raf.setLength(0L);
+            raf.writeLong(segNum);
+            raf.writeLong(offset);
+            raf.getFD().sync();
+        }
+        finally
+        {
+            raf.close();
+        }
+        if (! tmpFile.renameTo(new File(dir, CURSOR_NAME)))
+        {
+            throw new IOException("Unable to replace queue cursor in '" + dir + "'");
+        }
+    }
+
+    private void skipFully(InputStream in, long count) throws IOException
+    {
+        while (count > 0L)
+        {
+            long skipped = in.skip(count);
+            if (skipped <= 0L)
+            {
+                break;
+            }
+            count -= skipped;
+        }
+    }
+
+    /*
+     * Reads bytes up to the next newline. A final line without one (torn by
+     * a crash while being written) is not returned.
+     */
+    private byte[] readLine(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1)
+        {
+            if (b == '\n')
+            {
+                return line.toByteArray();
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    /*
+     * Entries are duplicates if they have the same tasks and object
+     * (ignoring case, as FilteredFileTaskQueue does)
+     */
+    private long fingerprint(TaskQueueEntry entry) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String task : entry.getTaskNames())
+        {
+            sb.append(task).append(",");
+        }
+        sb.append("|").append(entry.getObjectId());
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(sb.toString().toLowerCase().getBytes("UTF-8"));
+            long fp = 0L;
+            for (int i = 0; i < 8; i++)
+            {
+                fp = (fp << 8) | (digest[i] & 0xff);
+            }
+            return fp;
+        }
+        catch (NoSuchAlgorithmException nsaE)
+        {
+            throw new IOException("no algorithm: MD5");
+        }
+    }
+
+    /*
+     * A batch read but not yet released
+     */
+    private static class Lease
+    {
+        private final long ticket;
+        // position after the batch
+        private final long endSegment;
+        private final long endOffset;
+        private final List<Long> fingerprints;
+        private final RandomAccessFile readLockFile;
+        private final FileLock readLock;
+
+        private Lease(long ticket, long endSegment, long endOffset, List<Long> fingerprints,
+                      RandomAccessFile readLockFile, FileLock readLock)
+        {
+            this.ticket = ticket;
+            this.endSegment = endSegment;
+            this.endOffset = endOffset;
+            this.fingerprints = fingerprints;
+            this.readLockFile = readLockFile;
+            this.readLock = readLock;
+        }
+    }
+}
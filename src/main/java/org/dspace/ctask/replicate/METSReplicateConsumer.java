@@ -8,8 +8,6 @@
 package org.dspace.ctask.replicate;
 
 import java.sql.SQLException;
-import java.io.FileReader;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -34,7 +32,9 @@ import org.dspace.curate.TaskQueueEntry;
 import org.dspace.eperson.EPerson;
 import org.dspace.event.Consumer;
 import org.dspace.event.Event;
+import org.dspace.pack.BufferedPacker;
 import org.dspace.pack.Packer;
+import org.dspace.pack.PooledBuffer;
 import org.dspace.pack.bagit.CatalogPacker;
 import org.dspace.services.ConfigurationService;
 import org.dspace.services.factory.DSpaceServicesFactory;
@@ -77,14 +77,16 @@ public class METSReplicateConsumer implements Consumer {
     private SiteService siteService = ContentServiceFactory.getInstance().getSiteService();
     private CommunityService communityService = ContentServiceFactory.getInstance().getCommunityService();
     private CollectionService collectionService = ContentServiceFactory.getInstance().getCollectionService();
-    private ItemService itemService = ContentServiceFactory.getInstance().getItemService();
 
     private ReplicaManager repMan = null;
     private TaskQueue taskQueue = null;
     private String queueName = null;
-    // list and sense for id filtering
-    private List<String> idFilter = null;
-    private boolean idExclude = true;
+    private EventCoalescer coalescer = null;
+    private QueueLanes lanes = null;
+    // performs '+p' tasks in the background (if so configured)
+    private AsyncPerformer asyncPerformer = null;
+    // compiled id filtering
+    private IdFilter idFilter = null;
     // map of task names to id sets
     private Map<String, Set<String>> taskQMap = null;
     private Map<String, Set<String>> taskPMap = null;
@@ -112,16 +114,16 @@ public class METSReplicateConsumer implements Consumer {
         repMan = ReplicaManager.instance();
         taskQueue = (TaskQueue) pluginService.getSinglePlugin(TaskQueue.class);
         queueName = configurationService.getProperty("replicate.consumer.queue");
-        // look for and load any idFilter files - excludes trump includes
-        // An "idFilter" is an actual textual file named "exclude" or "include"
-        // which contains a list of handles to filter from the Consumer
-        if (! loadIdFilter("exclude"))
+        coalescer = EventCoalescer.instance();
+        lanes = new QueueLanes(queueName, taskQueue);
+        if (configurationService.getBooleanProperty("replicate.consumer.async", false))
         {
-            if (loadIdFilter("include"))
-            {
-                idExclude = false;
-            }
+            asyncPerformer = AsyncPerformer.instance();
         }
+        // An "idFilter" is an actual textual file named "exclude" or "include"
+        // which contains a list of handles to filter from the Consumer
+        // (excludes trump includes); it is reloaded when changed
+        idFilter = new IdFilter();
         taskQMap = new HashMap<String, Set<String>>();
         taskPMap = new HashMap<String, Set<String>>();
         parseTasks("add");
@@ -153,6 +155,8 @@ public class METSReplicateConsumer implements Consumer {
         int subjType = event.getSubjectType();
         //In this situation the "id" is actually the Object Handle
         String id = null;
+        // keep the filter's subtrees in step with the structure
+        idFilter.observe(event);
 
         //Special processing specific to Group & EPerson events
         if(subjType==Constants.GROUP || subjType==Constants.EPERSON)
@@ -313,13 +317,31 @@ public class METSReplicateConsumer implements Consumer {
             taskQMap.clear();
         }
         // now the performables
-        if (taskPMap.size() > 0)
+        if (taskPMap.size() > 0 && asyncPerformer != null)
+        {
+            // hand off to background threads, rather than hold up this request
+            for (String task : taskPMap.keySet())
+            {
+                for (String id : taskPMap.get(task))
+                {
+                    if (! asyncPerformer.submit(ep, task, id))
+                    {
+                        // too many waiting - queue it instead
+                        List<String> taskList = new ArrayList<String>();
+                        taskList.add(task);
+                        entrySet.add(new TaskQueueEntry(name, stamp, taskList, id));
+                    }
+                }
+            }
+            taskPMap.clear();
+        }
+        else if (taskPMap.size() > 0)
         {
             Curator curator = new Curator();
             for (String task : taskPMap.keySet())
             {
                 curator.addTask(task);
-                for (String id : taskQMap.get(task))
+                for (String id : taskPMap.get(task))
                 {
                     curator.curate(ctx, id);
                 }
@@ -329,17 +351,39 @@ public class METSReplicateConsumer implements Consumer {
         }
        
         // if there any uncommitted deletions, record them now
+        TaskQueueEntry delEntry = null;
         if (delObjId != null)
         {
             if (delTasks != null)
             {
-                entrySet.add(new TaskQueueEntry(name, stamp, delTasks, delObjId));
+                delEntry = new TaskQueueEntry(name, stamp, delTasks, delObjId);
             }
             processDelete();
         }
-        if (entrySet.size() > 0)
+        // hold entries until their objects go quiet, to merge bursts of events
+        if (lanes.isEnabled())
         {
-            taskQueue.enqueue(queueName, entrySet);
+            // deletions first - QueueWorker sets large items apart from small ones
+            Map<String, Set<TaskQueueEntry>> routed = lanes.route(entrySet);
+            if (delEntry != null)
+            {
+                lanes.routeDelete(routed, delEntry);
+            }
+            for (String laneQueue : routed.keySet())
+            {
+                coalescer.add(taskQueue, laneQueue, routed.get(laneQueue));
+            }
+        }
+        else
+        {
+            if (delEntry != null)
+            {
+                entrySet.add(delEntry);
+            }
+            if (entrySet.size() > 0)
+            {
+                coalescer.add(taskQueue, queueName, entrySet);
+            }
         }
     }
 
@@ -363,27 +407,7 @@ public class METSReplicateConsumer implements Consumer {
      */
     private boolean acceptId(String id, Event event, Context ctx) throws SQLException
     {
-        // always accept if not filtering
-        if (idFilter == null)
-        {
-            return true;
-        }
-        // filter supports only container ids - so if id is for an item,
-        // find its owning collection
-        String id2check = id;
-        if (event.getSubjectType() == Constants.ITEM)
-        {
-            // NB: Item should be available form context cache - should
-            // not incur a performance hit here
-            Item item = itemService.find(ctx, event.getSubjectID());
-            Collection coll = item.getOwningCollection();
-            if (coll != null)
-            {
-                id2check = coll.getHandle();
-            }
-        }
-        boolean onList = idFilter.contains(id2check);
-        return idExclude ? ! onList : onList;
+        return idFilter.accept(id, event, ctx);
     }
 
     /**
@@ -466,10 +490,27 @@ public class METSReplicateConsumer implements Consumer {
                 // Create a new deletion catalog (with default file extension / format)
                 // and store it in the deletion group store
                 String catID = repMan.deletionCatalogId(delObjId, null);
-                File packDir = repMan.stage(deleteGroupName, catID);
-                File archive = packer.pack(packDir);
-                // Create a deletion catalog in deletion archive location.
-                repMan.transferObject(deleteGroupName, archive);
+                if (repMan.packsInMemory(packer))
+                {
+                    // catalogs are tiny - build and send them without staging files
+                    PooledBuffer archive = ((BufferedPacker) packer).packToBuffer(catID);
+                    try
+                    {
+                        repMan.transferObject(deleteGroupName, repMan.deletionCatalogId(delObjId,
+                                configurationService.getProperty("replicate.packer.archfmt")), archive);
+                    }
+                    finally
+                    {
+                        archive.release();
+                    }
+                }
+                else
+                {
+                    File packDir = repMan.stage(deleteGroupName, catID);
+                    File archive = packer.pack(packDir);
+                    // Create a deletion catalog in deletion archive location.
+                    repMan.transferObject(deleteGroupName, archive);
+                }
             }
             catch (AuthorizeException authE)
             {
@@ -485,51 +526,6 @@ public class METSReplicateConsumer implements Consumer {
         delMemIds.clear();
     }
 
-    /**
-     * Load the ID filter file of the given name.  This is a textual file in
-     * the base directory which contains a list of handles to include/exclude
-     * from this consumer
-     * @param filterName the name of the textual filter file
-     * @return true if filter file was loaded successfully, false otherwise
-     */
-    private boolean loadIdFilter(String filterName)
-    {
-        File filterFile = new File(configurationService.getProperty("replicate.base.dir"), filterName);
-        if (filterFile.exists())
-        {
-            idFilter = new ArrayList<String>();
-            BufferedReader reader = null;
-            try
-            {
-                reader = new BufferedReader(new FileReader(filterFile));
-                String id = null;
-                while((id = reader.readLine()) != null)
-                {
-                    idFilter.add(id);
-                }
-                return true;
-            }
-            catch (IOException ioE)
-            {
-                //log.error("Unable to read filter file '" + filterName + "'");
-                idFilter = null;
-            }
-            finally
-            {
-                if (reader != null) {
-                    try
-                    {
-                        reader.close();
-                    }
-                    catch (IOException ioE)
-                    {
-                    }
-                }
-            }
-        }
-        return false;
-    }
-
     /**
      * Record the given object tasklist in the given "map".  This is essentially
      * providing a master list (map) of tasks to perform for particular objects.
@@ -619,7 +615,7 @@ public class METSReplicateConsumer implements Consumer {
                     {
                         modPTasks = new ArrayList<String>();
                     }
-                    addPTasks.add(sTask);
+                    modPTasks.add(sTask);
                 }
                 else if ("del".equals(propName))
                 {
@@ -10,6 +10,7 @@ package org.dspace.ctask.replicate;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.dspace.authorize.AuthorizeException;
@@ -18,6 +19,7 @@ import org.dspace.core.Context;
 import org.dspace.curate.Curator;
 import org.dspace.curate.Distributive;
 import org.dspace.curate.Mutative;
+import org.dspace.pack.RestoreScope;
 import org.dspace.pack.mets.METSPacker;
 
 import org.apache.log4j.Logger;
@@ -74,22 +76,34 @@ public class METSRestoreFromAIP extends AbstractPackagerTask
         
         ReplicaManager repMan = ReplicaManager.instance();
         
+        //Load packaging options from replicate-mets.cfg configuration file
+        PackageParameters pkgParams = this.loadPackagerParameters(metsModuleConfig);
+        RestoreScope scope = METSPacker.scopeOf(pkgParams);
+
         //Look for object in Replica Store
         String objId = repMan.storageId(id, archFmt);
-        File archive = repMan.fetchObject(storeGroupName, objId);
-          
-        if (archive != null) 
+        boolean found;
+        if (! scope.isComplete())
         {
-            //Load packaging options from replicate-mets.cfg configuration file
-            PackageParameters pkgParams = this.loadPackagerParameters(metsModuleConfig);
-            
-            //log that this task is starting (as this may be a large task)
+            //only parts of objects are replaced, so only the entries
+            //needed are read from each AIP
             log.info(getStartMsg(id, pkgParams));
-            
-            //restore/replace object represented by this archive file
-            //(based on packaging params, this may also restore/replace all child objects too)
-            restoreObject(repMan, archive, pkgParams);
+            found = restoreSelected(repMan, objId, pkgParams, scope);
+        }
+        else
+        {
+            File archive = repMan.fetchObject(storeGroupName, objId);
+            found = (archive != null);
+            if (found)
+            {
+                //log that this task is starting (as this may be a large task)
+                log.info(getStartMsg(id, pkgParams));
+                restoreAll(ctx, repMan, objId, archive, pkgParams);
+            }
+        }
 
+        if (found)
+        {
             //Check if a deletion catalog exists for this object
             String catId = repMan.deletionCatalogId(id, archFmt);
             File catArchive = repMan.fetchObject(deleteGroupName, catId);
@@ -134,31 +148,139 @@ public class METSRestoreFromAIP extends AbstractPackagerTask
     }
     
     
+    /**
+     * Restores/Replaces a DSpace Object (along with possibly its child objects)
+     * from its fetched archive file.
+     * <P>
+     * Child AIPs are fetched ahead, while their predecessors are ingested.
+     * Work is committed in batches, and a rerun resumes from the last batch.
+     *
+     * @param ctx current DSpace Context
+     * @param repMan ReplicaManager
+     * @param objId storage ID of the archive
+     * @param archive the fetched archive file
+     * @param pkgParams PackageParameters (may specify restore/replace mode, recursion, etc.)
+     * @throws IOException if I/O error
+     */
+    private void restoreAll(Context ctx, ReplicaManager repMan, String objId, File archive,
+                            PackageParameters pkgParams)
+            throws IOException
+    {
+        RestoreCheckpoint checkpoint = new RestoreCheckpoint(taskId + "-" + objId);
+        AIPPrefetcher prefetcher = new AIPPrefetcher(repMan, storeGroupName);
+        try
+        {
+            if (checkpoint.isDone(objId))
+            {
+                archive.delete();
+            }
+            else
+            {
+                restoreObject(ctx, repMan, objId, archive, pkgParams, prefetcher, checkpoint);
+            }
+        }
+        finally
+        {
+            prefetcher.close();
+        }
+        checkpoint.finish();
+    }
+
+    /**
+     * Replaces parts of a DSpace Object (and, in recursive mode, of its child
+     * objects), reading only the entries needed from each AIP in the Replica
+     * Filestore rather than fetching whole archives.
+     *
+     * @param repMan ReplicaManager
+     * @param ref storage ID of the archive
+     * @param pkgParams PackageParameters (may specify recursion)
+     * @param scope parts of each object to replace
+     * @return false if the archive is not in the Replica Filestore
+     * @throws IOException if I/O error
+     */
+    private boolean restoreSelected(ReplicaManager repMan, String ref, PackageParameters pkgParams,
+                                    RestoreScope scope)
+            throws IOException
+    {
+        List<String> childPkgRefs;
+        ReplicaArchive archive = repMan.openArchive(storeGroupName, ref);
+        try
+        {
+            METSPacker packer = new METSPacker(archFmt);
+            if (! packer.unpackSelected(archive, scope))
+            {
+                return false;
+            }
+            childPkgRefs = packer.getChildPackageRefs();
+        }
+        catch (AuthorizeException authE)
+        {
+            throw new IOException(authE);
+        }
+        catch (SQLException sqlE)
+        {
+            throw new IOException(sqlE);
+        }
+        finally
+        {
+            archive.close();
+        }
+        if (pkgParams.recursiveModeEnabled() && childPkgRefs != null)
+        {
+            for (String childRef : childPkgRefs)
+            {
+                if (! restoreSelected(repMan, childRef, pkgParams, scope))
+                {
+                    throw new IOException("Archive " + childRef + " was not found in Replica Store");
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Restores/Replaces a DSpace Object (along with possibly its child objects),
      * based on an archive file in the Replica Filestore and the given 
      * PackageParameters.
+     * <P>
+     * Objects restored by an earlier run of this restore (see RestoreCheckpoint)
+     * are not restored again, and subtrees it finished are skipped.
      * 
+     * @param ctx current DSpace Context
      * @param repMan ReplicaManager
-     * @param archive File in replica archive
+     * @param ref storage ID of the archive
+     * @param archive File in replica archive (null if restored by an earlier run)
      * @param pkgParams PackageParameters (may specify restore/replace mode, recursion, etc.)
+     * @param prefetcher AIPPrefetcher supplying child archives
+     * @param checkpoint RestoreCheckpoint recording progress
      * @throws IOException if I/O error
      */
-    private void restoreObject(ReplicaManager repMan, File archive, PackageParameters pkgParams)
+    private void restoreObject(Context ctx, ReplicaManager repMan, String ref, File archive,
+                               PackageParameters pkgParams, AIPPrefetcher prefetcher,
+                               RestoreCheckpoint checkpoint)
              throws IOException
     {
-        //Initialize a new METS-based packer, without an associated object
-        METSPacker packer = new METSPacker(archFmt);
-       
         try
         {
-            //unpack archival package & actually run the restore/replace,
-            // based on the current PackageParameters
-            // This only restores/replaces a single object.
-            packer.unpack(archive, pkgParams);
+            //Child package refs of this object, if an earlier run restored it
+            List<String> childPkgRefs = checkpoint.restoredChildren(ref);
+            if(childPkgRefs==null)
+            {
+                //Initialize a new METS-based packer, without an associated object
+                METSPacker packer = new METSPacker(archFmt);
+
+                //unpack archival package & actually run the restore/replace,
+                // based on the current PackageParameters
+                // This only restores/replaces a single object.
+                packer.unpack(archive, pkgParams);
+                childPkgRefs = packer.getChildPackageRefs();
+
+                //may commit (and record) a batch of restored objects
+                checkpoint.restored(ctx, ref, pkgParams.recursiveModeEnabled() ? childPkgRefs : null);
+            }
 
             // Remove the locally cached archive file - it is no longer needed.
-            if(archive.exists())
+            if(archive!=null && archive.exists())
                 archive.delete();
 
             //check if recursiveMode is enabled (restore/replace multiple objects)
@@ -166,25 +288,40 @@ public class METSRestoreFromAIP extends AbstractPackagerTask
             {
                 //See if this package refered to child packages, 
                 //if so, we want to also replace those child objects
-                List<String> childPkgRefs = packer.getChildPackageRefs();
                 if(childPkgRefs!=null && !childPkgRefs.isEmpty())
                 {
+                    //skip subtrees finished by an earlier run, and only fetch
+                    //archives of objects not yet restored
+                    List<String> remaining = new ArrayList<String>();
+                    List<String> needed = new ArrayList<String>();
                     for(String childRef : childPkgRefs)
                     {
-                        File childArchive = repMan.fetchObject(storeGroupName, childRef);
-
-                        if(childArchive!=null)
+                        if(!checkpoint.isDone(childRef))
                         {
-                            //recurse to restore/replace this child object (and all its children)
-                            restoreObject(repMan, childArchive, pkgParams);
+                            remaining.add(childRef);
+                            if(checkpoint.restoredChildren(childRef)==null)
+                                needed.add(childRef);
                         }
-                        else
+                    }
+                    //children are needed next (depth-first), so begin fetching them
+                    prefetcher.schedule(needed);
+                    for(String childRef : remaining)
+                    {
+                        File childArchive = null;
+                        if(checkpoint.restoredChildren(childRef)==null)
                         {
-                            throw new IOException("Archive " + childRef + " was not found in Replica Store");
+                            childArchive = prefetcher.take(childRef);
+                            if(childArchive==null)
+                            {
+                                throw new IOException("Archive " + childRef + " was not found in Replica Store");
+                            }
                         }
+                        //recurse to restore/replace this child object (and all its children)
+                        restoreObject(ctx, repMan, childRef, childArchive, pkgParams, prefetcher, checkpoint);
                     }    
                 }
             }
+            checkpoint.subtreeDone(ref);
         }
         catch(AuthorizeException authe)
         {
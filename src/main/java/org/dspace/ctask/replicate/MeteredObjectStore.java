@@ -0,0 +1,30 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.util.Map;
+
+/**
+ * A MeteredObjectStore is an ObjectStore which keeps its own operational
+ * readings (e.g. cache hits), beyond the basic transfer accounting done by
+ * ReplicaManager. ReplicaManager periodically collects these readings and
+ * adds them to the Odometer.
+ *
+ * @see Odometer
+ * @see ReplicaManager
+ */
+public interface MeteredObjectStore extends ObjectStore
+{
+    /**
+     * Returns the readings accumulated since the last call, as a map of
+     * odometer property names to adjustments, and resets them.
+     *
+     * @return map of property adjustments (never null)
+     */
+    Map<String, Long> readings();
+}
@@ -0,0 +1,240 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * ObjectPrefetcher fetches objects from a group of the replica store ahead
+ * of their use, when they are read in a known order, so that fetching the
+ * next objects overlaps working on the current one. The user tells the
+ * prefetcher which objects it will need next, and the prefetcher keeps up
+ * to its look-ahead of the next needed objects fetched or being fetched.
+ * Objects are still taken one at a time, in the order needed.
+ * <P>
+ * Subclasses may also prepare each object in the fetching thread (e.g.
+ * inflate it), so that this work too overlaps its use.
+ *
+ * @see AIPPrefetcher
+ * @see org.dspace.ctask.replicate.checkm.CompareWithManifest
+ */
+public class ObjectPrefetcher
+{
+    private static Logger log = Logger.getLogger(ObjectPrefetcher.class);
+
+    private final ReplicaManager repMan;
+    private final String group;
+    // most objects fetched or being fetched ahead of their use
+    private final int lookAhead;
+    private final ExecutorService executor;
+    // ids of objects to be taken, in the order needed
+    private final LinkedList<String> order = new LinkedList<String>();
+    // fetches started and not yet taken
+    private final Map<String, Prefetch> started = new HashMap<String, Prefetch>();
+
+    /**
+     * Creates a prefetcher of objects in a store group.
+     *
+     * @param repMan replica manager
+     * @param group store group of the objects
+     * @param lookAhead most objects fetched or being fetched ahead (0 to fetch only when taken)
+     * @param threads number of fetching threads
+     */
+    public ObjectPrefetcher(ReplicaManager repMan, String group, int lookAhead, int threads)
+    {
+        this.repMan = repMan;
+        this.group = group;
+        this.lookAhead = lookAhead;
+        executor = (lookAhead > 0 && threads > 0) ? Executors.newFixedThreadPool(threads) : null;
+    }
+
+    /**
+     * Notes objects which will be taken before any already scheduled, in
+     * the order passed, and starts fetching as many as the look-ahead allows.
+     *
+     * @param ids storage IDs of the objects
+     */
+    public void schedule(List<String> ids)
+    {
+        order.addAll(0, ids);
+        fill();
+    }
+
+    /**
+     * Returns an object, waiting for it to be fetched if need be.
+     *
+     * @param id storage ID of the object
+     * @return the fetched object, or null if not in the store
+     * @throws IOException if the object cannot be fetched
+     */
+    public File take(String id) throws IOException
+    {
+        order.remove(id);
+        Prefetch prefetch = started.remove(id);
+        try
+        {
+            if (prefetch == null)
+            {
+                return fetch(id);
+            }
+            return prefetch.future.get();
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching '" + id + "'", intE);
+        }
+        catch (ExecutionException execE)
+        {
+            Throwable cause = execE.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to fetch '" + id + "'", cause);
+        }
+        finally
+        {
+            fill();
+        }
+    }
+
+    /**
+     * Stops fetching, and removes objects fetched but not taken.
+     */
+    public void close()
+    {
+        if (executor == null)
+        {
+            return;
+        }
+        // prefetches not yet running never will; those running finish
+        for (Prefetch prefetch : started.values())
+        {
+            prefetch.future.cancel(false);
+        }
+        executor.shutdown();
+        try
+        {
+            while (! executor.awaitTermination(1L, TimeUnit.MINUTES))
+            {
+                log.info("Waiting for prefetches of '" + group + "' to finish");
+            }
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted closing prefetcher - prefetched objects may remain");
+        }
+        // a cancelled future has no result, so each prefetch keeps its own
+        for (Prefetch prefetch : started.values())
+        {
+            File file = prefetch.fetched;
+            if (file != null)
+            {
+                discard(file);
+            }
+        }
+        started.clear();
+        order.clear();
+    }
+
+    /**
+     * Prepares a fetched object for use. By default, the object is used
+     * as fetched.
+     *
+     * @param id storage ID of the object
+     * @param archive fetched object
+     * @return the prepared object
+     * @throws IOException if the object cannot be prepared
+     */
+    protected File prepare(String id, File archive) throws IOException
+    {
+        return archive;
+    }
+
+    /**
+     * Removes a prepared object which will not be used.
+     *
+     * @param prepared prepared object
+     */
+    protected void discard(File prepared)
+    {
+        prepared.delete();
+    }
+
+    private File fetch(String id) throws IOException
+    {
+        File archive = repMan.fetchObject(group, id);
+        return (archive != null) ? prepare(id, archive) : null;
+    }
+
+    /*
+     * Starts fetching the next needed objects, up to the look-ahead
+     */
+    private void fill()
+    {
+        if (executor == null)
+        {
+            return;
+        }
+        for (String id : order)
+        {
+            if (started.size() >= lookAhead)
+            {
+                break;
+            }
+            if (! started.containsKey(id))
+            {
+                Prefetch prefetch = new Prefetch(id);
+                prefetch.future = executor.submit(prefetch);
+                started.put(id, prefetch);
+            }
+        }
+    }
+
+    /*
+     * An object being fetched ahead, which keeps what it fetched, so that
+     * close can remove it even if the fetch was cancelled while running
+     */
+    private class Prefetch implements Callable<File>
+    {
+        private final String id;
+        private Future<File> future = null;
+        private volatile File fetched = null;
+
+        private Prefetch(String id)
+        {
+            this.id = id;
+        }
+
+        @Override
+        public File call() throws IOException
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug("Prefetching '" + id + "'");
+            }
+            fetched = fetch(id);
+            return fetched;
+        }
+    }
+}
@@ -15,6 +15,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Properties;
+import java.util.Set;
 
 /**
  * Odometer holds a small set of persistent operational parameters of service
@@ -40,6 +41,13 @@ public class Odometer
     public static final String UPLOADED = "uploaded";
     public static final String DOWNLOADED = "downloaded";
     public static final String MODIFIED = "modified";
+    // names of properties kept by caching stores
+    public static final String CACHE_HITS = "cachehits";
+    public static final String CACHE_MISSES = "cachemisses";
+    public static final String CACHE_SAVED = "cachesaved";
+    // names of properties holding time (ms) held by bandwidth throttles
+    public static final String UPLOAD_WAIT = "uploadwait";
+    public static final String DOWNLOAD_WAIT = "downloadwait";
     // is this a read-only copy?
     private boolean readOnly = false;
     // odometer properties - hold the values
@@ -112,6 +120,11 @@ public class Odometer
         odoProps.setProperty(name, String.valueOf(value));
     }
     
+    public Set<String> getPropertyNames()
+    {
+        return odoProps.stringPropertyNames();
+    }
+
     public long getProperty(String name)
     {
        String val = odoProps.getProperty(name);
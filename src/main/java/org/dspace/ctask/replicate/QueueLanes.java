@@ -0,0 +1,223 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.dspace.content.DSpaceObject;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.curate.TaskQueue;
+import org.dspace.curate.TaskQueueEntry;
+import org.dspace.handle.factory.HandleServiceFactory;
+import org.dspace.handle.service.HandleService;
+import org.dspace.pack.PackerFactory;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * QueueLanes divides a replication queue into lanes by priority, so that a
+ * few very large items cannot hold up many small updates behind them. When
+ * enabled ('replicate.consumer.lanes'), entries are placed in one of three
+ * queues named after the consumer queue:
+ * <ul>
+ * <li>[queue]-urgent: deletions
+ * <li>[queue]-small: containers, and items whose estimated AIP size
+ * (see Packer.size()) is below 'replicate.consumer.lane.large.threshold'
+ * <li>[queue]-large: all other items
+ * </ul>
+ * The replicate consumers place changed objects in the small lane without
+ * sizing them, since that would slow down the request which changed them;
+ * QueueWorker estimates the size of each item it takes from the small lane,
+ * and moves large ones to the large lane. It takes batches from the lanes
+ * (and from the undivided queue itself, as a 'default' lane) by weighted
+ * round robin, using the weights in 'replicate.worker.lane.weights', and
+ * limits the number of large entries performed at once to
+ * 'replicate.worker.lane.large.threads', leaving the other workers for
+ * smaller ones.
+ * <P>
+ * Lanes require the IndexedTaskQueue, which hands out a queue in bounded
+ * batches: other queues hand out all their entries at once, defeating the
+ * weights. With any other queue, lanes stay disabled.
+ *
+ * @see QueueWorker
+ */
+public class QueueLanes
+{
+    private static Logger log = Logger.getLogger(QueueLanes.class);
+
+    public static final String URGENT = "urgent";
+    public static final String SMALL = "small";
+    public static final String LARGE = "large";
+    // the undivided queue
+    public static final String DEFAULT = "default";
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+    private HandleService handleService = HandleServiceFactory.getInstance().getHandleService();
+
+    private final String queueName;
+    private final boolean enabled;
+    // items estimated at or above this size go to the large lane
+    private final long largeThreshold;
+
+    public QueueLanes(String queueName, TaskQueue taskQueue)
+    {
+        this.queueName = queueName;
+        boolean configured = configurationService.getBooleanProperty("replicate.consumer.lanes", false);
+        enabled = configured && taskQueue instanceof IndexedTaskQueue;
+        if (configured && ! enabled)
+        {
+            log.warn("Queue lanes require the IndexedTaskQueue - lanes disabled");
+        }
+        largeThreshold = configurationService.getLongProperty("replicate.consumer.lane.large.threshold", 1073741824L);
+    }
+
+    /**
+     * Returns true if entries are divided into lanes.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Returns the name of the queue holding the passed lane.
+     *
+     * @param lane lane name
+     * @return queue name
+     */
+    public String laneQueue(String lane)
+    {
+        return DEFAULT.equals(lane) ? queueName : queueName + "-" + lane;
+    }
+
+    /**
+     * Returns all lanes, highest priority first.
+     *
+     * @return lane names
+     */
+    public List<String> lanes()
+    {
+        List<String> lanes = new ArrayList<String>();
+        lanes.add(URGENT);
+        lanes.add(SMALL);
+        lanes.add(DEFAULT);
+        lanes.add(LARGE);
+        return lanes;
+    }
+
+    /**
+     * Returns the configured weight of each lane ('lane:weight' pairs in
+     * 'replicate.worker.lane.weights'). The default lane weighs the same
+     * as the small lane unless configured.
+     *
+     * @return weights by lane
+     */
+    public Map<String, Integer> weights()
+    {
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        weights.put(URGENT, 8);
+        weights.put(SMALL, 4);
+        weights.put(LARGE, 1);
+        String[] pairs = configurationService.getArrayProperty("replicate.worker.lane.weights");
+        if (pairs != null)
+        {
+            for (String pair : pairs)
+            {
+                String[] parts = pair.trim().split(":");
+                try
+                {
+                    weights.put(parts[0].trim(), Math.max(0, Integer.parseInt(parts[1].trim())));
+                }
+                catch (RuntimeException rE)
+                {
+                    log.error("Ignoring invalid lane weight '" + pair + "'");
+                }
+            }
+        }
+        if (! weights.containsKey(DEFAULT))
+        {
+            weights.put(DEFAULT, weights.get(SMALL));
+        }
+        return weights;
+    }
+
+    /**
+     * Places entries for changed objects in the small lane - QueueWorker
+     * moves those of large items to the large lane.
+     *
+     * @param entries entries to place
+     * @return entries by lane queue name
+     */
+    public Map<String, Set<TaskQueueEntry>> route(Set<TaskQueueEntry> entries)
+    {
+        Map<String, Set<TaskQueueEntry>> routed = new HashMap<String, Set<TaskQueueEntry>>();
+        for (TaskQueueEntry entry : entries)
+        {
+            add(routed, laneQueue(SMALL), entry);
+        }
+        return routed;
+    }
+
+    /**
+     * Adds an entry for a deleted object to the urgent lane.
+     *
+     * @param routed entries by lane queue name
+     * @param entry deletion entry
+     */
+    public void routeDelete(Map<String, Set<TaskQueueEntry>> routed, TaskQueueEntry entry)
+    {
+        add(routed, laneQueue(URGENT), entry);
+    }
+
+    private void add(Map<String, Set<TaskQueueEntry>> routed, String queue, TaskQueueEntry entry)
+    {
+        Set<TaskQueueEntry> set = routed.get(queue);
+        if (set == null)
+        {
+            set = new HashSet<TaskQueueEntry>();
+            routed.put(queue, set);
+        }
+        set.add(entry);
+    }
+
+    /**
+     * Tells whether an object belongs in the large lane: an item whose
+     * estimated AIP size reaches the threshold.
+     *
+     * @param ctx DSpace Context
+     * @param id handle of the object
+     * @return true if large
+     */
+    public boolean isLarge(Context ctx, String id)
+    {
+        try
+        {
+            DSpaceObject dso = handleService.resolveToObject(ctx, id);
+            if (dso == null || dso.getType() != Constants.ITEM)
+            {
+                return false;
+            }
+            return PackerFactory.instance(dso).size("norecurse") >= largeThreshold;
+        }
+        catch (SQLException | RuntimeException e)
+        {
+            log.warn("Unable to estimate size of '" + id + "' - treating as small", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,759 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.apache.log4j.Logger;
+import org.dspace.core.Context;
+import org.dspace.core.factory.CoreServiceFactory;
+import org.dspace.curate.Curator;
+import org.dspace.curate.TaskQueue;
+import org.dspace.curate.TaskQueueEntry;
+import org.dspace.eperson.EPerson;
+import org.dspace.eperson.factory.EPersonServiceFactory;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * QueueWorker is a long-running process which drains a curation task queue
+ * (by default the replicate consumer queue) with several worker threads,
+ * rather than one entry at a time as 'dspace curate -q' does. Each entry is
+ * performed in its own Context.
+ * <P>
+ * Entries are taken from the queue in batches, and each batch is first
+ * recorded in a lease file (under 'worker-leases' in the replicate base
+ * directory), where completed entries are marked off. Queues other than an
+ * IndexedTaskQueue hand over all their entries at once: these are held in
+ * the lease, and dispatched at most a batch at a time. While the worker runs,
+ * it touches its lease files every 'replicate.worker.heartbeat' seconds.
+ * A lease not touched for 'replicate.worker.lease.timeout' seconds belongs
+ * to a worker which has died: any worker then puts its unfinished entries
+ * back on the queue. Nothing taken from the queue is lost if a worker
+ * crashes, although some entries may be performed twice.
+ * <P>
+ * Entries for the same object are performed in the order queued, and never
+ * at the same time, so two versions of an item cannot be transmitted
+ * concurrently. (This holds within one worker process - run one per queue.)
+ * <P>
+ * If the queue is divided into priority lanes (see QueueLanes), batches are
+ * taken from the lanes in turn, in proportion to their weights, and only
+ * some workers may be busy with large items at once. Items taken from the
+ * small lane are sized here, and large ones moved to the large lane.
+ * <P>
+ * May be added to DSpace's launcher.xml, or run as e.g.:
+ * <PRE>
+ * dspace dsrun org.dspace.ctask.replicate.QueueWorker -w 8
+ * </PRE>
+ *
+ * @see IndexedTaskQueue
+ */
+public class QueueWorker
+{
+    private static Logger log = Logger.getLogger(QueueWorker.class);
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    private static final String LEASE_DIR = "worker-leases";
+    private static final String LEASE_PREFIX = "lease-";
+    private static final String EXPIRED_SUFFIX = ".expired";
+    private static final String QUEUE = "queue";
+    private static final String ENTRY = "entry";
+    private static final String DONE = "done";
+    private static final String SEP = "\t";
+
+    private final TaskQueue taskQueue;
+    private final String queueName;
+    private final int workers;
+    // email of EPerson performing tasks (may be null)
+    private final String epersonEmail;
+    // entries taken from the queue at once
+    private final int batchSize;
+    // intervals (ms)
+    private final long heartbeat;
+    private final long leaseTimeout;
+    private final long pollInterval;
+    private final File leaseDir;
+    // priority lanes of the queue
+    private final QueueLanes lanes;
+    // largest number of large lane entries in progress
+    private final int largeThreads;
+    // smooth weighted round robin state, by lane
+    private final Map<String, Integer> credits = new HashMap<String, Integer>();
+
+    private ExecutorService executor = null;
+    private ScheduledExecutorService heartbeater = null;
+    // entries waiting or running, by object - the head of each is running
+    private final Map<String, LinkedList<Work>> chains = new HashMap<String, LinkedList<Work>>();
+    // this process's active leases
+    private final Set<Lease> leases = new HashSet<Lease>();
+    // leases with entries not yet dispatched, in the order taken
+    private final LinkedList<Lease> backlog = new LinkedList<Lease>();
+    // entries dispatched but not done
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // large lane entries dispatched but not done
+    private final AtomicInteger largeInFlight = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /**
+     * Creates a worker for the named queue.
+     *
+     * @param queueName name of the queue to drain
+     * @param workers number of worker threads
+     * @param epersonEmail email of the EPerson to perform tasks as, or null
+     */
+    public QueueWorker(String queueName, int workers, String epersonEmail)
+    {
+        this.taskQueue = (TaskQueue) CoreServiceFactory.getInstance().getPluginService().getSinglePlugin(TaskQueue.class);
+        this.queueName = queueName;
+        this.workers = workers;
+        this.epersonEmail = epersonEmail;
+        batchSize = configurationService.getIntProperty("replicate.worker.batch", 100);
+        heartbeat = configurationService.getLongProperty("replicate.worker.heartbeat", 30L) * 1000L;
+        leaseTimeout = configurationService.getLongProperty("replicate.worker.lease.timeout", 300L) * 1000L;
+        pollInterval = configurationService.getLongProperty("replicate.worker.poll", 10L) * 1000L;
+        leaseDir = new File(new File(configurationService.getProperty("replicate.base.dir"), LEASE_DIR), queueName);
+        leaseDir.mkdirs();
+        lanes = new QueueLanes(queueName, taskQueue);
+        largeThreads = configurationService.getIntProperty("replicate.worker.lane.large.threads", 1);
+    }
+
+    public static void main(String[] argv) throws Exception
+    {
+        Options options = new Options();
+        options.addOption("q", "queue", true, "queue to drain (default: replicate.consumer.queue)");
+        options.addOption("w", "workers", true, "number of worker threads (default: replicate.worker.threads)");
+        options.addOption("e", "eperson", true, "email address of curating eperson");
+        options.addOption("o", "once", false, "exit when the queue is empty");
+        options.addOption("h", "help", false, "help");
+        CommandLineParser parser = new PosixParser();
+        CommandLine line = parser.parse(options, argv);
+        if (line.hasOption('h'))
+        {
+            new HelpFormatter().printHelp("QueueWorker\n", options);
+            return;
+        }
+        ConfigurationService config = DSpaceServicesFactory.getInstance().getConfigurationService();
+        String queueName = line.hasOption('q') ? line.getOptionValue('q') : config.getProperty("replicate.consumer.queue");
+        int workers = line.hasOption('w') ? Integer.parseInt(line.getOptionValue('w'))
+                                          : config.getIntProperty("replicate.worker.threads", 4);
+        final QueueWorker worker = new QueueWorker(queueName, workers, line.getOptionValue('e'));
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            @Override
+            public void run()
+            {
+                worker.shutdown();
+            }
+        });
+        worker.run(line.hasOption('o'));
+    }
+
+    /**
+     * Drains the queue until shut down (or, if 'once', until the queue is empty).
+     *
+     * @param once if true, return when the queue is empty and all entries done
+     * @throws IOException if I/O error
+     * @throws InterruptedException if interrupted
+     */
+    public void run(boolean once) throws IOException, InterruptedException
+    {
+        executor = Executors.newFixedThreadPool(workers);
+        heartbeater = Executors.newSingleThreadScheduledExecutor();
+        heartbeater.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                touchLeases();
+            }
+        }, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+        log.info("Draining queue '" + queueName + "' with " + workers + " workers");
+        try
+        {
+            while (running)
+            {
+                requeueExpired();
+                // keep enough work dispatched for all workers, but no more
+                if (inFlight.get() < workers * 2)
+                {
+                    boolean dispatched = dispatchBacklog();
+                    if (! dispatched)
+                    {
+                        Lease lease = take();
+                        if (lease != null)
+                        {
+                            backlog.add(lease);
+                            dispatched = dispatchBacklog();
+                        }
+                    }
+                    if (dispatched)
+                    {
+                        continue;
+                    }
+                    if (once && inFlight.get() == 0 && backlog.isEmpty())
+                    {
+                        break;
+                    }
+                }
+                synchronized (inFlight)
+                {
+                    inFlight.wait(pollInterval);
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            heartbeater.shutdownNow();
+        }
+    }
+
+    /**
+     * Stops taking entries, and waits (up to the lease timeout) for those in
+     * progress to finish. Entries not yet started stay in their leases, and
+     * return to the queue when those expire.
+     */
+    public void shutdown()
+    {
+        running = false;
+        synchronized (inFlight)
+        {
+            inFlight.notifyAll();
+        }
+        if (executor != null)
+        {
+            // let running entries finish - waiting ones see 'running' is false
+            executor.shutdown();
+            try
+            {
+                if (! executor.awaitTermination(leaseTimeout, TimeUnit.MILLISECONDS))
+                {
+                    log.warn("Entries still running at shutdown - interrupting them");
+                    executor.shutdownNow();
+                }
+            }
+            catch (InterruptedException intE)
+            {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * Dispatches entries of the backlog leases, in order, until enough work
+     * is dispatched (and no more large entries than allowed), returning true
+     * if any were (or were passed over, having moved lane)
+     */
+    private boolean dispatchBacklog()
+    {
+        boolean dispatched = false;
+        for (Iterator<Lease> li = backlog.iterator(); li.hasNext(); )
+        {
+            Lease lease = li.next();
+            while (lease.dispatched < lease.size && inFlight.get() < workers * 2 &&
+                   (! lease.large || largeInFlight.get() < largeThreads))
+            {
+                int seq = lease.dispatched++;
+                if (! lease.moved.contains(seq))
+                {
+                    dispatch(new Work(lease, seq, lease.entries.get(seq)));
+                }
+                dispatched = true;
+            }
+            if (lease.dispatched == lease.size)
+            {
+                li.remove();
+            }
+        }
+        return dispatched;
+    }
+
+    // true if large entries are waiting in the backlog
+    private boolean largeBacklog()
+    {
+        for (Lease lease : backlog)
+        {
+            if (lease.large)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Takes a batch from the queue - or, if divided into lanes, from the
+     * lane whose turn it is - or returns null if all are empty
+     */
+    private Lease take() throws IOException
+    {
+        if (! lanes.isEnabled())
+        {
+            return take(queueName, batchSize);
+        }
+        Map<String, Integer> weights = lanes.weights();
+        List<String> candidates = new ArrayList<String>();
+        for (String lane : lanes.lanes())
+        {
+            // large entries may only occupy some of the workers
+            if (weights.get(lane) > 0 &&
+                (! QueueLanes.LARGE.equals(lane) || (largeInFlight.get() < largeThreads && ! largeBacklog())))
+            {
+                candidates.add(lane);
+            }
+        }
+        while (! candidates.isEmpty())
+        {
+            // smooth weighted round robin: each lane gains its weight, and
+            // the richest pays the total, so lanes take turns in proportion
+            int total = 0;
+            String chosen = null;
+            for (String lane : candidates)
+            {
+                int weight = weights.get(lane);
+                total += weight;
+                Integer credit = credits.get(lane);
+                credits.put(lane, ((credit != null) ? credit : 0) + weight);
+                if (chosen == null || credits.get(lane) > credits.get(chosen))
+                {
+                    chosen = lane;
+                }
+            }
+            credits.put(chosen, credits.get(chosen) - total);
+            int max = QueueLanes.LARGE.equals(chosen) ? largeThreads - largeInFlight.get() : batchSize;
+            Lease lease = take(lanes.laneQueue(chosen), max);
+            if (lease != null)
+            {
+                if (QueueLanes.SMALL.equals(chosen))
+                {
+                    moveLarge(lease);
+                }
+                return lease;
+            }
+            candidates.remove(chosen);
+        }
+        return null;
+    }
+
+    /*
+     * Takes at most 'max' entries from the named queue, or returns null if it is empty
+     */
+    private Lease take(String queue, int max) throws IOException
+    {
+        long ticket = System.currentTimeMillis();
+        Set<TaskQueueEntry> entries = (taskQueue instanceof IndexedTaskQueue) ?
+                ((IndexedTaskQueue) taskQueue).dequeue(queue, ticket, max) :
+                taskQueue.dequeue(queue, ticket);
+        if (entries.isEmpty())
+        {
+            taskQueue.release(queue, ticket, false);
+            return null;
+        }
+        // record the lease before the queue forgets the entries
+        Lease lease;
+        try
+        {
+            lease = new Lease(queue, new ArrayList<TaskQueueEntry>(entries));
+        }
+        catch (IOException ioE)
+        {
+            taskQueue.release(queue, ticket, false);
+            throw ioE;
+        }
+        taskQueue.release(queue, ticket, true);
+        return lease;
+    }
+
+    /*
+     * Moves the entries of large items in a lease taken from the small lane
+     * (where the consumers place all changed objects, unsized) to the large lane
+     */
+    private void moveLarge(Lease lease) throws IOException
+    {
+        Context ctx = new Context();
+        try
+        {
+            // one estimate per object, however many entries it has
+            Map<String, Boolean> large = new HashMap<String, Boolean>();
+            Set<TaskQueueEntry> moved = new LinkedHashSet<TaskQueueEntry>();
+            for (int seq = 0; seq < lease.size; seq++)
+            {
+                String id = lease.entries.get(seq).getObjectId();
+                Boolean isLarge = large.get(id);
+                if (isLarge == null)
+                {
+                    isLarge = lanes.isLarge(ctx, id);
+                    large.put(id, isLarge);
+                }
+                if (isLarge)
+                {
+                    moved.add(lease.entries.get(seq));
+                    lease.moved.add(seq);
+                }
+            }
+            if (! moved.isEmpty())
+            {
+                taskQueue.enqueue(lanes.laneQueue(QueueLanes.LARGE), moved);
+                for (Integer seq : lease.moved)
+                {
+                    lease.done(seq);
+                }
+            }
+        }
+        finally
+        {
+            ctx.abort();
+        }
+    }
+
+    private void dispatch(final Work work)
+    {
+        final String id = work.entry.getObjectId();
+        inFlight.incrementAndGet();
+        if (work.lease.large)
+        {
+            largeInFlight.incrementAndGet();
+        }
+        synchronized (chains)
+        {
+            LinkedList<Work> chain = chains.get(id);
+            if (chain != null)
+            {
+                // runs after the object's earlier entries
+                chain.add(work);
+                return;
+            }
+            chain = new LinkedList<Work>();
+            chain.add(work);
+            chains.put(id, chain);
+        }
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runChain(id);
+            }
+        });
+    }
+
+    /*
+     * Performs the entries queued for an object, in order
+     */
+    private void runChain(String id)
+    {
+        while (true)
+        {
+            Work work;
+            synchronized (chains)
+            {
+                work = chains.get(id).peek();
+            }
+            if (running)
+            {
+                perform(work.entry);
+                work.lease.done(work.seq);
+            }
+            synchronized (chains)
+            {
+                LinkedList<Work> chain = chains.get(id);
+                chain.poll();
+                inFlight.decrementAndGet();
+                if (work.lease.large)
+                {
+                    largeInFlight.decrementAndGet();
+                }
+                if (chain.isEmpty())
+                {
+                    chains.remove(id);
+                    break;
+                }
+            }
+        }
+        synchronized (inFlight)
+        {
+            inFlight.notifyAll();
+        }
+    }
+
+    private void perform(TaskQueueEntry entry)
+    {
+        Context ctx = null;
+        try
+        {
+            ctx = new Context();
+            if (epersonEmail != null)
+            {
+                EPerson ep = EPersonServiceFactory.getInstance().getEPersonService().findByEmail(ctx, epersonEmail);
+                ctx.setCurrentUser(ep);
+            }
+            Curator curator = new Curator();
+            for (String task : entry.getTaskNames())
+            {
+                curator.addTask(task);
+            }
+            curator.curate(ctx, entry.getObjectId());
+            for (String task : entry.getTaskNames())
+            {
+                if (curator.getStatus(task) == Curator.CURATE_ERROR)
+                {
+                    log.error("Task '" + task + "' failed on '" + entry.getObjectId() + "': " + curator.getResult(task));
+                }
+            }
+            ctx.complete();
+        }
+        catch (Exception e)
+        {
+            log.error("Unable to perform queue entry '" + entry + "'", e);
+        }
+        finally
+        {
+            if (ctx != null && ctx.isValid())
+            {
+                ctx.abort();
+            }
+        }
+    }
+
+    private void touchLeases()
+    {
+        long now = System.currentTimeMillis();
+        synchronized (leases)
+        {
+            for (Lease lease : leases)
+            {
+                lease.file.setLastModified(now);
+            }
+        }
+    }
+
+    /*
+     * Returns the unfinished entries of other workers' expired leases to the queue
+     */
+    private void requeueExpired() throws IOException
+    {
+        File[] files = leaseDir.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (! name.startsWith(LEASE_PREFIX) || now - file.lastModified() < leaseTimeout || isOwn(file))
+            {
+                continue;
+            }
+            if (name.endsWith(EXPIRED_SUFFIX) && now - file.lastModified() < leaseTimeout * 2)
+            {
+                // being requeued by whoever claimed it
+                continue;
+            }
+            // claim it under a name of our own, so only one worker requeues
+            // it (a rename keeps the old time, so mark the claim's time too)
+            String base = name.contains(".") ? name.substring(0, name.indexOf(".")) : name;
+            File claimed = new File(leaseDir, base + "." + UUID.randomUUID() + EXPIRED_SUFFIX);
+            if (! file.renameTo(claimed))
+            {
+                continue;
+            }
+            claimed.setLastModified(now);
+            Map<String, Set<TaskQueueEntry>> unfinished = readLease(claimed);
+            for (String queue : unfinished.keySet())
+            {
+                taskQueue.enqueue(queue, unfinished.get(queue));
+                log.info("Requeued " + unfinished.get(queue).size() + " entries of expired lease '" + name + "'");
+            }
+            claimed.delete();
+        }
+    }
+
+    private boolean isOwn(File file)
+    {
+        synchronized (leases)
+        {
+            for (Lease lease : leases)
+            {
+                if (lease.file.equals(file))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns the unfinished entries of a lease, by queue
+     */
+    private Map<String, Set<TaskQueueEntry>> readLease(File file) throws IOException
+    {
+        String queue = queueName;
+        Map<Integer, TaskQueueEntry> entries = new HashMap<Integer, TaskQueueEntry>();
+        List<Integer> order = new ArrayList<Integer>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.split(SEP);
+                try
+                {
+                    if (QUEUE.equals(parts[0]) && parts.length == 2)
+                    {
+                        queue = parts[1];
+                    }
+                    else if (ENTRY.equals(parts[0]) && parts.length == 3)
+                    {
+                        entries.put(Integer.valueOf(parts[1]), new TaskQueueEntry(parts[2]));
+                        order.add(Integer.valueOf(parts[1]));
+                    }
+                    else if (DONE.equals(parts[0]) && parts.length == 2)
+                    {
+                        entries.remove(Integer.valueOf(parts[1]));
+                    }
+                }
+                catch (RuntimeException rE)
+                {
+                    // a torn final line (crash mid-write) is ignored
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        Set<TaskQueueEntry> unfinished = new LinkedHashSet<TaskQueueEntry>();
+        for (Integer seq : order)
+        {
+            if (entries.containsKey(seq))
+            {
+                unfinished.add(entries.get(seq));
+            }
+        }
+        Map<String, Set<TaskQueueEntry>> byQueue = new HashMap<String, Set<TaskQueueEntry>>();
+        if (! unfinished.isEmpty())
+        {
+            byQueue.put(queue, unfinished);
+        }
+        return byQueue;
+    }
+
+    /*
+     * A batch taken from the queue: a file listing its entries, to which
+     * each completed entry is appended
+     */
+    private class Lease
+    {
+        private final File file;
+        // taken from the large lane?
+        private final boolean large;
+        private final List<TaskQueueEntry> entries;
+        private final int size;
+        // entries dispatched so far, and those moved to another lane (by the run loop only)
+        private int dispatched = 0;
+        private final Set<Integer> moved = new HashSet<Integer>();
+        private int done = 0;
+        private Writer writer = null;
+        private FileOutputStream out = null;
+
+        private Lease(String queue, List<TaskQueueEntry> entries) throws IOException
+        {
+            this.large = lanes.isEnabled() && queue.equals(lanes.laneQueue(QueueLanes.LARGE));
+            this.entries = entries;
+            file = File.createTempFile(LEASE_PREFIX, "", leaseDir);
+            size = entries.size();
+            out = new FileOutputStream(file, true);
+            writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write(QUEUE + SEP + queue + "\n");
+            int seq = 0;
+            for (TaskQueueEntry entry : entries)
+            {
+                writer.write(ENTRY + SEP + seq++ + SEP + entry.toString() + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+            synchronized (leases)
+            {
+                leases.add(this);
+            }
+        }
+
+        private synchronized void done(int seq)
+        {
+            try
+            {
+                writer.write(DONE + SEP + seq + "\n");
+                writer.flush();
+                if (++done == size)
+                {
+                    writer.close();
+                    file.delete();
+                    synchronized (leases)
+                    {
+                        leases.remove(this);
+                    }
+                }
+            }
+            catch (IOException ioE)
+            {
+                // the entry may be performed again if the lease expires
+                log.error("Unable to record completion in lease '" + file + "'", ioE);
+            }
+        }
+    }
+
+    /*
+     * An entry of a lease
+     */
+    private static class Work
+    {
+        private final Lease lease;
+        private final int seq;
+        private final TaskQueueEntry entry;
+
+        private Work(Lease lease, int seq, TaskQueueEntry entry)
+        {
+            this.lease = lease;
+            this.seq = seq;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A RangedObjectStore is an ObjectStore which can also read part of a stored
+ * object, so that e.g. a single entry of an archive can be retrieved without
+ * fetching the whole archive. ReplicaManager falls back to fetching the whole
+ * object for stores which lack this capability.
+ *
+ * @see ReplicaManager
+ */
+public interface RangedObjectStore extends ObjectStore
+{
+    /**
+     * Opens a stream over a byte range of a stored object.
+     *
+     * @param group the group of the object
+     * @param id the object's identifier
+     * @param start offset of the first byte
+     * @param end offset of the last byte (inclusive)
+     * @return stream over the range
+     * @throws IOException if I/O error, or RangedFetcher.RangesUnsupportedException
+     *         if the store cannot serve partial content after all
+     */
+    InputStream fetchRange(String group, String id, long start, long end) throws IOException;
+}
@@ -8,6 +8,7 @@
 package org.dspace.ctask.replicate;
 
 import java.io.IOException;
+import java.util.TreeSet;
 
 import org.dspace.content.DSpaceObject;
 import org.dspace.curate.AbstractCurationTask;
@@ -44,6 +45,29 @@ public class ReadOdometer extends AbstractCurationTask
         sb.append("Size:       ").append(scaledSize(odometer.getProperty("storesize"), 0)).append(", \n");
         sb.append("Uploaded:   ").append(scaledSize(odometer.getProperty("uploaded"), 0)).append(", \n");
         sb.append("Downloaded: ").append(scaledSize(odometer.getProperty("downloaded"), 0)).append("\n");
+        long hits = odometer.getProperty(Odometer.CACHE_HITS);
+        long lookups = hits + odometer.getProperty(Odometer.CACHE_MISSES);
+        if (lookups > 0L)
+        {
+            sb.append("Cache hits: ").append(hits).append(" of ").append(lookups)
+              .append(" (").append(hits * 100L / lookups).append("%), \n");
+            sb.append("Cache saved: ").append(scaledSize(odometer.getProperty(Odometer.CACHE_SAVED), 0)).append("\n");
+        }
+        long upWait = odometer.getProperty(Odometer.UPLOAD_WAIT);
+        long downWait = odometer.getProperty(Odometer.DOWNLOAD_WAIT);
+        if (upWait > 0L || downWait > 0L)
+        {
+            sb.append("Throttled:  ").append(upWait / 1000L).append("s upload, ")
+              .append(downWait / 1000L).append("s download\n");
+        }
+        // per-store readings (e.g. 'uploaded.duracloud') kept by multi-store setups
+        for (String name : new TreeSet<String>(odometer.getPropertyNames()))
+        {
+            if (name.contains("."))
+            {
+                sb.append("  ").append(name).append(": ").append(odometer.getProperty(name)).append("\n");
+            }
+        }
         String msg = sb.toString();           
         report(msg);
         setResult(msg);
@@ -0,0 +1,170 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.log4j.Logger;
+import org.dspace.ctask.replicate.store.RangedFetcher;
+import org.dspace.curate.Utils;
+
+/**
+ * ReplicaArchive reads entries of one zip archive in the replica store, e.g.
+ * a manifest and then the bitstreams it lists. If the store can read byte
+ * ranges (see RangedObjectStore), the archive's central directory is read
+ * once, and then only the requested entries; otherwise the whole archive is
+ * fetched on first use, and removed when the ReplicaArchive is closed.
+ * <P>
+ * Obtain one from ReplicaManager.openArchive, and always close it.
+ *
+ * @see ReplicaManager#openArchive
+ */
+public class ReplicaArchive
+{
+    private static Logger log = Logger.getLogger(ReplicaArchive.class);
+
+    private final ReplicaManager repMan;
+    private final String group;
+    private final String objId;
+    // ranged store holding the archive (null once ranges prove unavailable)
+    private RangedObjectStore store;
+    // throttle of ranged reads
+    private final BandwidthThrottle throttle;
+    // reader of the archive by ranges (created on first use)
+    private ZipRangeReader reader = null;
+    // bytes read by the reader already recorded
+    private long charged = 0L;
+    // the whole archive, if fetched
+    private File archive = null;
+    private ZipFile zip = null;
+    // true once the archive is known not to be in the store
+    private boolean missing = false;
+
+    ReplicaArchive(ReplicaManager repMan, String group, String objId, RangedObjectStore store,
+                   BandwidthThrottle throttle)
+    {
+        this.repMan = repMan;
+        this.group = group;
+        this.objId = objId;
+        this.store = store;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Returns the storage ID of the archive.
+     *
+     * @return storage ID
+     */
+    public String getObjectId()
+    {
+        return objId;
+    }
+
+    /**
+     * Fetches an entry of the archive to a staging file.
+     *
+     * @param entryName name of the entry within the archive
+     * @return the staged entry, or null if the archive or entry is not found
+     * @throws IOException if I/O error
+     */
+    public synchronized File fetchEntry(String entryName) throws IOException
+    {
+        if (missing)
+        {
+            return null;
+        }
+        File file = repMan.stageEntry(group, objId, entryName);
+        if (store != null)
+        {
+            if (reader == null)
+            {
+                String sizeStr = repMan.objectAttribute(group, objId, "sizebytes");
+                long size = (sizeStr != null) ? Long.valueOf(sizeStr) : 0L;
+                if (size <= 0L)
+                {
+                    missing = true;
+                    return null;
+                }
+                reader = new ZipRangeReader(store, group, objId, size, throttle);
+            }
+            try
+            {
+                return reader.extract(entryName, file) ? file : null;
+            }
+            catch (RangedFetcher.RangesUnsupportedException ruE)
+            {
+                log.warn("Ranged read unavailable, fetching whole archive: " + ruE.getMessage());
+                store = null;
+            }
+            finally
+            {
+                repMan.recordDownload(reader.getBytesRead() - charged, true);
+                charged = reader.getBytesRead();
+            }
+        }
+        if (zip == null)
+        {
+            archive = repMan.fetchObject(group, objId);
+            if (archive == null)
+            {
+                missing = true;
+                return null;
+            }
+            zip = new ZipFile(archive);
+        }
+        ZipEntry entry = zip.getEntry(entryName);
+        if (entry == null)
+        {
+            return null;
+        }
+        InputStream in = zip.getInputStream(entry);
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            Utils.copy(in, out);
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Releases the archive, removing it if it was fetched whole. Staged
+     * entries are left for the caller to remove.
+     *
+     * @throws IOException if I/O error
+     */
+    public synchronized void close() throws IOException
+    {
+        try
+        {
+            if (zip != null)
+            {
+                zip.close();
+            }
+        }
+        finally
+        {
+            zip = null;
+            if (archive != null)
+            {
+                archive.delete();
+                archive = null;
+            }
+        }
+    }
+}
@@ -14,7 +14,10 @@ import org.dspace.core.Constants;
 import org.dspace.core.Context;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.dspace.core.factory.CoreServiceFactory;
@@ -22,6 +25,10 @@ import org.dspace.core.service.PluginService;
 import org.dspace.curate.Curator;
 import org.dspace.handle.factory.HandleServiceFactory;
 import org.dspace.handle.service.HandleService;
+import org.dspace.pack.BlobSource;
+import org.dspace.pack.BufferedPacker;
+import org.dspace.pack.Packer;
+import org.dspace.pack.PooledBuffer;
 import org.dspace.services.ConfigurationService;
 import org.dspace.services.factory.DSpaceServicesFactory;
 
@@ -34,7 +41,7 @@ import static org.dspace.ctask.replicate.Odometer.*;
  *
  * @author richardrodgers
  */
-public class ReplicaManager {
+public class ReplicaManager implements BlobSource {
 
     private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
     private PluginService pluginService = CoreServiceFactory.getInstance().getPluginService();
@@ -51,16 +58,31 @@ public class ReplicaManager {
     private Odometer odometer = null;
     // lock for updating odometer
     private final Object odoLock = new Object();
+    // manager of local staging space
+    private StagingManager staging = null;
+    // journal of AIP transmissions (null if disabled)
+    private TransferJournal journal = null;
     // Primary store group name
     private final String storeGroupName = configurationService.getProperty("replicate.group.aip.name");
     // Delete store group name
     private final String deleteGroupName = configurationService.getProperty("replicate.group.delete.name");
+    // Blob store group name
+    private final String blobGroupName = configurationService.getProperty("replicate.group.blob.name");
     // Separating character between Type prefix and object identifier, used when packages are named with a Type prefix
     private final String typePrefixSeparator = "@";
     // Special Type prefix for Deletion catalog records
     private final String deletionCatalogPrefix = "DELETION-RECORD";
+    // Special Type prefix for content-addressed bitstream blobs
+    private final String blobPrefix = "BLOB";
     // AIP Package compression format (e.g. zip or tgz)
     private final String archFmt = configurationService.getProperty("replicate.packer.archfmt");
+    // packages estimated at no more than this many bytes are built in memory
+    private final long memThreshold = configurationService.getLongProperty("replicate.packer.memory.threshold", 1048576L);
+    // bandwidth limits on content moved to and from the store
+    private final BandwidthThrottle uploadThrottle = new BandwidthThrottle("replicate.throttle.upload");
+    private final BandwidthThrottle downloadThrottle = new BandwidthThrottle("replicate.throttle.download");
+    // true if the store throttles its own streams - else whole objects are paid for
+    private boolean streamThrottled = false;
 
 
     private ReplicaManager() throws IOException
@@ -72,9 +94,15 @@ public class ReplicaManager {
         }
         
         objStore.init();
+        if (objStore instanceof ThrottledObjectStore)
+        {
+            ((ThrottledObjectStore) objStore).setThrottles(uploadThrottle, downloadThrottle);
+            streamThrottled = true;
+        }
         
         // create directory structures
         new File(repDir).mkdirs();
+        staging = new StagingManager(repDir);
         // load our odometer - writeable copy
         try
         {
@@ -85,6 +113,11 @@ public class ReplicaManager {
             //just log a warning
             log.warn("Unable to read odometer file in '"+ repDir + "'", ioE);
         }
+        if (configurationService.getBooleanProperty("replicate.journal", false))
+        {
+            journal = new TransferJournal(repDir, configurationService.getBooleanProperty("replicate.journal.sync", false),
+                                          configurationService.getIntProperty("replicate.journal.cache", 100000));
+        }
     }
 
     public static synchronized ReplicaManager instance() throws IOException
@@ -98,13 +131,73 @@ public class ReplicaManager {
     
     public File stage(String group, String id)
     {
-        // ensure path exists
-        File stageDir = new File(repDir + File.separator + group);
-        if (! stageDir.isDirectory())
+        return staging.stage(group, storageId(id, null));
+    }
+
+    /**
+     * Returns a staging location within reserved staging space.
+     *
+     * @param reservation space reserved for staging
+     * @param group storage group
+     * @param id object id
+     * @return staging location
+     */
+    public File stage(StagingManager.Reservation reservation, String group, String id)
+    {
+        return reservation.stage(group, storageId(id, null));
+    }
+
+    /**
+     * Determines whether an object should be packed in memory (as a
+     * PooledBuffer) rather than staged on disk: the packer must be able to,
+     * and its estimate of the package size must be small enough.
+     *
+     * @param packer packer of the object
+     * @return true if the object should be packed in memory
+     * @throws IOException if I/O error
+     */
+    public boolean packsInMemory(Packer packer) throws IOException
+    {
+        try
         {
-            stageDir.mkdirs();
+            // container AIPs do not include their members
+            return packer instanceof BufferedPacker && memThreshold > 0L &&
+                   packer.size("norecurse") <= memThreshold;
+        }
+        catch (SQLException sqlE)
+        {
+            throw new IOException(sqlE);
+        }
+    }
+
+    /**
+     * Reserves staging space for packing an object, based on the packer's
+     * estimate of its size (allowing for both the unpacked content and the
+     * archive to be on disk at once). Waits while the staging budget is
+     * exhausted. The reservation must be released once the archive is gone.
+     *
+     * @param packer packer of the object
+     * @return the reservation
+     * @throws IOException if I/O error, or interrupted
+     */
+    public StagingManager.Reservation reserve(Packer packer) throws IOException
+    {
+        if (! staging.needsSizes())
+        {
+            // no budget to count against - spare sizing the object
+            return staging.reserve(0L);
+        }
+        try
+        {
+            String overhead = configurationService.getProperty("replicate.staging.overhead");
+            double factor = (overhead != null) ? Double.parseDouble(overhead) : 2.0;
+            // container AIPs do not include their members
+            return staging.reserve((long) (packer.size("norecurse") * factor));
+        }
+        catch (SQLException sqlE)
+        {
+            throw new IOException(sqlE);
         }
-        return new File(stageDir, storageId(id, null));
     }
     
     
@@ -233,6 +326,42 @@ public class ReplicaManager {
         }
     }
 
+    /**
+     * Determine the ID of a content-addressed blob in storage. A blob holds
+     * the bytes of a bitstream, stored once no matter how many AIPs
+     * reference it, and is named by the bitstream's digest.
+     *
+     * @param address - content address of the blob: [algorithm]-[digest]
+     * @return storage ID of the blob
+     */
+    public String blobId(String address)
+    {
+        return blobPrefix + typePrefixSeparator + address.toLowerCase();
+    }
+
+    /**
+     * Fetches a content-addressed blob from the blob group to a staging file.
+     *
+     * @param address - content address of the blob: [algorithm]-[digest]
+     * @return the staged blob, or null if not found
+     * @throws IOException if I/O error
+     */
+    @Override
+    public File fetchBlob(String address) throws IOException
+    {
+        return fetchObject(blobGroupName, blobId(address));
+    }
+
+    /**
+     * Returns the journal of AIP transmissions.
+     *
+     * @return the journal, or null if journaling is disabled
+     */
+    public TransferJournal getJournal()
+    {
+        return journal;
+    }
+
     public Odometer getOdometer() throws IOException
     {
         // return a new read-only copy
@@ -246,33 +375,133 @@ public class ReplicaManager {
         //String repId = safeId(id) + "." + arFmt;
         File file = stage(group, objId);
         long size = objStore.fetchObject(group, objId, file);
-        if (size > 0L)
+        recordDownload(size, streamThrottled);
+       
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Opens a zip archive in the store for reading entry by entry (e.g. one
+     * bitstream). If the store can read byte ranges (see RangedObjectStore),
+     * only the archive's central directory and the entries read are
+     * downloaded; otherwise the whole archive is fetched on first use, and
+     * removed when the ReplicaArchive is closed.
+     *
+     * @param group storage group
+     * @param objId storage ID of the archive
+     * @return the archive, which the caller must close
+     */
+    public ReplicaArchive openArchive(String group, String objId)
+    {
+        return new ReplicaArchive(this, group, objId,
+                                  (objStore instanceof RangedObjectStore) ? (RangedObjectStore) objStore : null,
+                                  downloadThrottle);
+    }
+
+    /**
+     * Fetches a single entry of a zip archive in the store to a staging
+     * file. To read several entries of an archive, use openArchive instead.
+     *
+     * @param group storage group
+     * @param objId storage ID of the archive
+     * @param entryName name of the entry within the archive
+     * @return the staged entry, or null if the archive or entry is not found
+     * @throws IOException if I/O error
+     */
+    public File fetchEntry(String group, String objId, String entryName) throws IOException
+    {
+        ReplicaArchive archive = openArchive(group, objId);
+        try
+        {
+            return archive.fetchEntry(entryName);
+        }
+        finally
+        {
+            archive.close();
+        }
+    }
+
+    /*
+     * Returns the staging location of an archive entry
+     */
+    File stageEntry(String group, String objId, String entryName)
+    {
+        return staging.stage(group, objId + "-" + entryName.replaceAll("[^A-Za-z0-9@._-]", "_"));
+    }
+
+    /*
+     * Records content downloaded, paying for it now unless it was
+     * throttled as it streamed
+     */
+    void recordDownload(long size, boolean streamed) throws IOException
+    {
+        if (! streamed)
+        {
+            downloadThrottle.acquire(size);
+        }
+        synchronized (odoLock)
         {
-            synchronized (odoLock)
+            if (size > 0L)
             {
                 odometer.adjustProperty(DOWNLOADED, size);
-                odometer.save();
             }
+            recordReadings();
+            odometer.save();
         }
-       
-        return file.exists() ? file : null;
     }
     
     public void transferObject(String group, File file) throws IOException {
         String psStr = objStore.objectAttribute(group, file.getName(), "sizebytes");
         long prevSize = psStr != null ? Long.valueOf(psStr) : 0L;
         long size = objStore.transferObject(group, file);
-        if (size > 0L) {
-            synchronized (odoLock) {
+        recordTransfer(size, prevSize);
+    }
+
+    /**
+     * Transfers a package built in memory to the store. Stores which cannot
+     * accept in-memory content are given a staged copy instead. The buffer
+     * is not released.
+     *
+     * @param group storage group
+     * @param id storage ID of the object
+     * @param content the packed object
+     * @throws IOException if I/O error
+     */
+    public void transferObject(String group, String id, PooledBuffer content) throws IOException {
+        if (! (objStore instanceof StreamingObjectStore)) {
+            File file = staging.stage(group, id);
+            OutputStream out = new FileOutputStream(file);
+            try {
+                content.writeTo(out);
+            } finally {
+                out.close();
+            }
+            transferObject(group, file);
+            return;
+        }
+        String psStr = objStore.objectAttribute(group, id, "sizebytes");
+        long prevSize = psStr != null ? Long.valueOf(psStr) : 0L;
+        long size = ((StreamingObjectStore) objStore).transferObject(group, id, content);
+        recordTransfer(size, prevSize);
+    }
+
+    private void recordTransfer(long size, long prevSize) throws IOException {
+        if (! streamThrottled) {
+            // pay for what was actually sent (nothing, if the store skipped it)
+            uploadThrottle.acquire(size);
+        }
+        synchronized (odoLock) {
+            if (size > 0L) {
                 odometer.adjustProperty(UPLOADED, size);
                 // this may be an update - not a new object
                 odometer.adjustProperty(SIZE, size - prevSize);
                 if (prevSize == 0L) {
                     odometer.adjustProperty(COUNT, 1L);
                 }
-                odometer.save();
             }
-        }       
+            recordReadings();
+            odometer.save();
+        }
     }
     
     public boolean objectExists(String group, String objId) throws IOException {
@@ -285,17 +514,25 @@ public class ReplicaManager {
 
     public void removeObject(String group, String objId) throws IOException {
         long size = objStore.removeObject(group, objId);
-        if (size > 0L) {
-            synchronized (odoLock) {
+        if (journal != null) {
+            // no longer transmitted - a later run must send it again
+            journal.removed(group, canonicalId(objId));
+        }
+        synchronized (odoLock) {
+            if (size > 0L) {
                 odometer.adjustProperty(SIZE, -size);
                 odometer.adjustProperty(COUNT, -1L);
-                odometer.save();
             }
+            recordReadings();
+            odometer.save();
         }
     }
     
     public boolean moveObject(String srcGroup, String destGroup, String objId) throws IOException {
         long size = objStore.moveObject(srcGroup, destGroup, objId);
+        if (journal != null && size > 0L) {
+            journal.removed(srcGroup, canonicalId(objId));
+        }
         
         // NOTE: no need to adjust the odometer. In this case we haven't 
         // actually uploaded or downloaded any content. 
@@ -305,6 +542,25 @@ public class ReplicaManager {
             return false;
     }
     
+    /**
+     * Adds throttle wait times, and any readings kept by a metered object
+     * store, to the odometer.
+     * Caller must hold the odometer lock.
+     */
+    private void recordReadings()
+    {
+        odometer.adjustProperty(UPLOAD_WAIT, uploadThrottle.drainWaited());
+        odometer.adjustProperty(DOWNLOAD_WAIT, downloadThrottle.drainWaited());
+        if (objStore instanceof MeteredObjectStore)
+        {
+            Map<String, Long> readings = ((MeteredObjectStore) objStore).readings();
+            for (Map.Entry<String, Long> reading : readings.entrySet())
+            {
+                odometer.adjustProperty(reading.getKey(), reading.getValue());
+            }
+        }
+    }
+
     /**
      * This method is only called if we cannot determine an object's type prefix
      * via DSpace (i.e. the object no longer exists in DSpace). In this case,
@@ -0,0 +1,261 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.Context;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * RestoreCheckpoint lets a large recursive restore commit its work in
+ * batches, and resume where it left off if it fails. Every
+ * 'replicate.restore.batch' restored objects, the Context is committed, and
+ * what has then been committed is appended to a checkpoint file (under
+ * 'restore-checkpoints' in the replicate base directory): each object
+ * restored, with the packages of its children, and each package whose whole
+ * subtree has been restored. When the same task is run again on the same
+ * object, finished subtrees are skipped, and objects already restored are
+ * not restored again - only their unfinished children are. The checkpoint
+ * file is removed when the restore completes.
+ * <P>
+ * When 'replicate.restore.batch' is 0, nothing is committed before the
+ * restore ends (the Curator's own transaction handling applies), and no
+ * checkpoint is kept.
+ *
+ * @see METSRestoreFromAIP
+ */
+class RestoreCheckpoint
+{
+    private static Logger log = Logger.getLogger(RestoreCheckpoint.class);
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    private static final String CHECKPOINT_DIR = "restore-checkpoints";
+    private static final String OBJECT = "object";
+    private static final String CHILD = "child";
+    private static final String DONE = "done";
+    // ends the lines of each commit
+    private static final String COMMIT = "commit";
+    private static final String SEP = "\t";
+
+    // objects restored between commits (0 if not batching)
+    private final int batch;
+    private final File file;
+    // packages restored (with their subtrees) and committed
+    private final Set<String> done = new HashSet<String>();
+    // packages of objects restored and committed, with their children
+    private final Map<String, List<String>> restored = new HashMap<String, List<String>>();
+    // lines to record at the next commit
+    private final List<String> pending = new ArrayList<String>();
+    // objects restored since the last commit
+    private int uncommitted = 0;
+
+    /**
+     * Opens the checkpoint of a restore, reading any left by an earlier run.
+     *
+     * @param name checkpoint name - the same for each run of the same restore
+     * @throws IOException if the checkpoint cannot be read
+     */
+    RestoreCheckpoint(String name) throws IOException
+    {
+        batch = Math.max(0, configurationService.getIntProperty("replicate.restore.batch", 100));
+        File dir = new File(configurationService.getProperty("replicate.base.dir"), CHECKPOINT_DIR);
+        file = new File(dir, name);
+        if (batch == 0)
+        {
+            return;
+        }
+        dir.mkdirs();
+        if (file.exists())
+        {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try
+            {
+                // only the lines of complete commits count
+                List<String> lines = new ArrayList<String>();
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (COMMIT.equals(line))
+                    {
+                        for (String committed : lines)
+                        {
+                            read(committed);
+                        }
+                        lines.clear();
+                    }
+                    else
+                    {
+                        lines.add(line);
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+            log.info("Resuming restore '" + name + "': " + restored.size() + " objects already restored, " +
+                     done.size() + " subtrees finished");
+        }
+    }
+
+    /**
+     * Returns true if a package (and all packages beneath it) was restored
+     * by an earlier run.
+     *
+     * @param ref storage ID of the package
+     * @return true if restored
+     */
+    boolean isDone(String ref)
+    {
+        return done.contains(ref);
+    }
+
+    /**
+     * Returns the packages of the children of an object restored by an
+     * earlier run, or null if it was not restored.
+     *
+     * @param ref storage ID of the object's package
+     * @return child package storage IDs, or null
+     */
+    List<String> restoredChildren(String ref)
+    {
+        return restored.get(ref);
+    }
+
+    /**
+     * Notes that an object has been restored, committing the Context if a
+     * batch is complete.
+     *
+     * @param ctx current DSpace Context
+     * @param ref storage ID of the object's package
+     * @param children storage IDs of its children's packages (may be null)
+     * @throws IOException if the checkpoint cannot be written
+     */
+    void restored(Context ctx, String ref, List<String> children) throws IOException
+    {
+        if (batch == 0)
+        {
+            return;
+        }
+        pending.add(OBJECT + SEP + ref);
+        if (children != null)
+        {
+            for (String child : children)
+            {
+                pending.add(CHILD + SEP + ref + SEP + child);
+            }
+        }
+        if (++uncommitted >= batch)
+        {
+            commit(ctx);
+        }
+    }
+
+    /**
+     * Notes that a package and all packages beneath it have been restored.
+     * This is recorded when they are next committed.
+     *
+     * @param ref storage ID of the package
+     */
+    void subtreeDone(String ref)
+    {
+        if (batch > 0)
+        {
+            pending.add(DONE + SEP + ref);
+        }
+    }
+
+    /**
+     * Removes the checkpoint, once the restore is complete.
+     */
+    void finish()
+    {
+        if (file.exists() && ! file.delete())
+        {
+            log.warn("Unable to remove restore checkpoint '" + file + "'");
+        }
+    }
+
+    private void commit(Context ctx) throws IOException
+    {
+        try
+        {
+            ctx.commit();
+        }
+        catch (SQLException sqlE)
+        {
+            throw new IOException(sqlE);
+        }
+        uncommitted = 0;
+        if (pending.isEmpty())
+        {
+            return;
+        }
+        FileOutputStream out = new FileOutputStream(file, true);
+        try
+        {
+            StringBuilder sb = new StringBuilder();
+            for (String line : pending)
+            {
+                sb.append(line).append("\n");
+            }
+            sb.append(COMMIT).append("\n");
+            out.write(sb.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        for (String line : pending)
+        {
+            read(line);
+        }
+        pending.clear();
+    }
+
+    private void read(String line)
+    {
+        String[] parts = line.split(SEP);
+        if (OBJECT.equals(parts[0]) && parts.length == 2)
+        {
+            if (! restored.containsKey(parts[1]))
+            {
+                restored.put(parts[1], new ArrayList<String>());
+            }
+        }
+        else if (CHILD.equals(parts[0]) && parts.length == 3)
+        {
+            List<String> children = restored.get(parts[1]);
+            if (children != null)
+            {
+                children.add(parts[2]);
+            }
+        }
+        else if (DONE.equals(parts[0]) && parts.length == 2)
+        {
+            done.add(parts[1]);
+        }
+    }
+}
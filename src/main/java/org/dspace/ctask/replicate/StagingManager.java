@@ -0,0 +1,460 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * StagingManager hands out the local disk space where AIPs, catalogs and
+ * manifests are packed (or fetched to) on their way to or from the replica
+ * store. Staging may be spread over several volumes ('replicate.staging.dirs'),
+ * each holding one subdirectory per storage group; by default the only volume
+ * is the replicate base directory.
+ * <P>
+ * Tasks which pack potentially large objects first reserve the space they
+ * expect to use (see Packer.size()). Reservations are bounded by a byte budget
+ * ('replicate.staging.maxbytes'), and a reservation waits while the budget is
+ * exhausted, so concurrent packing cannot fill the staging volumes. Each
+ * reservation is placed on the volume with the most space left; small ones
+ * may instead go to a dedicated (e.g. tmpfs) directory. The budget applies
+ * within one process only.
+ * <P>
+ * At startup, and then every 'replicate.staging.reclaim.interval' minutes,
+ * staging files older than 'replicate.staging.reclaim.age' hours are removed,
+ * as leftovers of failed runs - by one process only, the one holding the
+ * staging lock. A staged directory is only as old as the newest file in it,
+ * and locations staged under a live reservation of this process (and the
+ * archives named after them) are never removed.
+ *
+ * @see ReplicaManager
+ */
+public class StagingManager
+{
+    private static Logger log = Logger.getLogger(StagingManager.class);
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // name of the lock file held by the process maintaining the staging area
+    private static final String LOCK_NAME = "staging.lock";
+
+    // staging volumes
+    private final List<Volume> volumes = new ArrayList<Volume>();
+    // volume for small reservations (may be null)
+    private Volume smallVolume = null;
+    // reservations of at most this many bytes use the small volume
+    private long smallThreshold = 0L;
+    // byte budget of all reservations (0 = unbounded)
+    private long maxBytes = 0L;
+    // longest wait for a reservation (ms, 0 = forever)
+    private long timeout = 0L;
+    // bytes currently reserved
+    private long reserved = 0L;
+    // locations staged under live reservations (once per reservation)
+    private final List<File> inUse = new ArrayList<File>();
+    // held while this process maintains the staging area
+    private final File lockPath;
+    private RandomAccessFile lockFile = null;
+    private FileLock lock = null;
+    // age (ms) at which staging files are reclaimed (0 = never)
+    private long reclaimAge = 0L;
+    // runs reclaims (null if none)
+    private Timer reclaimer = null;
+
+    StagingManager(String repDir) throws IOException
+    {
+        String[] dirs = configurationService.getArrayProperty("replicate.staging.dirs");
+        if (dirs == null || dirs.length == 0)
+        {
+            dirs = new String[] { repDir };
+        }
+        for (String dir : dirs)
+        {
+            volumes.add(new Volume(new File(dir.trim())));
+        }
+        String smallDir = configurationService.getProperty("replicate.staging.small.dir");
+        if (smallDir != null)
+        {
+            smallVolume = new Volume(new File(smallDir));
+            smallThreshold = configurationService.getLongProperty("replicate.staging.small.threshold", 1024L * 1024L);
+        }
+        maxBytes = configurationService.getLongProperty("replicate.staging.maxbytes", 0L);
+        timeout = configurationService.getLongProperty("replicate.staging.timeout", 0L) * 1000L;
+
+        lockPath = new File(repDir, LOCK_NAME);
+        reclaimAge = configurationService.getLongProperty("replicate.staging.reclaim.age", 24L) * 3600000L;
+        if (reclaimAge > 0L)
+        {
+            maintain();
+            long interval = configurationService.getLongProperty("replicate.staging.reclaim.interval", 60L) * 60000L;
+            if (interval > 0L)
+            {
+                reclaimer = new Timer("replicate-staging", true);
+                reclaimer.schedule(new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            maintain();
+                        }
+                        catch (IOException ioE)
+                        {
+                            log.error("Unable to reclaim staging files", ioE);
+                        }
+                    }
+                }, interval, interval);
+            }
+        }
+    }
+
+    /*
+     * Reclaims old staging files, if this process holds (or can now take
+     * over) the staging lock
+     */
+    private void maintain() throws IOException
+    {
+        // not the monitor of reservations, which need not wait for this
+        synchronized (lockPath)
+        {
+            if (lock == null)
+            {
+                lockFile = new RandomAccessFile(lockPath, "rw");
+                lock = lockFile.getChannel().tryLock();
+                if (lock == null)
+                {
+                    // another process maintains the staging area
+                    lockFile.close();
+                    lockFile = null;
+                    return;
+                }
+            }
+            reclaim(System.currentTimeMillis() - reclaimAge);
+        }
+    }
+
+    /**
+     * Tells whether reservations need to know their size: true if it is
+     * counted against a budget, or decides whether they use the small volume.
+     *
+     * @return true if sizes matter
+     */
+    public boolean needsSizes()
+    {
+        return maxBytes > 0L || smallVolume != null;
+    }
+
+    /**
+     * Returns an (unreserved) staging location on the primary volume.
+     *
+     * @param group storage group
+     * @param storageId name of the staged object
+     * @return staging location
+     */
+    public File stage(String group, String storageId)
+    {
+        return volumes.get(0).stage(group, storageId);
+    }
+
+    /**
+     * Reserves staging space, waiting while the byte budget is exhausted.
+     * A reservation larger than the whole budget waits until it is the
+     * only one. The reservation must be released when its files are gone.
+     *
+     * @param bytes number of bytes expected to be staged
+     * @return the reservation
+     * @throws IOException if interrupted, or the wait times out
+     */
+    public Reservation reserve(long bytes) throws IOException
+    {
+        bytes = Math.max(0L, bytes);
+        long charge = (maxBytes > 0L) ? Math.min(bytes, maxBytes) : bytes;
+        long deadline = (timeout > 0L) ? System.currentTimeMillis() + timeout : 0L;
+        synchronized (this)
+        {
+            while (maxBytes > 0L && reserved > 0L && reserved + charge > maxBytes)
+            {
+                long wait = 0L;
+                if (deadline > 0L)
+                {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0L)
+                    {
+                        throw new IOException("Timed out waiting for " + bytes + " bytes of staging space");
+                    }
+                }
+                try
+                {
+                    wait(wait);
+                }
+                catch (InterruptedException intE)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for staging space", intE);
+                }
+            }
+            reserved += charge;
+            Volume volume = (smallVolume != null && bytes <= smallThreshold) ? smallVolume : roomiest();
+            volume.reserved += bytes;
+            return new Reservation(volume, bytes, charge);
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently reserved.
+     *
+     * @return reserved bytes
+     */
+    public synchronized long getReserved()
+    {
+        return reserved;
+    }
+
+    private synchronized void release(Reservation reservation)
+    {
+        reserved -= reservation.charge;
+        reservation.volume.reserved -= reservation.bytes;
+        for (File staged : reservation.staged)
+        {
+            inUse.remove(staged);
+        }
+        notifyAll();
+    }
+
+    private synchronized void use(File staged)
+    {
+        inUse.add(staged);
+    }
+
+    /*
+     * Tells whether a staging file is, or is named after (e.g. the archive
+     * packed from), a location staged under a live reservation
+     */
+    private synchronized boolean isInUse(File file)
+    {
+        for (File staged : inUse)
+        {
+            if (file.equals(staged) || (file.getParentFile().equals(staged.getParentFile()) &&
+                                         file.getName().startsWith(staged.getName() + ".")))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns the volume with the most usable space not already reserved.
+     * Caller must hold the lock.
+     */
+    private Volume roomiest()
+    {
+        Volume best = volumes.get(0);
+        for (Volume volume : volumes)
+        {
+            if (volume.available() > best.available())
+            {
+                best = volume;
+            }
+        }
+        return best;
+    }
+
+    /*
+     * Removes staging files (and directories with nothing in them) last
+     * modified before the passed time, unless in use
+     */
+    private void reclaim(long before)
+    {
+        List<Volume> all = new ArrayList<Volume>(volumes);
+        if (smallVolume != null)
+        {
+            all.add(smallVolume);
+        }
+        int count = 0;
+        for (Volume volume : all)
+        {
+            for (String group : groupNames())
+            {
+                File[] staged = new File(volume.dir, group).listFiles();
+                if (staged == null)
+                {
+                    continue;
+                }
+                for (File file : staged)
+                {
+                    if (! modifiedSince(file, before) && ! isInUse(file))
+                    {
+                        delete(file);
+                        count++;
+                    }
+                }
+            }
+        }
+        if (count > 0)
+        {
+            log.info("Reclaimed " + count + " orphaned staging files");
+        }
+    }
+
+    /*
+     * Tells whether the file, or anything under it, was modified at or
+     * after the passed time - bags are written to below their top directory
+     */
+    private boolean modifiedSince(File file, long time)
+    {
+        if (file.lastModified() >= time)
+        {
+            return true;
+        }
+        File[] children = file.isDirectory() ? file.listFiles() : null;
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                if (modifiedSince(child, time))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private List<String> groupNames()
+    {
+        List<String> groups = new ArrayList<String>();
+        for (String prop : new String[] { "aip", "delete", "manifest", "blob" })
+        {
+            String group = configurationService.getProperty("replicate.group." + prop + ".name");
+            if (group != null)
+            {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    private void delete(File file)
+    {
+        if (file.isDirectory())
+        {
+            File[] children = file.listFiles();
+            if (children != null)
+            {
+                for (File child : children)
+                {
+                    delete(child);
+                }
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A reservation of staging space, on a particular volume.
+     */
+    public class Reservation
+    {
+        private final Volume volume;
+        private final long bytes;
+        // amount counted against the budget
+        private final long charge;
+        // locations staged under this reservation
+        private final List<File> staged = new ArrayList<File>();
+        private boolean released = false;
+
+        private Reservation(Volume volume, long bytes, long charge)
+        {
+            this.volume = volume;
+            this.bytes = bytes;
+            this.charge = charge;
+        }
+
+        /**
+         * Returns a staging location within this reservation's volume.
+         *
+         * @param group storage group
+         * @param storageId name of the staged object
+         * @return staging location
+         */
+        public File stage(String group, String storageId)
+        {
+            File file = volume.stage(group, storageId);
+            synchronized (this)
+            {
+                if (! released)
+                {
+                    staged.add(file);
+                    use(file);
+                }
+            }
+            return file;
+        }
+
+        /**
+         * Returns the reserved space to the budget. Releasing more than
+         * once has no effect.
+         */
+        public void release()
+        {
+            synchronized (this)
+            {
+                if (released)
+                {
+                    return;
+                }
+                released = true;
+            }
+            StagingManager.this.release(this);
+        }
+    }
+
+    /*
+     * A staging volume (directory)
+     */
+    private static class Volume
+    {
+        private final File dir;
+        // bytes reserved on this volume
+        private long reserved = 0L;
+
+        private Volume(File dir)
+        {
+            this.dir = dir;
+            dir.mkdirs();
+        }
+
+        private long available()
+        {
+            return dir.getUsableSpace() - reserved;
+        }
+
+        private File stage(String group, String storageId)
+        {
+            // ensure path exists
+            File stageDir = new File(dir, group);
+            if (! stageDir.isDirectory())
+            {
+                stageDir.mkdirs();
+            }
+            return new File(stageDir, storageId);
+        }
+    }
+}
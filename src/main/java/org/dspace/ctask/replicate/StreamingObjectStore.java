@@ -0,0 +1,36 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.IOException;
+
+import org.dspace.pack.PooledBuffer;
+
+/**
+ * A StreamingObjectStore is an ObjectStore which can also accept content
+ * held in memory, so small packages built in memory need never be written
+ * to a staging file. ReplicaManager falls back to staging a file for stores
+ * which lack this capability.
+ *
+ * @see ReplicaManager
+ */
+public interface StreamingObjectStore extends ObjectStore
+{
+    /**
+     * Transfers in-memory content to the store. Like transferObject(group, file),
+     * a transfer of content identical to the stored copy may be skipped.
+     * The buffer is not released.
+     *
+     * @param group the group of the object
+     * @param id the object's identifier
+     * @param content the object's content
+     * @return number of bytes transferred (0 if skipped)
+     * @throws IOException if I/O error
+     */
+    long transferObject(String group, String id, PooledBuffer content) throws IOException;
+}
@@ -0,0 +1,33 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+/**
+ * A ThrottledObjectStore is an ObjectStore which rate-limits its own content
+ * streams, paying for bytes as they move to or from the store, so the
+ * bandwidth limits hold within a transfer, and transfers the store skips
+ * cost nothing. ReplicaManager pays for whole objects, once moved, for stores
+ * which lack this capability.
+ * <P>
+ * Streams returned by RangedObjectStore.fetchRange are throttled by their
+ * readers, not the store.
+ *
+ * @see BandwidthThrottle
+ * @see ReplicaManager
+ */
+public interface ThrottledObjectStore extends ObjectStore
+{
+    /**
+     * Sets the throttles to apply to content moved by fetchObject and
+     * transferObject.
+     *
+     * @param upload throttle of content sent to the store
+     * @param download throttle of content fetched from the store
+     */
+    void setThrottles(BandwidthThrottle upload, BandwidthThrottle download);
+}
@@ -0,0 +1,424 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+
+/**
+ * TransferJournal is an append-only, write-ahead record of the progress of
+ * each AIP transmission: an object is first marked as being packed (with the
+ * location of its staging files), then as uploading, and finally as committed
+ * (with the size of what was uploaded). Each state is written before the
+ * work it describes begins, so after a crash the journal shows exactly which
+ * transmissions were incomplete. Removing or moving an object out of a group
+ * is recorded too, so a later run transmits it again.
+ * <P>
+ * A later run can skip objects committed since they were last modified
+ * (Items only, as DSpace tracks no modification time of containers), so an
+ * interrupted site-wide transmission resumes roughly where it stopped. Only
+ * the most recently committed 'replicate.journal.cache' objects are kept in
+ * memory for this; older ones are simply transmitted again.
+ * <P>
+ * Several processes may share the journal. Each holds a shared lock on it
+ * while it is open, so only a process opening the journal when no other has
+ * it open (and can take an exclusive lock) deletes the staging files left by
+ * incomplete transmissions, and compacts the journal to its committed
+ * entries - no other process can then be appending to the journal, or
+ * transmitting.
+ *
+ * @see TransmitAIP
+ */
+public class TransferJournal
+{
+    private static Logger log = Logger.getLogger(TransferJournal.class);
+
+    // name of the journal file (in the replicate base directory)
+    private static final String JOURNAL_NAME = "transfer-journal";
+    // journal states
+    public static final String PACKING = "PACKING";
+    public static final String UPLOADING = "UPLOADING";
+    public static final String COMMITTED = "COMMITTED";
+    public static final String REMOVED = "REMOVED";
+    private static final String SEP = "\t";
+    // detail of entries with no staging location
+    private static final String NONE = "-";
+
+    private final File journalFile;
+    // version stamps of the most recently committed objects, by group and handle
+    private final Map<String, String> committed;
+    // held (shared) while the journal is open
+    private RandomAccessFile lockFile = null;
+    private FileLock lock = null;
+    private Writer writer = null;
+    // whether each entry is forced to disk
+    private final boolean sync;
+    private FileOutputStream out = null;
+
+    TransferJournal(String dirPath, boolean sync, final int cacheSize) throws IOException
+    {
+        this.journalFile = new File(dirPath, JOURNAL_NAME);
+        this.sync = sync;
+        committed = new LinkedHashMap<String, String>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+        lockFile = new RandomAccessFile(new File(dirPath, JOURNAL_NAME + ".lock"), "rw");
+        FileChannel channel = lockFile.getChannel();
+        // an exclusive lock means no other process has the journal open
+        FileLock exclusive = channel.tryLock();
+        if (exclusive != null)
+        {
+            try
+            {
+                recover();
+            }
+            finally
+            {
+                exclusive.release();
+            }
+        }
+        else
+        {
+            log.info("Transfer journal in use by another process - skipping recovery");
+        }
+        // waits while another process recovers the journal
+        lock = channel.lock(0L, Long.MAX_VALUE, true);
+        load();
+        out = new FileOutputStream(journalFile, true);
+        writer = new OutputStreamWriter(out, "UTF-8");
+    }
+
+    /**
+     * Returns the stamp identifying the current version of an object, or null
+     * if the object has none (in which case it is never skipped).
+     *
+     * @param dso the object
+     * @return version stamp, or null
+     */
+    public static String stamp(DSpaceObject dso)
+    {
+        if (dso instanceof Item && ((Item) dso).getLastModified() != null)
+        {
+            return String.valueOf(((Item) dso).getLastModified().getTime());
+        }
+        return null;
+    }
+
+    /**
+     * Determines whether this version of an object has already been
+     * transmitted to the passed group. Callers should still check that the
+     * store holds the object, since it may have been lost or rebuilt.
+     *
+     * @param group storage group
+     * @param handle object handle
+     * @param stamp version stamp of object (may be null)
+     * @return true if committed and unchanged since
+     */
+    public synchronized boolean isCommitted(String group, String handle, String stamp)
+    {
+        return stamp != null && stamp.equals(committed.get(key(group, handle)));
+    }
+
+    /**
+     * Records that an object is about to be packed into the passed staging location.
+     *
+     * @param group storage group
+     * @param handle object handle
+     * @param stamp version stamp of object (may be null)
+     * @param staged staging location
+     * @throws IOException if I/O error
+     */
+    public void packing(String group, String handle, String stamp, File staged) throws IOException
+    {
+        append(new Entry(PACKING, group, handle, stamp, staged.getAbsolutePath()));
+    }
+
+    /**
+     * Records that a packed object is about to be uploaded.
+     *
+     * @param group storage group
+     * @param handle object handle
+     * @param stamp version stamp of object (may be null)
+     * @param staged staging location it was packed in (null if packed in memory)
+     * @throws IOException if I/O error
+     */
+    public void uploading(String group, String handle, String stamp, File staged) throws IOException
+    {
+        append(new Entry(UPLOADING, group, handle, stamp, (staged != null) ? staged.getAbsolutePath() : NONE));
+    }
+
+    /**
+     * Records that an object has been uploaded.
+     *
+     * @param group storage group
+     * @param handle object handle
+     * @param stamp version stamp of object (may be null)
+     * @param size size of the uploaded archive
+     * @throws IOException if I/O error
+     */
+    public void committed(String group, String handle, String stamp, long size) throws IOException
+    {
+        append(new Entry(COMMITTED, group, handle, stamp, String.valueOf(size)));
+    }
+
+    /**
+     * Records that an object has been removed from (or moved out of) a group.
+     *
+     * @param group storage group
+     * @param handle object handle
+     * @throws IOException if I/O error
+     */
+    public void removed(String group, String handle) throws IOException
+    {
+        append(new Entry(REMOVED, group, handle, null, NONE));
+    }
+
+    /**
+     * Closes the journal, releasing its lock.
+     *
+     * @throws IOException if I/O error
+     */
+    public synchronized void close() throws IOException
+    {
+        writer.close();
+        lock.release();
+        lockFile.close();
+    }
+
+    private synchronized void append(Entry entry) throws IOException
+    {
+        writer.write(entry.toLine());
+        writer.write("\n");
+        writer.flush();
+        if (sync)
+        {
+            out.getFD().sync();
+        }
+        cache(entry);
+    }
+
+    private void cache(Entry entry)
+    {
+        String key = key(entry.group, entry.handle);
+        if (COMMITTED.equals(entry.state) && entry.stamp != null)
+        {
+            committed.put(key, entry.stamp);
+        }
+        else
+        {
+            // a new version is being transmitted, or the object is gone
+            committed.remove(key);
+        }
+    }
+
+    private void load() throws IOException
+    {
+        if (! journalFile.exists())
+        {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                Entry entry = Entry.parse(line);
+                // a torn final line (crash mid-write) is ignored
+                if (entry != null)
+                {
+                    cache(entry);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /*
+     * Deletes staging files of incomplete transmissions, and rewrites
+     * the journal with only the committed entries. Called only while no
+     * other process has the journal open.
+     */
+    private void recover() throws IOException
+    {
+        if (! journalFile.exists())
+        {
+            return;
+        }
+        // latest entry of each object
+        Map<String, Entry> latest = new HashMap<String, Entry>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                Entry entry = Entry.parse(line);
+                if (entry != null)
+                {
+                    latest.put(key(entry.group, entry.handle), entry);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        int cleaned = 0;
+        File tmpFile = new File(journalFile.getParentFile(), JOURNAL_NAME + ".tmp");
+        Writer tmpWriter = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+        try
+        {
+            for (Entry entry : latest.values())
+            {
+                if (COMMITTED.equals(entry.state))
+                {
+                    tmpWriter.write(entry.toLine());
+                    tmpWriter.write("\n");
+                }
+                else if (! REMOVED.equals(entry.state) && ! NONE.equals(entry.detail))
+                {
+                    cleanUp(new File(entry.detail));
+                    cleaned++;
+                }
+            }
+        }
+        finally
+        {
+            tmpWriter.close();
+        }
+        if (! tmpFile.renameTo(journalFile))
+        {
+            throw new IOException("Unable to replace transfer journal '" + journalFile + "'");
+        }
+        if (cleaned > 0)
+        {
+            log.info("Cleaned up staging files of " + cleaned + " incomplete transmissions");
+        }
+    }
+
+    /*
+     * Deletes the staging location of an incomplete transmission, and the
+     * archives packers name after it
+     */
+    private void cleanUp(File staged)
+    {
+        delete(staged);
+        File[] siblings = (staged.getParentFile() != null) ? staged.getParentFile().listFiles() : null;
+        if (siblings != null)
+        {
+            String base = staged.getName() + ".";
+            for (File sibling : siblings)
+            {
+                if (sibling.getName().startsWith(base))
+                {
+                    delete(sibling);
+                }
+            }
+        }
+    }
+
+    private void delete(File file)
+    {
+        if (file.isDirectory())
+        {
+            File[] children = file.listFiles();
+            if (children != null)
+            {
+                for (File child : children)
+                {
+                    delete(child);
+                }
+            }
+        }
+        file.delete();
+    }
+
+    private String key(String group, String handle)
+    {
+        return group + SEP + handle;
+    }
+
+    /*
+     * A journal entry - one tab-separated line:
+     * state, group, handle, stamp ('-' if none), detail, time
+     */
+    private static class Entry
+    {
+        private final String state;
+        private final String group;
+        private final String handle;
+        private final String stamp;
+        // staging path (NONE if nothing staged), or size when committed
+        private final String detail;
+        private final long time;
+
+        private Entry(String state, String group, String handle, String stamp, String detail)
+        {
+            this(state, group, handle, stamp, detail, System.currentTimeMillis());
+        }
+
+        private Entry(String state, String group, String handle, String stamp, String detail, long time)
+        {
+            this.state = state;
+            this.group = group;
+            this.handle = handle;
+            this.stamp = stamp;
+            this.detail = detail;
+            this.time = time;
+        }
+
+        private String toLine()
+        {
+            return state + SEP + group + SEP + handle + SEP + (stamp != null ? stamp : "-") +
+                   SEP + detail + SEP + time;
+        }
+
+        private static Entry parse(String line)
+        {
+            String[] parts = line.split(SEP);
+            if (parts.length != 6)
+            {
+                return null;
+            }
+            try
+            {
+                return new Entry(parts[0], parts[1], parts[2], "-".equals(parts[3]) ? null : parts[3],
+                                 parts[4], Long.parseLong(parts[5]));
+            }
+            catch (NumberFormatException nfE)
+            {
+                return null;
+            }
+        }
+    }
+}
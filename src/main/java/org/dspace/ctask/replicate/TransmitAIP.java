@@ -9,16 +9,30 @@
 package org.dspace.ctask.replicate;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.util.Map;
 
 import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Bitstream;
 import org.dspace.content.DSpaceObject;
+import org.dspace.content.factory.ContentServiceFactory;
+import org.dspace.content.service.BitstreamService;
 import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
 import org.dspace.curate.Suspendable;
+import org.dspace.curate.Utils;
+import org.dspace.pack.BufferedPacker;
 import org.dspace.pack.Packer;
 import org.dspace.pack.PackerFactory;
+import org.dspace.pack.PooledBuffer;
+import org.dspace.pack.bagit.ItemPacker;
 
 /**
  * TransmitAIP task creates an AIP suitable for replication, and forwards it
@@ -32,6 +46,9 @@ import org.dspace.pack.PackerFactory;
  * We wouldn't want them to assume everything was transferred successfully, 
  * if there were actually underlying errors.
  * <P>
+ * With content-addressed storage ('packer.dedup'), the bitstreams an Item AIP
+ * refers to are stored as blobs first, unless the store already holds them.
+ * <P>
  * Note that this task has a companion task called TransmitSingleAIP which
  * ensures that no child/member objects are transmitted.
  * 
@@ -42,13 +59,21 @@ import org.dspace.pack.PackerFactory;
 @Suspendable(invoked=Curator.Invoked.INTERACTIVE)
 public class TransmitAIP extends AbstractCurationTask
 {
+    private BitstreamService bitstreamService = ContentServiceFactory.getInstance().getBitstreamService();
+
     // Group where all AIPs will be stored
     private String storeGroupName;
+    // Group where content-addressed blobs are stored
+    private String blobGroupName;
+    // AIP Package compression format (e.g. zip or tgz)
+    private String archFmt;
 
     @Override
     public void init(Curator curator, String taskId) throws IOException {
         super.init(curator, taskId);
         storeGroupName = configurationService.getProperty("replicate.group.aip.name");
+        blobGroupName = configurationService.getProperty("replicate.group.blob.name");
+        archFmt = configurationService.getProperty("replicate.packer.archfmt");
     }
 
 
@@ -64,14 +89,49 @@ public class TransmitAIP extends AbstractCurationTask
     public int perform(DSpaceObject dso) throws IOException
     {
         ReplicaManager repMan = ReplicaManager.instance();
+        TransferJournal journal = repMan.getJournal();
+        String handle = dso.getHandle();
+        String stamp = TransferJournal.stamp(dso);
+        if (journal != null && journal.isCommitted(storeGroupName, handle, stamp) &&
+            repMan.objectExists(storeGroupName, repMan.storageId(handle, archFmt)))
+        {
+            // already transmitted, unchanged since, and still held (e.g. resuming an interrupted run)
+            setResult("AIP for '" + handle + "' unchanged since last transmitted");
+            return Curator.CURATE_SKIP;
+        }
             
         Packer packer = PackerFactory.instance(dso);
+        if (repMan.packsInMemory(packer))
+        {
+            return transmitBuffered(repMan, (BufferedPacker) packer, handle, stamp);
+        }
+        StagingManager.Reservation reservation = repMan.reserve(packer);
         try
         {
-            File archive = packer.pack(repMan.stage(storeGroupName, dso.getHandle()));
+            File staged = repMan.stage(reservation, storeGroupName, handle);
+            if (journal != null)
+            {
+                journal.packing(storeGroupName, handle, stamp, staged);
+            }
+            File archive = packer.pack(staged);
+            if (packer instanceof ItemPacker)
+            {
+                // the AIP is of no use until the blobs it refers to are stored
+                transmitBlobs(repMan, ((ItemPacker) packer).getBlobs());
+            }
             String msg = "Created AIP: '" + archive.getName() + 
                          "' size: " + archive.length();
+            // the store may consume the archive, so size it first
+            long size = archive.length();
+            if (journal != null)
+            {
+                journal.uploading(storeGroupName, handle, stamp, staged);
+            }
             repMan.transferObject(storeGroupName, archive);
+            if (journal != null)
+            {
+                journal.committed(storeGroupName, handle, stamp, size);
+            }
             setResult(msg);
             return Curator.CURATE_SUCCESS;
         }
@@ -83,5 +143,107 @@ public class TransmitAIP extends AbstractCurationTask
         {
             throw new IOException(sqlE);
         }
+        finally
+        {
+            // the store has consumed (or we have failed with) the archive
+            reservation.release();
+        }
+    }
+
+    /*
+     * Stores bitstreams as content-addressed blobs, unless the store already
+     * holds them
+     */
+    private void transmitBlobs(ReplicaManager repMan, Map<String, Bitstream> blobs)
+            throws AuthorizeException, IOException, SQLException
+    {
+        for (Map.Entry<String, Bitstream> blob : blobs.entrySet())
+        {
+            String blobId = repMan.blobId(blob.getKey());
+            if (repMan.objectExists(blobGroupName, blobId))
+            {
+                continue;
+            }
+            Bitstream bs = blob.getValue();
+            MessageDigest digest;
+            try
+            {
+                digest = MessageDigest.getInstance(bs.getChecksumAlgorithm());
+            }
+            catch (NoSuchAlgorithmException nsaE)
+            {
+                throw new IOException("no algorithm: " + bs.getChecksumAlgorithm());
+            }
+            File file = repMan.stage(blobGroupName, blobId);
+            try
+            {
+                // verify the content as it is copied - the blob is named by its digest
+                InputStream in = new DigestInputStream(bitstreamService.retrieve(Curator.curationContext(), bs), digest);
+                OutputStream out = new FileOutputStream(file);
+                try
+                {
+                    Utils.copy(in, out);
+                }
+                finally
+                {
+                    in.close();
+                    out.close();
+                }
+                if (! bs.getChecksum().equalsIgnoreCase(Utils.toHex(digest.digest())))
+                {
+                    throw new IOException("Bitstream " + bs.getID() + " does not match its checksum - " +
+                                          "not stored as blob '" + blobId + "'");
+                }
+                repMan.transferObject(blobGroupName, file);
+            }
+            finally
+            {
+                // unless consumed by the store
+                file.delete();
+            }
+        }
+    }
+
+    /*
+     * Packs a small AIP in memory, and transmits it without staging any files
+     */
+    private int transmitBuffered(ReplicaManager repMan, BufferedPacker packer, String handle, String stamp)
+            throws IOException
+    {
+        TransferJournal journal = repMan.getJournal();
+        try
+        {
+            String name = repMan.storageId(handle, null);
+            PooledBuffer archive = packer.packToBuffer(name);
+            try
+            {
+                String archId = repMan.storageId(handle, archFmt);
+                String msg = "Created AIP: '" + archId + "' size: " + archive.size();
+                if (journal != null)
+                {
+                    // nothing is staged, so there is nothing to clean up after a crash
+                    journal.uploading(storeGroupName, handle, stamp, null);
+                }
+                repMan.transferObject(storeGroupName, archId, archive);
+                if (journal != null)
+                {
+                    journal.committed(storeGroupName, handle, stamp, archive.size());
+                }
+                setResult(msg);
+                return Curator.CURATE_SUCCESS;
+            }
+            finally
+            {
+                archive.release();
+            }
+        }
+        catch (AuthorizeException authE)
+        {
+            throw new IOException(authE);
+        }
+        catch (SQLException sqlE)
+        {
+            throw new IOException(sqlE);
+        }
     }
 }
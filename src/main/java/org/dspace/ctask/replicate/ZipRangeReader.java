@@ -0,0 +1,303 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * ZipRangeReader extracts single entries from a zip archive held in a
+ * RangedObjectStore, reading only the archive's central directory (found
+ * from the end of the archive) and the entry's own bytes, rather than
+ * fetching the whole archive. Zip64 archives are supported. Each extracted
+ * entry is checked against the CRC recorded in the central directory. Reads
+ * may be throttled as they stream.
+ *
+ * @see ReplicaArchive
+ */
+class ZipRangeReader
+{
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+    private static final int MAX_COMMENT = 65535;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final long MASK32 = 0xffffffffL;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final RangedObjectStore store;
+    private final String group;
+    private final String id;
+    private final long size;
+    // throttle of reads (may be null)
+    private final BandwidthThrottle throttle;
+    // central directory, by entry name (read on first use)
+    private Map<String, Entry> entries = null;
+    // bytes read from the store
+    private long bytesRead = 0L;
+
+    /**
+     * Creates a reader of an archive.
+     *
+     * @param store store holding the archive
+     * @param group store group
+     * @param id storage ID of the archive
+     * @param size size of the archive in bytes
+     * @param throttle throttle of reads (may be null)
+     */
+    ZipRangeReader(RangedObjectStore store, String group, String id, long size, BandwidthThrottle throttle)
+    {
+        this.store = store;
+        this.group = group;
+        this.id = id;
+        this.size = size;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Returns true if the archive has the named entry.
+     *
+     * @param name entry name
+     * @return true if present
+     * @throws IOException if the central directory cannot be read
+     */
+    boolean hasEntry(String name) throws IOException
+    {
+        return directory().containsKey(name);
+    }
+
+    /**
+     * Extracts an entry to a file.
+     *
+     * @param name entry name
+     * @param dest file to write
+     * @return true if extracted, false if there is no such entry
+     * @throws IOException if the entry cannot be read, or fails its CRC check
+     */
+    boolean extract(String name, File dest) throws IOException
+    {
+        Entry entry = directory().get(name);
+        if (entry == null)
+        {
+            return false;
+        }
+        ByteBuffer loc = read(entry.offset, LOC_SIZE);
+        if (loc.getInt(0) != LOC_SIG)
+        {
+            throw new IOException("Bad local header for '" + name + "' in '" + id + "'");
+        }
+        long dataStart = entry.offset + LOC_SIZE + (loc.getShort(26) & 0xffff) + (loc.getShort(28) & 0xffff);
+        InputStream in;
+        if (entry.compressedSize == 0L)
+        {
+            in = new ByteArrayInputStream(new byte[0]);
+        }
+        else
+        {
+            in = BandwidthThrottle.limit(store.fetchRange(group, id, dataStart, dataStart + entry.compressedSize - 1),
+                                         throttle);
+            bytesRead += entry.compressedSize;
+        }
+        if (entry.method == 8)
+        {
+            // raw deflate needs a dummy byte after the data
+            in = new InflaterInputStream(new SequenceInputStream(in, new ByteArrayInputStream(new byte[1])),
+                                         new Inflater(true));
+        }
+        else if (entry.method != 0)
+        {
+            in.close();
+            throw new IOException("Unsupported compression method " + entry.method + " for '" + name + "' in '" + id + "'");
+        }
+        CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+        long length = 0L;
+        OutputStream out = new FileOutputStream(dest);
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = checked.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, n);
+                length += n;
+            }
+        }
+        finally
+        {
+            out.close();
+            checked.close();
+        }
+        if (length != entry.size || checked.getChecksum().getValue() != entry.crc)
+        {
+            dest.delete();
+            throw new IOException("Entry '" + name + "' of '" + id + "' failed its CRC check");
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes read from the store so far.
+     *
+     * @return bytes read
+     */
+    long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    private Map<String, Entry> directory() throws IOException
+    {
+        if (entries != null)
+        {
+            return entries;
+        }
+        // the end of central directory record lies within the tail
+        int tailLen = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT + ZIP64_LOCATOR_SIZE);
+        ByteBuffer tail = read(size - tailLen, tailLen);
+        int eocd = -1;
+        for (int pos = tailLen - EOCD_SIZE; pos >= 0; pos--)
+        {
+            if (tail.getInt(pos) == EOCD_SIG)
+            {
+                eocd = pos;
+                break;
+            }
+        }
+        if (eocd < 0)
+        {
+            throw new IOException("'" + id + "' is not a zip archive");
+        }
+        long count = tail.getShort(eocd + 10) & 0xffff;
+        long cenSize = tail.getInt(eocd + 12) & MASK32;
+        long cenOffset = tail.getInt(eocd + 16) & MASK32;
+        if (count == 0xffff || cenSize == MASK32 || cenOffset == MASK32)
+        {
+            int locator = eocd - ZIP64_LOCATOR_SIZE;
+            if (locator < 0 || tail.getInt(locator) != ZIP64_LOCATOR_SIG)
+            {
+                throw new IOException("Missing zip64 locator in '" + id + "'");
+            }
+            ByteBuffer zip64 = read(tail.getLong(locator + 8), ZIP64_EOCD_SIZE);
+            if (zip64.getInt(0) != ZIP64_EOCD_SIG)
+            {
+                throw new IOException("Bad zip64 end record in '" + id + "'");
+            }
+            cenSize = zip64.getLong(40);
+            cenOffset = zip64.getLong(48);
+        }
+        if (cenSize > Integer.MAX_VALUE)
+        {
+            throw new IOException("Central directory of '" + id + "' is too large");
+        }
+        ByteBuffer cen = read(cenOffset, (int) cenSize);
+        Map<String, Entry> dir = new HashMap<String, Entry>();
+        int pos = 0;
+        while (pos + CEN_SIZE <= cenSize && cen.getInt(pos) == CEN_SIG)
+        {
+            Entry entry = new Entry();
+            entry.method = cen.getShort(pos + 10) & 0xffff;
+            entry.crc = cen.getInt(pos + 16) & MASK32;
+            entry.compressedSize = cen.getInt(pos + 20) & MASK32;
+            entry.size = cen.getInt(pos + 24) & MASK32;
+            int nameLen = cen.getShort(pos + 28) & 0xffff;
+            int extraLen = cen.getShort(pos + 30) & 0xffff;
+            int commentLen = cen.getShort(pos + 32) & 0xffff;
+            entry.offset = cen.getInt(pos + 42) & MASK32;
+            String name = new String(cen.array(), pos + CEN_SIZE, nameLen, "UTF-8");
+            // zip64 extra field holds whichever values overflowed
+            int extra = pos + CEN_SIZE + nameLen;
+            int extraEnd = extra + extraLen;
+            while (extra + 4 <= extraEnd)
+            {
+                int tag = cen.getShort(extra) & 0xffff;
+                int dataLen = cen.getShort(extra + 2) & 0xffff;
+                if (tag == ZIP64_EXTRA)
+                {
+                    int field = extra + 4;
+                    if (entry.size == MASK32)
+                    {
+                        entry.size = cen.getLong(field);
+                        field += 8;
+                    }
+                    if (entry.compressedSize == MASK32)
+                    {
+                        entry.compressedSize = cen.getLong(field);
+                        field += 8;
+                    }
+                    if (entry.offset == MASK32)
+                    {
+                        entry.offset = cen.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + dataLen;
+            }
+            dir.put(name, entry);
+            pos = extraEnd + commentLen;
+        }
+        entries = dir;
+        return entries;
+    }
+
+    /*
+     * Reads a byte range of the archive into a little-endian buffer
+     */
+    private ByteBuffer read(long start, int length) throws IOException
+    {
+        byte[] bytes = new byte[length];
+        if (length > 0)
+        {
+            DataInputStream in = new DataInputStream(BandwidthThrottle.limit(store.fetchRange(group, id, start, start + length - 1),
+                                                                             throttle));
+            try
+            {
+                in.readFully(bytes);
+            }
+            finally
+            {
+                in.close();
+            }
+            bytesRead += length;
+        }
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /*
+     * Central directory record of an entry
+     */
+    private static class Entry
+    {
+        int method;
+        long crc;
+        long compressedSize;
+        long size;
+        // offset of the local header
+        long offset;
+    }
+}
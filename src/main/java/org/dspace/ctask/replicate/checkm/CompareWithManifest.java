@@ -13,14 +13,21 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.dspace.content.Bitstream;
 import org.dspace.content.Bundle;
+import org.dspace.content.Collection;
 import org.dspace.content.Item;
 import org.dspace.content.DSpaceObject;
+import org.dspace.content.factory.ContentServiceFactory;
+import org.dspace.content.service.ItemService;
 import org.dspace.core.Context;
+import org.dspace.ctask.replicate.ObjectPrefetcher;
 import org.dspace.ctask.replicate.ReplicaManager;
 import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
@@ -32,6 +39,14 @@ import org.dspace.curate.Distributive;
  * <P>
  * Manifests conform to the CDL Checkm v0.7 manifest format spec.
  * http://www.cdlib.org/uc3/docs/checkmspec.html
+ * <P>
+ * The sub-manifests of containers are fetched ahead of need, in the order
+ * they are checked: up to 'replicate.checkm.audit.prefetch' of them, using
+ * 'replicate.checkm.audit.threads' threads, so that fetching overlaps
+ * checking. Each manifest is checked line by line as it is read. The
+ * bitstream checksums of a collection's items are loaded together, when its
+ * manifest is reached, rather than item by item. Every discrepancy found is
+ * reported, and the audit fails if there were any.
  *
  * @author richardrodgers
  * @see TransmitManifest
@@ -44,10 +59,26 @@ public class CompareWithManifest extends AbstractCurationTask
     // Group where all Manifests will be stored
     private String manifestGroupName;
 
+    // sub-manifests fetched ahead, and fetching threads
+    private int prefetch;
+    private int threads;
+
+    private ItemService itemService = ContentServiceFactory.getInstance().getItemService();
+
+    // progress of the current audit
+    private int manifests;
+    private long bitstreams;
+    private long discrepancies;
+    // bitstream checksums by sequence ID, of the item last looked up singly
+    private String lastHandle = null;
+    private Map<String, String> lastChecksums = null;
+
     @Override
     public void init(Curator curator, String taskId) throws IOException {
         super.init(curator, taskId);
         manifestGroupName = configurationService.getProperty("replicate.group.manifest.name");
+        prefetch = configurationService.getIntProperty("replicate.checkm.audit.prefetch", 8);
+        threads = configurationService.getIntProperty("replicate.checkm.audit.threads", 4);
     }
 
     /**
@@ -60,22 +91,43 @@ public class CompareWithManifest extends AbstractCurationTask
     public int perform(DSpaceObject dso) throws IOException
     {
         ReplicaManager repMan = ReplicaManager.instance();
-        
+        manifests = 0;
+        bitstreams = 0L;
+        discrepancies = 0L;
+        lastHandle = null;
+        lastChecksums = null;
+        ObjectPrefetcher prefetcher = new ObjectPrefetcher(repMan, manifestGroupName, prefetch, threads);
         try
         {
             String filename = repMan.storageId(dso.getHandle(), TransmitManifest.MANIFEST_EXTENSION);
             
-            int status = checkManifest(repMan, filename, Curator.curationContext());
-
-            //report the final result
-            report(result);
-            setResult(result);
-            return status;
+            checkManifest(repMan, prefetcher, filename, Curator.curationContext(), null);
         }
         catch (SQLException sqlE)
         {
             throw new IOException(sqlE);
         }
+        finally
+        {
+            prefetcher.close();
+        }
+
+        //report the final result
+        int status;
+        if (discrepancies == 0L)
+        {
+            result = "Manifest and repository content agree";
+            status = Curator.CURATE_SUCCESS;
+        }
+        else
+        {
+            result = discrepancies + " discrepancies between manifest and repository content";
+            status = Curator.CURATE_FAIL;
+        }
+        result += " (" + manifests + " manifests, " + bitstreams + " bitstreams checked)";
+        report(result);
+        setResult(result);
+        return status;
     }
     
     /**
@@ -88,20 +140,37 @@ public class CompareWithManifest extends AbstractCurationTask
      * validates that all bitstream information (and checksums) are unchanged.
      * 
      * @param repMan Replication Manager
+     * @param prefetcher fetcher of manifests
      * @param filename filename of object's manifest file
      * @param context current DSpace context
+     * @param checksums bitstream checksums (by handle, then sequence ID) of
+     *        the items of the enclosing collection, or null if not known
      * @throws IOException if I/O error
      * @throws SQLException if database error
-     * @return integer which represents Curator return status
      */
-    private int checkManifest(ReplicaManager repMan, String filename, Context context) throws IOException, SQLException
+    private void checkManifest(ReplicaManager repMan, ObjectPrefetcher prefetcher, String filename, Context context,
+                               Map<String, Map<String, String>> checksums) throws IOException, SQLException
     {
-        File manFile = repMan.fetchObject(manifestGroupName, filename);
-        if (manFile != null)
+        File manFile;
+        try
+        {
+            manFile = prefetcher.take(filename);
+        }
+        catch (IOException ioE)
+        {
+            discrepancy("Unable to fetch manifest file: " + filename + " - " + ioE.getMessage());
+            return;
+        }
+        if (manFile == null)
+        {
+            discrepancy("No manifest file found: " + filename);
+            return;
+        }
+        manifests++;
+        List<String> subManifests = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(manFile));
+        try
         {
-            Item item = null;
-            Map<String, Bitstream> bsMap = new HashMap<String, Bitstream>();
-            BufferedReader reader = new BufferedReader(new FileReader(manFile));
             String line = null;
             while ((line = reader.readLine()) != null)
             {
@@ -112,71 +181,137 @@ public class CompareWithManifest extends AbstractCurationTask
                     // refers to a sub manifest
                     if (entry.indexOf("-") > 0)
                     {
-                        // it's another manifest - fetch & check it
-                        item = null;
-                        bsMap.clear();
-                        int status = checkManifest(repMan, entry, context);
-                        
-                        //if manifest failed check, return immediately (otherwise we'll continue processing)
-                        if(status == Curator.CURATE_FAIL)
-                            return status;
+                        // it's another manifest - fetch & check it once this one is read
+                        subManifests.add(entry);
                     }
                     else
                     {
                         // first entry is a bitstream reference. So, check it
-                        int cut = entry.lastIndexOf("/");
-                        if (item == null)
-                        {
-                            // look up object first & map bitstreams by seqID
-                            String handle = entry.substring(0, cut);
-                            DSpaceObject dso = handleService.resolveToObject(context, handle);
-                            if (dso != null && dso instanceof Item)
-                            {
-                                item = (Item)dso;
-                                for (Bundle bundle : item.getBundles())
-                                {
-                                    for (Bitstream bs : bundle.getBitstreams())
-                                    {
-                                        bsMap.put(Integer.toString(bs.getSequenceID()), bs);
-                                    }
-                                }
-                            }
-                            else
-                            {
-                                result = "No item found for manifest entry: " + handle;
-                                return Curator.CURATE_FAIL;
-                            }
-                        }
-                        String seqId = entry.substring(cut + 1);
-                        Bitstream bs = bsMap.get(seqId);
-                        if (bs != null)
-                        {
-                            String[] parts = line.split("\\|");
-                            // compare checksums
-                            if (! bs.getChecksum().equals(parts[2]))
-                            {
-                                result = "Bitstream: " + seqId + " differs from manifest: " + entry;
-                                return Curator.CURATE_FAIL;
-                            }
-                        }
-                        else
-                        {
-                            result = "No bitstream: " + seqId + " found for manifest entry: " + entry;
-                            return Curator.CURATE_FAIL;
-                        }
+                        checkBitstream(context, entry, line, checksums);
                     }
                 }
             }
+        }
+        finally
+        {
             reader.close();
-            
-            //finished checking this entire manifest -- it was successful!
-            result = "Manifest and repository content agree";
-            return Curator.CURATE_SUCCESS;
+            manFile.delete();
         }
-        else
+        if (subManifests.isEmpty())
+        {
+            return;
+        }
+        prefetcher.schedule(subManifests);
+        // the items of a collection are checked against checksums loaded together
+        Map<String, Map<String, String>> childChecksums = collectionChecksums(repMan, filename, context);
+        for (String subManifest : subManifests)
+        {
+            checkManifest(repMan, prefetcher, subManifest, context,
+                          (childChecksums != null) ? childChecksums : checksums);
+        }
+    }
+
+    /**
+     * Check a bitstream entry of an Item manifest against the repository.
+     */
+    private void checkBitstream(Context context, String entry, String line,
+                                Map<String, Map<String, String>> checksums) throws SQLException
+    {
+        int cut = entry.lastIndexOf("/");
+        String handle = entry.substring(0, cut);
+        String seqId = entry.substring(cut + 1);
+        Map<String, String> itemChecksums = (checksums != null) ? checksums.get(handle) : null;
+        if (itemChecksums == null)
         {
-            result = "No manifest file found: " + filename;
-            return Curator.CURATE_FAIL; 
+            // not among the collection's items - look up object & map bitstreams by seqID
+            if (! handle.equals(lastHandle))
+            {
+                lastHandle = handle;
+                DSpaceObject dso = handleService.resolveToObject(context, handle);
+                lastChecksums = (dso instanceof Item) ? itemChecksums((Item)dso) : null;
+                if (lastChecksums == null)
+                {
+                    discrepancy("No item found for manifest entry: " + handle);
+                }
+            }
+            itemChecksums = lastChecksums;
+        }
+        if (itemChecksums == null)
+        {
+            // already reported
+            return;
+        }
+        bitstreams++;
+        String checksum = itemChecksums.get(seqId);
+        if (checksum == null)
+        {
+            discrepancy("No bitstream: " + seqId + " found for manifest entry: " + entry);
+        }
+        // compare checksums
+        else if (! checksum.equals(line.split("\\|")[2]))
+        {
+            discrepancy("Bitstream: " + seqId + " differs from manifest: " + entry);
+        }
+    }
+
+    /**
+     * Load the bitstream checksums of all items of a collection, if the
+     * manifest is a collection's.
+     * @return checksums by item handle, then sequence ID, or null if not a collection
+     */
+    private Map<String, Map<String, String>> collectionChecksums(ReplicaManager repMan, String filename,
+                                                                 Context context) throws SQLException
+    {
+        DSpaceObject dso = handleService.resolveToObject(context, repMan.canonicalId(filename));
+        if (! (dso instanceof Collection))
+        {
+            return null;
+        }
+        Map<String, Map<String, String>> checksums = new HashMap<String, Map<String, String>>();
+        Iterator<Item> ii = itemService.findByCollection(context, (Collection)dso);
+        while (ii.hasNext())
+        {
+            Item item = ii.next();
+            checksums.put(item.getHandle(), itemChecksums(item));
+            // only the strings are kept - don't let a large collection fill the session
+            uncache(context, item);
         }
+        return checksums;
+    }
+
+    private Map<String, String> itemChecksums(Item item)
+    {
+        Map<String, String> checksums = new HashMap<String, String>();
+        for (Bundle bundle : item.getBundles())
+        {
+            for (Bitstream bs : bundle.getBitstreams())
+            {
+                checksums.put(Integer.toString(bs.getSequenceID()), bs.getChecksum());
+            }
+        }
+        return checksums;
+    }
+
+    /*
+     * Removes an item, and the bundles and bitstreams it loaded, from the
+     * session cache (uncacheEntity evicts only the entity itself before 6.1)
+     */
+    private void uncache(Context context, Item item) throws SQLException
+    {
+        for (Bundle bundle : item.getBundles())
+        {
+            for (Bitstream bs : bundle.getBitstreams())
+            {
+                context.uncacheEntity(bs);
+            }
+            context.uncacheEntity(bundle);
+        }
+        context.uncacheEntity(item);
+    }
+
+    private void discrepancy(String message)
+    {
+        discrepancies++;
+        report(message);
     }
 }
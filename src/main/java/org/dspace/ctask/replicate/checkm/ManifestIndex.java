@@ -0,0 +1,265 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.checkm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ManifestIndex records, for each Checkm manifest transmitted by a
+ * TransmitManifest run on a container, what its line in the parent manifest
+ * holds (checksum, length and modification time), with a 'stamp' telling
+ * whether the object has changed since: an item's last-modified time, or
+ * a collection's item count. It also records when each run (by the handle
+ * it was run on) started, so the next incremental run can ask which items
+ * have changed since.
+ * <P>
+ * The index is a tab-separated file, 'manifest-index' in the replicate base
+ * directory. Incremental runs trust what it records; full runs start from
+ * nothing, and so replace the entries of every manifest they rebuild. Each
+ * run's entries are merged into the file when saved, under a lock, so runs
+ * on different containers may overlap. It describes what this task last
+ * sent to the store, so manifests changed or removed in the store by other
+ * means are not noticed - run a full (non-incremental) transmit after
+ * removing manifests.
+ *
+ * @see TransmitManifest
+ */
+class ManifestIndex
+{
+    private static final String INDEX_FILE = "manifest-index";
+    private static final String LOCK_FILE = "manifest-index.lock";
+    private static final String OBJECT = "object";
+    private static final String RUN = "run";
+    private static final String SEP = "\t";
+
+    // file locks are held per JVM, so saves within it must take turns
+    private static final Object saveLock = new Object();
+
+    private final File file;
+    // entries by manifest storage ID
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    // start times of runs, by handle run on
+    private final Map<String, Long> runs = new HashMap<String, Long>();
+    // what this run recorded, to be merged into the file
+    private final Map<String, Entry> putEntries = new HashMap<String, Entry>();
+    private final Map<String, Long> putRuns = new HashMap<String, Long>();
+
+    /**
+     * Opens the index in the replicate base directory.
+     *
+     * @param baseDir replicate base directory
+     * @param reuse if true, read what the index records; if false, start
+     *        empty (a full run), replacing the entries put when saved
+     * @throws IOException if the index cannot be read
+     */
+    ManifestIndex(String baseDir, boolean reuse) throws IOException
+    {
+        file = new File(baseDir, INDEX_FILE);
+        if (reuse)
+        {
+            read(file, entries, runs);
+        }
+    }
+
+    /**
+     * Returns the entry for a manifest.
+     *
+     * @param id storage ID of the manifest
+     * @return the entry, or null if none
+     */
+    Entry get(String id)
+    {
+        return entries.get(id);
+    }
+
+    /**
+     * Records the entry for a manifest.
+     *
+     * @param id storage ID of the manifest
+     * @param entry the entry
+     */
+    void put(String id, Entry entry)
+    {
+        entries.put(id, entry);
+        putEntries.put(id, entry);
+    }
+
+    /**
+     * Returns when the last run on an object started.
+     *
+     * @param handle handle of the object
+     * @return start time (ms), or 0 if never run
+     */
+    long lastRun(String handle)
+    {
+        Long start = runs.get(handle);
+        return (start != null) ? start : 0L;
+    }
+
+    /**
+     * Records when a run on an object started.
+     *
+     * @param handle handle of the object
+     * @param start start time (ms)
+     */
+    void setLastRun(String handle, long start)
+    {
+        runs.put(handle, start);
+        putRuns.put(handle, start);
+    }
+
+    /**
+     * Merges what was recorded into the index file, as it now stands (other
+     * runs may have saved since this one read it).
+     *
+     * @throws IOException if the index cannot be written
+     */
+    void save() throws IOException
+    {
+        File dir = file.getParentFile();
+        synchronized (saveLock)
+        {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+            try
+            {
+                FileLock lock = lockFile.getChannel().lock();
+                try
+                {
+                    Map<String, Entry> allEntries = new HashMap<String, Entry>();
+                    Map<String, Long> allRuns = new HashMap<String, Long>();
+                    read(file, allEntries, allRuns);
+                    allEntries.putAll(putEntries);
+                    allRuns.putAll(putRuns);
+                    write(dir, allEntries, allRuns);
+                }
+                finally
+                {
+                    lock.release();
+                }
+            }
+            finally
+            {
+                lockFile.close();
+            }
+        }
+    }
+
+    /*
+     * Reads the index file (if any) into the maps
+     */
+    private static void read(File file, Map<String, Entry> entries, Map<String, Long> runs) throws IOException
+    {
+        if (! file.exists())
+        {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.split(SEP);
+                try
+                {
+                    if (OBJECT.equals(parts[0]) && parts.length == 6)
+                    {
+                        entries.put(parts[1], new Entry(parts[2], Long.parseLong(parts[3]),
+                                                        Long.parseLong(parts[4]), Long.parseLong(parts[5])));
+                    }
+                    else if (RUN.equals(parts[0]) && parts.length == 3)
+                    {
+                        runs.put(parts[1], Long.valueOf(parts[2]));
+                    }
+                }
+                catch (NumberFormatException nfE)
+                {
+                    // ignore the damaged line - the object will be rebuilt
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /*
+     * Writes the index file, via a temporary file of its own
+     */
+    private void write(File dir, Map<String, Entry> allEntries, Map<String, Long> allRuns) throws IOException
+    {
+        File tmp = File.createTempFile(INDEX_FILE, ".tmp", dir);
+        try
+        {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try
+            {
+                for (Map.Entry<String, Long> run : allRuns.entrySet())
+                {
+                    writer.write(RUN + SEP + run.getKey() + SEP + run.getValue() + "\n");
+                }
+                for (Map.Entry<String, Entry> entry : allEntries.entrySet())
+                {
+                    Entry e = entry.getValue();
+                    writer.write(OBJECT + SEP + entry.getKey() + SEP + e.checksum + SEP + e.length + SEP +
+                                 e.modified + SEP + e.stamp + "\n");
+                }
+            }
+            finally
+            {
+                writer.close();
+            }
+            if (! tmp.renameTo(file))
+            {
+                // some platforms will not rename over an existing file
+                file.delete();
+                if (! tmp.renameTo(file))
+                {
+                    throw new IOException("Unable to replace manifest index '" + file + "'");
+                }
+            }
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * What a manifest's line in its parent manifest holds, and the stamp of
+     * the object when the manifest was made
+     */
+    static class Entry
+    {
+        final String checksum;
+        final long length;
+        final long modified;
+        final long stamp;
+
+        Entry(String checksum, long length, long modified, long stamp)
+        {
+            this.checksum = checksum;
+            this.length = length;
+            this.modified = modified;
+            this.stamp = stamp;
+        }
+    }
+}
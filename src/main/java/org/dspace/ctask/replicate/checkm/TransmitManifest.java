@@ -8,14 +8,22 @@
 
 package org.dspace.ctask.replicate.checkm;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
-import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
@@ -29,6 +37,7 @@ import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
 import org.dspace.curate.Distributive;
 import org.dspace.curate.Utils;
+import org.dspace.pack.PooledBuffer;
 
 /**
  * TransmitManifest task produces a manifest file for the content files contained
@@ -38,6 +47,14 @@ import org.dspace.curate.Utils;
  * <p>
  * The manifests produced conform to the CDL Checkm v0.7 manifest format spec.
  * http://www.cdlib.org/uc3/docs/checkmspec.html
+ * <p>
+ * If 'replicate.checkm.incremental' is true, runs on containers only rebuild
+ * what has changed since the last run on the same container, as recorded in
+ * a ManifestIndex: collections holding no items modified since (and with the
+ * same number of items) keep their manifest, unmodified items in other
+ * collections keep theirs, and container manifests whose content comes out
+ * the same are not transmitted again. Full (non-incremental) container runs
+ * rebuild everything, and record it in the index for later incremental runs.
  * 
  * @author richardrodgers
  */
@@ -51,9 +68,24 @@ public class TransmitManifest extends AbstractCurationTask {
     protected static final String MANIFEST_EXTENSION = "txt";
 
     private String template = null;
+
+    // which positional template tokens are written (those not starting with 'x')
+    private boolean[] templateFields = null;
     
     // Group where all Manifests will be stored
     private String manifestGroupName;
+
+    // largest Item manifest sent from memory, rather than a staging file (0 for none)
+    private long memThreshold = 0L;
+
+    // rebuild only the manifests of changed objects in container runs?
+    private boolean incremental = false;
+
+    // index of transmitted manifests (during container runs)
+    private ManifestIndex index = null;
+
+    // handles of collections with items modified since the last run (null if unknown)
+    private Set<String> changedColls = null;
     
     private static Logger log = Logger.getLogger(TransmitManifest.class);
 
@@ -64,7 +96,15 @@ public class TransmitManifest extends AbstractCurationTask {
     public void init(Curator curator, String taskId) throws IOException {
         super.init(curator, taskId);
         template = configurationService.getProperty("replicate.checkm.template");
+        String[] tokens = template.split("\\|");
+        templateFields = new boolean[tokens.length];
+        for (int i = 0; i < tokens.length; i++)
+        {
+            templateFields[i] = ! tokens[i].startsWith("x");
+        }
         manifestGroupName = configurationService.getProperty("replicate.group.manifest.name");
+        memThreshold = configurationService.getLongProperty("replicate.packer.memory.threshold", 1048576L);
+        incremental = configurationService.getBooleanProperty("replicate.checkm.incremental", false);
     }
     
     /**
@@ -81,29 +121,62 @@ public class TransmitManifest extends AbstractCurationTask {
         ReplicaManager repMan = ReplicaManager.instance();
         try
         {
-            File manFile = null;
             int type = dso.getType();
             if (Constants.ITEM == type)
             {
-                manFile = itemManifest(repMan, (Item)dso);
+                PooledBuffer manBuffer = bufferedManifest((Item)dso);
+                if (manBuffer == null)
+                {
+                    repMan.transferObject(manifestGroupName, itemManifest(repMan, (Item)dso).file);
+                }
+                else
+                {
+                    try
+                    {
+                        repMan.transferObject(manifestGroupName,
+                                repMan.storageId(dso.getHandle(), MANIFEST_EXTENSION), manBuffer);
+                    }
+                    finally
+                    {
+                        manBuffer.release();
+                    }
+                }
+                setResult("Created manifest for: " + dso.getHandle());
+                return Curator.CURATE_SUCCESS;
             }
-            else if (Constants.COLLECTION == type)
+
+            // full runs record what they send too, replacing what the index held
+            long start = System.currentTimeMillis();
+            index = new ManifestIndex(configurationService.getProperty("replicate.base.dir"), incremental);
+            if (incremental)
             {
-                // create manifests for each item - link in collection manifest
-                manFile = collectionManifest(repMan, (Collection)dso);
+                changedColls = changedCollections(index.lastRun(dso.getHandle()));
             }
-            else if (Constants.COMMUNITY == type)
+            try
             {
-                // create manifests for Community on down
-                manFile = communityManifest(repMan, (Community)dso);
+                if (Constants.COLLECTION == type)
+                {
+                    // create manifests for each item - link in collection manifest
+                    collectionLine(repMan, (Collection)dso);
+                }
+                else if (Constants.COMMUNITY == type)
+                {
+                    // create manifests for Community on down
+                    communityLine(repMan, (Community)dso);
+                }
+                else if (Constants.SITE == type)
+                {
+                    // create manifests for all objects in DSpace
+                    transferred(repMan, siteManifest(repMan, (Site)dso), 0L);
+                }
+                index.setLastRun(dso.getHandle(), start);
+                index.save();
             }
-            else if (Constants.SITE == type)
+            finally
             {
-                // create manifests for all objects in DSpace
-                manFile = siteManifest(repMan, (Site)dso);
+                index = null;
+                changedColls = null;
             }
-            
-            repMan.transferObject(manifestGroupName, manFile);
         }
         catch (SQLException sqlE)
         {
@@ -113,7 +186,31 @@ public class TransmitManifest extends AbstractCurationTask {
         return Curator.CURATE_SUCCESS;
     }
     
-    
+    /**
+     * Find the collections holding items modified since a time.
+     * @param since time (ms) of the last run, or 0 if none
+     * @return handles of the collections, or null if any may have changed
+     * @throws SQLException if database error
+     */
+    private Set<String> changedCollections(long since) throws SQLException
+    {
+        if (since == 0L)
+        {
+            return null;
+        }
+        Set<String> changed = new HashSet<String>();
+        Iterator<Item> ii = itemService.findByLastModifiedSince(Curator.curationContext(), new Date(since));
+        while (ii.hasNext())
+        {
+            // include mapped collections, whose manifests list the item too
+            for (Collection coll : ii.next().getCollections())
+            {
+                changed.add(coll.getHandle());
+            }
+        }
+        return changed;
+    }
+
     /**
      * Generate a manifest for the DSpace Site. Also
      * generate & transfer to replica ObjectStore the manifests for all
@@ -124,7 +221,7 @@ public class TransmitManifest extends AbstractCurationTask {
      * @throws IOException if I/O error
      * @throws SQLException if database error
      */
-    private File siteManifest(ReplicaManager repMan, Site site) throws IOException, SQLException
+    private ManifestFile siteManifest(ReplicaManager repMan, Site site) throws IOException, SQLException
     {
         //Manifests stored as text files
         String filename = repMan.storageId(site.getHandle(), MANIFEST_EXTENSION);
@@ -132,18 +229,16 @@ public class TransmitManifest extends AbstractCurationTask {
         log.debug("Creating manifest for: " + site.getHandle());
         
         //Create site manifest
-        File manFile = repMan.stage(manifestGroupName, filename);
-        Writer writer = manifestWriter(manFile);
+        ManifestFile manFile = manifestFile(repMan.stage(manifestGroupName, filename));
+        Writer writer = manFile.writer;
         int count = 0;
         
         List<Community> topCommunities = communityService.findAllTop(Curator.curationContext());
         //Create top-level community manifests & transfer each
         for (Community comm : topCommunities)
         {
-            File scFile = communityManifest(repMan, comm);
-            writer.write(tokenized(scFile) + "\n");
+            writer.write(communityLine(repMan, comm) + "\n");
             count++;
-            repMan.transferObject(manifestGroupName, scFile);
         }
         if (count == 0)
         {
@@ -165,7 +260,7 @@ public class TransmitManifest extends AbstractCurationTask {
      * @throws IOException if I/O error
      * @throws SQLException if database error
      */
-    private File communityManifest(ReplicaManager repMan, Community comm) throws IOException, SQLException
+    private ManifestFile communityManifest(ReplicaManager repMan, Community comm) throws IOException, SQLException
     {
         //Manifests stored as text files
         String filename = repMan.storageId(comm.getHandle(), MANIFEST_EXTENSION);
@@ -173,24 +268,20 @@ public class TransmitManifest extends AbstractCurationTask {
         log.debug("Creating manifest for: " + comm.getHandle());
         
         //Create community manifest
-        File manFile = repMan.stage(manifestGroupName, filename);
-        Writer writer = manifestWriter(manFile);
+        ManifestFile manFile = manifestFile(repMan.stage(manifestGroupName, filename));
+        Writer writer = manFile.writer;
         int count = 0;
         //Create sub-community manifests & transfer each
         for (Community subComm : comm.getSubcommunities())
         {
-            File scFile = communityManifest(repMan, subComm);
-            writer.write(tokenized(scFile) + "\n");
+            writer.write(communityLine(repMan, subComm) + "\n");
             count++;
-            repMan.transferObject(manifestGroupName, scFile); 
         }
         //Create collection manifests & transfer each
         for (Collection coll: comm.getCollections())
         {
-            File colFile = collectionManifest(repMan, coll);
-            writer.write(tokenized(colFile) + "\n");
+            writer.write(collectionLine(repMan, coll) + "\n");
             count++;
-            repMan.transferObject(manifestGroupName, colFile);
         }
         if (count == 0)
         {
@@ -212,7 +303,7 @@ public class TransmitManifest extends AbstractCurationTask {
      * @throws IOException if I/O error
      * @throws SQLException if database error
      */
-    private File collectionManifest(ReplicaManager repMan, Collection coll) throws IOException, SQLException
+    private ManifestFile collectionManifest(ReplicaManager repMan, Collection coll) throws IOException, SQLException
     {
          //Manifests stored as text files
         String filename = repMan.storageId(coll.getHandle(), MANIFEST_EXTENSION);
@@ -220,18 +311,17 @@ public class TransmitManifest extends AbstractCurationTask {
         log.debug("Creating manifest for: " + coll.getHandle());
         
         //Create Collection manifest
-        File manFile = repMan.stage(manifestGroupName, filename);
-        Writer writer = manifestWriter(manFile);
+        ManifestFile manFile = manifestFile(repMan.stage(manifestGroupName, filename));
+        Writer writer = manFile.writer;
         int count = 0;
         
         //Create all Item manifests & transfer each
         Iterator<Item> ii = itemService.findByCollection(Curator.curationContext(), coll);
         while (ii.hasNext())
         {
-            File itemMan = itemManifest(repMan, ii.next());
+            Item item = ii.next();
             count++;
-            writer.write(tokenized(itemMan) + "\n");
-            repMan.transferObject(manifestGroupName, itemMan);
+            writer.write(itemLine(repMan, item) + "\n");
         }
         if (count == 0)
         {
@@ -243,6 +333,129 @@ public class TransmitManifest extends AbstractCurationTask {
         return manFile;
     }
 
+    /**
+     * Generate and transfer the manifests of a Community and its children,
+     * unless unchanged.
+     * @param repMan ReplicaManager (used to access ObjectStore)
+     * @param comm the DSpace Community
+     * @return the Community manifest's line in its parent manifest
+     * @throws IOException if I/O error
+     * @throws SQLException if database error
+     */
+    private String communityLine(ReplicaManager repMan, Community comm) throws IOException, SQLException
+    {
+        return transferred(repMan, communityManifest(repMan, comm), 0L);
+    }
+
+    /**
+     * Generate and transfer the manifests of a Collection and its items,
+     * unless unchanged. In incremental runs, a collection none of whose
+     * items have been modified since the last run, and which holds as many
+     * items as then, is not looked into at all.
+     * @param repMan ReplicaManager (used to access ObjectStore)
+     * @param coll the DSpace Collection
+     * @return the Collection manifest's line in its parent manifest
+     * @throws IOException if I/O error
+     * @throws SQLException if database error
+     */
+    private String collectionLine(ReplicaManager repMan, Collection coll) throws IOException, SQLException
+    {
+        long count = 0L;
+        if (index != null)
+        {
+            // items added, modified or moved in show in the changed set, removed items in the count
+            count = itemService.countItems(Curator.curationContext(), coll);
+            String id = repMan.storageId(coll.getHandle(), MANIFEST_EXTENSION);
+            ManifestIndex.Entry entry = index.get(id);
+            if (changedColls != null && ! changedColls.contains(coll.getHandle()) &&
+                entry != null && entry.stamp == count)
+            {
+                log.debug("Manifest unchanged for: " + coll.getHandle());
+                return tokenized(id, entry.checksum, entry.length, entry.modified);
+            }
+        }
+        return transferred(repMan, collectionManifest(repMan, coll), count);
+    }
+
+    /**
+     * Generate and transfer the manifest of an Item, unless (in incremental
+     * runs) the item is unmodified since its manifest was last transferred.
+     * @param repMan ReplicaManager (used to access ObjectStore)
+     * @param item the DSpace Item
+     * @return the Item manifest's line in its parent manifest
+     * @throws IOException if I/O error
+     * @throws SQLException if database error
+     */
+    private String itemLine(ReplicaManager repMan, Item item) throws IOException, SQLException
+    {
+        String itemManId = repMan.storageId(item.getHandle(), MANIFEST_EXTENSION);
+        long lastModified = item.getLastModified().getTime();
+        if (index != null)
+        {
+            ManifestIndex.Entry entry = index.get(itemManId);
+            if (entry != null && entry.stamp == lastModified)
+            {
+                return tokenized(itemManId, entry.checksum, entry.length, entry.modified);
+            }
+        }
+        // most Item manifests are small - send them without staging files
+        PooledBuffer itemMan = bufferedManifest(item);
+        if (itemMan == null)
+        {
+            return transferred(repMan, itemManifest(repMan, item), lastModified);
+        }
+        try
+        {
+            String checksum = itemMan.getChecksum();
+            long length = itemMan.size();
+            long modified = System.currentTimeMillis();
+            repMan.transferObject(manifestGroupName, itemManId, itemMan);
+            if (index != null)
+            {
+                index.put(itemManId, new ManifestIndex.Entry(checksum, length, modified, lastModified));
+            }
+            return tokenized(itemManId, checksum, length, modified);
+        }
+        finally
+        {
+            itemMan.release();
+        }
+    }
+
+    /**
+     * Transfer a manifest file, unless (in incremental runs) the same
+     * manifest was transferred before, and record it in the index.
+     * @param repMan ReplicaManager (used to access ObjectStore)
+     * @param manFile the (closed) manifest file
+     * @param stamp the object's change stamp (see ManifestIndex)
+     * @return the manifest's line in its parent manifest
+     * @throws IOException if I/O error
+     */
+    private String transferred(ReplicaManager repMan, ManifestFile manFile, long stamp) throws IOException
+    {
+        String id = manFile.file.getName();
+        // known from writing - no need to read the file back
+        String checksum = manFile.getChecksum();
+        long length = manFile.getLength();
+        long modified = manFile.file.lastModified();
+        ManifestIndex.Entry entry = (index != null) ? index.get(id) : null;
+        if (entry != null && entry.checksum.equals(checksum))
+        {
+            // the store already has it
+            modified = entry.modified;
+            manFile.file.delete();
+        }
+        else
+        {
+            repMan.transferObject(manifestGroupName, manFile.file);
+        }
+        if (index != null)
+        {
+            index.put(id, new ManifestIndex.Entry(checksum, length, modified, stamp));
+        }
+        return tokenized(id, checksum, length, modified);
+    }
+
     /**
      * Generate a manifest for the specified DSpace Item. 
      * @param repMan ReplicaManager (used to access ObjectStore)
@@ -251,16 +464,71 @@ public class TransmitManifest extends AbstractCurationTask {
      * @throws IOException if I/O error
      * @throws SQLException if database error
      */
-    private File itemManifest(ReplicaManager repMan, Item item) throws IOException, SQLException
+    private ManifestFile itemManifest(ReplicaManager repMan, Item item) throws IOException, SQLException
     {
         String filename = repMan.storageId(item.getHandle(), MANIFEST_EXTENSION);
         
         log.debug("Creating manifest for: " + item.getHandle());
         
         //Create Item manifest
-        File manFile = repMan.stage(manifestGroupName, filename);
-        Writer writer = manifestWriter(manFile);
-       
+        ManifestFile manFile = manifestFile(repMan.stage(manifestGroupName, filename));
+        Writer writer = manFile.writer;
+        writeItemManifest(writer, item);
+        return manFile;
+    }
+
+    /**
+     * Generate a manifest for the specified DSpace Item in memory.
+     * @param item the DSpace Item
+     * @return buffer holding the manifest (to be released by caller)
+     * @throws IOException if I/O error
+     * @throws SQLException if database error
+     */
+    private PooledBuffer itemManifestBuffer(Item item) throws IOException, SQLException
+    {
+        log.debug("Creating manifest for: " + item.getHandle());
+
+        PooledBuffer buffer = new PooledBuffer();
+        Writer writer = new OutputStreamWriter(buffer, "UTF-8");
+        writeManifestHeader(writer);
+        writeItemManifest(writer, item);
+        return buffer;
+    }
+
+    /**
+     * Generate a manifest for the specified DSpace Item in memory, if no
+     * larger than the memory threshold.
+     * @param item the DSpace Item
+     * @return buffer holding the manifest (to be released by caller), or
+     *         null if the manifest should be staged in a file instead
+     * @throws IOException if I/O error
+     * @throws SQLException if database error
+     */
+    private PooledBuffer bufferedManifest(Item item) throws IOException, SQLException
+    {
+        if (memThreshold <= 0L)
+        {
+            return null;
+        }
+        PooledBuffer buffer = itemManifestBuffer(item);
+        if (buffer.size() > memThreshold)
+        {
+            log.debug("Manifest for " + item.getHandle() + " exceeds memory threshold, staging it");
+            buffer.release();
+            return null;
+        }
+        return buffer;
+    }
+
+    /**
+     * Write the entries of an Item manifest, then close the writer.
+     * @param writer Writer for the manifest
+     * @param item the DSpace Item
+     * @throws IOException if I/O error
+     * @throws SQLException if database error
+     */
+    private void writeItemManifest(Writer writer, Item item) throws IOException, SQLException
+    {
         // look through all ORIGINAL bitstreams, and add
         // information about each (e.g. checksum) to manifest
         int count = 0;
@@ -271,46 +539,11 @@ public class TransmitManifest extends AbstractCurationTask {
             Bundle bundle = bundles.get(0);
             for (Bitstream bs : bundle.getBitstreams())
             {
-                int i = 0;
-                StringBuilder sb = new StringBuilder();
-                for (String token : Arrays.asList(template.split("\\|")))
-                {
-                    if (! token.startsWith("x"))
-                    {
-                        // tokens are positionally defined
-                        switch (i)
-                        {
-                            case 0:
-                                // what URL/name format?
-                                sb.append(item.getHandle()).append("/").append(bs.getSequenceID());
-                                break;
-                            case 1:
-                                // Checksum algorithm
-                                sb.append(bs.getChecksumAlgorithm().toLowerCase());
-                                break;
-                            case 2:
-                                // Checksum
-                                sb.append(bs.getChecksum());
-                                break;
-                            case 3:
-                                // length
-                                sb.append(bs.getSize());
-                                break;
-                            case 4:
-                                // modified - use item level data?
-                                sb.append(item.getLastModified());
-                                break;
-                            case 5:
-                                // target name - skip for now
-                            default:
-                                break;
-                        }
-                    }
-                    sb.append("|");
-                    i++;
-                }
                 count++;
-                writer.write(sb.substring(0, sb.length() - 1) + "\n");
+                // modified - use item level data?
+                writer.write(tokenized(item.getHandle() + "/" + bs.getSequenceID(),
+                                       bs.getChecksumAlgorithm().toLowerCase(), bs.getChecksum(),
+                                       bs.getSize(), item.getLastModified()) + "\n");
             } //end for each bitstream
         }//end if ORIGINAL bundle
         
@@ -323,63 +556,161 @@ public class TransmitManifest extends AbstractCurationTask {
         
         writer.close();
         report("Created manifest for: " + item.getHandle());
-        return manFile;
     }
 
     /**
-     * Initialize a Writer for a Manifest file. Also, writes header to manifest file.
+     * Initialize a Manifest file for writing. Also, writes header to manifest file.
      * @param file file where manifest will be stored
-     * @return reference to Writer
+     * @return the manifest file
      * @throws IOException if I/O error
      */
-    private Writer manifestWriter(File file) throws IOException
+    private ManifestFile manifestFile(File file) throws IOException
+    {
+        ManifestFile manFile = new ManifestFile(file);
+        writeManifestHeader(manFile.writer);
+        return manFile;
+    }
+
+    private void writeManifestHeader(Writer writer) throws IOException
     {
-        FileWriter writer = new FileWriter(file);
         writer.write("#%checkm_" + CKM_VSN + "\n");
         // write out template as explanatory metadata
         writer.write("# " + template + "\n");
-        return writer;
     }
 
-    private String tokenized(File file) throws IOException
+    private String tokenized(String name, String checksum, long length, long modified)
+    {
+        return tokenized(name, "md5", checksum, length, modified);
+    }
+
+    private String tokenized(String name, String algorithm, String checksum, long length, Object modified)
     {
-        int i = 0;
         StringBuilder sb = new StringBuilder();
-        for (String token : Arrays.asList(template.split("\\|")))
+        for (int i = 0; i < templateFields.length; i++)
         {
-            if (! token.startsWith("x"))
+            if (i > 0)
             {
-                // tokens are positionally defined
-                switch (i) {
-                    case 0:
-                        // what URL/name format?
-                        sb.append(file.getName());
-                        break;
-                    case 1:
-                        // Checksum algorithm
-                        sb.append("md5");
-                        break;
-                    case 2:
-                        // Checksum
-                        sb.append(Utils.checksum(file, "md5"));
-                        break;
-                    case 3:
-                        // length
-                        sb.append(file.length());
-                        break;
-                    case 4:
-                        // modified - use item level data?
-                        sb.append(file.lastModified());
-                        break;
-                    case 5:
-                         // target name - skip for now
-                    default:
-                         break;
-                }
+                sb.append("|");
+            }
+            if (! templateFields[i])
+            {
+                continue;
+            }
+            // tokens are positionally defined
+            switch (i) {
+                case 0:
+                    // what URL/name format?
+                    sb.append(name);
+                    break;
+                case 1:
+                    // Checksum algorithm
+                    sb.append(algorithm);
+                    break;
+                case 2:
+                    // Checksum
+                    sb.append(checksum);
+                    break;
+                case 3:
+                    // length
+                    sb.append(length);
+                    break;
+                case 4:
+                    sb.append(modified);
+                    break;
+                case 5:
+                     // target name - skip for now
+                default:
+                     break;
             }
-            sb.append("|");
-            i++;
         }
-        return sb.substring(0, sb.length() - 1);
+        return sb.toString();
+    }
+
+    /**
+     * A staged manifest file, whose MD5 checksum and length are computed
+     * as it is written, so that it need not be read back for its line in
+     * the parent manifest.
+     */
+    private static class ManifestFile
+    {
+        final File file;
+        final Writer writer;
+        private final DigestingOutputStream out;
+
+        ManifestFile(File file) throws IOException
+        {
+            this.file = file;
+            out = new DigestingOutputStream(new FileOutputStream(file));
+            writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        }
+
+        /**
+         * Returns the checksum of the manifest, once the writer is closed.
+         */
+        String getChecksum()
+        {
+            return out.getChecksum();
+        }
+
+        /**
+         * Returns the length of the manifest, once the writer is closed.
+         */
+        long getLength()
+        {
+            return out.getLength();
+        }
+    }
+
+    /**
+     * Computes the MD5 checksum and length of what passes through.
+     */
+    private static class DigestingOutputStream extends FilterOutputStream
+    {
+        private final MessageDigest digest;
+        private long length = 0L;
+        private String checksum = null;
+
+        DigestingOutputStream(OutputStream out) throws IOException
+        {
+            super(out);
+            try
+            {
+                digest = MessageDigest.getInstance("MD5");
+            }
+            catch (NoSuchAlgorithmException nsaE)
+            {
+                throw new IOException("no algorithm: MD5");
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            digest.update((byte) b);
+            length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            digest.update(b, off, len);
+            length += len;
+        }
+
+        String getChecksum()
+        {
+            if (checksum == null)
+            {
+                checksum = Utils.toHex(digest.digest());
+            }
+            return checksum;
+        }
+
+        long getLength()
+        {
+            return length;
+        }
     }
 }
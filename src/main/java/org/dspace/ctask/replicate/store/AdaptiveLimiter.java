@@ -0,0 +1,82 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+/**
+ * AdaptiveLimiter bounds the number of concurrent requests made to a remote
+ * store, adjusting the bound with an AIMD (additive increase, multiplicative
+ * decrease) rule: each fast, successful request raises the limit by
+ * 1/limit (roughly +1 per 'round' of requests), while a failure or a
+ * request slower than the latency target halves it. The limit always stays
+ * between the configured minimum and maximum.
+ */
+public class AdaptiveLimiter
+{
+    private final int minLimit;
+    private final int maxLimit;
+    // latency above which a request counts as a congestion signal (ms)
+    private final long latencyTarget;
+    // current (fractional) limit
+    private double limit;
+    // requests currently in flight
+    private int inFlight = 0;
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long latencyTarget)
+    {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyTarget = latencyTarget;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * Blocks until a request may be issued under the current limit.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException
+    {
+        while (inFlight >= (int) limit)
+        {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Records the outcome of a request issued after <code>acquire</code>,
+     * and adjusts the limit accordingly.
+     *
+     * @param latency elapsed time of request (ms), or -1 if latency
+     *        should not be taken as a signal (e.g. bulk transfers)
+     * @param success whether the request succeeded
+     */
+    public synchronized void release(long latency, boolean success)
+    {
+        inFlight--;
+        if (! success || (latency >= 0L && latency > latencyTarget))
+        {
+            limit = Math.max(minLimit, limit / 2.0);
+        }
+        else
+        {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        notifyAll();
+    }
+
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+}
@@ -0,0 +1,536 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.dspace.ctask.replicate.BandwidthThrottle;
+import org.dspace.ctask.replicate.MeteredObjectStore;
+import org.dspace.ctask.replicate.ObjectStore;
+import org.dspace.ctask.replicate.Odometer;
+import org.dspace.ctask.replicate.RangedObjectStore;
+import org.dspace.ctask.replicate.ThrottledObjectStore;
+import org.dspace.curate.Utils;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * CachingObjectStore is a read-through cache in front of another ObjectStore
+ * (configured by 'replicate.cache.store'). Fetched objects are kept on local
+ * disk in a size-bounded, least-recently-used cache. A cached copy is only
+ * served if it still agrees with the stored object on the configured
+ * validation attribute ('checksum' by default), so the cache never returns
+ * stale content - but a hit costs one attribute lookup instead of a download.
+ * <P>
+ * Transfers are written through (the transferred file is also cached), and
+ * removals or moves invalidate cached copies. An entry being served is
+ * pinned: if invalidated or evicted meanwhile, it is removed once served. Ranged reads go straight to
+ * the cached store, if it supports them. Cache hits, misses and bytes
+ * served from cache are reported as odometer readings.
+ * <P>
+ * Only content moved to or from the cached store is throttled and counted
+ * as downloaded: a hit is a local copy, so fetchObject reports 0 bytes
+ * fetched for it.
+ * <P>
+ * To use, configure this class as the ObjectStore plugin, and name the
+ * real store in 'replicate.cache.store'.
+ */
+public class CachingObjectStore implements MeteredObjectStore, RangedObjectStore, ThrottledObjectStore
+{
+    private static Logger log = Logger.getLogger(CachingObjectStore.class);
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // suffix of the per-entry metadata files
+    private static final String META_SUFFIX = ".cachemeta";
+    // metadata property holding the validation attribute value
+    private static final String VALIDATOR = "validator";
+    // names of files being written into the cache end '.tmp<thread id>'
+    private static final Pattern TMP_NAME = Pattern.compile(".*\\.tmp\\d+");
+
+    // the store being cached
+    private ObjectStore store = null;
+    // root directory of the cache
+    private File cacheDir = null;
+    // maximum bytes held in cache
+    private long maxBytes = 0L;
+    // store attribute used to validate cached copies
+    private String validateAttr = null;
+    // cache entries, in least-recently-used order
+    private final LinkedHashMap<String, CacheEntry> entries =
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+    // bytes currently held in cache
+    private long cachedBytes = 0L;
+    // files of entries removed from the index while still being served
+    private final Set<File> busy = new HashSet<File>();
+    // throttles to pay for cached store transfers, if it does not itself
+    private BandwidthThrottle uploadThrottle = null;
+    private BandwidthThrottle downloadThrottle = null;
+    // readings since last collected
+    private long hits = 0L;
+    private long misses = 0L;
+    private long saved = 0L;
+
+    // need no-arg constructor for PluginManager
+    public CachingObjectStore()
+    {
+    }
+
+    @Override
+    public void init() throws IOException
+    {
+        String storeClass = configurationService.getProperty("replicate.cache.store");
+        if (storeClass == null)
+        {
+            throw new IOException("CachingObjectStore requires 'replicate.cache.store' to be configured");
+        }
+        try
+        {
+            store = (ObjectStore) Class.forName(storeClass).newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Unable to instantiate cached store '" + storeClass + "'", e);
+        }
+        store.init();
+
+        String dir = configurationService.getProperty("replicate.cache.dir");
+        if (dir == null)
+        {
+            dir = configurationService.getProperty("replicate.base.dir") + File.separator + "cache";
+        }
+        cacheDir = new File(dir);
+        cacheDir.mkdirs();
+        maxBytes = configurationService.getLongProperty("replicate.cache.maxbytes", 1024L * 1024L * 1024L);
+        validateAttr = configurationService.getProperty("replicate.cache.validate");
+        if (validateAttr == null)
+        {
+            validateAttr = "checksum";
+        }
+        loadIndex();
+    }
+
+    @Override
+    public long fetchObject(String group, String id, File file) throws IOException
+    {
+        String validator = store.objectAttribute(group, id, validateAttr);
+        if (validator == null)
+        {
+            // no such object in store - so nothing to cache either
+            invalidate(group, id);
+            return 0L;
+        }
+        CacheEntry entry = lookup(group, id);
+        if (entry != null)
+        {
+            try
+            {
+                if (validator.equals(entry.validator))
+                {
+                    Utils.copy(entry.file, file);
+                    synchronized (this)
+                    {
+                        hits++;
+                        saved += entry.size;
+                    }
+                    // nothing downloaded
+                    return 0L;
+                }
+            }
+            finally
+            {
+                unpin(entry);
+            }
+        }
+        long size = store.fetchObject(group, id, file);
+        if (downloadThrottle != null)
+        {
+            downloadThrottle.acquire(size);
+        }
+        synchronized (this)
+        {
+            misses++;
+        }
+        if (size > 0L && file.exists())
+        {
+            admit(group, id, file, validator);
+        }
+        return size;
+    }
+
+    @Override
+    public InputStream fetchRange(String group, String id, long start, long end) throws IOException
+    {
+        if (! (store instanceof RangedObjectStore))
+        {
+            throw new RangedFetcher.RangesUnsupportedException("Cached store cannot read ranges");
+        }
+        return ((RangedObjectStore) store).fetchRange(group, id, start, end);
+    }
+
+    @Override
+    public long transferObject(String group, File file) throws IOException
+    {
+        // copy into cache first, as the store may consume the file
+        String id = file.getName();
+        File staged = null;
+        String checksum = null;
+        if (file.length() <= maxBytes)
+        {
+            staged = tmpFile(cacheFile(group, id));
+            Utils.copy(file, staged);
+            if ("checksum".equals(validateAttr))
+            {
+                checksum = Utils.checksum(staged, "MD5");
+            }
+        }
+        try
+        {
+            invalidate(group, id);
+            long size = store.transferObject(group, file);
+            if (uploadThrottle != null)
+            {
+                uploadThrottle.acquire(size);
+            }
+            if (staged != null)
+            {
+                String validator = (checksum != null) ? checksum : store.objectAttribute(group, id, validateAttr);
+                if (validator != null)
+                {
+                    install(group, id, staged, validator);
+                }
+            }
+            return size;
+        }
+        finally
+        {
+            if (staged != null)
+            {
+                staged.delete();
+            }
+        }
+    }
+
+    @Override
+    public long removeObject(String group, String id) throws IOException
+    {
+        invalidate(group, id);
+        return store.removeObject(group, id);
+    }
+
+    @Override
+    public long moveObject(String srcGroup, String destGroup, String id) throws IOException
+    {
+        invalidate(srcGroup, id);
+        invalidate(destGroup, id);
+        return store.moveObject(srcGroup, destGroup, id);
+    }
+
+    @Override
+    public boolean objectExists(String group, String id) throws IOException
+    {
+        return store.objectExists(group, id);
+    }
+
+    @Override
+    public String objectAttribute(String group, String id, String attrName) throws IOException
+    {
+        return store.objectAttribute(group, id, attrName);
+    }
+
+    @Override
+    public void setThrottles(BandwidthThrottle upload, BandwidthThrottle download)
+    {
+        if (store instanceof ThrottledObjectStore)
+        {
+            ((ThrottledObjectStore) store).setThrottles(upload, download);
+        }
+        else
+        {
+            // pay for whole objects, as ReplicaManager would have
+            uploadThrottle = upload;
+            downloadThrottle = download;
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Long> readings()
+    {
+        Map<String, Long> readings = new HashMap<String, Long>();
+        if (store instanceof MeteredObjectStore)
+        {
+            readings.putAll(((MeteredObjectStore) store).readings());
+        }
+        readings.put(Odometer.CACHE_HITS, hits);
+        readings.put(Odometer.CACHE_MISSES, misses);
+        readings.put(Odometer.CACHE_SAVED, saved);
+        hits = misses = saved = 0L;
+        return readings;
+    }
+
+    /*
+     * Returns the cache entry of an object, pinned, or null if none
+     */
+    private synchronized CacheEntry lookup(String group, String id)
+    {
+        CacheEntry entry = entries.get(key(group, id));
+        if (entry != null && ! entry.file.exists())
+        {
+            // removed behind our back
+            entries.remove(key(group, id));
+            cachedBytes -= entry.size;
+            entry = null;
+        }
+        if (entry != null)
+        {
+            entry.pins++;
+        }
+        return entry;
+    }
+
+    private synchronized void unpin(CacheEntry entry)
+    {
+        if (--entry.pins == 0 && entry.dropped)
+        {
+            busy.remove(entry.file);
+            entry.delete();
+        }
+    }
+
+    /*
+     * Adds a copy of the passed file to the cache. The copy is made
+     * without holding the cache lock.
+     */
+    private void admit(String group, String id, File source, String validator) throws IOException
+    {
+        if (source.length() > maxBytes)
+        {
+            return;
+        }
+        File tmp = tmpFile(cacheFile(group, id));
+        try
+        {
+            Utils.copy(source, tmp);
+            install(group, id, tmp, validator);
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    /*
+     * Renames a file written into the cache into place, evicting least
+     * recently used entries as needed to stay within budget. Nothing is
+     * cached if the previous entry's file is still being served.
+     */
+    private synchronized void install(String group, String id, File tmp, String validator) throws IOException
+    {
+        File cached = cacheFile(group, id);
+        invalidate(group, id);
+        if (busy.contains(cached))
+        {
+            return;
+        }
+        cached.delete();
+        if (! tmp.renameTo(cached))
+        {
+            log.warn("Unable to cache '" + key(group, id) + "'");
+            return;
+        }
+        Properties meta = new Properties();
+        meta.setProperty(VALIDATOR, validator);
+        OutputStream out = new FileOutputStream(metaFile(cached));
+        try
+        {
+            meta.store(out, null);
+        }
+        finally
+        {
+            out.close();
+        }
+        long size = cached.length();
+        entries.put(key(group, id), new CacheEntry(cached, size, validator));
+        cachedBytes += size;
+        evict();
+    }
+
+    private synchronized void evict()
+    {
+        Iterator<CacheEntry> iter = entries.values().iterator();
+        while (cachedBytes > maxBytes && iter.hasNext())
+        {
+            CacheEntry entry = iter.next();
+            iter.remove();
+            cachedBytes -= entry.size;
+            drop(entry);
+        }
+    }
+
+    private synchronized void invalidate(String group, String id)
+    {
+        CacheEntry entry = entries.remove(key(group, id));
+        if (entry != null)
+        {
+            cachedBytes -= entry.size;
+            drop(entry);
+        }
+    }
+
+    /*
+     * Removes the files of an entry no longer indexed - once no longer served
+     */
+    private void drop(CacheEntry entry)
+    {
+        if (entry.pins > 0)
+        {
+            entry.dropped = true;
+            busy.add(entry.file);
+        }
+        else
+        {
+            entry.delete();
+        }
+    }
+
+    /*
+     * Rebuilds the cache index from disk - least recently modified first,
+     * as the best available approximation of least recently used
+     */
+    private synchronized void loadIndex() throws IOException
+    {
+        List<File> files = new ArrayList<File>();
+        collectFiles(cacheDir, files);
+        Collections.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File f1, File f2)
+            {
+                return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+            }
+        });
+        String rootPath = cacheDir.getAbsolutePath() + File.separator;
+        for (File file : files)
+        {
+            File meta = metaFile(file);
+            if (! meta.exists())
+            {
+                // partial entry - discard
+                file.delete();
+                continue;
+            }
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(meta);
+            try
+            {
+                props.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+            String relPath = file.getAbsolutePath().substring(rootPath.length());
+            String key = relPath.replace(File.separatorChar, '/');
+            entries.put(key, new CacheEntry(file, file.length(), props.getProperty(VALIDATOR)));
+            cachedBytes += file.length();
+        }
+        evict();
+        log.info("Replica cache holds " + entries.size() + " objects (" + cachedBytes + " bytes)");
+    }
+
+    private void collectFiles(File dir, List<File> files)
+    {
+        File[] children = dir.listFiles();
+        if (children == null)
+        {
+            return;
+        }
+        for (File child : children)
+        {
+            if (child.isDirectory())
+            {
+                collectFiles(child, files);
+            }
+            else if (child.getName().endsWith(META_SUFFIX))
+            {
+                // metadata is read alongside its entry
+            }
+            else if (TMP_NAME.matcher(child.getName()).matches())
+            {
+                // leftover of an interrupted transfer
+                child.delete();
+            }
+            else
+            {
+                files.add(child);
+            }
+        }
+    }
+
+    private String key(String group, String id)
+    {
+        return group + "/" + id;
+    }
+
+    private File cacheFile(String group, String id)
+    {
+        return new File(cacheDir, group + File.separator + id);
+    }
+
+    private static File metaFile(File cached)
+    {
+        return new File(cached.getParentFile(), cached.getName() + META_SUFFIX);
+    }
+
+    private static File tmpFile(File cached)
+    {
+        cached.getParentFile().mkdirs();
+        return new File(cached.getParentFile(), cached.getName() + ".tmp" + Thread.currentThread().getId());
+    }
+
+    private static class CacheEntry
+    {
+        private final File file;
+        private final long size;
+        private final String validator;
+        // fetches serving the entry, and whether it was dropped meanwhile
+        private int pins = 0;
+        private boolean dropped = false;
+
+        private CacheEntry(File file, long size, String validator)
+        {
+            this.file = file;
+            this.size = size;
+            this.validator = validator;
+        }
+
+        private void delete()
+        {
+            file.delete();
+            metaFile(file).delete();
+        }
+    }
+}
@@ -12,9 +12,17 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.log4j.Logger;
 import org.dspace.services.ConfigurationService;
 import org.dspace.services.factory.DSpaceServicesFactory;
 import org.duracloud.client.ContentStore;
@@ -25,8 +33,12 @@ import org.duracloud.domain.Content;
 import org.duracloud.error.ContentStoreException;
 import org.duracloud.error.NotFoundException;
 
-import org.dspace.ctask.replicate.ObjectStore;
+import org.dspace.ctask.replicate.BandwidthThrottle;
+import org.dspace.ctask.replicate.RangedObjectStore;
+import org.dspace.ctask.replicate.StreamingObjectStore;
+import org.dspace.ctask.replicate.ThrottledObjectStore;
 import org.dspace.curate.Utils;
+import org.dspace.pack.PooledBuffer;
 
 /**
  * DuraCloudReplicaStore invokes the DuraCloud RESTful web service API,
@@ -34,12 +46,29 @@ import org.dspace.curate.Utils;
  *
  * @author richardrodgers
  */
-public class DuraCloudObjectStore implements ObjectStore
+public class DuraCloudObjectStore implements StreamingObjectStore, RangedObjectStore, ThrottledObjectStore
 {
     private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
 
+    private static Logger log = Logger.getLogger(DuraCloudObjectStore.class);
+
     // DuraCloud store
     private ContentStore dcStore = null;
+    // objects at least this large are fetched in parallel ranges (0 = never)
+    private long rangeThreshold = 0L;
+    // engine for ranged fetches
+    private RangedFetcher rangedFetcher = null;
+    // throttles of content sent and fetched (may be null)
+    private BandwidthThrottle uploadThrottle = null;
+    private BandwidthThrottle downloadThrottle = null;
+    // base URL of DuraStore REST API, used for ranged fetches
+    private String storeBaseUrl = null;
+    // HTTP basic authentication header for DuraStore REST API
+    private String authHeader = null;
+    // connect and read timeouts of ranged fetches
+    private RequestConfig rangeConfig = null;
+    // retrying, concurrency-limiting transport for all DuraCloud requests
+    private StoreTransport transport = null;
     
     public DuraCloudObjectStore()
     {
@@ -57,6 +86,25 @@ public class DuraCloudObjectStore implements ObjectStore
             new Credential(configurationService.getProperty("duracloud.username"),
                            configurationService.getProperty("duracloud.password"));
         storeManager.login(credential);
+        transport = new StoreTransport("DuraCloud", "duracloud.transport", NotFoundException.class);
+
+        // settings for ranged (parallel, resumable) fetches of large objects
+        rangeThreshold = configurationService.getLongProperty("duracloud.fetch.range.threshold", 0L);
+        rangedFetcher = new RangedFetcher(configurationService.getIntProperty("duracloud.fetch.range.threads", 4),
+                                          configurationService.getLongProperty("duracloud.fetch.range.size", 16L * 1024L * 1024L));
+        int httpTimeout = configurationService.getIntProperty("duracloud.fetch.range.timeout", 60000);
+        rangeConfig = RequestConfig.custom().setConnectTimeout(httpTimeout).setSocketTimeout(httpTimeout).build();
+        String port = configurationService.getProperty("duracloud.port");
+        String protocol = configurationService.getProperty("duracloud.protocol");
+        if (protocol == null)
+        {
+            protocol = "https";
+        }
+        storeBaseUrl = protocol + "://" +
+                       configurationService.getProperty("duracloud.host") + ":" + port + "/" +
+                       configurationService.getProperty("duracloud.context") + "/";
+        String userPass = credential.getUsername() + ":" + credential.getPassword();
+        authHeader = "Basic " + Base64.encodeBase64String(userPass.getBytes("UTF-8")).trim();
         try
         {
             //Get the primary content store (e.g. Amazon)   
@@ -71,36 +119,183 @@ public class DuraCloudObjectStore implements ObjectStore
     @Override
     public long fetchObject(String group, String id, File file) throws IOException
     {
-        long size = 0L;
-        try
+        // the size is only needed to choose a ranged fetch
+        if (rangeThreshold > 0L)
         {
-             // DEBUG REMOVE
-            long start = System.currentTimeMillis();
-            Content content = dcStore.getContent(getSpaceID(group), getContentPrefix(group) + id);
-            // DEBUG REMOVE
-            long elapsed = System.currentTimeMillis() - start;
-            //System.out.println("DC fetch content: " + elapsed);
-            size = Long.valueOf(content.getProperties().get(ContentStore.CONTENT_SIZE));
-            FileOutputStream out = new FileOutputStream(file);
-            // DEBUG remove
-            start = System.currentTimeMillis();
-            InputStream in = content.getStream();
-            Utils.copy(in, out);
-            in.close();
-            out.close();
-             // DEBUG REMOVE
-            elapsed = System.currentTimeMillis() - start;
-            //System.out.println("DC fetch download: " + elapsed);
+            try
+            {
+                Map<String, String> attrs = contentProperties(group, id);
+                long size = Long.valueOf(attrs.get(ContentStore.CONTENT_SIZE));
+                if (size >= rangeThreshold)
+                {
+                    try
+                    {
+                        rangedFetcher.fetch(new DuraCloudRangeSource(group, id), size,
+                                            attrs.get(ContentStore.CONTENT_CHECKSUM), file);
+                        return size;
+                    }
+                    catch (RangedFetcher.RangesUnsupportedException ruE)
+                    {
+                        log.warn("Ranged fetch unavailable, using single stream: " + ruE.getMessage());
+                    }
+                }
+            }
+            catch (NotFoundException nfE)
+            {
+                // no object - no-op
+                return 0L;
+            }
+            catch (ContentStoreException csE)
+            {
+                throw new IOException(csE);
+            }
         }
-        catch (NotFoundException nfE)
+        return streamContent(group, id, file) ? file.length() : 0L;
+    }
+
+    @Override
+    public void setThrottles(BandwidthThrottle upload, BandwidthThrottle download)
+    {
+        uploadThrottle = upload;
+        downloadThrottle = download;
+        rangedFetcher.setThrottle(download);
+    }
+
+    @Override
+    public InputStream fetchRange(String group, String id, long start, long end) throws IOException
+    {
+        return new DuraCloudRangeSource(group, id).openRange(start, end);
+    }
+
+    /*
+     * Fetches an object's content over a single stream, retrying
+     * from the start on a transient failure. Returns false if there
+     * is no such object.
+     */
+    private boolean streamContent(final String group, final String id, final File file) throws IOException
+    {
+        return transport.execute(StoreTransport.Kind.TRANSFER, new StoreTransport.Request<Boolean, IOException>()
+        {
+            @Override
+            public Boolean call() throws IOException
+            {
+                Content content;
+                try
+                {
+                    content = dcStore.getContent(getSpaceID(group), getContentPrefix(group) + id);
+                }
+                catch (NotFoundException nfE)
+                {
+                    // an answer, not a failure to retry
+                    return false;
+                }
+                catch (ContentStoreException csE)
+                {
+                    throw new IOException(csE);
+                }
+                // close both streams however the copy ends, so a retry leaks neither
+                InputStream in = BandwidthThrottle.limit(content.getStream(), downloadThrottle);
+                try
+                {
+                    OutputStream out = new FileOutputStream(file);
+                    try
+                    {
+                        Utils.copy(in, out);
+                    }
+                    finally
+                    {
+                        out.close();
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+                return true;
+            }
+        });
+    }
+
+    /*
+     * Obtains the DuraCloud properties of an object
+     */
+    private Map<String, String> contentProperties(final String group, final String id)
+        throws ContentStoreException, IOException
+    {
+        return transport.execute(StoreTransport.Kind.METADATA, new StoreTransport.Request<Map<String, String>, ContentStoreException>()
+        {
+            @Override
+            public Map<String, String> call() throws ContentStoreException
+            {
+                return dcStore.getContentProperties(getSpaceID(group), getContentPrefix(group) + id);
+            }
+        });
+    }
+
+    /**
+     * Serves byte ranges of a DuraCloud content item directly from the
+     * DuraStore REST API, using HTTP Range requests.
+     */
+    private class DuraCloudRangeSource implements RangedFetcher.RangeSource
+    {
+        private final String url;
+
+        private DuraCloudRangeSource(String group, String id) throws IOException
         {
-            // no object - no-op
+            StringBuilder sb = new StringBuilder();
+            sb.append(storeBaseUrl).append(encodePath(getSpaceID(group))).append("/");
+            sb.append(encodePath(getContentPrefix(group) + id));
+            url = sb.toString();
         }
-        catch (ContentStoreException csE)
+
+        @Override
+        public InputStream openRange(final long start, final long end) throws IOException
         {
-            throw new IOException(csE);
+            // the permit is held while the body is read
+            return transport.open(StoreTransport.Kind.TRANSFER, new StoreTransport.Request<InputStream, IOException>()
+            {
+                @Override
+                public InputStream call() throws IOException
+                {
+                    return request(start, end);
+                }
+            });
+        }
+
+        private InputStream request(long start, long end) throws IOException
+        {
+            HttpGet get = new HttpGet(url);
+            get.setConfig(rangeConfig);
+            get.setHeader("Authorization", authHeader);
+            get.setHeader("Range", "bytes=" + start + "-" + end);
+            CloseableHttpResponse response = transport.getHttpClient().execute(get);
+            int code = response.getStatusLine().getStatusCode();
+            if (code == HttpStatus.SC_PARTIAL_CONTENT)
+            {
+                // closing the body returns the connection to the pool
+                return response.getEntity().getContent();
+            }
+            response.close();
+            if (code == HttpStatus.SC_OK)
+            {
+                throw new RangedFetcher.RangesUnsupportedException("DuraStore ignored Range request for " + url);
+            }
+            throw new IOException("Ranged fetch of " + url + " failed with HTTP status " + code);
+        }
+
+        private String encodePath(String path) throws IOException
+        {
+            StringBuilder sb = new StringBuilder();
+            for (String segment : path.split("/", -1))
+            {
+                if (sb.length() > 0)
+                {
+                    sb.append("/");
+                }
+                sb.append(URLEncoder.encode(segment, "UTF-8").replace("+", "%20"));
+            }
+            return sb.toString();
         }
-        return size;
     }
     
     @Override
@@ -108,7 +303,7 @@ public class DuraCloudObjectStore implements ObjectStore
     {
         try
         {
-            return dcStore.getContentProperties(getSpaceID(group), getContentPrefix(group) + id) != null;
+            return contentProperties(group, id) != null;
         }
         catch (NotFoundException nfE)
         {
@@ -121,15 +316,23 @@ public class DuraCloudObjectStore implements ObjectStore
     }
 
     @Override
-    public long removeObject(String group, String id) throws IOException
+    public long removeObject(final String group, final String id) throws IOException
     {
         // get metadata before blowing away
         long size = 0L;
         try
         {
-            Map<String, String> attrs = dcStore.getContentProperties(getSpaceID(group), getContentPrefix(group) + id);
+            Map<String, String> attrs = contentProperties(group, id);
             size = Long.valueOf(attrs.get(ContentStore.CONTENT_SIZE));
-            dcStore.deleteContent(getSpaceID(group), getContentPrefix(group) + id);
+            transport.execute(StoreTransport.Kind.METADATA, new StoreTransport.Request<Void, ContentStoreException>()
+            {
+                @Override
+                public Void call() throws ContentStoreException
+                {
+                    dcStore.deleteContent(getSpaceID(group), getContentPrefix(group) + id);
+                    return null;
+                }
+            });
         }
         catch (NotFoundException nfE)
         {
@@ -151,7 +354,7 @@ public class DuraCloudObjectStore implements ObjectStore
         // to avoid network I/O tax
         try
         {
-            Map<String, String> attrs = dcStore.getContentProperties(getSpaceID(group), getContentPrefix(group) + file.getName());
+            Map<String, String> attrs = contentProperties(group, file.getName());
             if (! chkSum.equals(attrs.get(ContentStore.CONTENT_CHECKSUM)))
             {
                 size = uploadReplica(group, file, chkSum);
@@ -171,44 +374,116 @@ public class DuraCloudObjectStore implements ObjectStore
         return size;
     }
 
-    private long uploadReplica(String group, File file, String chkSum) throws IOException
+    @Override
+    public long transferObject(final String group, final String id, final PooledBuffer content) throws IOException
     {
+        final String chkSum = content.getChecksum();
         try
         {
-            //@TODO: We shouldn't need to pass a hardcoded MIME Type. Unfortunately, DuraCloud, 
-            // as of 1.3, doesn't properly determine a file's MIME Type. In future it should.
-            String mimeType = "application/octet-stream";
-            if(file.getName().endsWith(".zip"))
-                mimeType = "application/zip";
-            else if (file.getName().endsWith(".tgz"))
-                mimeType = "application/x-gzip";
-            else if(file.getName().endsWith(".txt"))
-                mimeType = "text/plain";
-            
-            dcStore.addContent(getSpaceID(group), getContentPrefix(group) + file.getName(),
-                               new FileInputStream(file), file.length(),
-                               mimeType, chkSum,
-                               new HashMap<String, String>());
-        
-            return file.length();
+            Map<String, String> attrs = contentProperties(group, id);
+            if (chkSum.equals(attrs.get(ContentStore.CONTENT_CHECKSUM)))
+            {
+                return 0L;
+            }
+        }
+        catch (NotFoundException nfE)
+        {
+            // no extant replica - proceed
         }
         catch (ContentStoreException csE)
         {
             throw new IOException(csE);
         }
+        // a PUT of the same content is idempotent, so may be retried
+        transport.execute(StoreTransport.Kind.TRANSFER, new StoreTransport.Request<Void, IOException>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                try
+                {
+                    dcStore.addContent(getSpaceID(group), getContentPrefix(group) + id,
+                                       BandwidthThrottle.limit(content.getInputStream(), uploadThrottle),
+                                       content.size(),
+                                       mimeType(id), chkSum,
+                                       new HashMap<String, String>());
+                    return null;
+                }
+                catch (ContentStoreException csE)
+                {
+                    throw new IOException(csE);
+                }
+            }
+        });
+        return content.size();
+    }
+
+    private String mimeType(String name)
+    {
+        //@TODO: We shouldn't need to pass a hardcoded MIME Type. Unfortunately, DuraCloud, 
+        // as of 1.3, doesn't properly determine a file's MIME Type. In future it should.
+        String mimeType = "application/octet-stream";
+        if(name.endsWith(".zip"))
+            mimeType = "application/zip";
+        else if (name.endsWith(".tgz"))
+            mimeType = "application/x-gzip";
+        else if(name.endsWith(".txt"))
+            mimeType = "text/plain";
+        return mimeType;
+    }
+
+    private long uploadReplica(final String group, final File file, final String chkSum) throws IOException
+    {
+        final String contentType = mimeType(file.getName());
+
+        // a PUT of the same content is idempotent, so may be retried
+        transport.execute(StoreTransport.Kind.TRANSFER, new StoreTransport.Request<Void, IOException>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                InputStream in = BandwidthThrottle.limit(new FileInputStream(file), uploadThrottle);
+                try
+                {
+                    dcStore.addContent(getSpaceID(group), getContentPrefix(group) + file.getName(),
+                                       in, file.length(),
+                                       contentType, chkSum,
+                                       new HashMap<String, String>());
+                    return null;
+                }
+                catch (ContentStoreException csE)
+                {
+                    throw new IOException(csE);
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+        });
+        return file.length();
     }
 
     @Override
-    public long moveObject(String srcGroup, String destGroup, String id) throws IOException
+    public long moveObject(final String srcGroup, final String destGroup, final String id) throws IOException
     {
         // get file-size metadata before moving the content
         long size = 0L;
         try
         {
-            Map<String, String> attrs = dcStore.getContentProperties(getSpaceID(srcGroup), getContentPrefix(srcGroup) + id);
+            Map<String, String> attrs = contentProperties(srcGroup, id);
             size = Long.valueOf(attrs.get(ContentStore.CONTENT_SIZE));
-            dcStore.moveContent(getSpaceID(srcGroup), getContentPrefix(srcGroup) + id, 
-                                getSpaceID(destGroup), getContentPrefix(destGroup) + id);
+            // a move is not idempotent, so is never retried
+            transport.execute(StoreTransport.Kind.MUTATION, new StoreTransport.Request<Void, ContentStoreException>()
+            {
+                @Override
+                public Void call() throws ContentStoreException
+                {
+                    dcStore.moveContent(getSpaceID(srcGroup), getContentPrefix(srcGroup) + id,
+                                        getSpaceID(destGroup), getContentPrefix(destGroup) + id);
+                    return null;
+                }
+            });
         }
         catch (NotFoundException nfE)
         {
@@ -226,7 +501,7 @@ public class DuraCloudObjectStore implements ObjectStore
     {
         try
         {
-            Map<String, String> attrs = dcStore.getContentProperties(getSpaceID(group), getContentPrefix(group) + id);
+            Map<String, String> attrs = contentProperties(group, id);
             
             if ("checksum".equals(attrName))
             {
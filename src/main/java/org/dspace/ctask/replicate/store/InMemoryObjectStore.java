@@ -0,0 +1,291 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.dspace.ctask.replicate.StreamingObjectStore;
+import org.dspace.curate.Utils;
+import org.dspace.pack.PooledBuffer;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * InMemoryObjectStore keeps replicas in memory, outside the Java heap, as
+ * lists of fixed-size direct ByteBuffer segments. It performs no disk or
+ * network I/O of its own, so it isolates the cost of packing and of the
+ * replication machinery itself when benchmarking or load testing tasks.
+ * <P>
+ * To approximate a remote store, each operation can be given an injected
+ * latency, and transfers a bandwidth limit (per direction). Like the
+ * DuraCloud store, a transfer of content identical to the stored copy is
+ * skipped. Contents are lost when the JVM exits, so this store is not
+ * intended for any real replication.
+ */
+public class InMemoryObjectStore implements StreamingObjectStore
+{
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // configuration property prefix
+    private static final String PREFIX = "replicate.memstore.";
+
+    // stored objects, keyed by group and id
+    private final ConcurrentMap<String, StoredObject> objects = new ConcurrentHashMap<String, StoredObject>();
+    // size of each off-heap segment
+    private int segmentSize = 1024 * 1024;
+    // injected latencies (ms)
+    private long fetchLatency = 0L;
+    private long transferLatency = 0L;
+    private long attributeLatency = 0L;
+    private long removeLatency = 0L;
+    private long moveLatency = 0L;
+    // simulated bandwidth (bytes/second, 0 = unlimited)
+    private long uploadBandwidth = 0L;
+    private long downloadBandwidth = 0L;
+
+    // need no-arg constructor for PluginManager
+    public InMemoryObjectStore()
+    {
+    }
+
+    @Override
+    public void init() throws IOException
+    {
+        segmentSize = configurationService.getIntProperty(PREFIX + "segment.size", segmentSize);
+        long latency = configurationService.getLongProperty(PREFIX + "latency", 0L);
+        fetchLatency = configurationService.getLongProperty(PREFIX + "latency.fetch", latency);
+        transferLatency = configurationService.getLongProperty(PREFIX + "latency.transfer", latency);
+        attributeLatency = configurationService.getLongProperty(PREFIX + "latency.attribute", latency);
+        removeLatency = configurationService.getLongProperty(PREFIX + "latency.remove", latency);
+        moveLatency = configurationService.getLongProperty(PREFIX + "latency.move", latency);
+        uploadBandwidth = configurationService.getLongProperty(PREFIX + "bandwidth.upload", 0L);
+        downloadBandwidth = configurationService.getLongProperty(PREFIX + "bandwidth.download", 0L);
+    }
+
+    @Override
+    public long fetchObject(String group, String id, File file) throws IOException
+    {
+        delay(fetchLatency);
+        StoredObject obj = objects.get(key(group, id));
+        if (obj == null)
+        {
+            return 0L;
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            FileChannel channel = out.getChannel();
+            for (ByteBuffer segment : obj.segments)
+            {
+                ByteBuffer view = segment.duplicate();
+                view.rewind();
+                while (view.hasRemaining())
+                {
+                    channel.write(view);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        throttle(obj.size, downloadBandwidth);
+        return obj.size;
+    }
+
+    @Override
+    public long transferObject(String group, File file) throws IOException
+    {
+        delay(transferLatency);
+        FileInputStream in = new FileInputStream(file);
+        StoredObject obj = null;
+        try
+        {
+            obj = load(in.getChannel(), file.length());
+        }
+        finally
+        {
+            in.close();
+        }
+        long size = store(key(group, file.getName()), obj);
+        file.delete();
+        return size;
+    }
+
+    @Override
+    public long transferObject(String group, String id, PooledBuffer content) throws IOException
+    {
+        delay(transferLatency);
+        return store(key(group, id), load(Channels.newChannel(content.getInputStream()), content.size()));
+    }
+
+    private long store(String key, StoredObject obj) throws IOException
+    {
+        StoredObject prev = objects.get(key);
+        long size = 0L;
+        // like a remote store, skip transfers of unchanged content
+        if (prev == null || ! prev.checksum.equals(obj.checksum))
+        {
+            throttle(obj.size, uploadBandwidth);
+            objects.put(key, obj);
+            size = obj.size;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean objectExists(String group, String id) throws IOException
+    {
+        delay(attributeLatency);
+        return objects.containsKey(key(group, id));
+    }
+
+    @Override
+    public String objectAttribute(String group, String id, String attrName) throws IOException
+    {
+        delay(attributeLatency);
+        StoredObject obj = objects.get(key(group, id));
+        if (obj == null)
+        {
+            return null;
+        }
+        if ("checksum".equals(attrName))
+        {
+            return obj.checksum;
+        }
+        else if ("sizebytes".equals(attrName))
+        {
+            return String.valueOf(obj.size);
+        }
+        else if ("modified".equals(attrName))
+        {
+            return String.valueOf(obj.modified);
+        }
+        return null;
+    }
+
+    @Override
+    public long removeObject(String group, String id) throws IOException
+    {
+        delay(removeLatency);
+        StoredObject obj = objects.remove(key(group, id));
+        return (obj != null) ? obj.size : 0L;
+    }
+
+    @Override
+    public long moveObject(String srcGroup, String destGroup, String id) throws IOException
+    {
+        delay(moveLatency);
+        StoredObject obj = objects.remove(key(srcGroup, id));
+        if (obj == null)
+        {
+            return 0L;
+        }
+        objects.put(key(destGroup, id), obj);
+        return obj.size;
+    }
+
+    /*
+     * Reads content of known size into off-heap segments, the last no
+     * larger than what is left, computing its checksum on the way
+     */
+    private StoredObject load(ReadableByteChannel channel, long size) throws IOException
+    {
+        MessageDigest digest = null;
+        try
+        {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException nsaE)
+        {
+            throw new IOException("no algorithm: MD5");
+        }
+        List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+        long loaded = 0L;
+        while (loaded < size)
+        {
+            ByteBuffer segment = ByteBuffer.allocateDirect((int) Math.min(segmentSize, size - loaded));
+            while (segment.hasRemaining())
+            {
+                if (channel.read(segment) == -1)
+                {
+                    throw new IOException("Content ended after " + (loaded + segment.position()) +
+                                          " of " + size + " bytes");
+                }
+            }
+            segment.flip();
+            loaded += segment.remaining();
+            digest.update(segment.duplicate());
+            segments.add(segment);
+        }
+        return new StoredObject(segments, size, Utils.toHex(digest.digest()));
+    }
+
+    private String key(String group, String id)
+    {
+        return group + "/" + id;
+    }
+
+    private void delay(long millis) throws IOException
+    {
+        if (millis > 0L)
+        {
+            sleep(millis);
+        }
+    }
+
+    // simulate a transfer of 'bytes' over a link of 'bandwidth' bytes/sec
+    private void throttle(long bytes, long bandwidth) throws IOException
+    {
+        if (bandwidth > 0L)
+        {
+            sleep(bytes * 1000L / bandwidth);
+        }
+    }
+
+    private void sleep(long millis) throws IOException
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", intE);
+        }
+    }
+
+    private static class StoredObject
+    {
+        private final List<ByteBuffer> segments;
+        private final long size;
+        private final String checksum;
+        private final long modified = System.currentTimeMillis();
+
+        private StoredObject(List<ByteBuffer> segments, long size, String checksum)
+        {
+            this.segments = segments;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+}
@@ -8,10 +8,20 @@
 package org.dspace.ctask.replicate.store;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
-import org.dspace.ctask.replicate.ObjectStore;
+import org.dspace.ctask.replicate.BandwidthThrottle;
+import org.dspace.ctask.replicate.RangedObjectStore;
+import org.dspace.ctask.replicate.StreamingObjectStore;
+import org.dspace.ctask.replicate.ThrottledObjectStore;
 import org.dspace.curate.Utils;
+import org.dspace.pack.PooledBuffer;
 import org.dspace.services.ConfigurationService;
 import org.dspace.services.factory.DSpaceServicesFactory;
 
@@ -29,11 +39,14 @@ import org.dspace.services.factory.DSpaceServicesFactory;
  * 
  * @author richardrodgers
  */
-public class LocalObjectStore implements ObjectStore {
+public class LocalObjectStore implements StreamingObjectStore, RangedObjectStore, ThrottledObjectStore {
     private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
 
     // where replicas are kept
     protected String storeDir = null;
+    // throttles of content copied in and out (may be null)
+    protected BandwidthThrottle uploadThrottle = null;
+    protected BandwidthThrottle downloadThrottle = null;
     
     // need no-arg constructor for PluginManager
     public LocalObjectStore() {
@@ -59,11 +72,64 @@ public class LocalObjectStore implements ObjectStore {
         if (archFile.exists())
         {
             size = archFile.length();
-            Utils.copy(archFile, file);
+            copy(archFile, file, downloadThrottle);
         }
         return size;
     }
 
+    @Override
+    public InputStream fetchRange(String group, String id, long start, long end) throws IOException
+    {
+        File archFile = new File(storeDir + File.separator + group, id);
+        if (! archFile.exists())
+        {
+            throw new FileNotFoundException("No object '" + id + "' in group '" + group + "'");
+        }
+        // skip() would silently pass the end of the file
+        if (start < 0L || start >= archFile.length() || end < start)
+        {
+            throw new IOException("Range " + start + "-" + end + " is outside '" + id + "'");
+        }
+        final FileInputStream in = new FileInputStream(archFile);
+        in.getChannel().position(start);
+        // limit reads to the range
+        final long length = end - start + 1;
+        return new FilterInputStream(in)
+        {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException
+            {
+                if (remaining <= 0L)
+                {
+                    return -1;
+                }
+                int b = in.read();
+                if (b >= 0)
+                {
+                    remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                if (remaining <= 0L)
+                {
+                    return -1;
+                }
+                int n = in.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0)
+                {
+                    remaining -= n;
+                }
+                return n;
+            }
+        };
+    }
+
     @Override
     public boolean objectExists(String group, String id)
     {
@@ -108,6 +174,76 @@ public class LocalObjectStore implements ObjectStore {
         return archFile.length();
     }
 
+    @Override
+    public long transferObject(String group, String id, PooledBuffer content) throws IOException
+    {
+        // write in-memory content beside its place, then rename into it, so
+        // readers never see a partial object
+        File archDir = new File(storeDir, group);
+        if (! archDir.isDirectory())
+        {
+            archDir.mkdirs();
+        }
+        File tmpFile = File.createTempFile("." + id + "-", ".tmp", archDir);
+        try
+        {
+            OutputStream out = new FileOutputStream(tmpFile);
+            try
+            {
+                content.writeTo(BandwidthThrottle.limit(out, uploadThrottle));
+            }
+            finally
+            {
+                out.close();
+            }
+            File archFile = new File(archDir, id);
+            if (! tmpFile.renameTo(archFile))
+            {
+                archFile.delete();
+                if (! tmpFile.renameTo(archFile))
+                {
+                    throw new IOException("Unable to rename " + tmpFile + " to " + archFile);
+                }
+            }
+        }
+        finally
+        {
+            tmpFile.delete();
+        }
+        return content.size();
+    }
+
+    @Override
+    public void setThrottles(BandwidthThrottle upload, BandwidthThrottle download)
+    {
+        uploadThrottle = upload;
+        downloadThrottle = download;
+    }
+
+    /*
+     * Copies a file, paying the throttle as it goes (renames cost nothing)
+     */
+    protected void copy(File from, File to, BandwidthThrottle throttle) throws IOException
+    {
+        InputStream in = BandwidthThrottle.limit(new FileInputStream(from), throttle);
+        try
+        {
+            OutputStream out = new FileOutputStream(to);
+            try
+            {
+                Utils.copy(in, out);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
     @Override
     public String objectAttribute(String group, String id, String attrName) throws IOException
     {
@@ -10,8 +10,6 @@ package org.dspace.ctask.replicate.store;
 import java.io.File;
 import java.io.IOException;
 
-import org.dspace.curate.Utils;
-
 /**
  * MountableObjectStore uses a mountable file system to manage replicas or other
  * content. As such, it is not intended to provide the level of assurance that
@@ -44,7 +42,7 @@ public class MountableObjectStore extends LocalObjectStore
         {
             archFile.delete();
         }
-        Utils.copy(file, archFile);
+        copy(file, archFile, uploadThrottle);
         return file.length();
     }
 }
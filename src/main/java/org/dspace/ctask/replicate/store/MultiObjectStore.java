@@ -0,0 +1,966 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.dspace.ctask.replicate.BandwidthThrottle;
+import org.dspace.ctask.replicate.MeteredObjectStore;
+import org.dspace.ctask.replicate.ObjectStore;
+import org.dspace.ctask.replicate.RangedObjectStore;
+import org.dspace.ctask.replicate.StreamingObjectStore;
+import org.dspace.ctask.replicate.ThrottledObjectStore;
+import org.dspace.curate.Utils;
+import org.dspace.pack.PooledBuffer;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * MultiObjectStore replicates to several ObjectStores ('backends') at once.
+ * Each transfer is written to all backends in parallel, and succeeds when a
+ * configurable write quorum of backends has accepted it. Backends which
+ * failed are recorded in a persistent repair queue, and brought up to date
+ * in the background: by copying the object from a backend which has it, or
+ * by redoing the removal or move they missed. The queue is shared by all
+ * processes using the same replicate base directory.
+ * <P>
+ * A staged file is read once for all backends able to take in-memory
+ * content (see StreamingObjectStore), if no larger than a limit; other
+ * backends each get their own link to the file.
+ * <P>
+ * Reads are served by the fastest healthy backend: each backend's fetch
+ * latency is tracked, and backends which fail repeatedly are passed over
+ * for a cool-down period. Ranged reads are served the same way, by backends
+ * which support them. Transfer and failure counts are reported to the
+ * odometer per backend (e.g. 'uploaded.duracloud').
+ * <P>
+ * Backends are configured in 'replicate.cfg' as a list of names
+ * ('replicate.multi.stores'), each mapped to an ObjectStore class
+ * ('replicate.multi.store.[name]'). Note that backends are configured as
+ * usual, so two backends of the same class share the same settings.
+ */
+public class MultiObjectStore implements MeteredObjectStore, RangedObjectStore
+{
+    private static Logger log = Logger.getLogger(MultiObjectStore.class);
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // name of repair queue file (in replicate.base.dir)
+    private static final String REPAIR_FILE = "multistore-repairs";
+    // repair operations
+    private static final String TRANSFER = "transfer";
+    private static final String REMOVE = "remove";
+    private static final String MOVE = "move";
+    // consecutive failures after which a backend is considered unhealthy
+    private static final int MAX_FAILURES = 3;
+
+    private final List<Backend> backends = new ArrayList<Backend>();
+    // number of backends which must accept a transfer
+    private int quorum = 0;
+    // how long an unhealthy backend is passed over (ms)
+    private long coolDown = 0L;
+    // runs transfer legs in parallel
+    private ExecutorService legExecutor = null;
+    // runs background repairs
+    private ScheduledExecutorService repairExecutor = null;
+    // largest staged file read once for all streaming backends (bytes)
+    private long teeLimit = 0L;
+    // pending repairs: 'backend|op|group|id[|destGroup]'
+    private final Set<String> repairs = new LinkedHashSet<String>();
+    // repairs queued and done since the queue file was last merged
+    private final Set<String> added = new HashSet<String>();
+    private final Set<String> removed = new HashSet<String>();
+    private File repairFile = null;
+    // per-backend readings since last collected
+    private final Map<String, Long> readings = new HashMap<String, Long>();
+
+    // need no-arg constructor for PluginManager
+    public MultiObjectStore()
+    {
+    }
+
+    @Override
+    public void init() throws IOException
+    {
+        String[] names = configurationService.getArrayProperty("replicate.multi.stores");
+        if (names == null || names.length == 0)
+        {
+            throw new IOException("MultiObjectStore requires 'replicate.multi.stores' to be configured");
+        }
+        for (String name : names)
+        {
+            name = name.trim();
+            String storeClass = configurationService.getProperty("replicate.multi.store." + name);
+            try
+            {
+                ObjectStore store = (ObjectStore) Class.forName(storeClass).newInstance();
+                store.init();
+                backends.add(new Backend(name, store));
+            }
+            catch (IOException ioE)
+            {
+                throw ioE;
+            }
+            catch (Exception e)
+            {
+                throw new IOException("Unable to instantiate store '" + name + "' (" + storeClass + ")", e);
+            }
+        }
+        quorum = configurationService.getIntProperty("replicate.multi.quorum", backends.size());
+        quorum = Math.max(1, Math.min(quorum, backends.size()));
+        coolDown = configurationService.getLongProperty("replicate.multi.cooldown", 300L) * 1000L;
+        teeLimit = configurationService.getLongProperty("replicate.multi.tee.maxbytes", 16L * 1024L * 1024L);
+        ThreadFactory daemons = new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "multistore");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        legExecutor = Executors.newCachedThreadPool(daemons);
+        repairFile = new File(configurationService.getProperty("replicate.base.dir"), REPAIR_FILE);
+        synchronized (repairs)
+        {
+            saveRepairs();
+        }
+        long interval = configurationService.getLongProperty("replicate.multi.repair.interval", 600L);
+        repairExecutor = Executors.newSingleThreadScheduledExecutor(daemons);
+        repairExecutor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                repair();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public long transferObject(final String group, File file) throws IOException
+    {
+        // read the file once for the backends which can take it from memory,
+        // and give each other leg its own link to it, since stores may
+        // consume (rename or delete) what they transfer - no bytes are copied
+        // unless the file system cannot link
+        final String id = file.getName();
+        final PooledBuffer shared = teeLimit > 0L && file.length() <= teeLimit && anyStreaming() ?
+                                    readFile(file) : null;
+        Map<Backend, Future<Long>> legs = new HashMap<Backend, Future<Long>>();
+        try
+        {
+            for (final Backend backend : backends)
+            {
+                final boolean streams = shared != null && backend.store instanceof StreamingObjectStore;
+                final File legFile = streams ? null : legFile(file, backend);
+                legs.put(backend, legExecutor.submit(new Callable<Long>()
+                {
+                    @Override
+                    public Long call() throws IOException
+                    {
+                        if (streams)
+                        {
+                            long legSize = ((StreamingObjectStore) backend.store).transferObject(group, id, shared);
+                            adjust("uploadwait." + backend.name, backend.paidUpload(legSize));
+                            return legSize;
+                        }
+                        try
+                        {
+                            long legSize = backend.store.transferObject(group, legFile);
+                            adjust("uploadwait." + backend.name, backend.paidUpload(legSize));
+                            return legSize;
+                        }
+                        finally
+                        {
+                            // the leg's directory is its own
+                            legFile.delete();
+                            legFile.getParentFile().delete();
+                        }
+                    }
+                }));
+            }
+            return awaitLegs(group, id, legs);
+        }
+        finally
+        {
+            // the buffer must outlive every leg reading it
+            if (shared != null && finished(legs.values()))
+            {
+                shared.release();
+            }
+            file.delete();
+        }
+    }
+
+    /*
+     * Waits for all legs to end, returning false if interrupted first
+     */
+    private boolean finished(Collection<Future<Long>> legs)
+    {
+        for (Future<Long> leg : legs)
+        {
+            try
+            {
+                leg.get();
+            }
+            catch (InterruptedException intE)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            catch (ExecutionException exE)
+            {
+                // already reported
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Waits for the legs of a transfer, queueing repairs of those which
+     * failed, and checks the quorum was met
+     */
+    private long awaitLegs(String group, String id, Map<Backend, Future<Long>> legs) throws IOException
+    {
+        long size = 0L;
+        int accepted = 0;
+        IOException lastError = null;
+        for (Backend backend : backends)
+        {
+            try
+            {
+                long legSize = legs.get(backend).get();
+                backend.succeeded();
+                adjust("uploaded." + backend.name, legSize);
+                size = Math.max(size, legSize);
+                accepted++;
+                forgetRepairs(backend, group, id);
+            }
+            catch (InterruptedException intE)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted transferring '" + id + "'", intE);
+            }
+            catch (ExecutionException exE)
+            {
+                lastError = (exE.getCause() instanceof IOException) ?
+                            (IOException) exE.getCause() : new IOException(exE.getCause());
+                log.warn("Transfer of '" + id + "' to store '" + backend.name + "' failed", exE.getCause());
+                backend.failed();
+                adjust("failures." + backend.name, 1L);
+                queueRepair(backend, TRANSFER, group, id, null);
+            }
+        }
+        if (accepted < quorum)
+        {
+            throw new IOException("Transfer of '" + id + "' reached only " + accepted +
+                                  " of " + quorum + " required stores", lastError);
+        }
+        return size;
+    }
+
+    private boolean anyStreaming()
+    {
+        for (Backend backend : backends)
+        {
+            if (backend.store instanceof StreamingObjectStore)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PooledBuffer readFile(File file) throws IOException
+    {
+        PooledBuffer buffer = new PooledBuffer();
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            Utils.copy(in, buffer);
+        }
+        catch (IOException ioE)
+        {
+            buffer.release();
+            throw ioE;
+        }
+        finally
+        {
+            in.close();
+        }
+        return buffer;
+    }
+
+    @Override
+    public long fetchObject(String group, String id, File file) throws IOException
+    {
+        IOException lastError = null;
+        for (Backend backend : byPreference())
+        {
+            long start = System.currentTimeMillis();
+            try
+            {
+                long size = backend.store.fetchObject(group, id, file);
+                backend.succeeded();
+                if (size > 0L)
+                {
+                    backend.recordLatency(System.currentTimeMillis() - start);
+                    adjust("downloadwait." + backend.name, backend.paidDownload(size));
+                    adjust("downloaded." + backend.name, size);
+                    return size;
+                }
+            }
+            catch (IOException ioE)
+            {
+                log.warn("Fetch of '" + id + "' from store '" + backend.name + "' failed", ioE);
+                backend.failed();
+                adjust("failures." + backend.name, 1L);
+                lastError = ioE;
+            }
+        }
+        if (lastError != null)
+        {
+            throw lastError;
+        }
+        return 0L;
+    }
+
+    @Override
+    public InputStream fetchRange(String group, String id, long start, long end) throws IOException
+    {
+        IOException lastError = null;
+        for (Backend backend : byPreference())
+        {
+            if (! (backend.store instanceof RangedObjectStore))
+            {
+                continue;
+            }
+            try
+            {
+                if (backend.store.objectExists(group, id))
+                {
+                    InputStream in = ((RangedObjectStore) backend.store).fetchRange(group, id, start, end);
+                    backend.succeeded();
+                    adjust("downloaded." + backend.name, end - start + 1);
+                    return in;
+                }
+            }
+            catch (RangedFetcher.RangesUnsupportedException ruE)
+            {
+                // try another backend
+            }
+            catch (IOException ioE)
+            {
+                log.warn("Ranged fetch of '" + id + "' from store '" + backend.name + "' failed", ioE);
+                backend.failed();
+                adjust("failures." + backend.name, 1L);
+                lastError = ioE;
+            }
+        }
+        if (lastError != null)
+        {
+            throw lastError;
+        }
+        // let the caller fall back to fetching the whole object
+        throw new RangedFetcher.RangesUnsupportedException("No store could read ranges of '" + id + "'");
+    }
+
+    @Override
+    public boolean objectExists(String group, String id) throws IOException
+    {
+        return objectAttribute(group, id, "sizebytes") != null;
+    }
+
+    @Override
+    public String objectAttribute(String group, String id, String attrName) throws IOException
+    {
+        IOException lastError = null;
+        for (Backend backend : byPreference())
+        {
+            try
+            {
+                if (backend.store.objectExists(group, id))
+                {
+                    return backend.store.objectAttribute(group, id, attrName);
+                }
+            }
+            catch (IOException ioE)
+            {
+                backend.failed();
+                lastError = ioE;
+            }
+        }
+        if (lastError != null)
+        {
+            throw lastError;
+        }
+        return null;
+    }
+
+    @Override
+    public long removeObject(final String group, final String id) throws IOException
+    {
+        return onAll(new BackendOp()
+        {
+            @Override
+            public long apply(ObjectStore store) throws IOException
+            {
+                return store.removeObject(group, id);
+            }
+        }, REMOVE, group, id, null);
+    }
+
+    @Override
+    public long moveObject(final String srcGroup, final String destGroup, final String id) throws IOException
+    {
+        return onAll(new BackendOp()
+        {
+            @Override
+            public long apply(ObjectStore store) throws IOException
+            {
+                return store.moveObject(srcGroup, destGroup, id);
+            }
+        }, MOVE, srcGroup, id, destGroup);
+    }
+
+    @Override
+    public Map<String, Long> readings()
+    {
+        Map<String, Long> current = new HashMap<String, Long>();
+        for (Backend backend : backends)
+        {
+            if (backend.store instanceof MeteredObjectStore)
+            {
+                current.putAll(((MeteredObjectStore) backend.store).readings());
+            }
+        }
+        synchronized (readings)
+        {
+            current.putAll(readings);
+            readings.clear();
+        }
+        return current;
+    }
+
+    private interface BackendOp
+    {
+        long apply(ObjectStore store) throws IOException;
+    }
+
+    /*
+     * Applies an operation to every backend, in parallel, queueing it to be
+     * redone on backends which failed. Fails only if no backend succeeds.
+     */
+    private long onAll(final BackendOp op, String repairOp, String group, String id, String destGroup)
+        throws IOException
+    {
+        Map<Backend, Future<Long>> results = new HashMap<Backend, Future<Long>>();
+        for (final Backend backend : backends)
+        {
+            results.put(backend, legExecutor.submit(new Callable<Long>()
+            {
+                @Override
+                public Long call() throws IOException
+                {
+                    return op.apply(backend.store);
+                }
+            }));
+        }
+        long size = 0L;
+        IOException lastError = null;
+        int succeeded = 0;
+        for (Backend backend : backends)
+        {
+            try
+            {
+                size = Math.max(size, results.get(backend).get());
+                succeeded++;
+                forgetRepairs(backend, group, id);
+                if (destGroup != null)
+                {
+                    forgetRepairs(backend, destGroup, id);
+                }
+            }
+            catch (InterruptedException intE)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException(intE);
+            }
+            catch (ExecutionException exE)
+            {
+                log.warn("Operation on store '" + backend.name + "' failed", exE.getCause());
+                backend.failed();
+                adjust("failures." + backend.name, 1L);
+                queueRepair(backend, repairOp, group, id, destGroup);
+                lastError = (exE.getCause() instanceof IOException) ?
+                            (IOException) exE.getCause() : new IOException(exE.getCause());
+            }
+        }
+        if (succeeded == 0 && lastError != null)
+        {
+            throw lastError;
+        }
+        return size;
+    }
+
+    /*
+     * Backends in order of preference for reads: healthy before unhealthy,
+     * then fastest first
+     */
+    private List<Backend> byPreference()
+    {
+        List<Backend> ordered = new ArrayList<Backend>(backends);
+        final long now = System.currentTimeMillis();
+        Collections.sort(ordered, new Comparator<Backend>()
+        {
+            @Override
+            public int compare(Backend b1, Backend b2)
+            {
+                boolean h1 = b1.isHealthy(now);
+                boolean h2 = b2.isHealthy(now);
+                if (h1 != h2)
+                {
+                    return h1 ? -1 : 1;
+                }
+                return Double.compare(b1.getLatency(), b2.getLatency());
+            }
+        });
+        return ordered;
+    }
+
+    /*
+     * Links (or, failing that, copies) the staged file into a directory of
+     * the leg's own (concurrent transfers must not share it), keeping its name
+     */
+    private File legFile(File file, Backend backend) throws IOException
+    {
+        File legDir = Files.createTempDirectory(file.getParentFile().toPath(), ".leg-" + backend.name + "-").toFile();
+        File legFile = new File(legDir, file.getName());
+        try
+        {
+            Files.createLink(legFile.toPath(), file.toPath());
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            Utils.copy(file, legFile);
+        }
+        return legFile;
+    }
+
+    private void adjust(String name, long amount)
+    {
+        synchronized (readings)
+        {
+            Long current = readings.get(name);
+            readings.put(name, (current != null ? current : 0L) + amount);
+        }
+    }
+
+    /*
+     * Queues an operation to be redone on a backend, replacing any repair
+     * of the same object queued before
+     */
+    private void queueRepair(Backend backend, String op, String group, String id, String destGroup)
+    {
+        String repair = backend.name + "|" + op + "|" + group + "|" + id +
+                        (destGroup != null ? "|" + destGroup : "");
+        synchronized (repairs)
+        {
+            dropRepairs(backend, group, id);
+            if (destGroup != null)
+            {
+                dropRepairs(backend, destGroup, id);
+            }
+            repairs.add(repair);
+            added.add(repair);
+            removed.remove(repair);
+            saveRepairs();
+        }
+    }
+
+    /*
+     * Drops repairs of an object made obsolete by a later operation on it
+     * which succeeded
+     */
+    private void forgetRepairs(Backend backend, String group, String id)
+    {
+        synchronized (repairs)
+        {
+            if (! repairs.isEmpty() && dropRepairs(backend, group, id))
+            {
+                saveRepairs();
+            }
+        }
+    }
+
+    // caller must hold the 'repairs' lock
+    private boolean dropRepairs(Backend backend, String group, String id)
+    {
+        boolean dropped = false;
+        for (String repair : new ArrayList<String>(repairs))
+        {
+            String[] parts = parseRepair(repair);
+            if (parts.length >= 4 && parts[0].equals(backend.name) && parts[3].equals(id) &&
+                (parts[2].equals(group) || (parts.length > 4 && parts[4].equals(group))))
+            {
+                doneRepair(repair);
+                dropped = true;
+            }
+        }
+        return dropped;
+    }
+
+    // caller must hold the 'repairs' lock
+    private void doneRepair(String repair)
+    {
+        repairs.remove(repair);
+        removed.add(repair);
+        added.remove(repair);
+    }
+
+    /*
+     * Splits a repair into backend, operation, group, id and (for moves)
+     * destination group
+     */
+    private String[] parseRepair(String repair)
+    {
+        String[] parts = repair.split("\\|");
+        if (parts.length == 3)
+        {
+            // queued before repairs had operations
+            return new String[] { parts[0], TRANSFER, parts[1], parts[2] };
+        }
+        return parts;
+    }
+
+    /*
+     * Redoes each operation awaiting repair on the backend which missed it
+     */
+    private void repair()
+    {
+        List<String> pending;
+        synchronized (repairs)
+        {
+            // pick up repairs queued by other processes
+            saveRepairs();
+            pending = new ArrayList<String>(repairs);
+        }
+        for (String repair : pending)
+        {
+            String[] parts = parseRepair(repair);
+            Backend target = null;
+            for (Backend backend : backends)
+            {
+                if (backend.name.equals(parts[0]))
+                {
+                    target = backend;
+                }
+            }
+            boolean done = (target == null || parts.length < 4);
+            if (! done && target.isHealthy(System.currentTimeMillis()))
+            {
+                done = redo(target, parts);
+            }
+            if (done)
+            {
+                synchronized (repairs)
+                {
+                    // unless superseded meanwhile
+                    if (repairs.contains(repair))
+                    {
+                        doneRepair(repair);
+                        saveRepairs();
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean redo(Backend target, String[] parts)
+    {
+        String op = parts[1];
+        String group = parts[2];
+        String id = parts[3];
+        try
+        {
+            if (REMOVE.equals(op))
+            {
+                target.store.removeObject(group, id);
+            }
+            else if (MOVE.equals(op) && parts.length > 4)
+            {
+                if (target.store.objectExists(group, id))
+                {
+                    target.store.moveObject(group, parts[4], id);
+                }
+                else if (! target.store.objectExists(parts[4], id))
+                {
+                    // never had it - copy the moved object from another backend
+                    return repairObject(target, parts[4], id);
+                }
+            }
+            else
+            {
+                return repairObject(target, group, id);
+            }
+            target.succeeded();
+            log.info("Repaired " + op + " of '" + id + "' in store '" + target.name + "'");
+            return true;
+        }
+        catch (IOException ioE)
+        {
+            log.warn("Repair (" + op + ") of '" + id + "' in store '" + target.name + "' failed", ioE);
+            target.failed();
+            return false;
+        }
+    }
+
+    private boolean repairObject(Backend target, String group, String id)
+    {
+        File tmpDir = new File(repairFile.getParentFile(), REPAIR_FILE + "-" + target.name);
+        tmpDir.mkdirs();
+        File file = new File(tmpDir, id);
+        try
+        {
+            for (Backend source : byPreference())
+            {
+                if (source != target && source.store.fetchObject(group, id, file) > 0L)
+                {
+                    source.paidDownload(file.length());
+                    long size = target.store.transferObject(group, file);
+                    target.paidUpload(size);
+                    target.succeeded();
+                    adjust("uploaded." + target.name, size);
+                    log.info("Repaired '" + id + "' in store '" + target.name + "' from '" + source.name + "'");
+                    return true;
+                }
+            }
+            // no backend has the object (any more) - nothing to repair
+            return true;
+        }
+        catch (IOException ioE)
+        {
+            log.warn("Repair of '" + id + "' in store '" + target.name + "' failed", ioE);
+            target.failed();
+            return false;
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    /*
+     * Merges the repairs queued and done here into the queue file, under
+     * its lock, and takes up what other processes queued. Caller must hold
+     * the 'repairs' lock.
+     */
+    private void saveRepairs()
+    {
+        try
+        {
+            RandomAccessFile lockFile = new RandomAccessFile(repairFile.getPath() + ".lock", "rw");
+            try
+            {
+                FileLock lock = lockFile.getChannel().lock();
+                try
+                {
+                    Set<String> merged = new LinkedHashSet<String>();
+                    if (repairFile.exists())
+                    {
+                        BufferedReader reader = new BufferedReader(new FileReader(repairFile));
+                        try
+                        {
+                            String line = null;
+                            while ((line = reader.readLine()) != null)
+                            {
+                                if (line.length() > 0)
+                                {
+                                    merged.add(line);
+                                }
+                            }
+                        }
+                        finally
+                        {
+                            reader.close();
+                        }
+                    }
+                    merged.removeAll(removed);
+                    merged.addAll(added);
+                    if (! added.isEmpty() || ! removed.isEmpty())
+                    {
+                        writeRepairs(merged);
+                    }
+                    added.clear();
+                    removed.clear();
+                    repairs.clear();
+                    repairs.addAll(merged);
+                }
+                finally
+                {
+                    lock.release();
+                }
+            }
+            finally
+            {
+                lockFile.close();
+            }
+        }
+        catch (IOException ioE)
+        {
+            log.error("Unable to save store repair queue", ioE);
+        }
+    }
+
+    private void writeRepairs(Set<String> merged) throws IOException
+    {
+        File tmpFile = File.createTempFile(REPAIR_FILE, ".tmp", repairFile.getParentFile());
+        try
+        {
+            Writer writer = new FileWriter(tmpFile);
+            try
+            {
+                for (String repair : merged)
+                {
+                    writer.write(repair + "\n");
+                }
+            }
+            finally
+            {
+                writer.close();
+            }
+            if (! tmpFile.renameTo(repairFile))
+            {
+                // some platforms will not rename over an existing file
+                repairFile.delete();
+                if (! tmpFile.renameTo(repairFile))
+                {
+                    throw new IOException("Unable to replace repair queue '" + repairFile + "'");
+                }
+            }
+        }
+        finally
+        {
+            tmpFile.delete();
+        }
+    }
+
+    /*
+     * A configured store, with its health and read latency
+     */
+    private class Backend
+    {
+        private final String name;
+        private final ObjectStore store;
+        // per-store bandwidth limits
+        private final BandwidthThrottle uploadThrottle;
+        private final BandwidthThrottle downloadThrottle;
+        // true if the store pays the limits as its content streams
+        private final boolean streamed;
+        // exponentially weighted moving average of fetch latency (ms)
+        private double latency = 0.0;
+        private int failures = 0;
+        private long failedAt = 0L;
+
+        private Backend(String name, ObjectStore store)
+        {
+            this.name = name;
+            this.store = store;
+            uploadThrottle = new BandwidthThrottle("replicate.multi.store." + name + ".throttle.upload");
+            downloadThrottle = new BandwidthThrottle("replicate.multi.store." + name + ".throttle.download");
+            streamed = store instanceof ThrottledObjectStore;
+            if (streamed)
+            {
+                ((ThrottledObjectStore) store).setThrottles(uploadThrottle, downloadThrottle);
+            }
+        }
+
+        /*
+         * Pays for bytes sent to the store (unless already paid as they
+         * streamed), returning the time spent waiting
+         */
+        private long paidUpload(long bytes) throws IOException
+        {
+            if (! streamed)
+            {
+                uploadThrottle.acquire(bytes);
+            }
+            return uploadThrottle.drainWaited();
+        }
+
+        /*
+         * Pays for bytes fetched from the store (unless already paid as they
+         * streamed), returning the time spent waiting
+         */
+        private long paidDownload(long bytes) throws IOException
+        {
+            if (! streamed)
+            {
+                downloadThrottle.acquire(bytes);
+            }
+            return downloadThrottle.drainWaited();
+        }
+
+        private synchronized void recordLatency(long elapsed)
+        {
+            latency = (latency == 0.0) ? elapsed : 0.8 * latency + 0.2 * elapsed;
+        }
+
+        private synchronized double getLatency()
+        {
+            return latency;
+        }
+
+        private synchronized void succeeded()
+        {
+            failures = 0;
+        }
+
+        private synchronized void failed()
+        {
+            failures++;
+            failedAt = System.currentTimeMillis();
+        }
+
+        private synchronized boolean isHealthy(long now)
+        {
+            return failures < MAX_FAILURES || now - failedAt > coolDown;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.dspace.ctask.replicate.BandwidthThrottle;
+import org.dspace.curate.Utils;
+
+/**
+ * RangedFetcher downloads a large object as a set of fixed-size byte ranges,
+ * fetched in parallel and written directly into their place in a preallocated
+ * file. Each completed range is recorded in a small journal file kept next to
+ * the target file ([file].ranges), so that an interrupted fetch of the same
+ * object (same size and checksum) resumes with only the missing ranges.
+ * A range is recorded only once its bytes, and then the record itself, have
+ * been forced to disk, so a crash never leaves a range recorded but absent.
+ * Once all ranges are present, the file is verified against the expected
+ * checksum, and the journal is removed. The journal is also removed when
+ * the source proves unable to serve ranges.
+ */
+public class RangedFetcher
+{
+    private static Logger log = Logger.getLogger(RangedFetcher.class);
+
+    // suffix of the range journal file
+    private static final String JOURNAL_SUFFIX = ".ranges";
+    // copy buffer size
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // number of ranges fetched concurrently
+    private final int threads;
+    // size in bytes of each range
+    private final long rangeSize;
+    // throttle of fetched content (may be null)
+    private BandwidthThrottle throttle = null;
+
+    /**
+     * A source of byte ranges of a single stored object.
+     */
+    public interface RangeSource
+    {
+        /**
+         * Opens a stream over the given (inclusive) byte range of the object.
+         *
+         * @param start offset of first byte
+         * @param end offset of last byte
+         * @return stream positioned at 'start'
+         * @throws IOException if I/O error, or RangesUnsupportedException
+         *         if the source cannot serve partial content
+         */
+        InputStream openRange(long start, long end) throws IOException;
+    }
+
+    /**
+     * Signals that a RangeSource cannot serve partial content, in which case
+     * the caller should fall back to a single-stream fetch.
+     */
+    public static class RangesUnsupportedException extends IOException
+    {
+        public RangesUnsupportedException(String msg)
+        {
+            super(msg);
+        }
+    }
+
+    public RangedFetcher(int threads, long rangeSize)
+    {
+        this.threads = Math.max(1, threads);
+        this.rangeSize = Math.max(BUFFER_SIZE, rangeSize);
+    }
+
+    /**
+     * Sets the throttle paid as ranges are read.
+     *
+     * @param throttle the throttle (null for none)
+     */
+    public void setThrottle(BandwidthThrottle throttle)
+    {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Fetches the object into the passed file, resuming a previous partial
+     * fetch if one exists.
+     *
+     * @param source source of byte ranges
+     * @param size total size of object in bytes
+     * @param checksum expected MD5 checksum of object (may be null)
+     * @param file file to place object in
+     * @throws IOException if I/O error, or if checksum verification fails
+     */
+    public void fetch(final RangeSource source, long size, String checksum, File file) throws IOException
+    {
+        File journalFile = new File(file.getParentFile(), file.getName() + JOURNAL_SUFFIX);
+        String header = size + " " + rangeSize + " " + checksum;
+        Set<Long> completed = readJournal(journalFile, header, file, size);
+        if (completed.isEmpty())
+        {
+            // fresh start - discard any leftovers
+            file.delete();
+            FileOutputStream hout = new FileOutputStream(journalFile);
+            try
+            {
+                Writer hw = new OutputStreamWriter(hout, "UTF-8");
+                hw.write(header + "\n");
+                hw.flush();
+                hout.getFD().sync();
+            }
+            finally
+            {
+                hout.close();
+            }
+        }
+        else
+        {
+            log.info("Resuming fetch of '" + file.getName() + "': " +
+                     completed.size() + " ranges already present");
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final FileOutputStream journalOut = new FileOutputStream(journalFile, true);
+        final Writer journal = new OutputStreamWriter(journalOut, "UTF-8");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        boolean unsupported = false;
+        try
+        {
+            raf.setLength(size);
+            final FileChannel channel = raf.getChannel();
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            long numRanges = (size + rangeSize - 1) / rangeSize;
+            for (long idx = 0; idx < numRanges; idx++)
+            {
+                if (completed.contains(idx))
+                {
+                    continue;
+                }
+                final long rangeIdx = idx;
+                final long start = idx * rangeSize;
+                final long end = Math.min(size, start + rangeSize) - 1;
+                futures.add(executor.submit(new Callable<Long>()
+                {
+                    @Override
+                    public Long call() throws IOException
+                    {
+                        fetchRange(source, channel, start, end);
+                        // the range must be on disk before it is recorded
+                        channel.force(false);
+                        synchronized (journal)
+                        {
+                            journal.write(rangeIdx + "\n");
+                            journal.flush();
+                            journalOut.getChannel().force(false);
+                        }
+                        return rangeIdx;
+                    }
+                }));
+            }
+            for (Future<Long> future : futures)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (InterruptedException intE)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted fetching '" + file.getName() + "'", intE);
+                }
+                catch (ExecutionException exE)
+                {
+                    Throwable cause = exE.getCause();
+                    unsupported = cause instanceof RangesUnsupportedException;
+                    if (cause instanceof IOException)
+                    {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+            journal.close();
+            raf.close();
+            // the caller falls back to a single stream, which replaces the file
+            if (unsupported)
+            {
+                journalFile.delete();
+            }
+        }
+
+        // all ranges present - verify the whole
+        if (checksum != null && ! checksum.equalsIgnoreCase(Utils.checksum(file, "MD5")))
+        {
+            file.delete();
+            journalFile.delete();
+            throw new IOException("Checksum mismatch on ranged fetch of '" + file.getName() + "'");
+        }
+        journalFile.delete();
+    }
+
+    /*
+     * Copies a single range from the source into its position in the file
+     */
+    private void fetchRange(RangeSource source, FileChannel channel, long start, long end) throws IOException
+    {
+        InputStream in = BandwidthThrottle.limit(source.openRange(start, end), throttle);
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long pos = start;
+            int read = 0;
+            while (pos <= end && (read = in.read(buffer, 0, (int) Math.min(buffer.length, end - pos + 1))) != -1)
+            {
+                ByteBuffer bb = ByteBuffer.wrap(buffer, 0, read);
+                while (bb.hasRemaining())
+                {
+                    pos += channel.write(bb, pos);
+                }
+            }
+            if (pos <= end)
+            {
+                throw new IOException("Short read of range " + start + "-" + end + ": got " + (pos - start) + " bytes");
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /*
+     * Reads the set of completed ranges from a journal, if it describes
+     * a fetch of the same object into the same (preallocated) file.
+     */
+    private Set<Long> readJournal(File journalFile, String header, File file, long size) throws IOException
+    {
+        Set<Long> completed = new HashSet<Long>();
+        if (journalFile.exists() && file.exists() && file.length() == size)
+        {
+            BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+            try
+            {
+                if (header.equals(reader.readLine()))
+                {
+                    String line = null;
+                    while ((line = reader.readLine()) != null)
+                    {
+                        try
+                        {
+                            completed.add(Long.valueOf(line.trim()));
+                        }
+                        catch (NumberFormatException nfE)
+                        {
+                            // torn final line from an interrupted write - ignore
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        return completed;
+    }
+}
@@ -0,0 +1,476 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.SyncProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+
+import org.dspace.ctask.replicate.BandwidthThrottle;
+import org.dspace.ctask.replicate.RangedObjectStore;
+import org.dspace.ctask.replicate.StreamingObjectStore;
+import org.dspace.ctask.replicate.ThrottledObjectStore;
+import org.dspace.curate.Utils;
+import org.dspace.pack.PooledBuffer;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * S3ObjectStore replicates directly to Amazon S3, or to any S3-compatible
+ * object storage service (configured in 's3.cfg'). Groups are mapped to
+ * buckets in the same way DuraCloudObjectStore maps them to spaces: the
+ * part of the group name before the first slash names the bucket, and any
+ * remainder is used as a key prefix.
+ * <P>
+ * Large files are uploaded in parallel multipart uploads, and large
+ * objects fetched in parallel byte ranges (see RangedFetcher). Uploads are
+ * skipped when the stored object already has the same MD5 checksum, and
+ * moves are done with server-side copies, so content never passes through
+ * DSpace. Connection pooling and retries of transient errors are handled
+ * by the S3 client.
+ *
+ * @see DuraCloudObjectStore
+ */
+public class S3ObjectStore implements StreamingObjectStore, RangedObjectStore, ThrottledObjectStore
+{
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // user metadata entry holding the (whole object) MD5 checksum, since
+    // the ETag of a multipart upload is not the content's checksum
+    private static final String MD5_META = "md5";
+
+    private AmazonS3 s3 = null;
+    private TransferManager transferManager = null;
+    // objects at least this large are fetched in parallel ranges (0 = never)
+    private long rangeThreshold = 0L;
+    private RangedFetcher rangedFetcher = null;
+    // throttles of content sent and fetched (may be null)
+    private BandwidthThrottle uploadThrottle = null;
+    private BandwidthThrottle downloadThrottle = null;
+
+    // need no-arg constructor for PluginManager
+    public S3ObjectStore()
+    {
+    }
+
+    @Override
+    public void init() throws IOException
+    {
+        ClientConfiguration clientConfig = new ClientConfiguration();
+        clientConfig.setMaxConnections(configurationService.getIntProperty("s3.connections.max", 50));
+        clientConfig.setMaxErrorRetry(configurationService.getIntProperty("s3.retry.max", 3));
+        clientConfig.setSocketTimeout(configurationService.getIntProperty("s3.timeout", 60000));
+
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withClientConfiguration(clientConfig)
+                .withPathStyleAccessEnabled(configurationService.getBooleanProperty("s3.pathstyle", false))
+                .withCredentials(new AWSStaticCredentialsProvider(
+                        new BasicAWSCredentials(configurationService.getProperty("s3.accesskey"),
+                                                configurationService.getProperty("s3.secretkey"))));
+        String endpoint = configurationService.getProperty("s3.endpoint");
+        String region = configurationService.getProperty("s3.region");
+        if (region == null)
+        {
+            region = "us-east-1";
+        }
+        if (endpoint != null)
+        {
+            // e.g. a local S3-compatible service
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region));
+        }
+        else
+        {
+            builder.withRegion(region);
+        }
+        s3 = builder.build();
+
+        // daemon threads, as the store is never shut down
+        ExecutorService uploadThreads = Executors.newFixedThreadPool(
+                configurationService.getIntProperty("s3.upload.threads", 4), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "replicate-s3-upload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        transferManager = new TransferManager(s3, uploadThreads);
+        TransferManagerConfiguration tmConfig = new TransferManagerConfiguration();
+        tmConfig.setMultipartUploadThreshold(
+                configurationService.getLongProperty("s3.multipart.threshold", 64L * 1024L * 1024L));
+        tmConfig.setMinimumUploadPartSize(
+                configurationService.getLongProperty("s3.multipart.partsize", 16L * 1024L * 1024L));
+        tmConfig.setMultipartCopyThreshold(
+                configurationService.getLongProperty("s3.multipart.copythreshold", 1024L * 1024L * 1024L));
+        transferManager.setConfiguration(tmConfig);
+
+        rangeThreshold = configurationService.getLongProperty("s3.fetch.range.threshold", 64L * 1024L * 1024L);
+        rangedFetcher = new RangedFetcher(configurationService.getIntProperty("s3.fetch.range.threads", 4),
+                                          configurationService.getLongProperty("s3.fetch.range.size", 16L * 1024L * 1024L));
+    }
+
+    @Override
+    public void setThrottles(BandwidthThrottle upload, BandwidthThrottle download)
+    {
+        uploadThrottle = upload;
+        downloadThrottle = download;
+        rangedFetcher.setThrottle(download);
+    }
+
+    @Override
+    public long fetchObject(String group, String id, File file) throws IOException
+    {
+        final String bucket = getBucket(group);
+        final String key = getKeyPrefix(group) + id;
+        ObjectMetadata meta = metadata(bucket, key);
+        if (meta == null)
+        {
+            return 0L;
+        }
+        long size = meta.getContentLength();
+        try
+        {
+            if (rangeThreshold > 0L && size >= rangeThreshold)
+            {
+                rangedFetcher.fetch(new RangedFetcher.RangeSource()
+                {
+                    @Override
+                    public InputStream openRange(long start, long end) throws IOException
+                    {
+                        try
+                        {
+                            return s3.getObject(new GetObjectRequest(bucket, key).withRange(start, end))
+                                     .getObjectContent();
+                        }
+                        catch (AmazonClientException acE)
+                        {
+                            throw new IOException(acE);
+                        }
+                    }
+                }, size, checksum(meta), file);
+            }
+            else
+            {
+                InputStream in = BandwidthThrottle.limit(s3.getObject(new GetObjectRequest(bucket, key)).getObjectContent(),
+                                                         downloadThrottle);
+                try
+                {
+                    OutputStream out = new FileOutputStream(file);
+                    try
+                    {
+                        Utils.copy(in, out);
+                    }
+                    finally
+                    {
+                        out.close();
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+        return size;
+    }
+
+    @Override
+    public InputStream fetchRange(String group, String id, long start, long end) throws IOException
+    {
+        try
+        {
+            return s3.getObject(new GetObjectRequest(getBucket(group), getKeyPrefix(group) + id).withRange(start, end))
+                     .getObjectContent();
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+    }
+
+    @Override
+    public boolean objectExists(String group, String id) throws IOException
+    {
+        return metadata(getBucket(group), getKeyPrefix(group) + id) != null;
+    }
+
+    @Override
+    public long removeObject(String group, String id) throws IOException
+    {
+        String bucket = getBucket(group);
+        String key = getKeyPrefix(group) + id;
+        ObjectMetadata meta = metadata(bucket, key);
+        if (meta == null)
+        {
+            // no replica - no-op
+            return 0L;
+        }
+        try
+        {
+            s3.deleteObject(bucket, key);
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+        return meta.getContentLength();
+    }
+
+    @Override
+    public long transferObject(String group, File file) throws IOException
+    {
+        long size = 0L;
+        String bucket = getBucket(group);
+        String key = getKeyPrefix(group) + file.getName();
+        String chkSum = Utils.checksum(file, "MD5");
+        // make sure this is a different file from what replica store has
+        // to avoid network I/O tax
+        ObjectMetadata prev = metadata(bucket, key);
+        if (prev == null || ! chkSum.equalsIgnoreCase(checksum(prev)))
+        {
+            ObjectMetadata meta = new ObjectMetadata();
+            meta.setContentLength(file.length());
+            meta.setContentType(mimeType(file.getName()));
+            meta.addUserMetadata(MD5_META, chkSum);
+            try
+            {
+                PutObjectRequest request = new PutObjectRequest(bucket, key, file).withMetadata(meta);
+                if (uploadThrottle != null)
+                {
+                    // called synchronously by the uploading threads, so holds them back
+                    request.setGeneralProgressListener(new SyncProgressListener()
+                    {
+                        @Override
+                        public void progressChanged(ProgressEvent event)
+                        {
+                            if (event.getEventType() == ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT)
+                            {
+                                try
+                                {
+                                    uploadThrottle.acquire(event.getBytesTransferred());
+                                }
+                                catch (IOException ioE)
+                                {
+                                    // interrupted - the upload is being cancelled
+                                }
+                            }
+                        }
+                    });
+                }
+                transferManager.upload(request).waitForCompletion();
+            }
+            catch (AmazonClientException acE)
+            {
+                throw new IOException(acE);
+            }
+            catch (InterruptedException intE)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted uploading '" + file.getName() + "'", intE);
+            }
+            size = file.length();
+        }
+        // delete staging file
+        file.delete();
+        return size;
+    }
+
+    @Override
+    public long transferObject(String group, String id, PooledBuffer content) throws IOException
+    {
+        String bucket = getBucket(group);
+        String key = getKeyPrefix(group) + id;
+        String chkSum = content.getChecksum();
+        ObjectMetadata prev = metadata(bucket, key);
+        if (prev != null && chkSum.equalsIgnoreCase(checksum(prev)))
+        {
+            return 0L;
+        }
+        ObjectMetadata meta = new ObjectMetadata();
+        meta.setContentLength(content.size());
+        meta.setContentType(mimeType(id));
+        meta.addUserMetadata(MD5_META, chkSum);
+        try
+        {
+            // small content - a single PUT (the stream can be reset for retries)
+            s3.putObject(new PutObjectRequest(bucket, key,
+                                              BandwidthThrottle.limit(content.getInputStream(), uploadThrottle), meta));
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+        return content.size();
+    }
+
+    @Override
+    public long moveObject(String srcGroup, String destGroup, String id) throws IOException
+    {
+        String srcBucket = getBucket(srcGroup);
+        String srcKey = getKeyPrefix(srcGroup) + id;
+        ObjectMetadata meta = metadata(srcBucket, srcKey);
+        if (meta == null)
+        {
+            // no replica - no-op
+            return 0L;
+        }
+        try
+        {
+            // server-side copy - content does not pass through DSpace
+            transferManager.copy(new CopyObjectRequest(srcBucket, srcKey,
+                                 getBucket(destGroup), getKeyPrefix(destGroup) + id)).waitForCompletion();
+            s3.deleteObject(srcBucket, srcKey);
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted moving '" + id + "'", intE);
+        }
+        return meta.getContentLength();
+    }
+
+    @Override
+    public String objectAttribute(String group, String id, String attrName) throws IOException
+    {
+        ObjectMetadata meta = metadata(getBucket(group), getKeyPrefix(group) + id);
+        if (meta == null)
+        {
+            return null;
+        }
+        if ("checksum".equals(attrName))
+        {
+            return checksum(meta);
+        }
+        else if ("sizebytes".equals(attrName))
+        {
+            return String.valueOf(meta.getContentLength());
+        }
+        else if ("modified".equals(attrName))
+        {
+            return String.valueOf(meta.getLastModified().getTime());
+        }
+        return null;
+    }
+
+    /*
+     * Returns the object's metadata, or null if there is no such object
+     */
+    private ObjectMetadata metadata(String bucket, String key) throws IOException
+    {
+        try
+        {
+            return s3.getObjectMetadata(bucket, key);
+        }
+        catch (AmazonServiceException asE)
+        {
+            if (asE.getStatusCode() == 404)
+            {
+                return null;
+            }
+            throw new IOException(asE);
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+    }
+
+    /*
+     * Returns the MD5 checksum of an object: recorded at upload, else the
+     * ETag of a single-part upload (which is the MD5)
+     */
+    private String checksum(ObjectMetadata meta)
+    {
+        String md5 = meta.getUserMetaDataOf(MD5_META);
+        if (md5 == null && meta.getETag() != null && ! meta.getETag().contains("-"))
+        {
+            md5 = meta.getETag();
+        }
+        return md5;
+    }
+
+    private String mimeType(String name)
+    {
+        if (name.endsWith(".zip"))
+            return "application/zip";
+        else if (name.endsWith(".tgz"))
+            return "application/x-gzip";
+        else if (name.endsWith(".txt"))
+            return "text/plain";
+        return "application/octet-stream";
+    }
+
+    /**
+     * Returns the bucket where content should be stored, based on the
+     * passed in Group.
+     * <P>
+     * If the group contains a forward slash ('/'), then the substring
+     * before the first slash is assumed to be the bucket name.
+     * Otherwise, the entire group name is assumed to be the bucket name.
+     * @param group group name
+     * @return S3 bucket name
+     */
+    private String getBucket(String group)
+    {
+        if(group!=null && group.contains("/"))
+            return group.substring(0, group.indexOf("/"));
+        else
+            return group;
+    }
+
+    /**
+     * Returns the key prefix that should be used when saving an object
+     * to a bucket.
+     * <P>
+     * If the group contains a forward slash ('/'), then the substring
+     * after the first slash is assumed to be the key prefix.
+     * Otherwise, there is no key prefix.
+     * @param group group name
+     * @return key prefix (ending with a forward slash)
+     */
+    private String getKeyPrefix(String group)
+    {
+        if(group!=null && group.contains("/"))
+            return group.substring(group.indexOf("/")+1) + "/";
+        else
+            return "";
+    }
+}
@@ -0,0 +1,370 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.log4j.Logger;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * StoreTransport mediates every request an ObjectStore makes to a remote
+ * service. It provides:
+ * <ul>
+ * <li>bounded retries, with jittered exponential backoff, of idempotent
+ *     requests that fail with a transient error</li>
+ * <li>adaptive concurrency (see AdaptiveLimiter), which backs off when
+ *     request latency or error rates rise</li>
+ * <li>a pooled HTTP client for direct REST requests, so connections are
+ *     reused without changing JVM-wide settings</li>
+ * <li>request statistics, published as a JMX MBean</li>
+ * </ul>
+ * All settings are read from configuration under a store-specific prefix,
+ * e.g. 'duracloud.transport.retry.max'.
+ */
+public class StoreTransport implements StoreTransportMBean
+{
+    private static Logger log = Logger.getLogger(StoreTransport.class);
+
+    /**
+     * Kinds of requests, which determine retry and latency handling.
+     */
+    public enum Kind
+    {
+        /** small, idempotent request: retried, latency is a congestion signal */
+        METADATA,
+        /** bulk, idempotent transfer: retried, latency ignored */
+        TRANSFER,
+        /** non-idempotent request: never retried */
+        MUTATION
+    }
+
+    /**
+     * A single request against the remote service.
+     *
+     * @param <T> request result type
+     * @param <E> checked exception type thrown by the request
+     */
+    public interface Request<T, E extends Exception>
+    {
+        T call() throws E;
+    }
+
+    private final String name;
+    private final Class<?>[] permanent;
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final int poolSize;
+    private final AdaptiveLimiter limiter;
+    private final Random jitter = new Random();
+    // HTTP client for direct requests (created on first use)
+    private CloseableHttpClient httpClient = null;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    /**
+     * Creates a transport configured under the given prefix.
+     *
+     * @param name name of store (used for the MBean name)
+     * @param prefix configuration property prefix
+     * @param permanent exception types which signal permanent failures
+     *        (e.g. 'not found'), and are never retried
+     */
+    public StoreTransport(String name, String prefix, Class<?>... permanent)
+    {
+        ConfigurationService cfg = DSpaceServicesFactory.getInstance().getConfigurationService();
+        this.name = name;
+        this.permanent = permanent;
+        maxRetries = cfg.getIntProperty(prefix + ".retry.max", 3);
+        baseDelay = cfg.getLongProperty(prefix + ".retry.delay", 500L);
+        maxDelay = cfg.getLongProperty(prefix + ".retry.maxdelay", 30000L);
+        poolSize = cfg.getIntProperty(prefix + ".pool.size", 20);
+        limiter = new AdaptiveLimiter(cfg.getIntProperty(prefix + ".concurrency.initial", 4),
+                                      cfg.getIntProperty(prefix + ".concurrency.min", 1),
+                                      cfg.getIntProperty(prefix + ".concurrency.max", 32),
+                                      cfg.getLongProperty(prefix + ".latency.target", 2000L));
+        register();
+    }
+
+    /**
+     * Returns the HTTP client for requests the store makes directly, whose
+     * connections are pooled (up to the configured pool size) and reused.
+     *
+     * @return the HTTP client
+     */
+    public synchronized CloseableHttpClient getHttpClient()
+    {
+        if (httpClient == null)
+        {
+            PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+            pool.setMaxTotal(poolSize);
+            pool.setDefaultMaxPerRoute(poolSize);
+            httpClient = HttpClients.custom().setConnectionManager(pool).build();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Executes the request, waiting for a concurrency permit and retrying
+     * transient failures as permitted by the request kind.
+     *
+     * @param kind kind of request
+     * @param request the request
+     * @return request result
+     * @throws E the request's exception, once retries are exhausted
+     * @throws IOException if interrupted waiting for a permit or a retry
+     */
+    public <T, E extends Exception> T execute(Kind kind, Request<T, E> request) throws E, IOException
+    {
+        return call(kind, request, false);
+    }
+
+    /**
+     * Executes a request which opens a stream, as execute does, but holds
+     * the concurrency permit until the stream is closed, so that bodies
+     * still being read count against the limit.
+     *
+     * @param kind kind of request
+     * @param request the request
+     * @return the opened stream, which must be closed
+     * @throws E the request's exception, once retries are exhausted
+     * @throws IOException if interrupted waiting for a permit or a retry
+     */
+    public <E extends Exception> InputStream open(Kind kind, Request<InputStream, E> request) throws E, IOException
+    {
+        return call(kind, request, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T, E extends Exception> T call(Kind kind, Request<T, E> request, boolean stream) throws E, IOException
+    {
+        int attempt = 0;
+        while (true)
+        {
+            try
+            {
+                limiter.acquire();
+            }
+            catch (InterruptedException intE)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(name + " request interrupted waiting for a permit");
+            }
+            requests.incrementAndGet();
+            long start = System.currentTimeMillis();
+            boolean success = false;
+            boolean held = false;
+            try
+            {
+                T result = request.call();
+                success = true;
+                if (stream && result != null)
+                {
+                    // the permit passes to the stream
+                    held = true;
+                    return (T) new PermitStream((InputStream) result, kind,
+                                                System.currentTimeMillis() - start);
+                }
+                return result;
+            }
+            catch (Exception e)
+            {
+                // permanent conditions are answers, not failures
+                success = isPermanent(e);
+                if (success || e instanceof RuntimeException ||
+                    kind == Kind.MUTATION || attempt >= maxRetries)
+                {
+                    if (! success)
+                    {
+                        failures.incrementAndGet();
+                    }
+                    if (e instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) e;
+                    }
+                    throw (E) e;
+                }
+                retries.incrementAndGet();
+                log.warn(name + " request failed (attempt " + (attempt + 1) + "), retrying: " + e.getMessage());
+                if (! backoff(attempt))
+                {
+                    InterruptedIOException iioE =
+                        new InterruptedIOException(name + " request interrupted before retrying");
+                    iioE.initCause(e);
+                    throw iioE;
+                }
+                attempt++;
+            }
+            finally
+            {
+                if (! held)
+                {
+                    release(kind, System.currentTimeMillis() - start, success);
+                }
+            }
+        }
+    }
+
+    private void release(Kind kind, long elapsed, boolean success)
+    {
+        totalLatency.addAndGet(elapsed);
+        limiter.release(kind == Kind.TRANSFER ? -1L : elapsed, success);
+    }
+
+    /*
+     * A response body which returns its request's permit when closed
+     */
+    private class PermitStream extends FilterInputStream
+    {
+        private final Kind kind;
+        // time taken to open the stream
+        private final long elapsed;
+        private boolean released = false;
+
+        private PermitStream(InputStream in, Kind kind, long elapsed)
+        {
+            super(in);
+            this.kind = kind;
+            this.elapsed = elapsed;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    if (! released)
+                    {
+                        released = true;
+                        release(kind, elapsed, true);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Sleeps for a random interval up to the exponential backoff bound
+     * ('full jitter'). Returns false if interrupted.
+     */
+    private boolean backoff(int attempt)
+    {
+        long bound = Math.min(maxDelay, baseDelay << Math.min(attempt, 20));
+        try
+        {
+            Thread.sleep((long) (jitter.nextDouble() * bound));
+            return true;
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean isPermanent(Exception e)
+    {
+        for (Class<?> cls : permanent)
+        {
+            if (cls.isInstance(e))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Publish statistics via JMX - replacing any registration left by
+     * an earlier instance.
+     */
+    private void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objName = new ObjectName("org.dspace.ctask.replicate:type=StoreTransport,name=" + name);
+            if (server.isRegistered(objName))
+            {
+                server.unregisterMBean(objName);
+            }
+            server.registerMBean(this, objName);
+        }
+        catch (JMException jmE)
+        {
+            log.warn("Unable to register JMX statistics for " + name, jmE);
+        }
+    }
+
+    @Override
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    @Override
+    public long getRetryCount()
+    {
+        return retries.get();
+    }
+
+    @Override
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    @Override
+    public long getAverageLatencyMillis()
+    {
+        long count = requests.get();
+        return count > 0L ? totalLatency.get() / count : 0L;
+    }
+
+    @Override
+    public int getInFlight()
+    {
+        return limiter.getInFlight();
+    }
+
+    @Override
+    public int getConcurrencyLimit()
+    {
+        return limiter.getLimit();
+    }
+
+    @Override
+    public int getPoolSize()
+    {
+        return poolSize;
+    }
+}
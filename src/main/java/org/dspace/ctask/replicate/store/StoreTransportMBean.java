@@ -0,0 +1,38 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+/**
+ * JMX management interface exposing the request statistics of a
+ * StoreTransport.
+ *
+ * @see StoreTransport
+ */
+public interface StoreTransportMBean
+{
+    /** @return total requests issued (including retries) */
+    long getRequestCount();
+
+    /** @return requests that were retried after a transient failure */
+    long getRetryCount();
+
+    /** @return requests that failed after exhausting retries */
+    long getFailureCount();
+
+    /** @return average request latency in milliseconds */
+    long getAverageLatencyMillis();
+
+    /** @return requests currently in flight */
+    int getInFlight();
+
+    /** @return current adaptive concurrency limit */
+    int getConcurrencyLimit();
+
+    /** @return most pooled connections of the direct HTTP client */
+    int getPoolSize();
+}
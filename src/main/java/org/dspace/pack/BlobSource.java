@@ -0,0 +1,28 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.pack;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A BlobSource supplies the content-addressed blobs which a packed object
+ * refers to rather than holds (e.g. deduplicated bitstreams), so they can be
+ * filled in when the object is unpacked.
+ */
+public interface BlobSource
+{
+    /**
+     * Fetches a local copy of the blob with the passed content address.
+     *
+     * @param address content address of the blob: [algorithm]-[digest]
+     * @return the blob, or null if there is no such blob
+     * @throws IOException if I/O error
+     */
+    File fetchBlob(String address) throws IOException;
+}
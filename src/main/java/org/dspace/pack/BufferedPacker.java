@@ -0,0 +1,35 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.pack;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import org.dspace.authorize.AuthorizeException;
+
+/**
+ * A BufferedPacker can also pack its object entirely in memory, which avoids
+ * all staging file I/O for small packages (e.g. deletion catalogs, or
+ * community and collection AIPs).
+ *
+ * @see PooledBuffer
+ */
+public interface BufferedPacker extends Packer
+{
+    /**
+     * Packs (maps) the contents of this object into an in-memory archive.
+     * The caller must release the returned buffer when done with it.
+     *
+     * @param name name of the package (as for the packDir of pack())
+     * @return buffer holding the packed archive
+     * @throws AuthorizeException if authorize error
+     * @throws IOException if I/O error
+     * @throws SQLException if database error
+     */
+    PooledBuffer packToBuffer(String name) throws AuthorizeException, IOException, SQLException;
+}
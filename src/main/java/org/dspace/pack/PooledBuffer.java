@@ -0,0 +1,270 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.pack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dspace.curate.Utils;
+
+/**
+ * PooledBuffer holds a small package (e.g. a deletion catalog, manifest or
+ * container AIP) entirely in memory, so it can be built and handed to a
+ * replica store without touching the file system. Content is written as an
+ * OutputStream into fixed-size chunks drawn from a shared pool, and may then
+ * be read back any number of times. Chunks return to the pool when the
+ * buffer is released, so building many small packages creates little garbage.
+ */
+public class PooledBuffer extends OutputStream
+{
+    // size of each chunk
+    private static final int CHUNK_SIZE = 8192;
+    // most chunks kept in the pool (8MB)
+    private static final int MAX_POOLED = 1024;
+
+    private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    // bytes written
+    private long size = 0L;
+    private boolean released = false;
+
+    public PooledBuffer()
+    {
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        int offset = offset();
+        current(offset)[offset] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            int offset = offset();
+            int count = Math.min(len, CHUNK_SIZE - offset);
+            System.arraycopy(b, off, current(offset), offset, count);
+            off += count;
+            len -= count;
+            size += count;
+        }
+    }
+
+    /**
+     * Closing has no effect - the content remains readable until released.
+     */
+    @Override
+    public void close()
+    {
+    }
+
+    /**
+     * Returns the number of bytes held.
+     *
+     * @return size in bytes
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the MD5 checksum of the content.
+     *
+     * @return hex-encoded checksum
+     * @throws IOException if the algorithm is unavailable
+     */
+    public String getChecksum() throws IOException
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            long left = size;
+            for (byte[] chunk : chunks)
+            {
+                int count = (int) Math.min(left, CHUNK_SIZE);
+                digest.update(chunk, 0, count);
+                left -= count;
+            }
+            return Utils.toHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException nsaE)
+        {
+            throw new IOException("no algorithm: MD5");
+        }
+    }
+
+    /**
+     * Returns a new stream over the content. The stream supports mark
+     * and reset, so it may be re-read when a request is retried.
+     *
+     * @return input stream
+     */
+    public InputStream getInputStream()
+    {
+        checkReleased();
+        return new ChunkInputStream();
+    }
+
+    /**
+     * Writes the content to the passed stream.
+     *
+     * @param out stream to write to
+     * @throws IOException if I/O error
+     */
+    public void writeTo(OutputStream out) throws IOException
+    {
+        checkReleased();
+        long left = size;
+        for (byte[] chunk : chunks)
+        {
+            int count = (int) Math.min(left, CHUNK_SIZE);
+            out.write(chunk, 0, count);
+            left -= count;
+        }
+    }
+
+    /**
+     * Returns this buffer's memory to the pool. The buffer may not be
+     * used afterwards; releasing more than once has no effect.
+     */
+    public void release()
+    {
+        if (released)
+        {
+            return;
+        }
+        released = true;
+        for (byte[] chunk : chunks)
+        {
+            if (pooled.incrementAndGet() <= MAX_POOLED)
+            {
+                pool.offer(chunk);
+            }
+            else
+            {
+                pooled.decrementAndGet();
+            }
+        }
+        chunks.clear();
+    }
+
+    // offset in the current chunk of the next byte written
+    private int offset()
+    {
+        return (int) (size % CHUNK_SIZE);
+    }
+
+    // returns the chunk to write at 'offset', adding a chunk when needed
+    private byte[] current(int offset)
+    {
+        checkReleased();
+        if (offset == 0 && chunks.size() * (long) CHUNK_SIZE == size)
+        {
+            byte[] chunk = pool.poll();
+            if (chunk != null)
+            {
+                pooled.decrementAndGet();
+            }
+            else
+            {
+                chunk = new byte[CHUNK_SIZE];
+            }
+            chunks.add(chunk);
+        }
+        return chunks.get(chunks.size() - 1);
+    }
+
+    private void checkReleased()
+    {
+        if (released)
+        {
+            throw new IllegalStateException("Buffer already released");
+        }
+    }
+
+    /*
+     * Reads the chunks in order
+     */
+    private class ChunkInputStream extends InputStream
+    {
+        private long pos = 0L;
+        private long mark = 0L;
+
+        @Override
+        public int read()
+        {
+            if (pos >= size)
+            {
+                return -1;
+            }
+            byte b = chunks.get((int) (pos / CHUNK_SIZE))[(int) (pos % CHUNK_SIZE)];
+            pos++;
+            return b & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (pos >= size)
+            {
+                return -1;
+            }
+            int offset = (int) (pos % CHUNK_SIZE);
+            int count = (int) Math.min(Math.min(len, CHUNK_SIZE - offset), size - pos);
+            System.arraycopy(chunks.get((int) (pos / CHUNK_SIZE)), offset, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return (int) Math.min(Integer.MAX_VALUE, size - pos);
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            long skipped = Math.max(0L, Math.min(n, size - pos));
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit)
+        {
+            mark = pos;
+        }
+
+        @Override
+        public synchronized void reset()
+        {
+            pos = mark;
+        }
+    }
+}
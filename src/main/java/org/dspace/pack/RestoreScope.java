@@ -0,0 +1,117 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.pack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * RestoreScope describes which parts of an object a restore (or replace)
+ * from an AIP is to update: its metadata, and all or some of its bundles.
+ * A scope is built from two task options:
+ * <ul>
+ * <li>'metadataOnly' (true or false) - restore the object's metadata, and
+ * no bundles
+ * <li>'restoreBundles' (comma-separated bundle names) - restore only the
+ * named bundles, and not the metadata (unless 'metadataOnly' is also set)
+ * </ul>
+ * With neither option, the whole object is restored. Packers restoring
+ * within a limited scope read only the parts of the AIP they need.
+ */
+public class RestoreScope
+{
+    /** Restores the whole object **/
+    public static final RestoreScope ALL = new RestoreScope(true, null);
+
+    private final boolean metadata;
+    // bundles to restore - null for all
+    private final List<String> bundles;
+
+    private RestoreScope(boolean metadata, List<String> bundles)
+    {
+        this.metadata = metadata;
+        this.bundles = bundles;
+    }
+
+    /**
+     * Returns the scope described by the task options.
+     *
+     * @param metadataOnly value of the 'metadataOnly' option
+     * @param restoreBundles value of the 'restoreBundles' option (may be null)
+     * @return the scope
+     */
+    public static RestoreScope of(boolean metadataOnly, String restoreBundles)
+    {
+        if (restoreBundles == null || restoreBundles.trim().length() == 0)
+        {
+            return metadataOnly ? new RestoreScope(true, Collections.<String>emptyList()) : ALL;
+        }
+        List<String> bundles = new ArrayList<String>();
+        for (String bundle : restoreBundles.split(","))
+        {
+            if (bundle.trim().length() > 0)
+            {
+                bundles.add(bundle.trim());
+            }
+        }
+        return new RestoreScope(metadataOnly, bundles);
+    }
+
+    /**
+     * Returns true if the whole object is restored.
+     *
+     * @return true if not limited
+     */
+    public boolean isComplete()
+    {
+        return metadata && bundles == null;
+    }
+
+    /**
+     * Returns true if the object's metadata is restored.
+     *
+     * @return true if metadata is restored
+     */
+    public boolean includesMetadata()
+    {
+        return metadata;
+    }
+
+    /**
+     * Returns true if the named bundle is restored.
+     *
+     * @param bundle bundle name
+     * @return true if the bundle is restored
+     */
+    public boolean includesBundle(String bundle)
+    {
+        return bundles == null || bundles.contains(bundle);
+    }
+
+    /**
+     * Returns the names of the bundles restored, or null if all are.
+     *
+     * @return bundle names, or null
+     */
+    public List<String> getBundles()
+    {
+        return bundles;
+    }
+
+    @Override
+    public String toString()
+    {
+        if (isComplete())
+        {
+            return "all";
+        }
+        return (metadata ? "metadata" : "") + (metadata && ! bundles.isEmpty() ? ", " : "") +
+               (bundles.isEmpty() ? "" : "bundles " + bundles);
+    }
+}
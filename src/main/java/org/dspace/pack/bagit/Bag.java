@@ -22,10 +22,13 @@ import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -43,6 +46,7 @@ import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 
 import org.dspace.curate.Utils;
+import org.dspace.pack.PooledBuffer;
 import org.dspace.services.ConfigurationService;
 import org.dspace.services.factory.DSpaceServicesFactory;
 
@@ -64,6 +68,9 @@ import static javax.xml.stream.XMLStreamConstants.*;
  * formats zip or tgz) or be deserialized from same or a stream, 
  * abiding by the serialization recommendations of the specification.
  * 
+ * Small bags may instead be written entirely in memory (see PooledBuffer),
+ * and deflated straight to a buffer, without any file system access.
+ * 
  * @author richardrodgers
  */
 public class Bag {
@@ -90,6 +97,10 @@ public class Bag {
 
     // directory root of bag
     private File baseDir = null;
+    // contents of an in-memory bag, by bag-relative path (null if on disk)
+    private Map<String, PooledBuffer> memFiles = null;
+    // payload path prefixes inflated from an archive (null for all)
+    private List<String> dataPrefixes = null;
     // have all content and tag files been written?
     private boolean filled = false;
 
@@ -134,12 +145,83 @@ public class Bag {
             {
                 dFile.mkdirs();
                 // prepare manifest writers
-                tagWriter = new FlatWriter(bagFile(TAGMANIF_FILE), null, null);
-                manWriter = new FlatWriter(bagFile(MANIF_FILE), null, tagWriter);
+                tagWriter = new FlatWriter(bagOutput(TAGMANIF_FILE), TAGMANIF_FILE, null);
+                manWriter = new FlatWriter(bagOutput(MANIF_FILE), MANIF_FILE, tagWriter);
             }
         } 
     }
 
+    /**
+     * Constructor - partly inflates a compressed archive of a bag, in the
+     * same directory as the archive file. All tag files are inflated, but
+     * only those payload files whose paths (relative to 'data') begin with
+     * one of the passed prefixes. Zip archives are read by their central
+     * directory, so the content of skipped files is not read at all.
+     * 
+     * @param archive compressed archive of a bag
+     * @param dataPrefixes payload path prefixes to inflate
+     * @throws IOException if I/O error
+     */
+    public Bag(File archive, List<String> dataPrefixes) throws IOException
+    {
+        String baseName = archive.getName();
+        int sfxIdx = baseName.lastIndexOf(".");
+        if (! archive.isFile() || sfxIdx == -1)
+        {
+            throw new IOException("Not a bag archive: " + archive);
+        }
+        String fmt = baseName.substring(sfxIdx + 1);
+        baseDir = new File(archive.getParent(), baseName.substring(0, sfxIdx));
+        bagFile("data").mkdirs();
+        this.dataPrefixes = dataPrefixes;
+        if ("zip".equals(fmt))
+        {
+            ZipFile zip = new ZipFile(archive);
+            try
+            {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements())
+                {
+                    ZipEntry entry = entries.nextElement();
+                    if (wanted(entry.getName()))
+                    {
+                        InputStream in = zip.getInputStream(entry);
+                        File outFile = new File(baseDir.getParent(), entry.getName());
+                        outFile.getParentFile().mkdirs();
+                        FileOutputStream fout = new FileOutputStream(outFile);
+                        Utils.copy(in, fout);
+                        fout.close();
+                        in.close();
+                    }
+                }
+            }
+            finally
+            {
+                zip.close();
+            }
+            filled = true;
+        }
+        else
+        {
+            inflate(archive.getPath());
+        }
+    }
+
+    /**
+     * Constructor - creates a new, unfilled bag held entirely in memory.
+     * Such a bag can only be written, then deflated (typically to a buffer).
+     *
+     * @param name name of the bag (i.e. of its root directory when deflated)
+     * @throws IOException if I/O error
+     */
+    public Bag(String name) throws IOException
+    {
+        baseDir = new File(name);
+        memFiles = new LinkedHashMap<String, PooledBuffer>();
+        tagWriter = new FlatWriter(bagOutput(TAGMANIF_FILE), TAGMANIF_FILE, null);
+        manWriter = new FlatWriter(bagOutput(MANIF_FILE), MANIF_FILE, tagWriter);
+    }
+
     public static String getVersion()
     {
         return BAGIT_VSN;
@@ -174,7 +256,7 @@ public class Bag {
             throw new IllegalStateException("Cannot write to filled bag");
         }
         String brPath = "data/" + name;
-        return new FlatWriter(dataFile(name), brPath, manWriter);
+        return new FlatWriter(bagOutput(brPath), brPath, manWriter);
     }
 
     public XmlWriter xmlWriter(String name) throws IOException
@@ -184,7 +266,7 @@ public class Bag {
             throw new IllegalStateException("Cannot write to filled bag");
         }
         String brPath = "data/" + name;
-        return new XmlWriter(dataFile(name), brPath, manWriter);
+        return new XmlWriter(bagOutput(brPath), brPath, manWriter);
     }
 
     public InputStream dataStream(String name) throws IOException
@@ -204,7 +286,7 @@ public class Bag {
         try
         {
             dis = new DigestInputStream(is, MessageDigest.getInstance(CS_ALGO));
-            FileOutputStream fos = new FileOutputStream(dataFile(relPath));
+            OutputStream fos = bagOutput("data/" + relPath);
             // attempt to optimize copy in various ways - TODO
             Utils.copy(dis, fos);
             fos.close();
@@ -224,12 +306,30 @@ public class Bag {
     {
         if (refWriter == null)
         {
-            refWriter = new FlatWriter(bagFile(REF_FILE), null, tagWriter);
+            refWriter = new FlatWriter(bagOutput(REF_FILE), REF_FILE, tagWriter);
         }
         String brPath = "data/" + relPath;
         refWriter.writeLine(url + " " + size + " " + brPath);
     }
     
+    /**
+     * Fills a referenced ('holey') payload entry with the passed content,
+     * after which it can be read like any included payload file.
+     *
+     * @param relPath payload-relative path of the referenced entry
+     * @param content file holding the entry's content (consumed)
+     * @throws IOException if I/O error
+     */
+    public void fillDataRef(String relPath, File content) throws IOException
+    {
+        File target = dataFile(relPath);
+        if (! content.renameTo(target))
+        {
+            Utils.copy(content, target);
+            content.delete();
+        }
+    }
+
     public List<File> listDataFiles() throws IOException
     {
        return Arrays.asList(bagFile("data").listFiles());
@@ -247,6 +347,7 @@ public class Bag {
             {
                 refList.add(line);
             }
+            reader.close();
         }
         return refList;
     }
@@ -262,7 +363,7 @@ public class Bag {
                 refWriter.close();
             }
             // write out bagit declaration file
-            FlatWriter fwriter = new FlatWriter(bagFile(DECL_FILE), null, tagWriter);
+            FlatWriter fwriter = new FlatWriter(bagOutput(DECL_FILE), DECL_FILE, tagWriter);
             fwriter.writeLine("BagIt-Version: " + BAGIT_VSN);
             fwriter.writeLine("Tag-File-Character-Encoding: " + ENCODING);
             fwriter.close();
@@ -274,6 +375,16 @@ public class Bag {
 
     public void empty()
     {
+        if (memFiles != null)
+        {
+            for (PooledBuffer buffer : memFiles.values())
+            {
+                buffer.release();
+            }
+            memFiles.clear();
+            filled = false;
+            return;
+        }
         // just delete everything
         deleteDir(baseDir);
         baseDir.delete();
@@ -323,7 +434,14 @@ public class Bag {
         {
             ZipOutputStream zout = new ZipOutputStream(
                                    new BufferedOutputStream(out));
-            fillZip(baseDir, baseDir.getName(), zout);
+            if (memFiles != null)
+            {
+                fillZip(zout);
+            }
+            else
+            {
+                fillZip(baseDir, baseDir.getName(), zout);
+            }
             zout.close(); 
         }
         else if ("tgz".equals(fmt))
@@ -331,10 +449,32 @@ public class Bag {
             TarArchiveOutputStream tout = new TarArchiveOutputStream(
                                           new BufferedOutputStream(
                                           new GzipCompressorOutputStream(out)));
-            fillArchive(baseDir, baseDir.getName(), tout);
+            if (memFiles != null)
+            {
+                fillArchive(tout);
+            }
+            else
+            {
+                fillArchive(baseDir, baseDir.getName(), tout);
+            }
             tout.close(); 
         }
     }
+
+    /**
+     * Deflates this bag into an in-memory buffer, which the caller must
+     * release when done with it.
+     *
+     * @param fmt archive format (zip or tgz)
+     * @return buffer holding the archive
+     * @throws IOException if I/O error
+     */
+    public PooledBuffer deflateToBuffer(String fmt) throws IOException
+    {
+        PooledBuffer buffer = new PooledBuffer();
+        deflate(buffer, fmt);
+        return buffer;
+    }
     
     public final void inflate() throws IOException
     {
@@ -362,6 +502,10 @@ public class Bag {
             ZipEntry entry = null;
             while((entry = zin.getNextEntry()) != null)
             {
+                if (! wanted(entry.getName()))
+                {
+                    continue;
+                }
                 File outFile = new File(baseDir.getParent(), entry.getName());
                 outFile.getParentFile().mkdirs();
                 FileOutputStream fout = new FileOutputStream(outFile);
@@ -377,6 +521,10 @@ public class Bag {
             TarArchiveEntry entry = null;
             while((entry = tin.getNextTarEntry()) != null)
             {
+                if (! wanted(entry.getName()))
+                {
+                    continue;
+                }
                 File outFile = new File(baseDir.getParent(), entry.getName());
                 outFile.getParentFile().mkdirs();
                 FileOutputStream fout = new FileOutputStream(outFile);
@@ -411,6 +559,40 @@ public class Bag {
         }
     }
 
+    // in-memory bag counterparts of the above: entries carry the same size
+    // and (fixed) time as those of file-based bags
+    private void fillArchive(ArchiveOutputStream out) throws IOException
+    {
+        for (Map.Entry<String, PooledBuffer> file : memFiles.entrySet())
+        {
+            TarArchiveEntry entry = new TarArchiveEntry(memPath(file.getKey()));
+            entry.setSize(file.getValue().size());
+            entry.setModTime(0L);
+            out.putArchiveEntry(entry);
+            file.getValue().writeTo(out);
+            out.closeArchiveEntry();
+        }
+    }
+
+    private void fillZip(ZipOutputStream zout) throws IOException
+    {
+        for (Map.Entry<String, PooledBuffer> file : memFiles.entrySet())
+        {
+            ZipEntry entry = new ZipEntry(memPath(file.getKey()));
+            entry.setSize(file.getValue().size());
+            entry.setTime(0L);
+            zout.putNextEntry(entry);
+            file.getValue().writeTo(zout);
+            zout.closeEntry();
+        }
+    }
+
+    // archive entry names always use '/', whatever the platform
+    private String memPath(String relPath)
+    {
+        return baseDir.getName() + "/" + relPath;
+    }
+
     private void fillZip(File dirFile, String relBase, ZipOutputStream zout) throws IOException
     {
         for (File file : dirFile.listFiles())
@@ -433,6 +615,33 @@ public class Bag {
         }
     }
 
+    /*
+     * Determines whether an archive entry (path beginning with the bag
+     * directory) is to be inflated
+     */
+    private boolean wanted(String entryName)
+    {
+        if (dataPrefixes == null)
+        {
+            return true;
+        }
+        String path = entryName.substring(entryName.indexOf("/") + 1);
+        if (! path.startsWith("data/"))
+        {
+            // tag file
+            return true;
+        }
+        path = path.substring("data/".length());
+        for (String prefix : dataPrefixes)
+        {
+            if (path.startsWith(prefix))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private File dataFile(String name)
     {
         // all user-defined files live in payload area - ie. under 'data'
@@ -451,6 +660,27 @@ public class Bag {
         return new File(baseDir, name);
     }
 
+    /*
+     * Opens a bag file (given by bag-relative path) for writing -
+     * in memory, or on disk creating any needed directories
+     */
+    private OutputStream bagOutput(String relPath) throws IOException
+    {
+        if (memFiles != null)
+        {
+            PooledBuffer buffer = new PooledBuffer();
+            memFiles.put(relPath, buffer);
+            return buffer;
+        }
+        File file = bagFile(relPath);
+        File parentFile = file.getParentFile();
+        if (! parentFile.isDirectory())
+        {
+            parentFile.mkdirs();
+        }
+        return new FileOutputStream(file);
+    }
+
     // Assortment of small helper classes for reading & writing bag files
     // Writers capture the checksums of written files, needed for bag manifests
 
@@ -569,14 +799,14 @@ public class Bag {
         private DigestOutputStream dout = null;
         private FlatWriter tailWriter = null;
 
-        private FlatWriter(File file, String brPath, FlatWriter tailWriter) throws IOException
+        private FlatWriter(OutputStream out, String brPath, FlatWriter tailWriter) throws IOException
         {
             try
             {
-                out = new FileOutputStream(file);
+                this.out = out;
                 dout = new DigestOutputStream(out,
                                            MessageDigest.getInstance(CS_ALGO));
-                this.brPath = (brPath != null) ? brPath : file.getName();
+                this.brPath = brPath;
                 this.tailWriter = tailWriter;
             }
             catch (NoSuchAlgorithmException nsae)
@@ -618,16 +848,16 @@ public class Bag {
         private XMLStreamWriter writer = null;
         private FlatWriter tailWriter = null;
 
-        private XmlWriter(File file, String brPath, FlatWriter tailWriter) throws IOException
+        private XmlWriter(OutputStream out, String brPath, FlatWriter tailWriter) throws IOException
         {
             try
             {
-                out = new FileOutputStream(file);
+                this.out = out;
                 dout = new DigestOutputStream(out,
                                     MessageDigest.getInstance(CS_ALGO));
                 writer = outFactory.createXMLStreamWriter(dout, ENCODING);
                 writer.writeStartDocument(ENCODING, "1.0");
-                this.brPath = (brPath != null) ? brPath : file.getName();
+                this.brPath = brPath;
                 this.tailWriter = tailWriter;
             }
             catch (XMLStreamException xsE)
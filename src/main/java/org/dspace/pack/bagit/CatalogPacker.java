@@ -14,7 +14,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 
-import org.dspace.pack.Packer;
+import org.dspace.pack.BufferedPacker;
+import org.dspace.pack.PooledBuffer;
 import org.dspace.services.ConfigurationService;
 import org.dspace.services.factory.DSpaceServicesFactory;
 
@@ -27,7 +28,7 @@ import static org.dspace.pack.PackerFactory.*;
  *
  * @author richardrodgers
  */
-public class CatalogPacker implements Packer
+public class CatalogPacker implements BufferedPacker
 {
     private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
 
@@ -63,6 +64,28 @@ public class CatalogPacker implements Packer
     public File pack(File packDir) throws IOException
     {
         Bag bag = new Bag(packDir);
+        fill(bag);
+        File archive = bag.deflate(archFmt);
+        // clean up undeflated bag
+        bag.empty();
+        return archive;
+    }
+
+    @Override
+    public PooledBuffer packToBuffer(String name) throws IOException
+    {
+        Bag bag = new Bag(name);
+        fill(bag);
+        PooledBuffer archive = bag.deflateToBuffer(archFmt);
+        bag.empty();
+        return archive;
+    }
+
+    /*
+     * Writes this object's contents into the bag, and closes it
+     */
+    private void fill(Bag bag) throws IOException
+    {
         // set base object properties
         Bag.FlatWriter fwriter = bag.flatWriter(OBJFILE);
         fwriter.writeProperty(BAG_TYPE, "MAN");
@@ -86,10 +109,6 @@ public class CatalogPacker implements Packer
             fwriter.close();
         }
         bag.close();
-        File archive = bag.deflate(archFmt);
-        // clean up undeflated bag
-        bag.empty();
-        return archive;
     }
 
     @Override
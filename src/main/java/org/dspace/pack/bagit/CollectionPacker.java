@@ -23,7 +23,8 @@ import org.dspace.content.service.BitstreamService;
 import org.dspace.content.service.CollectionService;
 import org.dspace.content.service.ItemService;
 import org.dspace.curate.Curator;
-import org.dspace.pack.Packer;
+import org.dspace.pack.BufferedPacker;
+import org.dspace.pack.PooledBuffer;
 import org.dspace.pack.PackerFactory;
 
 import static org.dspace.pack.PackerFactory.*;
@@ -33,7 +34,7 @@ import static org.dspace.pack.PackerFactory.*;
  *
  * @author richardrodgers
  */
-public class CollectionPacker implements Packer
+public class CollectionPacker implements BufferedPacker
 {
     private CollectionService collectionService = ContentServiceFactory.getInstance().getCollectionService();
     private ItemService itemService = ContentServiceFactory.getInstance().getItemService();
@@ -75,6 +76,28 @@ public class CollectionPacker implements Packer
     public File pack(File packDir) throws AuthorizeException, IOException, SQLException
     {
         Bag bag = new Bag(packDir);
+        fill(bag);
+        File archive = bag.deflate(archFmt);
+        // clean up undeflated bag
+        bag.empty();
+        return archive;
+    }
+
+    @Override
+    public PooledBuffer packToBuffer(String name) throws AuthorizeException, IOException, SQLException
+    {
+        Bag bag = new Bag(name);
+        fill(bag);
+        PooledBuffer archive = bag.deflateToBuffer(archFmt);
+        bag.empty();
+        return archive;
+    }
+
+    /*
+     * Writes this object's contents into the bag, and closes it
+     */
+    private void fill(Bag bag) throws AuthorizeException, IOException, SQLException
+    {
         // set base object properties
         Bag.FlatWriter fwriter = bag.flatWriter(OBJFILE);
         fwriter.writeProperty(BAG_TYPE, "AIP");
@@ -106,10 +129,6 @@ public class CollectionPacker implements Packer
             bag.addData("logo", logo.getSize(), bitstreamService.retrieve(Curator.curationContext(), logo));
         }
         bag.close();
-        File archive = bag.deflate(archFmt);
-        // clean up undeflated bag
-        bag.empty();
-        return archive;
     }
 
     @Override
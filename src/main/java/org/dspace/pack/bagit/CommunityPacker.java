@@ -21,7 +21,8 @@ import org.dspace.content.factory.ContentServiceFactory;
 import org.dspace.content.service.BitstreamService;
 import org.dspace.content.service.CommunityService;
 import org.dspace.curate.Curator;
-import org.dspace.pack.Packer;
+import org.dspace.pack.BufferedPacker;
+import org.dspace.pack.PooledBuffer;
 import org.dspace.pack.PackerFactory;
 
 import static org.dspace.pack.PackerFactory.*;
@@ -31,7 +32,7 @@ import static org.dspace.pack.PackerFactory.*;
  *
  * @author richardrodgers
  */
-public class CommunityPacker implements Packer
+public class CommunityPacker implements BufferedPacker
 {
     private CommunityService communityService = ContentServiceFactory.getInstance().getCommunityService();
     private BitstreamService bitstreamService = ContentServiceFactory.getInstance().getBitstreamService();
@@ -69,6 +70,28 @@ public class CommunityPacker implements Packer
     public File pack(File packDir) throws AuthorizeException, SQLException, IOException
     {
         Bag bag = new Bag(packDir);
+        fill(bag);
+        File archive = bag.deflate(archFmt);
+        // clean up undeflated bag
+        bag.empty();
+        return archive;
+    }
+
+    @Override
+    public PooledBuffer packToBuffer(String name) throws AuthorizeException, SQLException, IOException
+    {
+        Bag bag = new Bag(name);
+        fill(bag);
+        PooledBuffer archive = bag.deflateToBuffer(archFmt);
+        bag.empty();
+        return archive;
+    }
+
+    /*
+     * Writes this object's contents into the bag, and closes it
+     */
+    private void fill(Bag bag) throws AuthorizeException, SQLException, IOException
+    {
         // set base object properties
         Bag.FlatWriter fwriter = bag.flatWriter(OBJFILE);
         fwriter.writeProperty(BAG_TYPE, "AIP");
@@ -100,10 +123,6 @@ public class CommunityPacker implements Packer
             bag.addData("logo", logo.getSize(), bitstreamService.retrieve(Curator.curationContext(), logo));
         }
         bag.close();
-        File archive = bag.deflate(archFmt);
-        // clean up undeflated bag
-        bag.empty();
-        return archive;
     }
 
     @Override
@@ -14,7 +14,9 @@ import java.io.InputStream;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import org.dspace.authorize.AuthorizeException;
@@ -25,11 +27,23 @@ import org.dspace.content.service.BitstreamService;
 import org.dspace.content.service.BundleService;
 import org.dspace.content.service.ItemService;
 import org.dspace.curate.Curator;
+import org.dspace.curate.Utils;
+import org.dspace.pack.BlobSource;
 import org.dspace.pack.Packer;
+import org.dspace.pack.RestoreScope;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
 import static org.dspace.pack.PackerFactory.*;
 
 /**
  * ItemPacker packs and unpacks Item AIPs in BagIt bag compressed archives
+ * <P>
+ * If content-addressed storage is enabled ('packer.dedup'), bitstreams are
+ * not packed into the bag, which instead refers to each in 'fetch.txt' by
+ * its content address ([algorithm]-[digest]). Packing stores nothing: the
+ * bitstreams referred to are listed by getBlobs(), for whoever transmits
+ * the archive to store as blobs. Unpacking fetches the referenced blobs
+ * back from the BlobSource set.
  *
  * @author richardrodgers
  */
@@ -38,12 +52,24 @@ public class ItemPacker implements Packer
     private ItemService itemService = ContentServiceFactory.getInstance().getItemService();
     private BundleService bundleService = ContentServiceFactory.getInstance().getBundleService();
     private BitstreamService bitstreamService = ContentServiceFactory.getInstance().getBitstreamService();
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // URL scheme of content-addressed blob references in fetch.txt
+    private static final String BLOB_SCHEME = "blob:";
 
     private Item item = null;
     private String archFmt = null;
     private List<String> filterBundles = new ArrayList<String>();
     private boolean exclude = true;
     private List<RefFilter> refFilters = new ArrayList<RefFilter>();
+    // refer to bitstreams as shared content-addressed blobs?
+    private boolean dedup = configurationService.getBooleanProperty("replicate.packer.dedup", false);
+    // bitstreams the last pack referred to, by content address
+    private Map<String, Bitstream> blobs = new LinkedHashMap<String, Bitstream>();
+    // supplier of blobs referred to by unpacked bags
+    private BlobSource blobSource = null;
+    // parts of the item restored by unpacking
+    private RestoreScope scope = RestoreScope.ALL;
 
     public ItemPacker(Item item, String archFmt)
     {
@@ -61,9 +87,43 @@ public class ItemPacker implements Packer
         this.item = item;
     }
 
+    /**
+     * Limits the parts of the item restored by unpack(). Only the parts of
+     * the archive needed are inflated.
+     *
+     * @param scope parts of the item to restore
+     */
+    public void setRestoreScope(RestoreScope scope)
+    {
+        this.scope = scope;
+    }
+
+    /**
+     * Sets where unpack() fetches the blobs a bag refers to.
+     *
+     * @param blobSource the source of blobs
+     */
+    public void setBlobSource(BlobSource blobSource)
+    {
+        this.blobSource = blobSource;
+    }
+
+    /**
+     * Returns the bitstreams the last pack() referred to as content-addressed
+     * blobs, by content address ([algorithm]-[digest]). They must be stored
+     * as blobs before the archive is of any use.
+     *
+     * @return bitstreams by content address
+     */
+    public Map<String, Bitstream> getBlobs()
+    {
+        return blobs;
+    }
+
     @Override
     public File pack(File packDir) throws AuthorizeException, IOException, SQLException
     {
+        blobs = new LinkedHashMap<String, Bitstream>();
         Bag bag = new Bag(packDir);
         // set base object properties
         Bag.FlatWriter fwriter = bag.flatWriter(OBJFILE);
@@ -139,6 +199,12 @@ public class ItemPacker implements Packer
                     writer.close();
                     // write the bitstream itself, unless reference filter applies
                     String url = byReference(bundle, bs);
+                    if (url == null && dedup)
+                    {
+                        String address = bs.getChecksumAlgorithm().toLowerCase() + "-" + bs.getChecksum().toLowerCase();
+                        blobs.put(address, bs);
+                        url = BLOB_SCHEME + address;
+                    }
                     if (url != null)
                     {
                         // add reference to bag
@@ -165,9 +231,30 @@ public class ItemPacker implements Packer
         {
             throw new IOException("Missing archive for item: " + item.getHandle());
         }
-        Bag bag = new Bag(archive);
+        Bag bag;
+        if (scope.isComplete() || archive.isDirectory())
+        {
+            bag = new Bag(archive);
+        }
+        else
+        {
+            // inflate only what will be restored
+            List<String> prefixes = new ArrayList<String>();
+            prefixes.add(OBJFILE);
+            if (scope.includesMetadata())
+            {
+                prefixes.add("metadata.xml");
+            }
+            for (String bundleName : scope.getBundles())
+            {
+                prefixes.add(bundleName + "/");
+            }
+            bag = new Bag(archive, prefixes);
+        }
+        // fill in any content-addressed payload
+        resolveBlobs(bag);
         // add the metadata first
-        Bag.XmlReader reader = bag.xmlReader("metadata.xml");
+        Bag.XmlReader reader = scope.includesMetadata() ? bag.xmlReader("metadata.xml") : null;
         if (reader != null && reader.findStanza("metadata"))
         {
             Bag.Value value = null;
@@ -187,7 +274,7 @@ public class ItemPacker implements Packer
         for (File bfile : bag.listDataFiles())
         {
             // only bundles are directories
-            if (! bfile.isDirectory())
+            if (! bfile.isDirectory() || ! scope.includesBundle(bfile.getName()))
             {
                 continue;
             }
@@ -312,6 +399,52 @@ public class ItemPacker implements Packer
         return null;
     }
 
+    /*
+     * Fetches the content-addressed blobs referenced by the bag, verifying
+     * each against the digest it is named by
+     */
+    private void resolveBlobs(Bag bag) throws IOException
+    {
+        List<String> refs = bag.getDataRefs();
+        if (refs.isEmpty())
+        {
+            return;
+        }
+        for (String ref : refs)
+        {
+            // fetch.txt line: url length data/path
+            String[] parts = ref.split(" ", 3);
+            if (! parts[0].startsWith(BLOB_SCHEME))
+            {
+                continue;
+            }
+            // only blobs of bundles being restored
+            String relPath = parts[2].substring("data/".length());
+            if (! scope.includesBundle(relPath.substring(0, Math.max(0, relPath.indexOf("/")))))
+            {
+                continue;
+            }
+            String address = parts[0].substring(BLOB_SCHEME.length());
+            if (blobSource == null)
+            {
+                throw new IOException("No source of blob '" + address + "' for item: " + item.getHandle());
+            }
+            File blob = blobSource.fetchBlob(address);
+            if (blob == null)
+            {
+                throw new IOException("Missing blob '" + address + "' for item: " + item.getHandle());
+            }
+            String algorithm = address.substring(0, address.indexOf("-"));
+            String digest = address.substring(address.indexOf("-") + 1);
+            if (! digest.equalsIgnoreCase(Utils.checksum(blob, algorithm.toUpperCase())))
+            {
+                blob.delete();
+                throw new IOException("Blob '" + address + "' failed checksum verification");
+            }
+            bag.fillDataRef(relPath, blob);
+        }
+    }
+
     private class RefFilter
     {
         public String bundle;
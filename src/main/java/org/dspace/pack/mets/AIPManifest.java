@@ -0,0 +1,307 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.pack.mets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static javax.xml.stream.XMLStreamConstants.*;
+
+/**
+ * AIPManifest is a summary of the METS manifest ('mets.xml') of a DSpace
+ * METS AIP, read straight from the zip archive: the object's handle, its
+ * descriptive metadata (the DIM metadata section), its files by bundle, and
+ * the child packages it refers to. It lets parts of an object be restored
+ * without running the AIP ingester, reading only the archive entries needed.
+ *
+ * @see METSPacker
+ */
+public class AIPManifest
+{
+    /** name of the manifest entry in an AIP **/
+    public static final String METS_FILE = "mets.xml";
+    private static final String DIM_NS = "http://www.dspace.org/xmlns/dspace/dim";
+    private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+    private static final String HANDLE_PREFIX = "hdl:";
+    private static final String ITEM_TYPE = "DSpace ITEM";
+    private static final String PARENT_LABEL = "Parent";
+
+    private static XMLInputFactory inFactory = XMLInputFactory.newInstance();
+
+    private String handle = null;
+    private final List<Field> metadata = new ArrayList<Field>();
+    private final Map<String, List<FileRef>> bundles = new LinkedHashMap<String, List<FileRef>>();
+    private final List<String> childRefs = new ArrayList<String>();
+
+    private AIPManifest()
+    {
+    }
+
+    /**
+     * Reads the manifest of a METS AIP.
+     *
+     * @param zip the AIP archive
+     * @return the manifest summary
+     * @throws IOException if the manifest is missing or cannot be parsed
+     */
+    public static AIPManifest read(ZipFile zip) throws IOException
+    {
+        ZipEntry entry = zip.getEntry(METS_FILE);
+        if (entry == null)
+        {
+            throw new IOException("No " + METS_FILE + " in AIP '" + zip.getName() + "'");
+        }
+        InputStream in = zip.getInputStream(entry);
+        try
+        {
+            return read(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a METS AIP manifest from a stream, e.g. the 'mets.xml' entry
+     * extracted from an AIP. The stream is not closed.
+     *
+     * @param in the manifest
+     * @return the manifest summary
+     * @throws IOException if the manifest cannot be parsed
+     */
+    public static AIPManifest read(InputStream in) throws IOException
+    {
+        AIPManifest manifest = new AIPManifest();
+        try
+        {
+            manifest.parse(inFactory.createXMLStreamReader(in, "UTF-8"));
+        }
+        catch (XMLStreamException xsE)
+        {
+            throw new IOException(xsE.getMessage(), xsE);
+        }
+        return manifest;
+    }
+
+    private void parse(XMLStreamReader reader) throws XMLStreamException
+    {
+        boolean inDmd = false;
+        // in the parent structure map, whose pointer is to the parent's handle
+        boolean inParentMap = false;
+        boolean isItem = false;
+        String techId = null;
+        String bundle = null;
+        FileRef file = null;
+        String fileAdmId = null;
+        // bitstream original names, by administrative section ID
+        Map<String, String> names = new HashMap<String, String>();
+        // files, with their administrative section IDs
+        Map<FileRef, String> admIds = new HashMap<FileRef, String>();
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+            if (event == START_ELEMENT)
+            {
+                String name = reader.getLocalName();
+                if ("mets".equals(name) && handle == null)
+                {
+                    String objId = reader.getAttributeValue(null, "OBJID");
+                    if (objId != null)
+                    {
+                        handle = objId.startsWith(HANDLE_PREFIX) ? objId.substring(HANDLE_PREFIX.length()) : objId;
+                    }
+                    isItem = ITEM_TYPE.equals(reader.getAttributeValue(null, "TYPE"));
+                }
+                else if ("structMap".equals(name))
+                {
+                    inParentMap = PARENT_LABEL.equals(reader.getAttributeValue(null, "LABEL"));
+                }
+                else if ("dmdSec".equals(name))
+                {
+                    inDmd = true;
+                }
+                else if ("field".equals(name) && inDmd && DIM_NS.equals(reader.getNamespaceURI()))
+                {
+                    Field field = new Field();
+                    field.schema = reader.getAttributeValue(null, "mdschema");
+                    field.element = reader.getAttributeValue(null, "element");
+                    field.qualifier = reader.getAttributeValue(null, "qualifier");
+                    field.language = reader.getAttributeValue(null, "lang");
+                    field.value = reader.getElementText();
+                    metadata.add(field);
+                }
+                else if ("techMD".equals(name))
+                {
+                    techId = reader.getAttributeValue(null, "ID");
+                }
+                else if ("originalName".equals(name) && techId != null)
+                {
+                    names.put(techId, reader.getElementText());
+                }
+                else if ("fileGrp".equals(name))
+                {
+                    bundle = reader.getAttributeValue(null, "USE");
+                }
+                else if ("file".equals(name) && bundle != null)
+                {
+                    file = new FileRef();
+                    file.checksum = reader.getAttributeValue(null, "CHECKSUM");
+                    file.checksumType = reader.getAttributeValue(null, "CHECKSUMTYPE");
+                    file.mimeType = reader.getAttributeValue(null, "MIMETYPE");
+                    String seq = reader.getAttributeValue(null, "SEQ");
+                    file.sequence = (seq != null) ? Integer.parseInt(seq) : -1;
+                    fileAdmId = reader.getAttributeValue(null, "ADMID");
+                }
+                else if ("FLocat".equals(name) && file != null)
+                {
+                    file.href = reader.getAttributeValue(XLINK_NS, "href");
+                }
+                else if ("mptr".equals(name) && ! inParentMap && ! isItem &&
+                         "URL".equals(reader.getAttributeValue(null, "LOCTYPE")))
+                {
+                    // as METSManifest.getChildMetsFilePaths: child packages are URL pointers
+                    String href = reader.getAttributeValue(XLINK_NS, "href");
+                    if (href != null)
+                    {
+                        childRefs.add(href);
+                    }
+                }
+            }
+            else if (event == END_ELEMENT)
+            {
+                String name = reader.getLocalName();
+                if ("dmdSec".equals(name))
+                {
+                    inDmd = false;
+                }
+                else if ("techMD".equals(name))
+                {
+                    techId = null;
+                }
+                else if ("structMap".equals(name))
+                {
+                    inParentMap = false;
+                }
+                else if ("fileGrp".equals(name))
+                {
+                    bundle = null;
+                }
+                else if ("file".equals(name) && file != null)
+                {
+                    List<FileRef> files = bundles.get(bundle);
+                    if (files == null)
+                    {
+                        files = new ArrayList<FileRef>();
+                        bundles.put(bundle, files);
+                    }
+                    files.add(file);
+                    if (fileAdmId != null)
+                    {
+                        admIds.put(file, fileAdmId);
+                    }
+                    file = null;
+                }
+            }
+        }
+        reader.close();
+        // administrative sections may follow the file section
+        for (Map.Entry<FileRef, String> admId : admIds.entrySet())
+        {
+            for (String id : admId.getValue().split("\\s+"))
+            {
+                if (names.containsKey(id))
+                {
+                    admId.getKey().name = names.get(id);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the handle of the object.
+     *
+     * @return handle, or null if not given
+     */
+    public String getHandle()
+    {
+        return handle;
+    }
+
+    /**
+     * Returns the object's descriptive metadata.
+     *
+     * @return metadata fields, in manifest order
+     */
+    public List<Field> getMetadata()
+    {
+        return metadata;
+    }
+
+    /**
+     * Returns the object's files, by bundle name.
+     *
+     * @return files by bundle, in manifest order
+     */
+    public Map<String, List<FileRef>> getBundles()
+    {
+        return bundles;
+    }
+
+    /**
+     * Returns the (storage IDs of the) child packages referred to: the URL
+     * pointers of the object's structure map, never the parent's handle, and
+     * none for an item.
+     *
+     * @return child package references
+     */
+    public List<String> getChildRefs()
+    {
+        return childRefs;
+    }
+
+    /**
+     * A descriptive metadata field value
+     */
+    public static class Field
+    {
+        public String schema;
+        public String element;
+        public String qualifier;
+        public String language;
+        public String value;
+    }
+
+    /**
+     * A file (bitstream) in the AIP
+     */
+    public static class FileRef
+    {
+        /** archive entry name **/
+        public String href;
+        /** original bitstream name (null if not given) **/
+        public String name;
+        public String checksum;
+        public String checksumType;
+        public String mimeType;
+        /** bitstream sequence ID (-1 if not given) **/
+        public int sequence;
+    }
+}
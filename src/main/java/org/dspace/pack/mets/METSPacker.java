@@ -8,15 +8,24 @@
 package org.dspace.pack.mets;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.dspace.authorize.AuthorizeException;
+import org.dspace.authorize.factory.AuthorizeServiceFactory;
+import org.dspace.authorize.service.AuthorizeService;
 import org.dspace.content.Bitstream;
+import org.dspace.content.BitstreamFormat;
 import org.dspace.content.Bundle;
 import org.dspace.content.Collection;
 import org.dspace.content.Community;
@@ -29,14 +38,22 @@ import org.dspace.content.packager.PackageDisseminator;
 import org.dspace.content.packager.PackageException;
 import org.dspace.content.packager.PackageIngester;
 import org.dspace.content.packager.PackageParameters;
+import org.dspace.content.service.BitstreamFormatService;
+import org.dspace.content.service.BitstreamService;
+import org.dspace.content.service.BundleService;
 import org.dspace.content.service.CommunityService;
+import org.dspace.content.service.DSpaceObjectService;
 import org.dspace.content.service.ItemService;
 import org.dspace.core.Context;
 import org.dspace.core.Constants;
 import org.dspace.core.factory.CoreServiceFactory;
 import org.dspace.core.service.PluginService;
+import org.dspace.ctask.replicate.ReplicaArchive;
 import org.dspace.curate.Curator;
+import org.dspace.handle.factory.HandleServiceFactory;
+import org.dspace.handle.service.HandleService;
 import org.dspace.pack.Packer;
+import org.dspace.pack.RestoreScope;
 
 import org.apache.log4j.Logger;
 import org.dspace.workflow.WorkflowException;
@@ -51,6 +68,11 @@ public class METSPacker implements Packer
     private PluginService pluginService = CoreServiceFactory.getInstance().getPluginService();
     private CommunityService communityService = ContentServiceFactory.getInstance().getCommunityService();
     private ItemService itemService = ContentServiceFactory.getInstance().getItemService();
+    private BundleService bundleService = ContentServiceFactory.getInstance().getBundleService();
+    private BitstreamService bitstreamService = ContentServiceFactory.getInstance().getBitstreamService();
+    private BitstreamFormatService bitstreamFormatService = ContentServiceFactory.getInstance().getBitstreamFormatService();
+    private HandleService handleService = HandleServiceFactory.getInstance().getHandleService();
+    private AuthorizeService authorizeService = AuthorizeServiceFactory.getInstance().getAuthorizeService();
 
     private Logger log = Logger.getLogger(METSPacker.class);
     
@@ -182,6 +204,11 @@ public class METSPacker implements Packer
      * to perform any recursive restores/replaces of child objects.  
      * If recursiveMode is enabled, this method will attempt to save all referenced
      * child packages for access via getChildPackageRefs().
+     * <p>
+     * If the 'metadataOnly' or 'restoreBundles' options are given (see
+     * RestoreScope), only those parts of an existing object are replaced,
+     * without the AIP PackageIngester, and only the needed entries of the
+     * package are read.
      * 
      * @param archive the METS AIP package
      * @param pkgParams the PackageParameters (if null, defaults to Recursive Replace settings)
@@ -194,6 +221,16 @@ public class METSPacker implements Packer
         if (archive == null || ! archive.exists()) {
             throw new IOException("Missing archive for object: " + dso.getHandle());
         }
+        // restore only parts of an object, if so configured
+        if (pkgParams != null)
+        {
+            RestoreScope scope = scopeOf(pkgParams);
+            if (! scope.isComplete())
+            {
+                unpackSelected(archive, scope);
+                return;
+            }
+        }
         if (sip == null)
         {
             sip = (PackageIngester) pluginService
@@ -286,21 +323,275 @@ public class METSPacker implements Packer
         //NOTE: Context is handled by Curator -- it will commit or close when needed.
     }
 
+    /**
+     * Returns the parts of objects to restore, given the 'metadataOnly' and
+     * 'restoreBundles' options (see RestoreScope).
+     *
+     * @param pkgParams the PackageParameters
+     * @return the scope of the restore
+     */
+    public static RestoreScope scopeOf(PackageParameters pkgParams)
+    {
+        return RestoreScope.of(pkgParams.getBooleanProperty("metadataOnly", false),
+                               pkgParams.getProperty("restoreBundles"));
+    }
+
+    /**
+     * Replace parts of an existing DSpaceObject from a METS AIP Package: its
+     * metadata (from the DIM metadata section) and/or named bundles. Only the
+     * manifest and the files of the restored bundles are read from the
+     * package. Bitstreams are verified against the manifest checksums.
+     * 
+     * @param archive the METS AIP package
+     * @param scope parts of the object to replace
+     * @throws AuthorizeException if authorize error
+     * @throws IOException if I/O error
+     * @throws SQLException if database error 
+     */
+    private void unpackSelected(File archive, RestoreScope scope) throws AuthorizeException, IOException, SQLException
+    {
+        final ZipFile zip = new ZipFile(archive);
+        try
+        {
+            boolean found = unpackSelected(new EntrySource()
+            {
+                @Override
+                public InputStream open(String name) throws IOException
+                {
+                    ZipEntry entry = zip.getEntry(name);
+                    return (entry != null) ? zip.getInputStream(entry) : null;
+                }
+            }, scope);
+            if (! found)
+            {
+                throw new IOException("No " + AIPManifest.METS_FILE + " in AIP '" + archive.getName() + "'");
+            }
+        }
+        finally
+        {
+            zip.close();
+        }
+    }
+
+    /**
+     * Replace parts of an existing DSpaceObject from a METS AIP Package in
+     * the replica store, as unpack does with the 'metadataOnly' or
+     * 'restoreBundles' options - but reading only the manifest and the files
+     * of the restored bundles from the store, if it can read byte ranges.
+     * 
+     * @param archive the METS AIP package in the replica store
+     * @param scope parts of the object to replace
+     * @return false if the package is not in the store
+     * @throws AuthorizeException if authorize error
+     * @throws IOException if I/O error
+     * @throws SQLException if database error 
+     */
+    public boolean unpackSelected(final ReplicaArchive archive, RestoreScope scope)
+            throws AuthorizeException, IOException, SQLException
+    {
+        return unpackSelected(new EntrySource()
+        {
+            @Override
+            public InputStream open(String name) throws IOException
+            {
+                final File entry = archive.fetchEntry(name);
+                if (entry == null)
+                {
+                    return null;
+                }
+                // the staged entry is removed once read
+                return new FileInputStream(entry)
+                {
+                    @Override
+                    public void close() throws IOException
+                    {
+                        try
+                        {
+                            super.close();
+                        }
+                        finally
+                        {
+                            entry.delete();
+                        }
+                    }
+                };
+            }
+        }, scope);
+    }
+
+    /*
+     * Replaces the parts of the object in scope, reading package entries
+     * from the source. Returns false if the package has no manifest.
+     */
+    private boolean unpackSelected(EntrySource source, RestoreScope scope) throws AuthorizeException, IOException, SQLException
+    {
+        Context context = Curator.curationContext();
+        AIPManifest manifest;
+        InputStream in = source.open(AIPManifest.METS_FILE);
+        if (in == null)
+        {
+            return false;
+        }
+        try
+        {
+            manifest = AIPManifest.read(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        DSpaceObject target = (manifest.getHandle() != null) ?
+                              handleService.resolveToObject(context, manifest.getHandle()) : null;
+        if (target == null)
+        {
+            throw new IOException("Cannot restore " + scope + " of object '" + manifest.getHandle() +
+                                  "': it does not exist");
+        }
+        DSpaceObjectService<DSpaceObject> dsoService = ContentServiceFactory.getInstance().getDSpaceObjectService(target);
+        if (scope.includesMetadata())
+        {
+            dsoService.clearMetadata(context, target, Item.ANY, Item.ANY, Item.ANY, Item.ANY);
+            for (AIPManifest.Field field : manifest.getMetadata())
+            {
+                dsoService.addMetadata(context, target, field.schema, field.element,
+                                       field.qualifier, field.language, field.value);
+            }
+        }
+        if (target.getType() == Constants.ITEM)
+        {
+            for (Map.Entry<String, List<AIPManifest.FileRef>> bundle : manifest.getBundles().entrySet())
+            {
+                if (scope.includesBundle(bundle.getKey()))
+                {
+                    restoreBundle(context, source, (Item) target, bundle.getKey(), bundle.getValue());
+                }
+            }
+        }
+        dsoService.update(context, target);
+        this.childPackageRefs = manifest.getChildRefs();
+        return true;
+    }
+
+    /**
+     * Replace a bundle of an Item with the files of a METS AIP Package. The
+     * access policies of the replaced bundle, and the access policies and
+     * descriptions of its bitstreams (matched by sequence ID), are kept, as
+     * is its primary bitstream.
+     * 
+     * @param context DSpace Context
+     * @param source entries of the METS AIP package
+     * @param item the Item
+     * @param bundleName name of the bundle
+     * @param files files of the bundle in the package
+     * @throws AuthorizeException if authorize error
+     * @throws IOException if I/O error
+     * @throws SQLException if database error 
+     */
+    private void restoreBundle(Context context, EntrySource source, Item item, String bundleName,
+                               List<AIPManifest.FileRef> files) throws AuthorizeException, IOException, SQLException
+    {
+        List<Bundle> oldBundles = new ArrayList<Bundle>(itemService.getBundles(item, bundleName));
+        Map<Integer, Bitstream> oldBitstreams = new HashMap<Integer, Bitstream>();
+        for (Bundle old : oldBundles)
+        {
+            for (Bitstream bs : old.getBitstreams())
+            {
+                oldBitstreams.put(bs.getSequenceID(), bs);
+            }
+        }
+        Bundle previous = oldBundles.isEmpty() ? null : oldBundles.get(0);
+        Bitstream oldPrimary = (previous != null) ? previous.getPrimaryBitstream() : null;
+        Bundle bundle = bundleService.create(context, item, bundleName);
+        if (previous != null)
+        {
+            // set before bitstreams are added, as they inherit them
+            authorizeService.removeAllPolicies(context, bundle);
+            authorizeService.copyPolicies(context, previous, bundle);
+        }
+        for (AIPManifest.FileRef file : files)
+        {
+            InputStream in = (file.href != null) ? source.open(file.href) : null;
+            if (in == null)
+            {
+                throw new IOException("Missing file '" + file.href + "' in AIP for: " + item.getHandle());
+            }
+            Bitstream bs;
+            try
+            {
+                bs = bitstreamService.create(context, bundle, in);
+            }
+            finally
+            {
+                in.close();
+            }
+            if ("MD5".equalsIgnoreCase(file.checksumType) && file.checksum != null &&
+                ! file.checksum.equalsIgnoreCase(bs.getChecksum()))
+            {
+                throw new IOException("File '" + file.href + "' in AIP for: " + item.getHandle() +
+                                      " failed checksum verification");
+            }
+            bs.setName(context, (file.name != null) ? file.name : file.href);
+            BitstreamFormat format = (file.mimeType != null) ?
+                                     bitstreamFormatService.findByMIMEType(context, file.mimeType) : null;
+            if (format == null)
+            {
+                format = bitstreamFormatService.guessFormat(context, bs);
+            }
+            if (format != null)
+            {
+                bs.setFormat(context, format);
+            }
+            if (file.sequence >= 0)
+            {
+                bs.setSequenceID(file.sequence);
+                Bitstream old = oldBitstreams.get(file.sequence);
+                if (old != null)
+                {
+                    authorizeService.removeAllPolicies(context, bs);
+                    authorizeService.copyPolicies(context, old, bs);
+                    bs.setDescription(context, old.getDescription());
+                    if (old.equals(oldPrimary))
+                    {
+                        bundle.setPrimaryBitstreamID(bs);
+                    }
+                }
+            }
+            bitstreamService.update(context, bs);
+        }
+        // only now is what the old bundles held no longer needed
+        for (Bundle old : oldBundles)
+        {
+            itemService.removeBundle(context, item, old);
+        }
+        bundleService.update(context, bundle);
+    }
+
+    /*
+     * Entries of a package, by name
+     */
+    private interface EntrySource
+    {
+        // returns null if there is no such entry
+        InputStream open(String name) throws IOException;
+    }
+
     @Override
     public long size(String method) throws SQLException
     {
+        // 'norecurse' sizes a container's own AIP, without its members
+        boolean recurse = ! "norecurse".equals(method);
         int type = dso.getType();
         if (Constants.SITE == type)
         {
-            return siteSize();
+            return recurse ? siteSize() : 0L;
         }
         else if (Constants.COMMUNITY == type)
         {
-            return communitySize((Community)dso);
+            return communitySize((Community)dso, recurse);
         }
         else if (Constants.COLLECTION == type)
         {
-            return collectionSize((Collection)dso);
+            return collectionSize((Collection)dso, recurse);
         }
         else
         {
@@ -330,7 +621,7 @@ public class METSPacker implements Packer
         // (this will recursively perform task for all objects in DSpace)
         for (Community subcomm : communityService.findAllTop(ctx))
         {
-            size += communitySize(subcomm);
+            size += communitySize(subcomm, true);
         }
         
         return size;
@@ -343,10 +634,11 @@ public class METSPacker implements Packer
      * Estimated size is currently just based on size of content files.
      * 
      * @param community DSpace Community
+     * @param recurse if false, the Community AIP alone
      * @return estimated storage size
      * @throws SQLException if database error
      */
-    private long communitySize(Community community) throws SQLException
+    private long communitySize(Community community, boolean recurse) throws SQLException
     {
         long size = 0L;
         // logo size, if present
@@ -355,13 +647,17 @@ public class METSPacker implements Packer
         {
             size += logo.getSize();
         }
+        if (! recurse)
+        {
+            return size;
+        }
         for (Community comm : community.getSubcommunities())
         {
-            size += communitySize(comm);
+            size += communitySize(comm, true);
         }
         for (Collection coll : community.getCollections())
         {
-            size += collectionSize(coll);
+            size += collectionSize(coll, true);
         }
         return size;
     }
@@ -373,10 +669,11 @@ public class METSPacker implements Packer
      * Estimated size is currently just based on size of content files.
      * 
      * @param collection DSpace Collection
+     * @param recurse if false, the Collection AIP alone
      * @return estimated storage size
      * @throws SQLException  if database error
      */
-    private long collectionSize(Collection collection) throws SQLException
+    private long collectionSize(Collection collection, boolean recurse) throws SQLException
     {
         long size = 0L;
         // start with logo size, if present
@@ -385,6 +682,10 @@ public class METSPacker implements Packer
         {
             size += logo.getSize();
         }
+        if (! recurse)
+        {
+            return size;
+        }
         Iterator<Item> itemIter = itemService.findByCollection(Curator.curationContext(), collection);
         while (itemIter.hasNext())
         {
@@ -0,0 +1,176 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.dspace.curate.TaskQueue;
+import org.dspace.curate.TaskQueueEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of EventCoalescer.
+ */
+public class EventCoalescerTest
+{
+    private static final String QUEUE = "replication";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void releasesInOrderFirstAdded() throws Exception
+    {
+        // a window long enough for all adds to fall within it
+        EventCoalescer coalescer = coalescer(1000L, 60000L);
+        RecordingQueue queue = new RecordingQueue();
+        add(coalescer, queue, "123/3");
+        add(coalescer, queue, "123/1");
+        add(coalescer, queue, "123/2");
+        // a repeat is coalesced, and keeps its first place
+        add(coalescer, queue, "123/3");
+        Thread.sleep(1200L);
+        coalescer.release(queue);
+        assertEquals(Arrays.asList("123/3", "123/1", "123/2"), queue.objectIds);
+    }
+
+    @Test
+    public void holdsEntriesUntilQuiet() throws Exception
+    {
+        EventCoalescer coalescer = coalescer(60000L, 120000L);
+        RecordingQueue queue = new RecordingQueue();
+        add(coalescer, queue, "123/1");
+        coalescer.release(queue);
+        assertTrue(queue.objectIds.isEmpty());
+    }
+
+    @Test
+    public void releasesAfterMaxDelay() throws Exception
+    {
+        EventCoalescer coalescer = coalescer(60000L, 50L);
+        RecordingQueue queue = new RecordingQueue();
+        add(coalescer, queue, "123/1");
+        add(coalescer, queue, "123/2");
+        Thread.sleep(100L);
+        coalescer.release(queue);
+        assertEquals(Arrays.asList("123/1", "123/2"), queue.objectIds);
+    }
+
+    @Test
+    public void queuesAtOnceWithoutWindow() throws Exception
+    {
+        EventCoalescer coalescer = coalescer(0L, 0L);
+        RecordingQueue queue = new RecordingQueue();
+        add(coalescer, queue, "123/1");
+        assertEquals(Collections.singletonList("123/1"), queue.objectIds);
+    }
+
+    @Test
+    public void waitsForLockHeldInSameJvm() throws Exception
+    {
+        // as another web application sharing the JVM would hold it
+        EventCoalescer coalescer = coalescer(60000L, 50L);
+        RecordingQueue queue = new RecordingQueue();
+        final RandomAccessFile lockFile = new RandomAccessFile(new File(folder.getRoot(), "consumer-pending.lock"), "rw");
+        lockFile.getChannel().lock();
+        try
+        {
+            Thread unlocker = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep(200L);
+                        lockFile.close();
+                    }
+                    catch (Exception e)
+                    {
+                        // the add below then never returns
+                    }
+                }
+            };
+            unlocker.start();
+            add(coalescer, queue, "123/1");
+            unlocker.join();
+        }
+        finally
+        {
+            // also releases the lock
+            lockFile.close();
+        }
+        Thread.sleep(100L);
+        coalescer.release(queue);
+        assertEquals(Collections.singletonList("123/1"), queue.objectIds);
+    }
+
+    private EventCoalescer coalescer(long window, long maxDelay)
+    {
+        return new EventCoalescer(folder.getRoot().getAbsolutePath(), window, maxDelay);
+    }
+
+    private void add(EventCoalescer coalescer, TaskQueue queue, String id) throws IOException
+    {
+        TaskQueueEntry entry = new TaskQueueEntry("nobody", System.currentTimeMillis(),
+                                                  Collections.singletonList("transmitaip"), id);
+        coalescer.add(queue, QUEUE, Collections.singleton(entry));
+    }
+
+    /*
+     * A queue recording the objects of entries enqueued, in order
+     */
+    private static class RecordingQueue implements TaskQueue
+    {
+        private final List<String> objectIds = new ArrayList<String>();
+
+        @Override
+        public String[] queueNames()
+        {
+            return new String[] { QUEUE };
+        }
+
+        @Override
+        public void enqueue(String queueName, TaskQueueEntry entry)
+        {
+            objectIds.add(entry.getObjectId());
+        }
+
+        @Override
+        public void enqueue(String queueName, Set<TaskQueueEntry> entrySet)
+        {
+            for (TaskQueueEntry entry : entrySet)
+            {
+                enqueue(queueName, entry);
+            }
+        }
+
+        @Override
+        public Set<TaskQueueEntry> dequeue(String queueName, long ticket)
+        {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void release(String queueName, long ticket, boolean removeEntries)
+        {
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of TransferJournal.
+ */
+public class TransferJournalTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void committedVersionIsSkipped() throws IOException
+    {
+        TransferJournal journal = open(10);
+        File staged = folder.newFile("123-4");
+        journal.packing("store", "123/4", "100", staged);
+        assertFalse(journal.isCommitted("store", "123/4", "100"));
+        journal.uploading("store", "123/4", "100", staged);
+        journal.committed("store", "123/4", "100", 42L);
+        assertTrue(journal.isCommitted("store", "123/4", "100"));
+        // a later version, another group, or no stamp at all is not committed
+        assertFalse(journal.isCommitted("store", "123/4", "200"));
+        assertFalse(journal.isCommitted("other", "123/4", "100"));
+        assertFalse(journal.isCommitted("store", "123/4", null));
+        journal.close();
+
+        journal = open(10);
+        assertTrue(journal.isCommitted("store", "123/4", "100"));
+        journal.close();
+    }
+
+    @Test
+    public void removalClearsCommit() throws IOException
+    {
+        TransferJournal journal = open(10);
+        journal.committed("store", "123/4", "100", 42L);
+        journal.removed("store", "123/4");
+        assertFalse(journal.isCommitted("store", "123/4", "100"));
+        journal.close();
+
+        journal = open(10);
+        assertFalse(journal.isCommitted("store", "123/4", "100"));
+        journal.close();
+    }
+
+    @Test
+    public void recoveryDeletesIncompleteStaging() throws IOException
+    {
+        TransferJournal journal = open(10);
+        File staged = folder.newFile("123-5");
+        File archive = folder.newFile("123-5.zip");
+        File done = folder.newFile("123-6");
+        journal.packing("store", "123/5", "100", staged);
+        journal.packing("store", "123/6", "100", done);
+        journal.committed("store", "123/6", "100", 42L);
+        journal.close();
+
+        journal = open(10);
+        assertFalse(staged.exists());
+        assertFalse(archive.exists());
+        assertTrue(done.exists());
+        assertTrue(journal.isCommitted("store", "123/6", "100"));
+        journal.close();
+    }
+
+    @Test
+    public void recoveryLeavesStagingOfBufferedTransmission() throws IOException
+    {
+        TransferJournal journal = open(10);
+        // packed in memory, so nothing of its own is staged
+        File other = folder.newFile("123-7");
+        journal.uploading("store", "123/7", "100", null);
+        journal.close();
+
+        journal = open(10);
+        assertTrue(other.exists());
+        assertFalse(journal.isCommitted("store", "123/7", "100"));
+        journal.close();
+    }
+
+    @Test
+    public void cacheIsBounded() throws IOException
+    {
+        TransferJournal journal = open(2);
+        journal.committed("store", "123/1", "100", 42L);
+        journal.committed("store", "123/2", "100", 42L);
+        journal.committed("store", "123/3", "100", 42L);
+        assertFalse(journal.isCommitted("store", "123/1", "100"));
+        assertTrue(journal.isCommitted("store", "123/2", "100"));
+        assertTrue(journal.isCommitted("store", "123/3", "100"));
+        journal.close();
+    }
+
+    private TransferJournal open(int cacheSize) throws IOException
+    {
+        return new TransferJournal(folder.getRoot().getAbsolutePath(), false, cacheSize);
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of ZipRangeReader, against archives held in memory.
+ */
+public class ZipRangeReaderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void extractsStoredAndDeflatedEntries() throws IOException
+    {
+        byte[] text = "mets manifest\n".getBytes("UTF-8");
+        byte[] data = new byte[2 * 1024 * 1024];
+        new Random(7L).nextBytes(data);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.setComment("comment before which the directory must be found");
+        addEntry(zip, "mets.xml", text);
+        addEntry(zip, "bitstream_1", data);
+        zip.close();
+        ArrayStore store = new ArrayStore(bytes.toByteArray());
+        ZipRangeReader reader = new ZipRangeReader(store, "group", "aip.zip", store.content.length, null);
+
+        assertTrue(reader.hasEntry("mets.xml"));
+        assertFalse(reader.hasEntry("bitstream_2"));
+        File dest = folder.newFile("mets.xml");
+        assertTrue(reader.extract("mets.xml", dest));
+        assertArrayEquals(text, Files.readAllBytes(dest.toPath()));
+        // only the directory and the entry itself were read
+        assertTrue(reader.getBytesRead() < data.length / 10);
+        dest = folder.newFile("bitstream_1");
+        assertTrue(reader.extract("bitstream_1", dest));
+        assertArrayEquals(data, Files.readAllBytes(dest.toPath()));
+        assertFalse(reader.extract("bitstream_2", folder.newFile("missing")));
+        // the directory is read once
+        assertEquals(1, store.directoryReads);
+    }
+
+    @Test
+    public void readsZip64Directory() throws IOException
+    {
+        // more entries than a plain end record can count
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        for (int i = 0; i < 70000; i++)
+        {
+            addEntry(zip, "e" + i, String.valueOf(i).getBytes("UTF-8"));
+        }
+        zip.close();
+        ArrayStore store = new ArrayStore(bytes.toByteArray());
+        ZipRangeReader reader = new ZipRangeReader(store, "group", "aip.zip", store.content.length, null);
+        File dest = folder.newFile("e69999");
+        assertTrue(reader.extract("e69999", dest));
+        assertEquals("69999", new String(Files.readAllBytes(dest.toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void detectsCorruption() throws IOException
+    {
+        byte[] data = new byte[1000];
+        new Random(11L).nextBytes(data);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.setMethod(ZipOutputStream.STORED);
+        ZipEntry entry = new ZipEntry("bitstream_1");
+        entry.setSize(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+        zip.close();
+        byte[] content = bytes.toByteArray();
+        // flip a byte of the stored data (after the local header and name)
+        content[30 + "bitstream_1".length() + 10] ^= 0xff;
+        ArrayStore store = new ArrayStore(content);
+        ZipRangeReader reader = new ZipRangeReader(store, "group", "aip.zip", content.length, null);
+        File dest = folder.newFile("bitstream_1");
+        try
+        {
+            reader.extract("bitstream_1", dest);
+            fail("corrupt entry extracted");
+        }
+        catch (IOException expected)
+        {
+            assertFalse(dest.exists());
+        }
+    }
+
+    private void addEntry(ZipOutputStream zip, String name, byte[] data) throws IOException
+    {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    /*
+     * A store holding one archive in memory, counting reads of its tail
+     */
+    private static class ArrayStore implements RangedObjectStore
+    {
+        private final byte[] content;
+        private int directoryReads = 0;
+
+        private ArrayStore(byte[] content)
+        {
+            this.content = content;
+        }
+
+        @Override
+        public InputStream fetchRange(String group, String id, long start, long end) throws IOException
+        {
+            if (start < 0L || end >= content.length || end < start)
+            {
+                throw new IOException("Bad range " + start + "-" + end);
+            }
+            if (end == content.length - 1)
+            {
+                directoryReads++;
+            }
+            return new ByteArrayInputStream(content, (int) start, (int) (end - start + 1));
+        }
+
+        @Override
+        public void init()
+        {
+        }
+
+        @Override
+        public boolean objectExists(String group, String id)
+        {
+            return true;
+        }
+
+        @Override
+        public String objectAttribute(String group, String id, String attrName)
+        {
+            return "sizebytes".equals(attrName) ? String.valueOf(content.length) : null;
+        }
+
+        @Override
+        public long fetchObject(String group, String id, File file) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferObject(String group, File file)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long removeObject(String group, String id)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long moveObject(String srcGroup, String destGroup, String id)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
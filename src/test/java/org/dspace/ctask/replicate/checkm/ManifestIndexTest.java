@@ -0,0 +1,133 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.checkm;
+
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of ManifestIndex.
+ */
+public class ManifestIndexTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void entriesAndRunsAreSaved() throws IOException
+    {
+        ManifestIndex index = open(true);
+        index.put("123-4.txt", new ManifestIndex.Entry("abc", 10L, 20L, 30L));
+        index.setLastRun("123/1", 40L);
+        index.save();
+
+        index = open(true);
+        ManifestIndex.Entry entry = index.get("123-4.txt");
+        assertNotNull(entry);
+        assertEquals("abc", entry.checksum);
+        assertEquals(10L, entry.length);
+        assertEquals(20L, entry.modified);
+        assertEquals(30L, entry.stamp);
+        assertEquals(40L, index.lastRun("123/1"));
+        assertEquals(0L, index.lastRun("123/2"));
+    }
+
+    @Test
+    public void fullRunReplacesWhatItRebuilds() throws IOException
+    {
+        ManifestIndex index = open(true);
+        index.put("123-4.txt", new ManifestIndex.Entry("abc", 10L, 20L, 30L));
+        index.put("123-5.txt", new ManifestIndex.Entry("def", 10L, 20L, 30L));
+        index.save();
+
+        // a full run trusts nothing recorded
+        index = open(false);
+        assertNull(index.get("123-4.txt"));
+        assertEquals(0L, index.lastRun("123/1"));
+        index.put("123-4.txt", new ManifestIndex.Entry("ghi", 11L, 21L, 31L));
+        index.setLastRun("123/1", 50L);
+        index.save();
+
+        index = open(true);
+        assertEquals("ghi", index.get("123-4.txt").checksum);
+        assertEquals("def", index.get("123-5.txt").checksum);
+        assertEquals(50L, index.lastRun("123/1"));
+    }
+
+    @Test
+    public void overlappingRunsAreMerged() throws IOException
+    {
+        ManifestIndex first = open(true);
+        ManifestIndex second = open(true);
+        first.put("123-4.txt", new ManifestIndex.Entry("abc", 10L, 20L, 30L));
+        first.setLastRun("123/1", 40L);
+        second.put("123-5.txt", new ManifestIndex.Entry("def", 10L, 20L, 30L));
+        second.setLastRun("123/2", 50L);
+        first.save();
+        second.save();
+
+        ManifestIndex index = open(true);
+        assertEquals("abc", index.get("123-4.txt").checksum);
+        assertEquals("def", index.get("123-5.txt").checksum);
+        assertEquals(40L, index.lastRun("123/1"));
+        assertEquals(50L, index.lastRun("123/2"));
+    }
+
+    @Test
+    public void concurrentSavesLoseNothing() throws Exception
+    {
+        Thread[] threads = new Thread[8];
+        final IOException[] errors = new IOException[threads.length];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int n = i;
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        ManifestIndex index = open(true);
+                        index.put("123-" + n + ".txt", new ManifestIndex.Entry("sum" + n, n, n, n));
+                        index.save();
+                    }
+                    catch (IOException ioE)
+                    {
+                        errors[n] = ioE;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i].join();
+            assertNull(errors[i]);
+        }
+        ManifestIndex index = open(true);
+        for (int i = 0; i < threads.length; i++)
+        {
+            assertEquals("sum" + i, index.get("123-" + i + ".txt").checksum);
+        }
+        // no temporary files are left behind
+        assertEquals(2, folder.getRoot().list().length);
+    }
+
+    private ManifestIndex open(boolean reuse) throws IOException
+    {
+        return new ManifestIndex(folder.getRoot().getAbsolutePath(), reuse);
+    }
+}
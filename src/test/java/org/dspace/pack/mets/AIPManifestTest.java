@@ -0,0 +1,79 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.pack.mets;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of AIPManifest.
+ */
+public class AIPManifestTest
+{
+    private static final String HEAD =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+        "<mets xmlns=\"http://www.loc.gov/METS/\" xmlns:xlink=\"http://www.w3.org/1999/xlink\"" +
+        " OBJID=\"hdl:123456789/2\" TYPE=\"DSpace %s\">\n";
+    private static final String PARENT_MAP =
+        "<structMap ID=\"struct_2\" LABEL=\"Parent\" TYPE=\"LOGICAL\">\n" +
+        " <div ID=\"div_3\" LABEL=\"Parent of this DSpace Object\" TYPE=\"AIP Parent Link\">\n" +
+        "  <mptr ID=\"mptr_4\" LOCTYPE=\"HANDLE\" xlink:type=\"simple\" xlink:href=\"123456789/1\"/>\n" +
+        " </div>\n" +
+        "</structMap>\n";
+
+    @Test
+    public void childRefsAreUrlPointers() throws IOException
+    {
+        String mets = String.format(HEAD, "COMMUNITY") +
+            "<structMap ID=\"struct_1\" LABEL=\"DSpace Object\" TYPE=\"LOGICAL\">\n" +
+            " <div ID=\"div_1\" TYPE=\"DSpace Object Contents\">\n" +
+            "  <div ID=\"div_2\" TYPE=\"DSpace COLLECTION\">\n" +
+            "   <mptr LOCTYPE=\"URL\" xlink:type=\"simple\" xlink:href=\"COLLECTION@123456789-3.zip\"/>\n" +
+            "  </div>\n" +
+            "  <div ID=\"div_5\" TYPE=\"DSpace COMMUNITY\">\n" +
+            "   <mptr LOCTYPE=\"URL\" xlink:type=\"simple\" xlink:href=\"COMMUNITY@123456789-4.zip\"/>\n" +
+            "  </div>\n" +
+            " </div>\n" +
+            "</structMap>\n" +
+            PARENT_MAP +
+            "</mets>\n";
+        AIPManifest manifest = read(mets);
+        assertEquals("123456789/2", manifest.getHandle());
+        assertEquals(Arrays.asList("COLLECTION@123456789-3.zip", "COMMUNITY@123456789-4.zip"),
+                     manifest.getChildRefs());
+    }
+
+    @Test
+    public void itemHasNoChildRefs() throws IOException
+    {
+        String mets = String.format(HEAD, "ITEM") +
+            "<structMap ID=\"struct_1\" LABEL=\"DSpace Object\" TYPE=\"LOGICAL\">\n" +
+            " <div ID=\"div_1\" TYPE=\"DSpace Object Contents\">\n" +
+            "  <div ID=\"div_2\" TYPE=\"DSpace BITSTREAM\">\n" +
+            "   <fptr FILEID=\"bitstream_1\"/>\n" +
+            "  </div>\n" +
+            " </div>\n" +
+            "</structMap>\n" +
+            PARENT_MAP +
+            "</mets>\n";
+        List<String> refs = read(mets).getChildRefs();
+        assertTrue(refs.toString(), refs.isEmpty());
+    }
+
+    private AIPManifest read(String mets) throws IOException
+    {
+        return AIPManifest.read(new ByteArrayInputStream(mets.getBytes("UTF-8")));
+    }
+}